@@ -1,5 +1,7 @@
 package com.ddpie.rudp.channelhandler;
 
+import java.net.SocketAddress;
+
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ExceptionEvent;
@@ -10,6 +12,7 @@ import org.jboss.netty.channel.WriteCompletionEvent;
 
 import com.ddpie.rudp.config.IRudpConfig;
 import com.ddpie.rudp.filter.IRudpFilterCallback;
+import com.ddpie.rudp.filter.IRudpSharedFilterCallback;
 import com.ddpie.rudp.log.RudpLoggers;
 import com.ddpie.rudp.util.ChannelBufferHelper;
 
@@ -31,17 +34,20 @@ public class RudpNettyHandler extends SimpleChannelHandler {
 	}
 
 	@Override
-	public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e) throws Exception {
+	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
 		rudpConfig.getProcessorManager().onMessageReceived(
-				ctx.getChannel(), e.getRemoteAddress(), e.getMessage(), new IRudpFilterCallback() {
-					@Override
-					public void callback(Object messageContent) {
-						if(messageContent != null) {
-							MessageEvent event = new UpstreamMessageEvent(ctx.getChannel(), messageContent, e.getRemoteAddress());
-							ctx.sendUpstream(event);
-						}
-					}
-				});
+				ctx.getChannel(), e.getRemoteAddress(), e.getMessage(), getCallback(ctx));
+	}
+	
+	//获取Channel上所有消息共用的回调，第一次收到消息时创建，保存在ChannelHandlerContext中
+	private IRudpFilterCallback getCallback(ChannelHandlerContext ctx) {
+		Object attachment = ctx.getAttachment();
+		if(attachment instanceof ChannelCallback) {
+			return (ChannelCallback) attachment;
+		}
+		ChannelCallback callback = new ChannelCallback(ctx);
+		ctx.setAttachment(callback);
+		return callback;
 	}
 
 	@Override
@@ -71,4 +77,29 @@ public class RudpNettyHandler extends SimpleChannelHandler {
 		}
         ctx.sendUpstream(e);
     }
+	
+	/**
+	 * Channel上所有消息共用的回调，把处理完的消息交给pipeline中后面的Handler。
+	 */
+	private static final class ChannelCallback implements IRudpSharedFilterCallback {
+		private final ChannelHandlerContext ctx;	//所在的ChannelHandlerContext
+		
+		ChannelCallback(ChannelHandlerContext ctx) {
+			this.ctx = ctx;
+		}
+		
+		@Override
+		public void callback(SocketAddress remoteAddress, Object messageContent) {
+			if(messageContent != null) {
+				MessageEvent event = new UpstreamMessageEvent(ctx.getChannel(), messageContent, remoteAddress);
+				ctx.sendUpstream(event);
+			}
+		}
+		
+		@Override
+		public void callback(Object messageContent) {
+			//没有给出远端地址时，使用Channel连接的远端地址
+			callback(ctx.getChannel().getRemoteAddress(), messageContent);
+		}
+	}
 }
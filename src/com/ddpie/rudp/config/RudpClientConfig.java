@@ -18,18 +18,20 @@ public class RudpClientConfig extends RudpDefaultConfig {
 	 * @param serverAddress 要连接的服务器地址
 	 */
 	public RudpClientConfig(SocketAddress serverAddress) {
-		this(serverAddress, null);
+		super(false, 1);
+		this.serverAddress = serverAddress;
 	}
 	
 	/**
 	 * 构造客户端配置信息
 	 * 
 	 * @param serverAddress 要连接的服务器地址
-	 * @param sessionExecutor 会话定时器
+	 * @param sessionExecutor 不再使用，会话的滴答由Processor的时间轮驱动
+	 * @deprecated 使用{@link #RudpClientConfig(SocketAddress)}
 	 */
+	@Deprecated
 	public RudpClientConfig(SocketAddress serverAddress, ScheduledExecutorService sessionExecutor) {
-		super(false, 1, sessionExecutor);
-		this.serverAddress = serverAddress;
+		this(serverAddress);
 	}
 	
 	@Override
@@ -3,11 +3,14 @@ package com.ddpie.rudp.config;
 import java.net.SocketAddress;
 import java.util.concurrent.ScheduledExecutorService;
 
+import com.ddpie.rudp.constant.RudpConstants;
 import com.ddpie.rudp.filter.IRudpFilter;
+import com.ddpie.rudp.filter.fec.RudpFecFilter;
 import com.ddpie.rudp.filter.fragment.RudpFragmentFilter;
 import com.ddpie.rudp.filter.reliability.RudpReliabilityFilter;
 import com.ddpie.rudp.processor.IRudpProcessorManager;
 import com.ddpie.rudp.processor.RudpProcessorManager;
+import com.ddpie.rudp.processor.SessionRudpProcessorManager;
 import com.ddpie.rudp.session.IRudpSessionManager;
 import com.ddpie.rudp.session.RudpSessionManager;
 
@@ -20,7 +23,7 @@ import com.ddpie.rudp.session.RudpSessionManager;
 public class RudpDefaultConfig implements IRudpConfig {
 	private volatile boolean isServer;			//是否是服务器
 	private RudpSessionManager sessionMgr;		//会话管理器
-	private RudpProcessorManager processorMgr;	//Processor管理器
+	private IRudpProcessorManager processorMgr;	//Processor管理器
 	
 	/**
 	 * 构造RUDP配置信息。
@@ -34,10 +37,19 @@ public class RudpDefaultConfig implements IRudpConfig {
 	 * 构造RUDP配置信息。
 	 * 
 	 * @param isServer 是否是服务器
-	 * @param processorCount Processor的数量
+	 * @param processorCount Processor的数量，每个远端一个Processor时不使用
 	 */
 	public RudpDefaultConfig(boolean isServer, int processorCount) {
-		this(isServer, processorCount, null);
+		this.isServer = isServer;
+		if(RudpConstants.PROCESSOR_PER_SESSION_ENABLED) {
+			processorMgr = new SessionRudpProcessorManager(this);
+		}
+		else {
+			processorMgr = new RudpProcessorManager(this, processorCount);
+		}
+		sessionMgr = new RudpSessionManager(this);
+		
+		init();
 	}
 	
 	/**
@@ -45,17 +57,19 @@ public class RudpDefaultConfig implements IRudpConfig {
 	 * 
 	 * @param isServer 是否是服务器
 	 * @param processorCount Processor的数量
-	 * @param sessionExecutor 会话定时器
+	 * @param sessionExecutor 不再使用，会话的滴答由各自Processor的时间轮驱动
+	 * @deprecated 使用{@link #RudpDefaultConfig(boolean, int)}
 	 */
+	@Deprecated
 	public RudpDefaultConfig(boolean isServer, int processorCount, ScheduledExecutorService sessionExecutor) {
-		this.isServer = isServer;
-		processorMgr = new RudpProcessorManager(this, processorCount);
-		sessionMgr = new RudpSessionManager(this, sessionExecutor);
-		
-		init();
+		this(isServer, processorCount);
 	}
 
 	private void init() {
+		//前向纠错处理的是收发的原始数据消息，需要位于可靠性Filter之下
+		if(RudpConstants.FEC_ENABLED) {
+			addRudpFilter(new RudpFecFilter());
+		}
 		addRudpFilter(new RudpReliabilityFilter());
 		addRudpFilter(new RudpFragmentFilter());
 		
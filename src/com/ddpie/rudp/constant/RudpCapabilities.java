@@ -0,0 +1,69 @@
+package com.ddpie.rudp.constant;
+
+/**
+ * RUDP的协议能力。<br>
+ * 新版本的协议特性需要两端都支持才能使用，两端通过心跳消息交换各自支持的能力（按位表示），
+ * 在得知远端支持之前，只使用旧版本的消息格式，以兼容旧版本的远端。
+ * 
+ * @author caobao
+ *
+ */
+public class RudpCapabilities {
+	/** 远端能力未知（尚未收到携带能力的心跳，或者远端是旧版本） */
+	public static final int UNKNOWN = -1;
+	/** 扩展确认消息：累计确认序号+选择确认区段 */
+	public static final int EXTENDED_ACK = 0x00000001;
+	/** 在数据消息上捎带确认 */
+	public static final int PIGGYBACK_ACK = 0x00000002;
+	/** 多个相互独立的有序消息流，依赖于扩展确认消息 */
+	public static final int ORDERED_STREAMS = 0x00000004;
+	/** 前向纠错：数据消息分组发送，每组附带一条异或校验消息 */
+	public static final int FEC = 0x00000008;
+	/** 路径MTU探测：回应带填充的探测消息 */
+	public static final int PMTU_DISCOVERY = 0x00000010;
+	/** 扩展封包头：32位的封包索引和偏移，超大消息以连续片段的形式交给应用 */
+	public static final int EXTENDED_FRAGMENT = 0x00000020;
+	/** 不可靠消息封包：超过最大消息长度的不可靠消息拆分发送，而不是截断 */
+	public static final int UNRELIABLE_FRAGMENT = 0x00000040;
+	/** 合并发送：多条消息合并到一个数据报中 */
+	public static final int BUNDLE = 0x00000080;
+	
+	/**
+	 * 获取本端支持的能力。
+	 * 
+	 * @return 本端支持的能力
+	 */
+	public static int getLocalCapabilities() {
+		int capabilities = EXTENDED_FRAGMENT | UNRELIABLE_FRAGMENT;
+		if(RudpConstants.EXTENDED_ACK_ENABLED) {
+			capabilities |= EXTENDED_ACK;
+		}
+		if(RudpConstants.PIGGYBACK_ACK_ENABLED) {
+			capabilities |= PIGGYBACK_ACK;
+		}
+		if(RudpConstants.EXTENDED_ACK_ENABLED && RudpConstants.ORDERED_STREAM_COUNT > 1) {
+			capabilities |= ORDERED_STREAMS;
+		}
+		if(RudpConstants.FEC_ENABLED) {
+			capabilities |= FEC;
+		}
+		if(RudpConstants.PMTU_DISCOVERY_ENABLED) {
+			capabilities |= PMTU_DISCOVERY;
+		}
+		if(RudpConstants.BUNDLE_ENABLED) {
+			capabilities |= BUNDLE;
+		}
+		return capabilities;
+	}
+	
+	/**
+	 * 判断是否支持某项能力。
+	 * 
+	 * @param capabilities 能力集合
+	 * @param capability 要判断的能力
+	 * @return true，支持；false，不支持
+	 */
+	public static boolean isSupported(int capabilities, int capability) {
+		return capabilities != UNKNOWN && (capabilities & capability) != 0;
+	}
+}
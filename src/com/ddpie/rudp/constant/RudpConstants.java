@@ -2,6 +2,8 @@ package com.ddpie.rudp.constant;
 
 import java.nio.ByteOrder;
 
+import com.ddpie.rudp.processor.queue.WaitStrategyType;
+
 /**
  * RUDP的一些常量信息
  * 
@@ -11,34 +13,123 @@ import java.nio.ByteOrder;
 public class RudpConstants {
 	/** 消息包的字节顺序 */
 	public static ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
-	/** 消息包的最大长度（含消息头），超过此长度消息会分包发送 */
+	/** 消息包的最大长度（含消息头），超过此长度消息会分包发送；启用路径MTU探测后作为每个会话的初始值和回退值 */
 	public static int MESSAGE_MAX_LENGTH = 576;
+	/** 是否启用路径MTU探测，只有远端也支持时才会使用 */
+	public static boolean PMTU_DISCOVERY_ENABLED = true;
+	/** 路径MTU探测的最大长度（UDP数据长度），远端Netty的数据报接收缓存不能小于此值，否则探测消息会被截断而探测失败 */
+	public static int PMTU_MAX_LENGTH = 1472;
+	/** 路径MTU探测的精度，已确认长度与失败长度相差不超过此值时结束探测 */
+	public static int PMTU_PROBE_STEP = 16;
+	/** 同一长度的探测消息最多发送的次数，都未被确认才认为该长度不可用，以区分随机丢包 */
+	public static int PMTU_PROBE_MAX_COUNT = 3;
+	/** 路径MTU重新探测的时间间隔，毫秒 */
+	public static long PMTU_REPROBE_INTERVAL = 10 * 60 * 1000;
+	/** 超过初始长度的可靠消息超时这么多次后，重新确认当前的路径MTU，路径MTU变小时回退 */
+	public static int PMTU_BLACK_HOLE_EXPIRE_COUNT = 2;
 	
-	/** 每个会话发送缓存的最大容量，超过此容量，则会断开连接 */
-	public static int MAX_WRITE_CACHE_SIZE = 10240;
-	/** 每个会话读取缓存的最大容量，超过此容量，则会断开连接 */
+	/** 每个会话发送缓存的最大容量（消息包数量），超过此容量，则会断开连接；需要能容纳一次发送的最大消息的所有封包，20MB的消息按576字节分包约有3.7万个封包 */
+	public static int MAX_WRITE_CACHE_SIZE = 65536;
+	/** 重发帧内存池中最多保留的空闲内存块数量，所有会话共享，多余的内存块交给垃圾回收 */
+	public static int RETRANSMIT_FRAME_POOL_SIZE = 8192;
+	/** 每个会话读取缓存（有序消息的乱序缓存）的最大容量，剩余容量作为接收窗口通告给远端，远端在途的有序消息不会超过接收窗口 */
 	public static int MAX_READ_CACHE_SIZE = 256;
-	/** 每个会话封包缓存最大容量，超过此容量，则会断开连接 */
+	/** 每个会话封包缓存最多容纳的未合并可靠消息数量；超过一半后接收窗口随之收缩，远端遵守接收窗口时不会超过，超过说明远端没有遵守，关闭会话 */
 	public static int MAX_FRAGMENT_CACHE_SIZE = 32;
+	/** 每个会话封包缓存最多占用的字节数，不包括超大消息乱序到达的封包；超过一半后接收窗口随之收缩，超过说明远端没有遵守接收窗口，关闭会话 */
+	public static int MAX_FRAGMENT_CACHE_BYTES = 4 * 1024 * 1024;
+	/** 每个会话超大消息（使用扩展封包头）乱序到达的封包最多占用的字节数，限制方式与{@link #MAX_FRAGMENT_CACHE_BYTES}相同；首个封包重发期间后面的封包仍会到达，需要能容纳整个消息 */
+	public static int MAX_STREAMING_FRAGMENT_CACHE_BYTES = 32 * 1024 * 1024;
+	/** 所有会话的封包缓存合计占用字节数的软上限，超过一半后所有会话的接收窗口随之收缩，不关闭任何会话 */
+	public static long MAX_GLOBAL_FRAGMENT_CACHE_BYTES = 64 * 1024 * 1024;
+	/** 未合并的无序消息的超时时间，超过此时间没有收到它的新封包则丢弃；应当大于远端重发一条消息的最长时间（最大重发次数乘以最大重发等待时间），毫秒 */
+	public static long FRAGMENT_REASSEMBLY_TIMEOUT = 90 * 1000;
+	/** 不可靠消息的重组超时时间，从收到第一个封包开始计算，超时未收齐则丢弃整个消息，毫秒 */
+	public static long UNRELIABLE_FRAGMENT_TIMEOUT = 200;
 	
 	/** 会话滴答时间间隔，毫秒 */
 	public static long SESSION_TICK_INTERVAL = 100;
+	/** 会话滴答时间轮的滴答时长，即会话定时任务的精度，毫秒 */
+	public static long TIMING_WHEEL_TICK_DURATION = 10;
 	/** 会话活跃超时时间，毫秒 */
 	public static long HEARTBEAT_TIMEOUT = 65000;
 	/** 发送心跳的最大时间间隔，毫秒 */
 	public static long HEARTBEAT_INTERVAL = 10000;
 	/** 挂起状态持续的最大时间，超过该时间后，将关闭会话 ，毫秒*/
 	public static long SUSPEND_TIMEOUT = 10 * 1000;
-	/** 收到新消息后，从收到消息开始到发出反馈的最大等待时间，毫秒 */
+	/** 收到新消息后，从收到消息开始到发出反馈的最大等待时间，毫秒；远端的重发超时时间会留出这段时间 */
 	public static long MESSAGE_ACK_MAX_WAIT_TIME = 300;
-	/** 消息重发的等待时间，毫秒 */
+	/** 消息重发的初始等待时间，测得往返时间之前使用，毫秒 */
 	public static long MESSAGE_RETRANSMIT_TIME = 500;
+	/** 消息重发的最小等待时间，毫秒 */
+	public static long MESSAGE_RETRANSMIT_MIN_TIME = 50;
+	/** 消息重发的最大等待时间（含指数退避），毫秒 */
+	public static long MESSAGE_RETRANSMIT_MAX_TIME = 3000;
 	/** 消息最大重发次数 */
 	public static int MESSAGE_RETRANSMIT_MAX_COUNT = 20;
+	/** 快速重发的阈值，反馈中某条消息之后有这么多条消息已被确认时，立即重发该消息；小于等于0时不启用快速重发 */
+	public static int MESSAGE_FAST_RETRANSMIT_THRESHOLD = 3;
+	
+	/** 可靠消息的初始拥塞窗口，即同时在途的消息数量 */
+	public static int CONGESTION_INITIAL_WINDOW = 32;
+	/** 可靠消息的最小拥塞窗口 */
+	public static int CONGESTION_MIN_WINDOW = 4;
+	/** 可靠消息的最大拥塞窗口 */
+	public static int CONGESTION_MAX_WINDOW = 1024;
 	
 	/** 消息接收状态中存储的最大消息数量 */
 	public static int RECEIVE_STATUS_MAX_MESSAGE_COUNT = 1024;
+	/** 可靠消息的起始序号，两端必须一致；序号按RFC 1982的序号算术回绕，可以设置为接近Integer.MAX_VALUE的值来验证回绕 */
+	public static int INITIAL_SEQUENCE_ID = 1;
 	
+	/** 是否启用扩展确认消息（累计确认序号+选择确认区段），只有远端也支持时才会使用 */
+	public static boolean EXTENDED_ACK_ENABLED = true;
+	/** 扩展确认消息中每种可靠消息最多携带的选择确认区段数量 */
+	public static int EXTENDED_ACK_MAX_RANGE_COUNT = 32;
+	/** 是否在发出的数据消息上捎带确认，只有远端也支持时才会使用 */
+	public static boolean PIGGYBACK_ACK_ENABLED = true;
+	/** 每个会话可以使用的有序消息流数量，1到{@link com.ddpie.rudp.util.MessageHelper#ORDERED_STREAM_MAX_COUNT}；大于1且启用扩展确认消息时，才会与远端协商使用多个有序流 */
+	public static int ORDERED_STREAM_COUNT = 8;
+	/** 是否启用前向纠错（FEC），需要在创建配置之前设置，只有远端也支持时才会使用 */
+	public static boolean FEC_ENABLED = false;
+	/** 前向纠错的初始分组大小，即每多少条数据消息发送一条校验消息 */
+	public static int FEC_INITIAL_GROUP_SIZE = 8;
+	/** 前向纠错的最小分组大小，丢包率高时使用 */
+	public static int FEC_MIN_GROUP_SIZE = 4;
+	/** 前向纠错的最大分组大小，丢包率低时使用，不能超过{@link com.ddpie.rudp.util.MessageHelper#FEC_MAX_GROUP_SIZE} */
+	public static int FEC_MAX_GROUP_SIZE = 16;
+	/** 前向纠错分组未满时，从分组的第一条消息开始到发出校验消息的最大等待时间，毫秒 */
+	public static long FEC_GROUP_FLUSH_TIME = 20;
+	/** 接收端每统计这么多条消息（含校验消息），就向远端报告一次丢包情况 */
+	public static int FEC_LOSS_REPORT_INTERVAL = 64;
+	/** 是否把发给同一个远端的多条小消息合并到一个数据报中发送，只有远端也支持时才会使用 */
+	public static boolean BUNDLE_ENABLED = true;
+	/** 合并发送的最大等待时间，从第一条待合并的消息开始计算，微秒；为0时每批消息处理完立即发送 */
+	public static long BUNDLE_FLUSH_DELAY = 0;
+	/** 远端能力未知时，最多发送的携带本端能力的心跳数量 */
+	public static int CAPABILITY_ADVERTISE_MAX_COUNT = 10;
+	
+	/** 是否在Netty的I/O线程中直接处理消息（内联模式，见{@link com.ddpie.rudp.processor.InlineRudpProcessor}），省去消息队列和线程切换；需要在创建配置之前设置，Filter和上层回调中不能有阻塞操作；UDP服务器只有一个Channel，所有消息都在它唯一的I/O线程中处理 */
+	public static boolean PROCESSOR_INLINE_ENABLED = false;
+	/** 是否为每个远端创建一个消息处理器（见{@link com.ddpie.rudp.processor.SessionRudpProcessorManager}），在共享的线程池中串行处理，Filter中的阻塞操作只阻塞所在的会话；需要在创建配置之前设置，优先于内联模式 */
+	public static boolean PROCESSOR_PER_SESSION_ENABLED = false;
+	/** 每个消息处理器队列的容量，不大于0时使用无界的链表队列 */
+	public static int PROCESSOR_QUEUE_CAPACITY = 65536;
+	/** 消息处理器每次唤醒后最多处理的消息数量 */
+	public static int PROCESSOR_DRAIN_MAX_COUNT = 256;
+	/** 消息处理器队列为空时的等待策略 */
+	public static WaitStrategyType PROCESSOR_WAIT_STRATEGY = WaitStrategyType.PARK;
+	/** 先自旋后挂起策略中，挂起前的自旋次数 */
+	public static int PROCESSOR_WAIT_SPIN_COUNT = 1000;
+	/** 先自旋后挂起策略中，自旋结束后挂起前让出CPU的次数 */
+	public static int PROCESSOR_WAIT_YIELD_COUNT = 100;
+	/** 统计消息处理器负载、迁移热点会话的时间间隔，毫秒，不大于0时不迁移 */
+	public static long PROCESSOR_REBALANCE_INTERVAL = 1000;
+	/** 最忙与最闲的消息处理器在统计间隔内的忙碌时间之差，超过统计间隔的这个比例时迁移会话 */
+	public static double PROCESSOR_REBALANCE_THRESHOLD = 0.2;
+	/** 每个消息处理器的消息池中，上行消息、下行消息和消息封装对象各自最多缓存的数量，不大于0时不缓存 */
+	public static int PROCESSOR_MESSAGE_POOL_CAPACITY = 1024;
+
 	/** 扫描RUDP连接Future的时间间隔，毫秒 */
 	public static long SCAN_CONNECT_FUTURE_INTERVAL = 200;
 	/** RUDP连接Future超时时间，毫秒 */
@@ -0,0 +1,18 @@
+package com.ddpie.rudp.filter;
+
+/**
+ * {@link IRudpPipelineFilter}所在节点的上下文，用来把处理结果传递给下一个节点。
+ * 
+ * @author caobao
+ *
+ */
+public interface IRudpFilterContext {
+	
+	/**
+	 * 把一条消息传递给下一个节点，可以调用多次，消息按调用的顺序依次传递；为null时忽略。<br>
+	 * 消息在当前Filter返回后才传递，不会在调用中嵌套执行后面的Filter。
+	 * 
+	 * @param messageContent 传递给下一个节点的消息
+	 */
+	void fireMessage(Object messageContent);
+}
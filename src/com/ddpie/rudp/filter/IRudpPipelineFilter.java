@@ -0,0 +1,34 @@
+package com.ddpie.rudp.filter;
+
+import com.ddpie.rudp.session.IRudpSession;
+
+/**
+ * 通过上下文传递处理结果的RUDP Filter。<br>
+ * 消息处理器优先调用这里的方法，一条消息产生多条结果时依次调用{@link IRudpFilterContext#fireMessage(Object)}，不需要组装数组。
+ * 只实现{@link IRudpFilter}的Filter，返回值按原来的方式传递，数组依次展开。
+ * 
+ * @author caobao
+ *
+ */
+public interface IRudpPipelineFilter extends IRudpFilter {
+	
+	/**
+	 * 一个消息收到了。
+	 * 在{@link com.ddpie.rudp.processor.IRudpProcessor}线程中处理。
+	 * 
+	 * @param session RUDP会话
+	 * @param messageContent 收到的消息
+	 * @param ctx 传递给下一个Filter的上下文
+	 */
+	void messageReceived(IRudpSession session, Object messageContent, IRudpFilterContext ctx);
+	
+	/**
+	 * 一个写请求。
+	 * 在{@link com.ddpie.rudp.processor.IRudpProcessor}线程中处理。
+	 * 
+	 * @param session RUDP会话
+	 * @param messageContent 要写入的消息
+	 * @param ctx 传递给下一个Filter的上下文
+	 */
+	void writeRequested(IRudpSession session, Object messageContent, IRudpFilterContext ctx);
+}
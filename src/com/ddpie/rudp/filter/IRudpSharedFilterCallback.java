@@ -0,0 +1,21 @@
+package com.ddpie.rudp.filter;
+
+import java.net.SocketAddress;
+
+/**
+ * 可以被同一个Channel上所有消息共用的{@link IRudpFilterCallback}。<br>
+ * 消息处理器调用回调时同时给出消息的远端地址，回调不需要为每个消息单独创建来记住消息来自哪里。
+ * 
+ * @author caobao
+ *
+ */
+public interface IRudpSharedFilterCallback extends IRudpFilterCallback {
+	
+	/**
+	 * RUDP所有{@link IRudpFilter}操作结束后的回调。
+	 * 
+	 * @param remoteAddress 消息的远端地址
+	 * @param messageContent 处理完的消息
+	 */
+	void callback(SocketAddress remoteAddress, Object messageContent);
+}
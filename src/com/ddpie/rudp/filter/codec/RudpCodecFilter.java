@@ -5,6 +5,7 @@ import org.jboss.netty.buffer.ChannelBuffers;
 
 import com.ddpie.rudp.constant.RudpConstants;
 import com.ddpie.rudp.filter.RudpFilterAdapter;
+import com.ddpie.rudp.filter.fragment.MessageChunk;
 import com.ddpie.rudp.log.RudpLoggers;
 import com.ddpie.rudp.message.WritableMessageWrapper;
 import com.ddpie.rudp.session.IRudpSession;
@@ -24,6 +25,10 @@ public abstract class RudpCodecFilter extends RudpFilterAdapter {
 		if(messageContent == null) {
 			return null;
 		}
+		//超大消息的片段，无法单独解码，直接交给后面的Filter
+		if(messageContent instanceof MessageChunk) {
+			return messageContent;
+		}
 		if(messageContent instanceof ChannelBuffer == false) {
 			RudpLoggers.codecLogger.error(
 					"codec can only decode ChannelBuffer, cannot decode message from " + session + ", " + messageContent);
@@ -58,7 +63,7 @@ public abstract class RudpCodecFilter extends RudpFilterAdapter {
 			
 			switch(wrapper.getType()) {
 			case RELIABLE_ORDERED:
-				headType = MessageHelper.RELIABLE_ORDERED_HEAD;
+				headType = MessageHelper.getReliableOrderedHead(wrapper.getStreamId());
 				break;
 			case RELIABLE_DISORDERED:
 				headType = MessageHelper.RELIABLE_DISORDERED_HEAD;
@@ -79,11 +84,6 @@ public abstract class RudpCodecFilter extends RudpFilterAdapter {
 			if(RudpLoggers.codecLogger.isDebugEnabled()) {
 				RudpLoggers.codecLogger.debug("encoded finished, encoded=" + ChannelBufferHelper.toString(buf) + ", src=" + content);
 			}
-			//不可靠消息太长，截断
-			if(headType == MessageHelper.UNRELIABLE_HEAD && buf.readableBytes() > RudpConstants.MESSAGE_MAX_LENGTH) {
-				RudpLoggers.businessDownLogger.warn("unreliable message is too large, so try to truncate it, " + ChannelBufferHelper.toString(buf));
-				return buf.slice(readerIndex, RudpConstants.MESSAGE_MAX_LENGTH);
-			}
 			return buf;
 		}
 		//未预留消息头
@@ -96,11 +96,6 @@ public abstract class RudpCodecFilter extends RudpFilterAdapter {
 			if(RudpLoggers.codecLogger.isDebugEnabled()) {
 				RudpLoggers.codecLogger.debug("encoded finished, encoded=" + ChannelBufferHelper.toString(newBuf) + ", src=" + content);
 			}
-			//不可靠消息太长，截断
-			if(headType == MessageHelper.UNRELIABLE_HEAD && newBuf.readableBytes() > RudpConstants.MESSAGE_MAX_LENGTH) {
-				RudpLoggers.businessDownLogger.warn("unreliable message is too large, so try to truncate it, " + ChannelBufferHelper.toString(newBuf));
-				return newBuf.slice(readerIndex, RudpConstants.MESSAGE_MAX_LENGTH);
-			}
 			return newBuf;
 		}
 	}
@@ -0,0 +1,121 @@
+package com.ddpie.rudp.filter.fec;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import com.ddpie.rudp.filter.IRudpFilterContext;
+import com.ddpie.rudp.filter.IRudpPipelineFilter;
+import com.ddpie.rudp.log.RudpLoggers;
+import com.ddpie.rudp.session.IRudpSession;
+import com.ddpie.rudp.util.MessageHelper;
+
+/**
+ * RUDP前向纠错Filter。<br>
+ * 位于{@link com.ddpie.rudp.filter.reliability.RudpReliabilityFilter}之下，直接处理收发的数据消息：
+ * 发送时把数据消息分组，每组附带一条异或校验消息；接收时若一组中只丢失了一条消息，则用校验消息在本地恢复，不需要等待远端重发。<br>
+ * 重发的消息和心跳、确认消息不经过Filter，不参与纠错；超出拥塞窗口、稍后由可靠性管理器直接发送的消息通过{@link SessionFecManager}参与纠错。<br>
+ * 数据消息和校验消息、收到的消息和恢复的消息都通过上下文依次传递，不组装数组。
+ * 
+ * @author caobao
+ *
+ */
+public class RudpFecFilter implements IRudpPipelineFilter {
+	
+	@Override
+	public void sessionOpened(IRudpSession session) {
+		SessionFecManager mgr = new SessionFecManager(session);
+		session.setAttribute("fec", mgr);
+	}
+	
+	@Override
+	public void sessionSuspended(IRudpSession session) {
+	
+	}
+	
+	@Override
+	public void sessionResumed(IRudpSession session) {
+	
+	}
+	
+	@Override
+	public void sessionClosed(IRudpSession session) {
+		SessionFecManager mgr = (SessionFecManager) session.removeAttribute("fec");
+		if(mgr != null && RudpLoggers.reliabilityLogger.isInfoEnabled()) {
+			RudpLoggers.reliabilityLogger.info("fec statistics of session " + session + ": " + mgr);
+		}
+	}
+	
+	@Override
+	public Object messageReceived(IRudpSession session, Object messageContent) {
+		SessionFecManager mgr = (SessionFecManager) session.getAttribute("fec");
+		ChannelBuffer buf = (ChannelBuffer) messageContent;
+		if(mgr == null) {
+			return messageContent;
+		}
+		
+		if(MessageHelper.isFecData(buf)) {
+			return mgr.onDataReceived(buf);
+		}
+		if(MessageHelper.isFecParity(buf)) {
+			return mgr.onParityReceived(buf);
+		}
+		if(MessageHelper.isFecReport(buf)) {
+			mgr.onReportReceived(buf);
+			return null;
+		}
+		return messageContent;
+	}
+	
+	@Override
+	public void messageReceived(IRudpSession session, Object messageContent, IRudpFilterContext ctx) {
+		SessionFecManager mgr = (SessionFecManager) session.getAttribute("fec");
+		ChannelBuffer buf = (ChannelBuffer) messageContent;
+		//只有数据消息可能产生多条结果，其他消息按原来的方式处理
+		if(mgr != null && MessageHelper.isFecData(buf)) {
+			mgr.onDataReceived(buf, ctx);
+		}
+		else {
+			ctx.fireMessage(messageReceived(session, buf));
+		}
+	}
+	
+	@Override
+	public Object writeRequested(IRudpSession session, Object messageContent) {
+		SessionFecManager mgr = (SessionFecManager) session.getAttribute("fec");
+		ChannelBuffer buf = (ChannelBuffer) messageContent;
+		if(mgr == null) {
+			return messageContent;
+		}
+		
+		//数据消息可能捎带了确认
+		switch((byte) (MessageHelper.getMessageType(buf) & ~MessageHelper.PIGGYBACK_ACK_FLAG)) {
+		case MessageHelper.RELIABLE_ORDERED_HEAD:
+		case MessageHelper.RELIABLE_DISORDERED_HEAD:
+		case MessageHelper.UNRELIABLE_HEAD:
+			return mgr.onWrite(buf);
+		}
+		
+		return messageContent;
+	}
+	
+	@Override
+	public void writeRequested(IRudpSession session, Object messageContent, IRudpFilterContext ctx) {
+		SessionFecManager mgr = (SessionFecManager) session.getAttribute("fec");
+		ChannelBuffer buf = (ChannelBuffer) messageContent;
+		if(mgr == null) {
+			ctx.fireMessage(messageContent);
+			return;
+		}
+		
+		//数据消息可能捎带了确认
+		switch((byte) (MessageHelper.getMessageType(buf) & ~MessageHelper.PIGGYBACK_ACK_FLAG)) {
+		case MessageHelper.RELIABLE_ORDERED_HEAD:
+		case MessageHelper.RELIABLE_DISORDERED_HEAD:
+		case MessageHelper.UNRELIABLE_HEAD:
+			mgr.onWrite(buf, ctx);
+			return;
+		}
+		
+		ctx.fireMessage(messageContent);
+	}
+
+}
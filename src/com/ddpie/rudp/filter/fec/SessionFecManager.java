@@ -0,0 +1,544 @@
+package com.ddpie.rudp.filter.fec;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import com.ddpie.rudp.constant.RudpCapabilities;
+import com.ddpie.rudp.constant.RudpConstants;
+import com.ddpie.rudp.filter.IRudpFilterContext;
+import com.ddpie.rudp.filter.reliability.IDataMessageWriter;
+import com.ddpie.rudp.filter.reliability.SessionReliabilityManager;
+import com.ddpie.rudp.log.RudpLoggers;
+import com.ddpie.rudp.session.DirectWritter;
+import com.ddpie.rudp.session.IRudpSession;
+import com.ddpie.rudp.session.ISessionTickListener;
+import com.ddpie.rudp.session.RudpSession;
+import com.ddpie.rudp.util.MessageHelper;
+
+/**
+ * RUDP前向纠错管理器。<br>
+ * 发送时，每分组大小条数据消息发送一条校验消息，校验消息为分组内所有消息的逐字节异或；
+ * 接收时，一组中任意一条消息丢失，都可以由其他消息和校验消息异或恢复。<br>
+ * 分组大小根据远端报告的丢包率调整：丢包率越高，分组越小，校验消息的比例越高。<br>
+ * 同时是可靠性管理器的{@link IDataMessageWriter}，超出拥塞窗口、稍后由可靠性管理器直接发送的消息也参与纠错。<br>
+ * 与RUDP会话一一对应，只在消息处理器线程中访问。
+ * 
+ * @author caobao
+ *
+ */
+public class SessionFecManager implements IDataMessageWriter {
+	private static final int RECEIVE_GROUP_COUNT = 8;		//接收端同时跟踪的分组数量，2的幂
+	
+	private IRudpSession session;							//关联的RUDP会话
+	private SessionReliabilityManager reliabilityManager;	//关联的可靠性管理器，第一次获取时登记为它的数据消息写入者
+	
+	private int writeGroupId;								//当前发送分组ID
+	private int writeGroupSize;								//发送分组大小
+	private int writeIndex;									//当前发送分组中已发送的消息数量
+	private byte[] writeContentXor;							//当前发送分组的消息内容异或
+	private int writeContentLength;							//当前发送分组中最长消息的长度
+	private int writeLengthXor;								//当前发送分组的消息长度异或
+	private long writeGroupStartTime;						//当前发送分组第一条消息的发送时间
+	
+	private FecGroup[] receiveGroups;						//接收端正在跟踪的分组，下标为分组ID & (RECEIVE_GROUP_COUNT - 1)
+	private boolean receiveStarted;							//是否收到过纠错消息
+	private int highestReceiveGroupId;						//收到过的最新分组ID
+	private int lastReceiveGroupCount = RudpConstants.FEC_INITIAL_GROUP_SIZE;	//最近一个结束跟踪的分组的消息数量
+	private int reportExpectedCount;						//本次报告统计的消息数量
+	private int reportLostCount;							//本次报告统计的丢失消息数量
+	
+	private long protectedCount;							//发送的纠错数据消息数量
+	private long protectedBytes;							//发送的纠错数据消息字节数
+	private long parityCount;								//发送的校验消息数量
+	private long parityBytes;								//发送的校验消息字节数
+	private long recoveredCount;							//本地恢复的消息数量
+	private long expectedCount;								//接收端统计的消息数量
+	private long lostCount;									//接收端统计的丢失消息数量（恢复之前）
+	private double peerLossRate = -1;						//远端报告的丢包率，平滑后
+	
+	public SessionFecManager(IRudpSession session) {
+		this.session = session;
+		writeGroupSize = clampGroupSize(RudpConstants.FEC_INITIAL_GROUP_SIZE);
+		writeContentXor = new byte[RudpConstants.MESSAGE_MAX_LENGTH];
+		receiveGroups = new FecGroup[RECEIVE_GROUP_COUNT];
+		for (int i = 0; i < receiveGroups.length; i++) {
+			receiveGroups[i] = new FecGroup();
+		}
+		initSessionScanner();
+	}
+	
+	private void initSessionScanner() {
+		if(session instanceof RudpSession == false) {
+			return;
+		}
+		((RudpSession) session).addTickListener(new ISessionTickListener() {
+			@Override
+			public long onTick(long currentTime) {
+				//没有未满的分组，无需滴答
+				if(writeIndex == 0) {
+					return Long.MAX_VALUE;
+				}
+				//分组迟迟未满，直接发出校验消息，以免分组内的丢包无法恢复
+				long flushTime = writeGroupStartTime + RudpConstants.FEC_GROUP_FLUSH_TIME;
+				if(currentTime >= flushTime) {
+					DirectWritter.write(session, closeWriteGroup());
+					return Long.MAX_VALUE;
+				}
+				return flushTime;
+			}
+		});
+	}
+	
+	//远端是否支持前向纠错
+	private boolean isFecEnabled() {
+		if(RudpConstants.FEC_ENABLED == false) {
+			return false;
+		}
+		SessionReliabilityManager mgr = getReliabilityManager();
+		return mgr != null && RudpCapabilities.isSupported(mgr.getPeerCapabilities(), RudpCapabilities.FEC);
+	}
+	
+	//获取可靠性管理器；本Filter位于可靠性Filter之下，会话打开时可靠性管理器还不存在，第一次获取到时登记为它的数据消息写入者
+	private SessionReliabilityManager getReliabilityManager() {
+		if(reliabilityManager == null) {
+			reliabilityManager = (SessionReliabilityManager) session.getAttribute("reliability");
+			if(reliabilityManager != null) {
+				reliabilityManager.setDataMessageWriter(this);
+			}
+		}
+		return reliabilityManager;
+	}
+	
+	@Override
+	public void write(ChannelBuffer message) {
+		ChannelBuffer data = protect(message);
+		if(data == null) {
+			DirectWritter.write(session, message);
+			return;
+		}
+		DirectWritter.write(session, data);
+		if(writeIndex >= writeGroupSize) {
+			DirectWritter.write(session, closeWriteGroup());
+		}
+	}
+	
+	/**
+	 * 发送数据消息时的回调。
+	 * 
+	 * @param message 数据消息
+	 * @return 要发送的消息，分组已满时还包括校验消息
+	 */
+	public Object onWrite(ChannelBuffer message) {
+		ChannelBuffer data = protect(message);
+		if(data == null) {
+			return message;
+		}
+		if(writeIndex >= writeGroupSize) {
+			return new ChannelBuffer[]{data, closeWriteGroup()};
+		}
+		return data;
+	}
+	
+	/**
+	 * 发送数据消息时的回调，要发送的消息依次通过上下文传递，不分配数组。
+	 * 
+	 * @param message 数据消息
+	 * @param ctx 传递给下一个Filter的上下文
+	 */
+	public void onWrite(ChannelBuffer message, IRudpFilterContext ctx) {
+		ChannelBuffer data = protect(message);
+		if(data == null) {
+			ctx.fireMessage(message);
+			return;
+		}
+		ctx.fireMessage(data);
+		if(writeIndex >= writeGroupSize) {
+			ctx.fireMessage(closeWriteGroup());
+		}
+	}
+	
+	//把数据消息加入当前发送分组，返回纠错数据消息；不参与纠错时返回null
+	private ChannelBuffer protect(ChannelBuffer message) {
+		if(isFecEnabled() == false) {
+			return null;
+		}
+		int length = message.readableBytes();
+		if(length > 0xFFFF) {
+			return null;
+		}
+		
+		ChannelBuffer data = MessageHelper.getFecData(message, writeGroupId, writeIndex);
+		if(writeIndex == 0) {
+			writeGroupStartTime = System.currentTimeMillis();
+			if(session instanceof RudpSession) {
+				((RudpSession) session).requestTick(writeGroupStartTime + RudpConstants.FEC_GROUP_FLUSH_TIME);
+			}
+		}
+		if(writeContentXor.length < length) {
+			byte[] contentXor = new byte[length];
+			System.arraycopy(writeContentXor, 0, contentXor, 0, writeContentLength);
+			writeContentXor = contentXor;
+		}
+		xor(writeContentXor, message, message.readerIndex(), length);
+		if(length > writeContentLength) {
+			writeContentLength = length;
+		}
+		writeLengthXor ^= length;
+		writeIndex++;
+		protectedCount++;
+		protectedBytes += length;
+		return data;
+	}
+	
+	//结束当前发送分组，返回分组的校验消息
+	private ChannelBuffer closeWriteGroup() {
+		ChannelBuffer parity = MessageHelper.getFecParity(
+				writeGroupId, writeIndex, writeLengthXor, writeContentXor, writeContentLength);
+		parityCount++;
+		parityBytes += parity.readableBytes();
+		
+		writeGroupId = (writeGroupId + 1) & 0xFFFF;
+		writeIndex = 0;
+		writeLengthXor = 0;
+		for (int i = 0; i < writeContentLength; i++) {
+			writeContentXor[i] = 0;
+		}
+		writeContentLength = 0;
+		return parity;
+	}
+	
+	/**
+	 * 收到纠错数据消息时的回调。
+	 * 
+	 * @param buf 纠错数据消息
+	 * @return 原数据消息，若恢复了分组内丢失的消息，则一并返回；重复的消息返回null
+	 */
+	public Object onDataReceived(ChannelBuffer buf) {
+		ChannelBuffer content = MessageHelper.getFecDataContent(buf);
+		int index = MessageHelper.getFecIndex(buf);
+		FecGroup group = getReceiveGroup(MessageHelper.getFecGroupId(buf));
+		//分组已经结束跟踪，或者索引无效，不参与纠错，直接交付
+		if(group == null || index >= MessageHelper.FEC_MAX_GROUP_SIZE) {
+			return content;
+		}
+		if(addData(group, index, content) == false) {
+			return null;
+		}
+		ChannelBuffer recovered = recover(group);
+		if(recovered != null) {
+			return new ChannelBuffer[]{content, recovered};
+		}
+		return content;
+	}
+	
+	/**
+	 * 收到纠错数据消息时的回调，原数据消息和恢复的消息依次通过上下文传递，不分配数组。
+	 * 
+	 * @param buf 纠错数据消息
+	 * @param ctx 传递给下一个Filter的上下文
+	 */
+	public void onDataReceived(ChannelBuffer buf, IRudpFilterContext ctx) {
+		ChannelBuffer content = MessageHelper.getFecDataContent(buf);
+		int index = MessageHelper.getFecIndex(buf);
+		FecGroup group = getReceiveGroup(MessageHelper.getFecGroupId(buf));
+		//分组已经结束跟踪，或者索引无效，不参与纠错，直接交付
+		if(group == null || index >= MessageHelper.FEC_MAX_GROUP_SIZE) {
+			ctx.fireMessage(content);
+			return;
+		}
+		if(addData(group, index, content)) {
+			ctx.fireMessage(content);
+			ctx.fireMessage(recover(group));
+		}
+	}
+	
+	//把数据消息加入接收分组，重复收到或者已经恢复过时返回false
+	private boolean addData(FecGroup group, int index, ChannelBuffer content) {
+		int bit = 1 << index;
+		if((group.receivedMask & bit) != 0) {
+			return false;
+		}
+		group.receivedMask |= bit;
+		group.dataCount++;
+		if(index > group.maxIndex) {
+			group.maxIndex = index;
+		}
+		int length = content.readableBytes();
+		group.ensureCapacity(length);
+		xor(group.contentXor, content, content.readerIndex(), length);
+		group.lengthXor ^= length;
+		return true;
+	}
+	
+	/**
+	 * 收到纠错校验消息时的回调。
+	 * 
+	 * @param buf 纠错校验消息
+	 * @return 恢复的数据消息，不能恢复时返回null
+	 */
+	public ChannelBuffer onParityReceived(ChannelBuffer buf) {
+		int count = MessageHelper.getFecCount(buf);
+		if(count <= 0 || count > MessageHelper.FEC_MAX_GROUP_SIZE) {
+			return null;
+		}
+		FecGroup group = getReceiveGroup(MessageHelper.getFecGroupId(buf));
+		if(group == null || group.parityReceived) {
+			return null;
+		}
+		group.parityReceived = true;
+		group.count = count;
+		int length = buf.readableBytes() - MessageHelper.FEC_PARITY_HEAD_LENGTH;
+		group.ensureCapacity(length);
+		xor(group.contentXor, buf, buf.readerIndex() + MessageHelper.FEC_PARITY_HEAD_LENGTH, length);
+		group.lengthXor ^= MessageHelper.getFecLengthXor(buf);
+		return recover(group);
+	}
+	
+	/**
+	 * 收到纠错丢包报告时的回调，根据远端的丢包率调整分组大小。<br>
+	 * 每次报告统计的消息不多，丢包率按指数加权移动平均平滑，分组大小取期望每组丢失不超过半条消息的大小。
+	 * 
+	 * @param buf 纠错丢包报告
+	 */
+	public void onReportReceived(ChannelBuffer buf) {
+		int expected = MessageHelper.getFecReportExpectedCount(buf);
+		int lost = MessageHelper.getFecReportLostCount(buf);
+		if(expected <= 0 || lost > expected) {
+			return;
+		}
+		double lossRate = (double) lost / expected;
+		peerLossRate = peerLossRate < 0 ? lossRate : peerLossRate * 0.75 + lossRate * 0.25;
+		int groupSize = peerLossRate <= 0 ? Integer.MAX_VALUE : (int) Math.min(Integer.MAX_VALUE, 0.5 / peerLossRate);
+		groupSize = clampGroupSize(groupSize);
+		if(groupSize != writeGroupSize) {
+			if(RudpLoggers.reliabilityLogger.isDebugEnabled()) {
+				RudpLoggers.reliabilityLogger.debug(
+						"fec loss rate of " + session.getRemoteAddress() + " is " + lost + "/" + expected +
+						", so change group size from " + writeGroupSize + " to " + groupSize);
+			}
+			writeGroupSize = groupSize;
+		}
+	}
+	
+	//获取分组大小的有效值
+	private int clampGroupSize(int groupSize) {
+		int maxGroupSize = Math.min(RudpConstants.FEC_MAX_GROUP_SIZE, MessageHelper.FEC_MAX_GROUP_SIZE);
+		int minGroupSize = Math.max(1, Math.min(RudpConstants.FEC_MIN_GROUP_SIZE, maxGroupSize));
+		return Math.max(minGroupSize, Math.min(maxGroupSize, groupSize));
+	}
+	
+	//获取分组的接收状态，新的分组会替换掉同一位置上较老的分组；分组太老时返回null
+	private FecGroup getReceiveGroup(int groupId) {
+		FecGroup group = receiveGroups[groupId & (RECEIVE_GROUP_COUNT - 1)];
+		if(group.active && group.groupId == groupId) {
+			return group;
+		}
+		if(group.active && isGroupAfter(groupId, group.groupId) == false) {
+			return null;
+		}
+		if(group.active) {
+			finishReceiveGroup(group);
+		}
+		onNewReceiveGroup(groupId);
+		group.reset(groupId);
+		return group;
+	}
+	
+	//分组ID是16位的循环序号
+	private static boolean isGroupAfter(int groupId1, int groupId2) {
+		return (short) (groupId1 - groupId2) > 0;
+	}
+	
+	//开始跟踪一个新的分组，跨过的分组整组丢失了
+	private void onNewReceiveGroup(int groupId) {
+		if(receiveStarted == false) {
+			receiveStarted = true;
+			highestReceiveGroupId = groupId;
+			return;
+		}
+		if(isGroupAfter(groupId, highestReceiveGroupId)) {
+			int skippedCount = ((groupId - highestReceiveGroupId) & 0xFFFF) - 1;
+			if(skippedCount > 0) {
+				int skippedMessageCount = skippedCount * (lastReceiveGroupCount + 1);
+				onReceiveStatistics(skippedMessageCount, skippedMessageCount);
+			}
+			highestReceiveGroupId = groupId;
+		}
+	}
+	
+	//结束跟踪一个分组，统计分组内的丢包
+	private void finishReceiveGroup(FecGroup group) {
+		int count = group.parityReceived ? group.count : group.maxIndex + 1;
+		int received = group.dataCount + (group.parityReceived ? 1 : 0) - (group.recovered ? 1 : 0);
+		int expected = count + 1;
+		onReceiveStatistics(expected, Math.max(0, expected - received));
+		lastReceiveGroupCount = count;
+		group.active = false;
+	}
+	
+	//累计丢包统计，够了报告间隔则向远端报告
+	private void onReceiveStatistics(int expected, int lost) {
+		expectedCount += expected;
+		lostCount += lost;
+		reportExpectedCount += expected;
+		reportLostCount += lost;
+		if(reportExpectedCount >= RudpConstants.FEC_LOSS_REPORT_INTERVAL) {
+			int expectedReport = Math.min(reportExpectedCount, 0xFFFF);
+			int lostReport = Math.min(reportLostCount, expectedReport);
+			DirectWritter.write(session, MessageHelper.getFecReport(expectedReport, lostReport));
+			reportExpectedCount = 0;
+			reportLostCount = 0;
+		}
+	}
+	
+	//分组内只丢失了一条消息，且收到了校验消息，则恢复丢失的消息
+	private ChannelBuffer recover(FecGroup group) {
+		if(group.parityReceived == false || group.recovered || group.dataCount != group.count - 1 || group.maxIndex >= group.count) {
+			return null;
+		}
+		int missingIndex = -1;
+		for (int i = 0; i < group.count; i++) {
+			if((group.receivedMask & (1 << i)) == 0) {
+				missingIndex = i;
+				break;
+			}
+		}
+		//长度异常，分组数据有误
+		int length = group.lengthXor;
+		if(missingIndex < 0 || length <= 0 || length > group.contentXor.length) {
+			return null;
+		}
+		group.receivedMask |= 1 << missingIndex;
+		group.dataCount++;
+		group.recovered = true;
+		recoveredCount++;
+		ChannelBuffer recovered = ChannelBuffers.copiedBuffer(RudpConstants.BYTE_ORDER, group.contentXor, 0, length);
+		if(RudpLoggers.reliabilityLogger.isDebugEnabled()) {
+			RudpLoggers.reliabilityLogger.debug(
+					"recovered message " + missingIndex + " of fec group " + group.groupId + " from " + session.getRemoteAddress());
+		}
+		return recovered;
+	}
+	
+	//将消息内容异或到数组中
+	private static void xor(byte[] contentXor, ChannelBuffer buf, int index, int length) {
+		for (int i = 0; i < length; i++) {
+			contentXor[i] ^= buf.getByte(index + i);
+		}
+	}
+	
+	/**
+	 * 获取发送分组大小。
+	 * 
+	 * @return
+	 */
+	public int getGroupSize() {
+		return writeGroupSize;
+	}
+	
+	/**
+	 * 获取发送的纠错数据消息数量。
+	 * 
+	 * @return
+	 */
+	public long getProtectedCount() {
+		return protectedCount;
+	}
+	
+	/**
+	 * 获取发送的校验消息数量。
+	 * 
+	 * @return
+	 */
+	public long getParityCount() {
+		return parityCount;
+	}
+	
+	/**
+	 * 获取校验消息的额外开销，即校验消息字节数与纠错数据消息字节数之比。
+	 * 
+	 * @return
+	 */
+	public double getParityOverhead() {
+		return protectedBytes == 0 ? 0 : (double) parityBytes / protectedBytes;
+	}
+	
+	/**
+	 * 获取本地恢复的消息数量。
+	 * 
+	 * @return
+	 */
+	public long getRecoveredCount() {
+		return recoveredCount;
+	}
+	
+	/**
+	 * 获取接收端统计的丢包率（恢复之前）。
+	 * 
+	 * @return
+	 */
+	public double getLossRate() {
+		return expectedCount == 0 ? 0 : (double) lostCount / expectedCount;
+	}
+	
+	/**
+	 * 获取远端报告的丢包率（平滑后）。
+	 * 
+	 * @return 丢包率；尚未收到报告时返回-1
+	 */
+	public double getPeerLossRate() {
+		return peerLossRate;
+	}
+	
+	@Override
+	public String toString() {
+		return "SessionFecManager [groupSize=" + writeGroupSize + ", protectedCount=" + protectedCount +
+				", parityCount=" + parityCount + ", parityOverhead=" + getParityOverhead() +
+				", recoveredCount=" + recoveredCount + ", lossRate=" + getLossRate() +
+				", peerLossRate=" + peerLossRate + "]";
+	}
+	
+	/**
+	 * 接收端一个分组的接收状态。
+	 * 
+	 * @author caobao
+	 *
+	 */
+	private static class FecGroup {
+		private int groupId;							//分组ID
+		private boolean active;							//是否正在跟踪
+		private int receivedMask;						//已收到的消息，按分组内索引
+		private int dataCount;							//已收到（含已恢复）的消息数量
+		private int maxIndex;							//收到的最大分组内索引
+		private boolean parityReceived;					//是否收到了校验消息
+		private int count;								//分组消息数量，收到校验消息后才知道
+		private boolean recovered;						//是否已经恢复过消息
+		private byte[] contentXor = new byte[RudpConstants.MESSAGE_MAX_LENGTH];	//已收到消息的内容异或
+		private int lengthXor;							//已收到消息的长度异或
+		
+		//开始跟踪新的分组
+		private void reset(int groupId) {
+			this.groupId = groupId;
+			active = true;
+			receivedMask = 0;
+			dataCount = 0;
+			maxIndex = -1;
+			parityReceived = false;
+			count = 0;
+			recovered = false;
+			for (int i = 0; i < contentXor.length; i++) {
+				contentXor[i] = 0;
+			}
+			lengthXor = 0;
+		}
+		
+		//保证异或数组足够长
+		private void ensureCapacity(int length) {
+			if(contentXor.length < length) {
+				byte[] newContentXor = new byte[length];
+				System.arraycopy(contentXor, 0, newContentXor, 0, contentXor.length);
+				contentXor = newContentXor;
+			}
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package com.ddpie.rudp.filter.fragment;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * 超大消息的一个连续片段。<br>
+ * 使用扩展封包头发送的消息不会在内存中合并，而是按偏移从小到大，把连续的部分依次以片段的形式交给后面的Filter，
+ * 同一个消息的片段首尾相接，拼起来就是完整的消息体（不含消息头）。<br>
+ * 消息没有交付完就中止时（例如接收缓存超出上限而关闭会话），最后交给后面的Filter的是一个内容为空的中止片段，
+ * 收到它后应当丢弃这个消息已经收到的部分。会话因其他原因关闭时没有中止片段，未交付完的消息随会话一起结束。
+ * 
+ * @author caobao
+ *
+ */
+public class MessageChunk {
+	private final boolean ordered;				//是否是可靠且有序的消息
+	private final int streamId;					//有序流ID，无序消息为0
+	private final int messageId;				//消息ID，即第一个封包的消息序号
+	private final int totalLength;				//消息体总长度
+	private final int offset;					//本片段在消息体中的偏移
+	private final ChannelBuffer content;		//本片段的内容
+	private final boolean aborted;				//是否是中止片段
+	
+	public MessageChunk(boolean ordered, int streamId, int messageId, int totalLength, int offset, ChannelBuffer content) {
+		this(ordered, streamId, messageId, totalLength, offset, content, false);
+	}
+	
+	/**
+	 * 构造中止片段，表示消息在偏移offset处中止，不会再有后续的片段。
+	 * 
+	 * @param ordered 是否是可靠且有序的消息
+	 * @param streamId 有序流ID
+	 * @param messageId 消息ID
+	 * @param totalLength 消息体总长度
+	 * @param offset 已经交付的长度
+	 */
+	public MessageChunk(boolean ordered, int streamId, int messageId, int totalLength, int offset) {
+		this(ordered, streamId, messageId, totalLength, offset, ChannelBuffers.EMPTY_BUFFER, true);
+	}
+	
+	private MessageChunk(boolean ordered, int streamId, int messageId, int totalLength, int offset, ChannelBuffer content, boolean aborted) {
+		this.ordered = ordered;
+		this.streamId = streamId;
+		this.messageId = messageId;
+		this.totalLength = totalLength;
+		this.offset = offset;
+		this.content = content;
+		this.aborted = aborted;
+	}
+	
+	/**
+	 * 是否是可靠且有序的消息。
+	 * 
+	 * @return
+	 */
+	public boolean isOrdered() {
+		return ordered;
+	}
+	
+	/**
+	 * 获取有序流ID。
+	 * 
+	 * @return 有序流ID，无序消息为0
+	 */
+	public int getStreamId() {
+		return streamId;
+	}
+	
+	/**
+	 * 获取消息ID，同一个消息的片段ID相同。<br>
+	 * 有序消息的ID只在同一个有序流中唯一。
+	 * 
+	 * @return
+	 */
+	public int getMessageId() {
+		return messageId;
+	}
+	
+	/**
+	 * 获取消息体总长度。
+	 * 
+	 * @return
+	 */
+	public int getTotalLength() {
+		return totalLength;
+	}
+	
+	/**
+	 * 获取本片段在消息体中的偏移。
+	 * 
+	 * @return
+	 */
+	public int getOffset() {
+		return offset;
+	}
+	
+	/**
+	 * 获取本片段的内容。
+	 * 
+	 * @return
+	 */
+	public ChannelBuffer getContent() {
+		return content;
+	}
+	
+	/**
+	 * 是否是消息的第一个片段。
+	 * 
+	 * @return
+	 */
+	public boolean isFirst() {
+		return offset == 0;
+	}
+	
+	/**
+	 * 是否是消息的最后一个片段，收到后消息就完整了。
+	 * 
+	 * @return
+	 */
+	public boolean isLast() {
+		return aborted == false && offset + content.readableBytes() == totalLength;
+	}
+	
+	/**
+	 * 是否是中止片段，收到后消息不会再有后续的片段，已经收到的部分应当丢弃。
+	 * 
+	 * @return
+	 */
+	public boolean isAborted() {
+		return aborted;
+	}
+	
+	@Override
+	public String toString() {
+		return "MessageChunk [ordered=" + ordered + ", streamId=" + streamId + ", messageId=" + messageId +
+				", totalLength=" + totalLength + ", offset=" + offset + ", length=" + content.readableBytes() + ", aborted=" + aborted + "]";
+	}
+}
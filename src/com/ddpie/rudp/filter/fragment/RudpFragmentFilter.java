@@ -1,27 +1,43 @@
 package com.ddpie.rudp.filter.fragment;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 
+import com.ddpie.rudp.constant.RudpCapabilities;
 import com.ddpie.rudp.constant.RudpConstants;
-import com.ddpie.rudp.filter.IRudpFilter;
+import com.ddpie.rudp.filter.IRudpFilterContext;
+import com.ddpie.rudp.filter.IRudpPipelineFilter;
+import com.ddpie.rudp.filter.reliability.SessionReliabilityManager;
 import com.ddpie.rudp.log.RudpLoggers;
 import com.ddpie.rudp.session.IRudpSession;
 import com.ddpie.rudp.util.ChannelBufferHelper;
 import com.ddpie.rudp.util.MessageHelper;
 
 /**
- * RUDP大数据封包Filter。
+ * RUDP大数据封包Filter。<br>
+ * 超过会话最大消息长度的可靠消息拆分为多个封包发送；封包数量超过普通封包头的上限时，使用扩展封包头，
+ * 接收端不合并这样的超大消息，而是以{@link MessageChunk}的形式把连续的片段依次交给后面的Filter。<br>
+ * 不可靠消息同样拆分发送，接收端尽力合并：一组封包没有在{@link RudpConstants#UNRELIABLE_FRAGMENT_TIMEOUT}内收齐，
+ * 或者收到了更新的消息的封包，则丢弃整个消息；远端不支持时仍然截断。<br>
+ * 拆分出的封包和接收时交付的片段都通过上下文依次传递，不组装数组。
  * 
  * @author caobao
  *
  */
-public class RudpFragmentFilter implements IRudpFilter {
+public class RudpFragmentFilter implements IRudpPipelineFilter {
 
 	@Override
 	public void sessionOpened(IRudpSession session) {
 		SessionFragmentManager mgr = new SessionFragmentManager(session);
 		session.setAttribute("fragment", mgr);
+		//封包缓存紧张时收缩接收窗口
+		SessionReliabilityManager reliabilityMgr = (SessionReliabilityManager) session.getAttribute("reliability");
+		if(reliabilityMgr != null) {
+			reliabilityMgr.setReceiveWindowLimiter(mgr);
+		}
 	}
 	
 	@Override
@@ -36,40 +52,133 @@ public class RudpFragmentFilter implements IRudpFilter {
 
 	@Override
 	public void sessionClosed(IRudpSession session) {
-		session.removeAttribute("fragment");
+		SessionFragmentManager mgr = (SessionFragmentManager) session.removeAttribute("fragment");
+		if(mgr != null) {
+			mgr.clear();
+			if(mgr.getUnreliableDroppedCount() + mgr.getTimeoutEvictedCount() > 0 && RudpLoggers.rootLogger.isInfoEnabled()) {
+				RudpLoggers.rootLogger.info("fragment statistics of session " + session + ": " + mgr);
+			}
+		}
 	}
 
 	@Override
 	public Object messageReceived(IRudpSession session, Object messageContent) {
 		ChannelBuffer buf = (ChannelBuffer) messageContent;
-		//不可靠消息，无需处理封包
+		SessionFragmentManager mgr = (SessionFragmentManager) session.getAttribute("fragment");
 		if(MessageHelper.isUnreliable(buf)) {
-			return messageContent;
+			//没有拆分的不可靠消息，无需合并
+			if(MessageHelper.getFragmentCount(buf) <= 0) {
+				return messageContent;
+			}
+			return mgr.onUnreliableFragmentReceived(buf);
 		}
-		SessionFragmentManager mgr = (SessionFragmentManager) session.getAttribute("fragment");
 		return mgr.onMessageReceived(buf);
 	}
 
+	@Override
+	public void messageReceived(IRudpSession session, Object messageContent, IRudpFilterContext ctx) {
+		ChannelBuffer buf = (ChannelBuffer) messageContent;
+		//可靠消息可能一次交付多个片段，依次传递；不可靠消息按原来的方式处理
+		if(MessageHelper.isUnreliable(buf)) {
+			ctx.fireMessage(messageReceived(session, buf));
+		}
+		else {
+			SessionFragmentManager mgr = (SessionFragmentManager) session.getAttribute("fragment");
+			mgr.onMessageReceived(buf, ctx);
+		}
+	}
+
 	@Override
 	public Object writeRequested(IRudpSession session, Object messageContent) {
+		SegmentCollector collector = new SegmentCollector();
+		writeRequested(session, messageContent, collector);
+		return collector.getResult();
+	}
+
+	@Override
+	public void writeRequested(IRudpSession session, Object messageContent, IRudpFilterContext ctx) {
 		ChannelBuffer buf = (ChannelBuffer) messageContent;
-		if(buf.readableBytes() > RudpConstants.MESSAGE_MAX_LENGTH) {
+		//按会话的路径MTU分包
+		int maxLength = MessageHelper.getMessageMaxLength(session);
+		if(buf.readableBytes() > maxLength) {
 			if(RudpLoggers.businessDownLogger.isDebugEnabled()) {
 				RudpLoggers.businessDownLogger.debug(
 						"the message sent to " + session.getRemoteAddress() + " is too large, so split it, msg=" + ChannelBufferHelper.toString(buf));
 			}
-			return splitMessage(session, buf);
+			int bodyLength = buf.readableBytes() - MessageHelper.MESSAGE_HEAD_LENGTH;
+			int segmentBodyLength = maxLength - MessageHelper.MESSAGE_HEAD_LENGTH;
+			int segmentCount = (bodyLength + segmentBodyLength - 1) / segmentBodyLength;
+			if(MessageHelper.isUnreliable(buf)) {
+				splitUnreliableMessage(session, buf, maxLength, segmentCount, ctx);
+				return;
+			}
+			//普通封包头最多127个封包，再多则使用扩展封包头
+			if(segmentCount > MessageHelper.FRAGMENT_MAX_COUNT) {
+				if(isSupported(session, RudpCapabilities.EXTENDED_FRAGMENT) == false) {
+					RudpLoggers.businessDownLogger.error(
+							"the message sent to " + session.getRemoteAddress() + " is too large for the remote, so discard it, length=" + buf.readableBytes());
+					return;
+				}
+				splitExtendedMessage(buf, maxLength, ctx);
+				return;
+			}
+			splitMessage(buf, maxLength, ctx);
+			return;
 		}
 		
-		return messageContent;
+		ctx.fireMessage(messageContent);
+	}
+	
+	//远端是否支持某项能力
+	private boolean isSupported(IRudpSession session, int capability) {
+		SessionReliabilityManager mgr = (SessionReliabilityManager) session.getAttribute("reliability");
+		return mgr != null && RudpCapabilities.isSupported(mgr.getPeerCapabilities(), capability);
+	}
+	
+	//拆分不可靠消息，同一个消息的封包使用相同的消息标识；远端不支持或者封包太多时截断
+	private void splitUnreliableMessage(IRudpSession session, ChannelBuffer buf, int maxLength, int segmentCount, IRudpFilterContext ctx) {
+		if(segmentCount > MessageHelper.FRAGMENT_MAX_COUNT || isSupported(session, RudpCapabilities.UNRELIABLE_FRAGMENT) == false) {
+			RudpLoggers.businessDownLogger.warn("unreliable message is too large, so try to truncate it, " + ChannelBufferHelper.toString(buf));
+			ctx.fireMessage(buf.slice(buf.readerIndex(), maxLength));
+			return;
+		}
+		//封包的消息头都复制自大消息，先设置好消息标识
+		SessionFragmentManager mgr = (SessionFragmentManager) session.getAttribute("fragment");
+		MessageHelper.setSequenceId(buf, mgr.nextUnreliableMessageId());
+		splitMessage(buf, maxLength, ctx);
+	}
+	
+	//使用扩展封包头拆分消息，每个封包都引用大消息的一段，不复制消息体
+	private void splitExtendedMessage(ChannelBuffer buf, int messageMaxLength, IRudpFilterContext ctx) {
+		int startIndex = buf.readerIndex();
+		int headLength = MessageHelper.MESSAGE_HEAD_LENGTH;
+		int maxLength = messageMaxLength - MessageHelper.EXTENDED_FRAGMENT_HEAD_LENGTH;
+		int totalBodyLength = buf.readableBytes() - headLength;
+		
+		//封包数量
+		int segmentCount = totalBodyLength / maxLength;
+		if(totalBodyLength % maxLength != 0) {
+			segmentCount += 1;
+		}
+		
+		for (int segmentIndex = 0; segmentIndex < segmentCount; segmentIndex++) {
+			int offset = segmentIndex * maxLength;
+			int segmentBodyLength = Math.min(maxLength, totalBodyLength - offset);
+			//复制大消息的消息头，并设置扩展封包头
+			ChannelBuffer headBuffer = ChannelBuffers.buffer(RudpConstants.BYTE_ORDER, MessageHelper.EXTENDED_FRAGMENT_HEAD_LENGTH);
+			headBuffer.writeBytes(buf, startIndex, headLength);
+			headBuffer.writeZero(MessageHelper.EXTENDED_FRAGMENT_HEAD_LENGTH - headLength);
+			MessageHelper.setExtendedFragment(headBuffer, segmentIndex, totalBodyLength, offset);
+			ctx.fireMessage(ChannelBuffers.wrappedBuffer(headBuffer, buf.slice(startIndex + headLength + offset, segmentBodyLength)));
+		}
 	}
 	
 	//拆分消息
-	private ChannelBuffer[] splitMessage(IRudpSession session, ChannelBuffer buf) {
+	private void splitMessage(ChannelBuffer buf, int messageMaxLength, IRudpFilterContext ctx) {
 		int startIndex = buf.readerIndex();
 		int endIndex = buf.writerIndex();
 		int headLength = MessageHelper.MESSAGE_HEAD_LENGTH;
-		int maxLength = RudpConstants.MESSAGE_MAX_LENGTH - headLength;
+		int maxLength = messageMaxLength - headLength;
 		int currentIndex = startIndex;
 		
 		int totalBodyLength = endIndex - startIndex - headLength;
@@ -79,8 +188,6 @@ public class RudpFragmentFilter implements IRudpFilter {
 			segmentCount += 1;
 		}
 		
-		ChannelBuffer[] result = new ChannelBuffer[segmentCount];
-		
 		//跳过消息头
 		currentIndex += headLength;
 		
@@ -107,16 +214,35 @@ public class RudpFragmentFilter implements IRudpFilter {
 			//设置封包数量和封包索引
 			MessageHelper.setFragmentCount(segmentBuf, segmentCount);
 			MessageHelper.setFragmentIndex(segmentBuf, segmentIndex);
-			//存储消息
-			result[segmentIndex] = segmentBuf;
+			//传递消息
+			ctx.fireMessage(segmentBuf);
 			
 			//跳过本消息体片段
 			currentIndex += segmentBodyLength;
 			//更新封包索引
 			segmentIndex += 1;
 		}
+	}
+	
+	/**
+	 * 收集拆分出的封包，按{@link com.ddpie.rudp.filter.IRudpFilter}的方式返回：没有封包时为null，多个封包时为数组。
+	 */
+	private static class SegmentCollector implements IRudpFilterContext {
+		private List<Object> segments = new ArrayList<Object>(1);	//拆分出的封包
 		
-		return result;
+		@Override
+		public void fireMessage(Object messageContent) {
+			if(messageContent != null) {
+				segments.add(messageContent);
+			}
+		}
+		
+		Object getResult() {
+			if(segments.isEmpty()) {
+				return null;
+			}
+			return segments.size() == 1 ? segments.get(0) : segments.toArray(new ChannelBuffer[segments.size()]);
+		}
 	}
 
 }
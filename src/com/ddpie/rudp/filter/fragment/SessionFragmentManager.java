@@ -1,30 +1,59 @@
 package com.ddpie.rudp.filter.fragment;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 
 import com.ddpie.rudp.constant.RudpConstants;
+import com.ddpie.rudp.filter.IRudpFilterContext;
+import com.ddpie.rudp.filter.reliability.IReceiveWindowLimiter;
 import com.ddpie.rudp.log.RudpLoggers;
 import com.ddpie.rudp.session.IRudpSession;
+import com.ddpie.rudp.session.ISessionTickListener;
 import com.ddpie.rudp.session.RudpSession;
 import com.ddpie.rudp.util.ChannelBufferHelper;
 import com.ddpie.rudp.util.MessageHelper;
+import com.ddpie.rudp.util.SequenceHelper;
 
 /**
  * RUDP封包管理器。<br>
- * 将隶属于一个大数据的多个小数据包，合并成一个大数据。
- * 与RUDP会话一一对应。
+ * 将隶属于一个大数据的多个小数据包，合并成一个大数据。<br>
+ * 可靠消息的封包一定会收齐，除非会话因重发次数超限而关闭，所以缓存不靠丢弃可靠消息来限制，而是靠接收窗口：
+ * 未合并消息的数量、本会话或所有会话缓存的字节数超过上限的一半后，通告给远端的接收窗口随剩余空间收缩，远端发送封包时在途消息不超过接收窗口。
+ * 远端不遵守接收窗口，本会话的缓存超出上限时，记录错误并关闭会话，已经交付过片段的超大消息以{@link MessageChunk#isAborted()}为true的片段结束；
+ * 所有会话合计的上限只收缩接收窗口，不关闭会话。使用扩展封包头的超大消息乱序到达的部分单独计算，上限为{@link RudpConstants#MAX_STREAMING_FRAGMENT_CACHE_BYTES}。<br>
+ * 无序消息超过{@link RudpConstants#FRAGMENT_REASSEMBLY_TIMEOUT}没有收到新封包时丢弃，这时远端已经放弃重发，被丢弃的消息在超时时间内迟到的封包也直接丢弃；
+ * 有序消息和已经交付过片段的超大消息丢弃后无法继续交付，不会超时。<br>
+ * 不可靠消息只尽力合并，只保留最新的一个未合并消息，超过{@link RudpConstants#UNRELIABLE_FRAGMENT_TIMEOUT}没有收齐则丢弃。<br>
+ * 与RUDP会话一一对应，只在消息处理器线程中访问。
  * 
  * @author caobao
  *
  */
-public class SessionFragmentManager {
+public class SessionFragmentManager implements IReceiveWindowLimiter {
+	private static final AtomicLong globalCachedBytes = new AtomicLong();	//所有会话的封包缓存合计占用的字节数
+	
 	private IRudpSession session;											//关联的RUDP会话
-	private Map<Integer, MessageFragment> orderedFragmentMap;		//有序消息的封包表<第一个包的序号, 封包类>
-	private Map<Integer, MessageFragment> disorderedFragmentMap;	//无序消息的封包表<第一个包的序号, 封包类>
+	private Map<Long, FragmentGroup> fragmentGroupMap;				//未合并的可靠消息的封包表<消息键, 封包类>，按最近收到封包的顺序排列
+	private Map<Long, Long> evictedKeyMap;							//超时丢弃的未合并消息<消息键, 超时时间>，按丢弃顺序排列
+	private long cachedBytes;										//本会话普通封包缓存占用的字节数
+	private long streamingCachedBytes;								//本会话超大消息乱序到达的封包占用的字节数
+	private boolean isOverflowed;									//封包缓存是否超出过上限，超出后会话已经关闭
+	private int nextUnreliableMessageId;							//下一个拆分发送的不可靠消息的消息标识
+	private int unreliableMessageId;								//未合并的不可靠消息的消息标识
+	private MessageFragment unreliableFragment;						//未合并的不可靠消息，没有时为null
+	private long unreliableExpireTime;								//未合并的不可靠消息的超时时间
+	private long unreliableDroppedCount;							//没有收齐而丢弃的不可靠消息数量
+	private long timeoutEvictedCount;								//超时丢弃的无序消息数量
+	private long evictedBytes;										//超时丢弃的封包缓存字节数
+	private List<Object> deliveredMessages;							//收到一个封包后可以交付的消息，重复使用
 
 	/**
 	 * 构造风暴管理器。
@@ -33,8 +62,9 @@ public class SessionFragmentManager {
 	 */
 	public SessionFragmentManager(IRudpSession session) {
 		this.session = session;
-		orderedFragmentMap = new ConcurrentHashMap<Integer, SessionFragmentManager.MessageFragment>();
-		disorderedFragmentMap = new ConcurrentHashMap<Integer, SessionFragmentManager.MessageFragment>();
+		fragmentGroupMap = new LinkedHashMap<Long, SessionFragmentManager.FragmentGroup>(16, 0.75f, true);
+		evictedKeyMap = new LinkedHashMap<Long, Long>();
+		deliveredMessages = new ArrayList<Object>(1);
 		initSessionScanner();
 	}
 	
@@ -42,78 +72,531 @@ public class SessionFragmentManager {
 		if(session instanceof RudpSession == false) {
 			return;
 		}
-		((RudpSession) session).addTickListener(new Runnable() {
+		((RudpSession) session).addTickListener(new ISessionTickListener() {
 			@Override
-			public void run() {
-				if(orderedFragmentMap.size() + disorderedFragmentMap.size() > RudpConstants.MAX_FRAGMENT_CACHE_SIZE) {
-					RudpLoggers.rootLogger.warn("fragment cache too large, so close the session, " + session);
-					session.close();
-				}
+			public long onTick(long currentTime) {
+				return checkTimeout(currentTime);
 			}
 		});
 	}
+	
+	//丢弃超时的不可靠消息和无序消息，返回下一次需要检测的时间
+	private long checkTimeout(long currentTime) {
+		long nextTime = Long.MAX_VALUE;
+		if(unreliableFragment != null) {
+			if(currentTime >= unreliableExpireTime) {
+				dropUnreliableFragment();
+			}
+			else {
+				nextTime = unreliableExpireTime;
+			}
+		}
+		//未合并消息按最近收到封包的顺序排列，遇到第一个没有超时的就可以结束
+		Iterator<FragmentGroup> groupIt = fragmentGroupMap.values().iterator();
+		while(groupIt.hasNext()) {
+			FragmentGroup group = groupIt.next();
+			long expireTime = group.lastReceiveTime + RudpConstants.FRAGMENT_REASSEMBLY_TIMEOUT;
+			if(currentTime < expireTime) {
+				nextTime = Math.min(nextTime, expireTime);
+				break;
+			}
+			if(group.isEvictable() == false) {
+				continue;
+			}
+			groupIt.remove();
+			changeCachedBytes(group, -group.cachedLength);
+			timeoutEvictedCount++;
+			evictedBytes += group.cachedLength;
+			evictedKeyMap.put(group.key, currentTime + RudpConstants.FRAGMENT_REASSEMBLY_TIMEOUT);
+			nextTime = Math.min(nextTime, currentTime + RudpConstants.FRAGMENT_REASSEMBLY_TIMEOUT);
+			RudpLoggers.rootLogger.warn("fragments of a disordered message from " + session.getRemoteAddress() + " are timeout, so discard them, " + group);
+		}
+		//丢弃记录按丢弃顺序排列，超时时间也是递增的
+		Iterator<Long> evictedIt = evictedKeyMap.values().iterator();
+		while(evictedIt.hasNext()) {
+			long expireTime = evictedIt.next();
+			if(currentTime < expireTime) {
+				nextTime = Math.min(nextTime, expireTime);
+				break;
+			}
+			evictedIt.remove();
+		}
+		return nextTime;
+	}
 
 	//获取本组封包中第一个消息包的消息序号
 	private int getFirstFragmentSequenceId(ChannelBuffer message) {
 		int currentSequenceId = MessageHelper.getSequenceId(message);
-		int currentFragmentIndex = MessageHelper.getFragmentIndex(message);
+		int currentFragmentIndex;
+		if(MessageHelper.isExtendedFragment(message)) {
+			currentFragmentIndex = MessageHelper.getExtendedFragmentIndex(message);
+		}
+		else {
+			currentFragmentIndex = MessageHelper.getFragmentIndex(message);
+		}
 		return currentSequenceId - currentFragmentIndex;
 	}
 	
+	//获取未合并消息的键，有序消息每个有序流有独立的序号空间，需要带上有序流ID
+	private long getFragmentKey(ChannelBuffer message) {
+		int firstSequenceId = getFirstFragmentSequenceId(message);
+		if(MessageHelper.isReliableOrdered(message)) {
+			return ((long) MessageHelper.getOrderedStreamId(message) << 32) | (firstSequenceId & 0xFFFFFFFFL);
+		}
+		return (1L << 40) | (firstSequenceId & 0xFFFFFFFFL);
+	}
+	
 	/**
 	 * 收到单个消息时的回调。
 	 * 
 	 * @param message
-	 * @return
+	 * @return 合并后的消息；使用扩展封包头的消息，返回新变得连续的{@link MessageChunk}；尚不能交付时返回null；
+	 * 缓存超出上限时，返回已经交付过片段的超大消息的中止片段
 	 */
-	public ChannelBuffer onMessageReceived(ChannelBuffer message) {
+	public Object onMessageReceived(ChannelBuffer message) {
+		receive(message);
+		
+		//通常每次最多只有一条消息可以交付，不需要分配数组
+		int count = deliveredMessages.size();
+		if(count == 0) {
+			return null;
+		}
+		Object result = count == 1 ? deliveredMessages.get(0) : deliveredMessages.toArray(new MessageChunk[count]);
+		deliveredMessages.clear();
+		return result;
+	}
+	
+	/**
+	 * 收到单个消息时的回调，可以交付的消息依次通过上下文传递，不分配数组。
+	 * 
+	 * @param message
+	 * @param ctx 传递给下一个Filter的上下文
+	 */
+	public void onMessageReceived(ChannelBuffer message, IRudpFilterContext ctx) {
+		receive(message);
+		
+		for (int i = 0; i < deliveredMessages.size(); i++) {
+			ctx.fireMessage(deliveredMessages.get(i));
+		}
+		deliveredMessages.clear();
+	}
+	
+	//处理收到的消息，可以交付的消息收集到deliveredMessages中
+	private void receive(ChannelBuffer message) {
+		boolean extended = MessageHelper.isExtendedFragment(message);
 		//没有封包，无需合并
-		int fragmentCount = MessageHelper.getFragmentCount(message);
-		if(fragmentCount <= 0) {
-			return message;
+		if(extended == false && MessageHelper.getFragmentCount(message) <= 0) {
+			deliveredMessages.add(message);
+			return;
 		}
 		
-		int firstSequenceId = getFirstFragmentSequenceId(message);
-		//有序消息
-		if(MessageHelper.isReliableOrdered(message)) {
-			MessageFragment messageFragment = orderedFragmentMap.get(firstSequenceId);
-			if(messageFragment == null) {
-				messageFragment = new MessageFragment(message);
-				orderedFragmentMap.put(firstSequenceId, messageFragment);
+		//封包缓存超出过上限，会话已经关闭
+		if(isOverflowed) {
+			return;
+		}
+		long key = getFragmentKey(message);
+		//所属的无序消息已经超时丢弃
+		if(evictedKeyMap.containsKey(key)) {
+			return;
+		}
+		long currentTime = System.currentTimeMillis();
+		FragmentGroup group = fragmentGroupMap.get(key);
+		if(group == null) {
+			if(ensureCapacity(fragmentGroupMap.size() + 1, 0, extended) == false) {
+				abortStreamingFragments();
+				return;
+			}
+			group = extended ? new StreamingFragment(key, message) : new MessageFragment(key, message);
+			fragmentGroupMap.put(key, group);
+			if(session instanceof RudpSession) {
+				((RudpSession) session).requestTick(currentTime + RudpConstants.FRAGMENT_REASSEMBLY_TIMEOUT);
+			}
+		}
+		group.lastReceiveTime = currentTime;
+		
+		//扩展封包，不合并，连续的部分直接交付
+		if(extended) {
+			onExtendedFragmentReceived((StreamingFragment) group, message);
+			return;
+		}
+		
+		MessageFragment messageFragment = (MessageFragment) group;
+		if(messageFragment.isCached(message)) {
+			return;
+		}
+		if(ensureCapacity(fragmentGroupMap.size(), message.readableBytes(), false) == false) {
+			abortStreamingFragments();
+			return;
+		}
+		messageFragment.cachedLength += message.readableBytes();
+		changeCachedBytes(messageFragment, message.readableBytes());
+		ChannelBuffer mergedMessage = messageFragment.addMessage(message);
+		if(mergedMessage != null) {
+			remove(messageFragment);
+			deliveredMessages.add(mergedMessage);
+			if(RudpLoggers.businessUpLogger.isDebugEnabled()) {
+				RudpLoggers.businessUpLogger.debug(
+						"merged a " + (MessageHelper.isReliableOrdered(message) ? "ordered" : "disordered") + " message from " + 
+						session.getRemoteAddress() + ", msg=" + ChannelBufferHelper.toString(mergedMessage));
+			}
+		}
+	}
+	
+	//收到扩展封包，新变得连续的片段收集到deliveredMessages中
+	private void onExtendedFragmentReceived(StreamingFragment streamingFragment, ChannelBuffer message) {
+		//乱序到达需要缓存时，先确保缓存没有超出上限
+		int bodyLength = message.readableBytes() - MessageHelper.EXTENDED_FRAGMENT_HEAD_LENGTH;
+		if(streamingFragment.isPending(message) && ensureCapacity(fragmentGroupMap.size(), bodyLength, true) == false) {
+			abortStreamingFragments();
+			return;
+		}
+		
+		int cachedLength = streamingFragment.cachedLength;
+		streamingFragment.addMessage(message, deliveredMessages);
+		changeCachedBytes(streamingFragment, streamingFragment.cachedLength - cachedLength);
+		if(streamingFragment.isCompleted()) {
+			remove(streamingFragment);
+			if(RudpLoggers.businessUpLogger.isDebugEnabled()) {
+				RudpLoggers.businessUpLogger.debug(
+						"received a large message from " + session.getRemoteAddress() + ", length=" + streamingFragment.totalLength);
+			}
+		}
+	}
+	
+	/**
+	 * 收到拆分的不可靠消息的封包时的回调。<br>
+	 * 只保留最新的一个未合并消息：收到更新的消息的封包时，丢弃之前未收齐的消息；更早的消息的封包直接丢弃。
+	 * 
+	 * @param message
+	 * @return 合并后的消息，尚未收齐时返回null
+	 */
+	public ChannelBuffer onUnreliableFragmentReceived(ChannelBuffer message) {
+		int messageId = MessageHelper.getSequenceId(message);
+		long currentTime = System.currentTimeMillis();
+		if(unreliableFragment != null) {
+			//已经超时，或者有了更新的消息
+			if(currentTime >= unreliableExpireTime || SequenceHelper.isAfter(messageId, unreliableMessageId)) {
+				dropUnreliableFragment();
+			}
+			//更早的消息
+			else if(messageId != unreliableMessageId) {
 				return null;
 			}
-			else {
-				ChannelBuffer mergedMessage = messageFragment.addMessage(message);
-				if(mergedMessage != null) {
-					orderedFragmentMap.remove(firstSequenceId);
-					if(RudpLoggers.businessUpLogger.isDebugEnabled()) {
-						RudpLoggers.businessUpLogger.debug(
-								"merged a ordered message from " + session.getRemoteAddress() + ", msg=" + ChannelBufferHelper.toString(mergedMessage));
-					}
-				}
-				return mergedMessage;
+		}
+		if(unreliableFragment == null) {
+			unreliableFragment = new MessageFragment(messageId, message);
+			unreliableMessageId = messageId;
+			unreliableExpireTime = currentTime + RudpConstants.UNRELIABLE_FRAGMENT_TIMEOUT;
+			if(session instanceof RudpSession) {
+				((RudpSession) session).requestTick(unreliableExpireTime);
+			}
+		}
+		if(unreliableFragment.isCached(message)) {
+			return null;
+		}
+		ChannelBuffer mergedMessage = unreliableFragment.addMessage(message);
+		if(mergedMessage != null) {
+			unreliableFragment = null;
+			//清空消息标识，与没有拆分的不可靠消息一致
+			MessageHelper.setSequenceId(mergedMessage, 0);
+			if(RudpLoggers.businessUpLogger.isDebugEnabled()) {
+				RudpLoggers.businessUpLogger.debug(
+						"merged a unreliable message from " + session.getRemoteAddress() + ", msg=" + ChannelBufferHelper.toString(mergedMessage));
 			}
 		}
-		//无序消息
+		return mergedMessage;
+	}
+	
+	//丢弃未收齐的不可靠消息
+	private void dropUnreliableFragment() {
+		unreliableDroppedCount++;
+		if(RudpLoggers.businessUpLogger.isDebugEnabled()) {
+			RudpLoggers.businessUpLogger.debug("drop a incomplete unreliable message from " + session.getRemoteAddress() + ", " + unreliableFragment);
+		}
+		unreliableFragment = null;
+	}
+	
+	/**
+	 * 获取下一个拆分发送的不可靠消息的消息标识。
+	 * 
+	 * @return
+	 */
+	public int nextUnreliableMessageId() {
+		return ++nextUnreliableMessageId;
+	}
+	
+	/*
+	 * 确保缓存有空间容纳即将缓存的封包，超大消息的封包按超大消息的上限检查。
+	 * 远端遵守接收窗口时不会超出本会话的上限；超出说明远端没有遵守，可靠消息不能丢弃，记录错误并关闭会话，返回false。
+	 * 所有会话合计的上限只用来收缩接收窗口，不在这里检查，以免关闭遵守接收窗口的会话。
+	 */
+	private boolean ensureCapacity(int groupCount, int length, boolean streaming) {
+		boolean sessionAvailable = streaming ? 
+				streamingCachedBytes + length <= RudpConstants.MAX_STREAMING_FRAGMENT_CACHE_BYTES : 
+				cachedBytes + length <= RudpConstants.MAX_FRAGMENT_CACHE_BYTES;
+		if(groupCount <= RudpConstants.MAX_FRAGMENT_CACHE_SIZE && sessionAvailable) {
+			return true;
+		}
+		isOverflowed = true;
+		RudpLoggers.rootLogger.error("fragment cache of " + session.getRemoteAddress() + " is too large, the remote ignores the receive window, so close the session, " + 
+				this + ", globalCachedBytes=" + globalCachedBytes.get());
+		session.close();
+		return false;
+	}
+	
+	/**
+	 * 获取接收窗口的上限。<br>
+	 * 未合并消息的数量、本会话或所有会话缓存的字节数超过上限的一半后，接收窗口为剩余空间能容纳的封包数量的一半，
+	 * 给通告之前已经在途的封包留出余量；字节数按封包的最大长度换算。
+	 */
+	@Override
+	public int getReceiveWindowLimit() {
+		int fragmentLength = Math.max(RudpConstants.MESSAGE_MAX_LENGTH, RudpConstants.PMTU_MAX_LENGTH);
+		long limit = getWindowLimit(fragmentGroupMap.size(), RudpConstants.MAX_FRAGMENT_CACHE_SIZE, 1);
+		limit = Math.min(limit, getWindowLimit(cachedBytes, RudpConstants.MAX_FRAGMENT_CACHE_BYTES, fragmentLength));
+		limit = Math.min(limit, getWindowLimit(streamingCachedBytes, RudpConstants.MAX_STREAMING_FRAGMENT_CACHE_BYTES, fragmentLength));
+		limit = Math.min(limit, getWindowLimit(globalCachedBytes.get(), RudpConstants.MAX_GLOBAL_FRAGMENT_CACHE_BYTES, fragmentLength));
+		return (int) limit;
+	}
+	
+	//一项缓存对接收窗口的限制：不到上限的一半时不限制，之后为剩余空间能容纳的数量的一半
+	private static long getWindowLimit(long used, long max, int unit) {
+		if(used < max / 2) {
+			return Integer.MAX_VALUE;
+		}
+		return Math.max(max - used, 0) / 2 / unit;
+	}
+	
+	//中止已经交付过片段的超大消息，它们的中止片段收集到deliveredMessages中
+	private void abortStreamingFragments() {
+		for (FragmentGroup group : fragmentGroupMap.values()) {
+			if(group instanceof StreamingFragment && ((StreamingFragment) group).nextOffset > 0) {
+				deliveredMessages.add(((StreamingFragment) group).abort());
+			}
+		}
+	}
+	
+	//移除未合并消息，释放占用的缓存
+	private void remove(FragmentGroup group) {
+		fragmentGroupMap.remove(group.key);
+		changeCachedBytes(group, -group.cachedLength);
+	}
+	
+	//修改缓存占用的字节数
+	private void changeCachedBytes(FragmentGroup group, long delta) {
+		if(delta == 0) {
+			return;
+		}
+		if(group instanceof StreamingFragment) {
+			streamingCachedBytes += delta;
+		}
 		else {
-			MessageFragment messageFragment = disorderedFragmentMap.get(firstSequenceId);
-			if(messageFragment == null) {
-				messageFragment = new MessageFragment(message);
-				disorderedFragmentMap.put(firstSequenceId, messageFragment);
-				return null;
+			cachedBytes += delta;
+		}
+		globalCachedBytes.addAndGet(delta);
+	}
+	
+	/**
+	 * 清空所有未合并的消息，会话关闭时调用。
+	 */
+	public void clear() {
+		unreliableFragment = null;
+		fragmentGroupMap.clear();
+		evictedKeyMap.clear();
+		globalCachedBytes.addAndGet(-(cachedBytes + streamingCachedBytes));
+		cachedBytes = 0;
+		streamingCachedBytes = 0;
+	}
+	
+	/**
+	 * 获取本会话封包缓存占用的字节数，包括超大消息乱序到达的封包。
+	 * 
+	 * @return
+	 */
+	public long getCachedBytes() {
+		return cachedBytes + streamingCachedBytes;
+	}
+	
+	/**
+	 * 获取所有会话封包缓存合计占用的字节数。
+	 * 
+	 * @return
+	 */
+	public static long getGlobalCachedBytes() {
+		return globalCachedBytes.get();
+	}
+	
+	/**
+	 * 封包缓存是否超出过上限，超出后会话已经关闭。
+	 * 
+	 * @return
+	 */
+	public boolean isOverflowed() {
+		return isOverflowed;
+	}
+	
+	/**
+	 * 获取没有收齐而丢弃的不可靠消息数量。
+	 * 
+	 * @return
+	 */
+	public long getUnreliableDroppedCount() {
+		return unreliableDroppedCount;
+	}
+	
+	/**
+	 * 获取超时丢弃的无序消息数量。
+	 * 
+	 * @return
+	 */
+	public long getTimeoutEvictedCount() {
+		return timeoutEvictedCount;
+	}
+	
+	/**
+	 * 获取超时丢弃的封包缓存字节数。
+	 * 
+	 * @return
+	 */
+	public long getEvictedBytes() {
+		return evictedBytes;
+	}
+	
+	@Override
+	public String toString() {
+		return "SessionFragmentManager [pendingMessages=" + fragmentGroupMap.size() + ", cachedBytes=" + cachedBytes + 
+				", streamingCachedBytes=" + streamingCachedBytes + ", overflowed=" + isOverflowed + 
+				", timeoutEvictedCount=" + timeoutEvictedCount + ", evictedBytes=" + evictedBytes + 
+				", unreliableDroppedCount=" + unreliableDroppedCount + "]";
+	}
+	
+	/**
+	 * 未合并消息的抽象类，记录缓存占用。
+	 * 
+	 * @author caobao
+	 *
+	 */
+	private static abstract class FragmentGroup {
+		protected long key;					//消息键
+		protected int cachedLength;			//缓存的封包占用的字节数
+		protected long lastReceiveTime;		//最近一次收到封包的时间
+		
+		public FragmentGroup(long key) {
+			this.key = key;
+		}
+		
+		/**
+		 * 超时后能否丢弃：只有无序消息可以，有序消息丢弃后有序流无法继续交付。
+		 * 
+		 * @return
+		 */
+		public boolean isEvictable() {
+			return (key >>> 40) != 0;
+		}
+	}
+	
+	/**
+	 * 使用扩展封包头的消息的封包类。<br>
+	 * 只缓存乱序到达的封包，连续的部分立即以{@link MessageChunk}的形式交付，不合并整个消息。
+	 * 
+	 * @author caobao
+	 *
+	 */
+	private static class StreamingFragment extends FragmentGroup {
+		private boolean ordered;						//是否是可靠且有序的消息
+		private int streamId;							//有序流ID
+		private int messageId;							//消息ID，即第一个封包的消息序号
+		private int totalLength;						//消息体总长度
+		private int nextOffset;							//下一个要交付的偏移，之前的部分都已交付
+		private Map<Integer, ChannelBuffer> pendingMap;	//乱序到达、尚未交付的封包消息体<偏移, 消息体>
+		
+		public StreamingFragment(long key, ChannelBuffer msg) {
+			super(key);
+			ordered = MessageHelper.isReliableOrdered(msg);
+			streamId = ordered ? MessageHelper.getOrderedStreamId(msg) : 0;
+			messageId = MessageHelper.getSequenceId(msg) - MessageHelper.getExtendedFragmentIndex(msg);
+			totalLength = MessageHelper.getExtendedFragmentTotalLength(msg);
+			pendingMap = new HashMap<Integer, ChannelBuffer>();
+		}
+		
+		/**
+		 * 封包是否会被缓存，即乱序到达且尚未缓存。
+		 * 
+		 * @param msg
+		 * @return
+		 */
+		public boolean isPending(ChannelBuffer msg) {
+			int offset = MessageHelper.getExtendedFragmentOffset(msg);
+			return offset > nextOffset && pendingMap.containsKey(offset) == false;
+		}
+		
+		/**
+		 * 增加一个封包。
+		 * 
+		 * @param msg
+		 * @param chunks 收集新变得连续的片段
+		 */
+		public void addMessage(ChannelBuffer msg, List<Object> chunks) {
+			int headLength = MessageHelper.EXTENDED_FRAGMENT_HEAD_LENGTH;
+			int offset = MessageHelper.getExtendedFragmentOffset(msg);
+			ChannelBuffer body = msg.slice(msg.readerIndex() + headLength, msg.readableBytes() - headLength);
+			//已经交付过，或者超出了消息范围
+			if(offset < nextOffset || body.readable() == false || (long) offset + body.readableBytes() > totalLength) {
+				return;
 			}
-			else {
-				ChannelBuffer mergedMessage = messageFragment.addMessage(message);
-				if(mergedMessage != null) {
-					disorderedFragmentMap.remove(firstSequenceId);
-					if(RudpLoggers.businessUpLogger.isDebugEnabled()) {
-						RudpLoggers.businessUpLogger.debug(
-								"merged a disordered message from " + session.getRemoteAddress() + ", msg=" + ChannelBufferHelper.toString(mergedMessage));
-					}
+			//乱序到达，等待前面的封包
+			if(offset > nextOffset) {
+				if(pendingMap.containsKey(offset) == false) {
+					pendingMap.put(offset, body);
+					cachedLength += body.readableBytes();
+				}
+				return;
+			}
+			
+			while(body != null) {
+				chunks.add(new MessageChunk(ordered, streamId, messageId, totalLength, nextOffset, body));
+				nextOffset += body.readableBytes();
+				body = pendingMap.remove(nextOffset);
+				if(body != null) {
+					cachedLength -= body.readableBytes();
 				}
-				return mergedMessage;
 			}
 		}
+		
+		/**
+		 * 超时后能否丢弃：已经交付过片段的消息丢弃后无法继续交付，只能随会话关闭。
+		 * 
+		 * @return
+		 */
+		@Override
+		public boolean isEvictable() {
+			return ordered == false && nextOffset == 0;
+		}
+		
+		/**
+		 * 中止消息，丢弃乱序到达的封包。
+		 * 
+		 * @return 中止片段
+		 */
+		public MessageChunk abort() {
+			pendingMap.clear();
+			return new MessageChunk(ordered, streamId, messageId, totalLength, nextOffset);
+		}
+		
+		/**
+		 * 是否已经全部交付。
+		 * 
+		 * @return
+		 */
+		public boolean isCompleted() {
+			return nextOffset == totalLength;
+		}
+		
+		@Override
+		public String toString() {
+			return "StreamingFragment [ordered=" + ordered + ", streamId=" + streamId + ", messageId=" + messageId + 
+					", totalLength=" + totalLength + ", nextOffset=" + nextOffset + ", cachedLength=" + cachedLength + "]";
+		}
 	}
 	
 	/**
@@ -122,15 +605,26 @@ public class SessionFragmentManager {
 	 * @author caobao
 	 *
 	 */
-	private static class MessageFragment {
+	private static class MessageFragment extends FragmentGroup {
 		private ChannelBuffer[] bufArray;	//消息缓存
 		private int currentCount = 0;		//当前消息数量
 		private int totalCount = 0;			//消息总数量
 		
-		public MessageFragment(ChannelBuffer msg) {
+		public MessageFragment(long key, ChannelBuffer msg) {
+			super(key);
 			totalCount = MessageHelper.getFragmentCount(msg);
 			bufArray = new ChannelBuffer[totalCount];
-			addMessage(msg);
+		}
+		
+		/**
+		 * 封包是否已经缓存过。
+		 * 
+		 * @param msg
+		 * @return
+		 */
+		public boolean isCached(ChannelBuffer msg) {
+			int fragmentIndex = MessageHelper.getFragmentIndex(msg);
+			return fragmentIndex >= totalCount || bufArray[fragmentIndex] != null;
 		}
 		
 		/**
@@ -173,6 +667,11 @@ public class SessionFragmentManager {
 			MessageHelper.setFragmentIndex(wholeMsg, 0);
 			return wholeMsg;
 		}
+		
+		@Override
+		public String toString() {
+			return "MessageFragment [key=" + key + ", currentCount=" + currentCount + ", totalCount=" + totalCount + ", cachedLength=" + cachedLength + "]";
+		}
 	}
 	
 }
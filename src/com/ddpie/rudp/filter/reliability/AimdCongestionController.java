@@ -0,0 +1,60 @@
+package com.ddpie.rudp.filter.reliability;
+
+import com.ddpie.rudp.constant.RudpConstants;
+
+/**
+ * 基于丢包的加性增、乘性减（AIMD）拥塞控制器。<br>
+ * 1、慢启动：窗口小于阈值时，每确认一条消息窗口加1；<br>
+ * 2、拥塞避免：窗口达到阈值后，每确认一整个窗口的消息窗口加1；<br>
+ * 3、发现丢包：阈值降为窗口的一半，超时丢包时窗口降到最小值，其他丢包时窗口降到阈值。
+ * 
+ * @author caobao
+ *
+ */
+public class AimdCongestionController implements ICongestionController {
+	private double window;				//拥塞窗口
+	private double slowStartThreshold;	//慢启动阈值
+
+	public AimdCongestionController() {
+		window = RudpConstants.CONGESTION_INITIAL_WINDOW;
+		slowStartThreshold = RudpConstants.CONGESTION_MAX_WINDOW;
+	}
+
+	@Override
+	public int getWindow() {
+		return (int) window;
+	}
+
+	@Override
+	public void onAcked(int ackedCount, long rttSample) {
+		for (int i = 0; i < ackedCount; i++) {
+			//慢启动
+			if(window < slowStartThreshold) {
+				window += 1;
+			}
+			//拥塞避免
+			else {
+				window += 1 / window;
+			}
+		}
+		if(window > RudpConstants.CONGESTION_MAX_WINDOW) {
+			window = RudpConstants.CONGESTION_MAX_WINDOW;
+		}
+	}
+
+	@Override
+	public void onLoss(boolean timeout) {
+		slowStartThreshold = Math.max(window / 2, RudpConstants.CONGESTION_MIN_WINDOW);
+		if(timeout) {
+			window = RudpConstants.CONGESTION_MIN_WINDOW;
+		}
+		else {
+			window = slowStartThreshold;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "AimdCongestionController [window=" + (int) window + ", slowStartThreshold=" + (int) slowStartThreshold + "]";
+	}
+}
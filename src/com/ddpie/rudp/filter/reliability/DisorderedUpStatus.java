@@ -1,25 +1,38 @@
 package com.ddpie.rudp.filter.reliability;
 
-import java.util.BitSet;
+import java.util.Arrays;
 
+import com.ddpie.rudp.constant.RudpConstants;
+import com.ddpie.rudp.util.SequenceHelper;
 
 /**
  * 可靠但不连续消息的接收状态。
- * 用来维护本地接收到的远程消息序号集合。
+ * 用来维护本地接收到的远程消息序号集合。<br>
+ * 接收窗口内消息的接收状态存放在2的幂长度的long[]位图中，下标为序号 & mask；
+ * 累计确认序号及之前的消息都已收到，即使已经滑出了接收窗口。<br>
+ * 序号之间按{@link SequenceHelper}的序号算术比较，序号回绕后仍然正确。<br>
+ * 只在消息处理器线程中访问。
  * 
  * @author caobao
- * 
+ *
  */
 public class DisorderedUpStatus {
-	private BitSet bitSet;						//存储消息状态的BitSet
-	private int size;							//所能存储消息状态的数量
-	private int curSequenceId = -1;				//最新接收到的消息序号
-	private int curBitIndex = -1;				//最新接收到的消息在BitSet中的位置
-	private int lastFeedbackSequenceId = -1;	//上次反馈的最大消息序号
+	private long[] bits;						//接收窗口内消息的接收状态
+	private int mask;							//位图下标掩码
+	private int curSequenceId;					//最新接收到的消息序号
+	private int lastFeedbackSequenceId;			//上次反馈的最大消息序号
+	private int cumulativeSequenceId;			//累计确认序号，该序号及之前的消息都已收到
 	
 	public DisorderedUpStatus(int size) {
-		this.size = size;
-		bitSet = new BitSet(size);
+		int capacity = 64;
+		while(capacity < size) {
+			capacity <<= 1;
+		}
+		bits = new long[capacity >>> 6];
+		mask = capacity - 1;
+		cumulativeSequenceId = RudpConstants.INITIAL_SEQUENCE_ID - 1;
+		curSequenceId = cumulativeSequenceId;
+		lastFeedbackSequenceId = cumulativeSequenceId;
 	}
 	
 	/**
@@ -29,44 +42,41 @@ public class DisorderedUpStatus {
 	 * @return 若不为null，则需要向远端反馈
 	 */
 	public DisorderedFeedback onMessageReceived(int sequenceId) {
-		//很老的消息了
-		//很可能是由于之前发给远端的反馈心跳消息丢失，导致远端重复发送
-		//也有可能是该消息确实一直未收到，远端一直重发，现在收到了，但此时消息已失去时效性
-		//无论如何，都应该给远端发送心跳，告知本消息已经收到
-		if(sequenceId < curSequenceId - size + 1) {
-			return new DisorderedFeedback(sequenceId, (short) 1);
-		}
-		
-		int bitIndex = sequenceId - curSequenceId + curBitIndex;
-		while(bitIndex < 0) {
-			bitIndex += size * 10;
-		}
-		if(bitIndex >= size) {
-			bitIndex = bitIndex % size;
-		}
-		
 		//这条消息曾经收到过
 		//很可能是由于之前发给远端的反馈心跳消息丢失，导致远端重复发送
 		//需要告知远端，本消息已经收到了
 		//这个消息前后消息的反馈也有可能丢失了，所以也把前后消息的接收状态带上（不会浪费空间）
-		if(bitSet.get(bitIndex) && sequenceId <= curSequenceId) {
+		if(getStatus(sequenceId)) {
 			DisorderedFeedback feedback = buildFeedback(sequenceId - 7, sequenceId + 8);
 			feedback.setDuplicatedMsg(true);
 			return feedback;
 		}
 		
+		//很老的消息了，已经滑出了接收窗口
+		//很可能是由于之前发给远端的反馈心跳消息丢失，导致远端重复发送
+		//也有可能是该消息确实一直未收到，远端一直重发，现在收到了，但此时消息已失去时效性
+		//无论如何，都应该给远端发送心跳，告知本消息已经收到
+		if(curSequenceId - sequenceId > mask) {
+			if(sequenceId == cumulativeSequenceId + 1) {
+				cumulativeSequenceId = sequenceId;
+				advanceCumulativeSequenceId();
+			}
+			return new DisorderedFeedback(sequenceId, (short) 1);
+		}
+		
 		//新消息，如果是跳跃性的，则需要重置跨过的bit
-		if(curSequenceId < sequenceId) {
+		if(SequenceHelper.isBefore(curSequenceId, sequenceId)) {
 			resetBits(sequenceId);
 			curSequenceId = sequenceId;
-			curBitIndex = bitIndex;
 		}
-				
-		bitSet.set(bitIndex);
+		
+		int index = sequenceId & mask;
+		bits[index >>> 6] |= 1L << index;
+		advanceCumulativeSequenceId();
 		
 		//比较老的消息了，上次发送反馈的时候该消息还未收到
 		//需要给远端发送反馈
-		if(sequenceId < lastFeedbackSequenceId) {
+		if(SequenceHelper.isBefore(sequenceId, lastFeedbackSequenceId)) {
 			DisorderedFeedback feedback = buildFeedback(sequenceId - 7, sequenceId + 8);
 			return feedback;
 		}
@@ -85,7 +95,7 @@ public class DisorderedUpStatus {
 	 * @return
 	 */
 	public DisorderedFeedback getFeedback() {
-		if(curSequenceId > lastFeedbackSequenceId) {
+		if(SequenceHelper.isAfter(curSequenceId, lastFeedbackSequenceId)) {
 			lastFeedbackSequenceId = curSequenceId;
 			return buildFeedback(curSequenceId - 15, curSequenceId);
 		}
@@ -94,17 +104,79 @@ public class DisorderedUpStatus {
 		}
 	}
 	
+	//累计确认序号之后的消息都已收到，则向后推进累计确认序号
+	private void advanceCumulativeSequenceId() {
+		while(SequenceHelper.isBefore(cumulativeSequenceId, curSequenceId) && getStatus(cumulativeSequenceId + 1)) {
+			cumulativeSequenceId++;
+		}
+	}
+	
+	/**
+	 * 获取累计确认序号，该序号及之前的消息都已收到。
+	 * 
+	 * @return 累计确认序号，尚未收到任何连续消息时为起始序号的前一个
+	 */
+	public int getCumulativeSequenceId() {
+		return cumulativeSequenceId;
+	}
+	
+	/**
+	 * 获取选择确认区段，并记为已经反馈。<br>
+	 * 累计确认序号之后、接收窗口之内已经收到的消息，按序号从低到高组织成区段，
+	 * 依次将每个区段的起始序号和结束序号存放到ranges中。
+	 * 
+	 * @param ranges 存放区段的数组
+	 * @param maxRangeCount 最多获取的区段数量
+	 * @return 区段数量
+	 */
+	public int getAckRanges(int[] ranges, int maxRangeCount) {
+		if(SequenceHelper.isAfter(curSequenceId, lastFeedbackSequenceId)) {
+			lastFeedbackSequenceId = curSequenceId;
+		}
+		int rangeCount = 0;
+		int rangeLength = 0;
+		int endSequenceId = curSequenceId + 1;
+		int sequenceId = SequenceHelper.max(cumulativeSequenceId + 1, curSequenceId - mask);
+		//序号可能回绕，任何序号都可能是区段的起点，所以用区段长度判断是否在区段中
+		for(; SequenceHelper.compare(sequenceId, endSequenceId) <= 0 && rangeCount < maxRangeCount; sequenceId++) {
+			boolean received = getStatus(sequenceId);
+			//区段开始或延续
+			if(received) {
+				rangeLength++;
+			}
+			//区段结束
+			else if(rangeLength != 0) {
+				ranges[rangeCount * 2] = sequenceId - rangeLength;
+				ranges[rangeCount * 2 + 1] = sequenceId - 1;
+				rangeCount++;
+				rangeLength = 0;
+			}
+		}
+		return rangeCount;
+	}
+	
+	/**
+	 * 消息是否在接收窗口中，即能否通过累计确认序号和选择确认区段反馈。
+	 * 
+	 * @param sequenceId 消息序号
+	 * @return true，在接收窗口中；false，不在接收窗口中
+	 */
+	public boolean isInWindow(int sequenceId) {
+		if(SequenceHelper.isAfter(sequenceId, cumulativeSequenceId) == false) {
+			return true;
+		}
+		int offset = curSequenceId - sequenceId;
+		return offset >= 0 && offset <= mask;
+	}
+	
 	//构造从起始消息到结束消息的反馈
 	private DisorderedFeedback buildFeedback(int startSequenceId, int endSequenceId) {
-		if(startSequenceId < 1) {
-			startSequenceId = 1;
-		}
-		if(endSequenceId > curSequenceId) {
+		if(SequenceHelper.isAfter(endSequenceId, curSequenceId)) {
 			endSequenceId = curSequenceId;
 		}
 		
 		int bitFields = 0;
-		for(int sequenceId = startSequenceId; sequenceId <= endSequenceId; sequenceId++) {
+		for(int sequenceId = startSequenceId; SequenceHelper.compare(sequenceId, endSequenceId) <= 0; sequenceId++) {
 			if(getStatus(sequenceId)) {
 				bitFields |= 1;
 			}
@@ -116,42 +188,39 @@ public class DisorderedUpStatus {
 	
 	//获取指定消息的接收状态
 	private boolean getStatus(int sequenceId) {
+		//累计确认过的消息
+		if(SequenceHelper.isAfter(sequenceId, cumulativeSequenceId) == false) {
+			return true;
+		}
 		//太老的消息了，已经丢失状态了
-		if(sequenceId < curSequenceId - size + 1) {
+		if(curSequenceId - sequenceId > mask) {
 			return false;
 		}
 		//太新的消息，尚未得知其状态
-		if(sequenceId > curSequenceId) {
+		if(SequenceHelper.isAfter(sequenceId, curSequenceId)) {
 			return false;
 		}
-		int bitIndex = sequenceId - curSequenceId + curBitIndex;
-		while(bitIndex < 0) {
-			bitIndex += size * 10;
-		}
-		if(bitIndex >= size) {
-			bitIndex = bitIndex % size;
-		}
-		return bitSet.get(bitIndex);
+		int index = sequenceId & mask;
+		return (bits[index >>> 6] & (1L << index)) != 0;
 	}
 	
-	//重置从当前index到目标消息id对应的index之间的bit为false。
+	//重置从当前消息到目标消息之间的bit为false。
 	private void resetBits(int toSequenceId) {
-		for(int sequenceId = curSequenceId + 1; sequenceId < toSequenceId; sequenceId++) {
-			int bitIndex = sequenceId - curSequenceId + curBitIndex;
-			while(bitIndex < 0) {
-				bitIndex += size * 10;
-			}
-			if(bitIndex >= size) {
-				bitIndex = bitIndex % size;
-			}
-			bitSet.clear(bitIndex);
+		//跨过了整个接收窗口，全部重置
+		if(toSequenceId - curSequenceId > mask) {
+			Arrays.fill(bits, 0L);
+			return;
+		}
+		for(int sequenceId = curSequenceId + 1; SequenceHelper.compare(sequenceId, toSequenceId) <= 0; sequenceId++) {
+			int index = sequenceId & mask;
+			bits[index >>> 6] &= ~(1L << index);
 		}
 	}
-
+	
 	@Override
 	public String toString() {
-		return "MessageReceiveStatus [curSequenceId=" + curSequenceId
-				+ ", curBitIndex=" + curBitIndex + ", bitSet=" + bitSet
-				+ ", size=" + size + "]";
+		return "DisorderedUpStatus [curSequenceId=" + curSequenceId
+				+ ", cumulativeSequenceId=" + cumulativeSequenceId
+				+ ", capacity=" + bits.length * 64 + "]";
 	}
 }
@@ -0,0 +1,36 @@
+package com.ddpie.rudp.filter.reliability;
+
+/**
+ * 可靠消息的拥塞控制器。<br>
+ * 决定每个会话同时在途（已发送但尚未确认）的可靠消息数量，超出窗口的消息会在发送队列中等待。<br>
+ * 默认实现为基于丢包的{@link AimdCongestionController}，
+ * 可以通过{@link SessionReliabilityManager#setCongestionController(ICongestionController)}替换为其他算法（如基于延迟的算法）。<br>
+ * 所有方法都在消息处理器线程中调用。
+ * 
+ * @author caobao
+ *
+ */
+public interface ICongestionController {
+
+	/**
+	 * 获取拥塞窗口，即允许同时在途的可靠消息数量。
+	 * 
+	 * @return 拥塞窗口
+	 */
+	int getWindow();
+
+	/**
+	 * 收到远端确认后的回调。
+	 * 
+	 * @param ackedCount 本次确认的消息数量
+	 * @param rttSample 本次测得的往返时间，毫秒；没有有效样本时为-1
+	 */
+	void onAcked(int ackedCount, long rttSample);
+
+	/**
+	 * 检测到丢包后的回调。
+	 * 
+	 * @param timeout true，消息重发超时；false，通过其他方式（如快速重传）发现的丢包
+	 */
+	void onLoss(boolean timeout);
+}
@@ -0,0 +1,21 @@
+package com.ddpie.rudp.filter.reliability;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * 可靠性Filter之下的数据消息写入者。<br>
+ * 超出拥塞窗口的消息在收到确认后才由{@link SessionReliabilityManager}发送，不再经过Filter；
+ * 可靠性Filter之下需要处理数据消息的Filter（如前向纠错）实现此接口，这些消息交给它处理后再发送，与经过Filter的消息一致。
+ * 
+ * @author caobao
+ *
+ */
+public interface IDataMessageWriter {
+	
+	/**
+	 * 处理并发送一条数据消息。
+	 * 
+	 * @param message 数据消息，可能捎带了确认
+	 */
+	void write(ChannelBuffer message);
+}
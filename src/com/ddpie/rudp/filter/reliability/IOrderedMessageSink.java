@@ -0,0 +1,20 @@
+package com.ddpie.rudp.filter.reliability;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * 接收可靠且连续消息的回调。<br>
+ * {@link OrderedUpStatus}在消息变得连续时，按序号依次调用，避免每次都分配消息数组。
+ * 
+ * @author caobao
+ *
+ */
+public interface IOrderedMessageSink {
+	
+	/**
+	 * 一条消息已经连续，可以交付了。
+	 * 
+	 * @param message 消息
+	 */
+	void onOrderedMessage(ChannelBuffer message);
+}
@@ -0,0 +1,19 @@
+package com.ddpie.rudp.filter.reliability;
+
+/**
+ * 接收窗口的限制者。<br>
+ * 可靠性Filter之上缓存收到的消息的Filter（如封包的合并）实现此接口，缓存紧张时限制通告给远端的接收窗口，
+ * 让远端放慢发送，而不是丢弃已经确认过的可靠消息。
+ * 
+ * @author caobao
+ *
+ */
+public interface IReceiveWindowLimiter {
+	
+	/**
+	 * 获取接收窗口的上限，每次构造确认消息时调用。
+	 * 
+	 * @return 还能接收的消息数量，不限制时返回Integer.MAX_VALUE
+	 */
+	int getReceiveWindowLimit();
+}
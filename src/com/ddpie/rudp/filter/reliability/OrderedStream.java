@@ -0,0 +1,129 @@
+package com.ddpie.rudp.filter.reliability;
+
+import com.ddpie.rudp.constant.RudpConstants;
+import com.ddpie.rudp.util.SequenceHelper;
+
+/**
+ * 一个有序消息流。<br>
+ * 每个有序流有独立的序号空间、重发队列、接收状态和确认区段，
+ * 一个流中的消息丢失只会阻塞本流中后续消息的交付，不影响其他流。<br>
+ * 只在消息处理器线程中访问。
+ * 
+ * @author caobao
+ *
+ */
+public class OrderedStream {
+	private final int streamId;				//有序流ID
+	private int writeSequenceId;			//下一条发送消息的序号
+	private RetransmitQueue downQueue;		//发送缓存
+	private OrderedUpStatus upStatus;		//接收状态
+	private int[] ackRanges;				//构造扩展确认消息时使用的选择确认区段
+	private boolean fallback;				//是否有消息因为远端不支持多个有序流而在流0中发送过
+	private int lastFallbackSequenceId;		//最后一条在流0中发送的本流消息在流0中的序号
+	private boolean fragmentFallback;		//当前正在发送的一组封包是否在流0中发送
+	
+	public OrderedStream(int streamId, int maxAckRangeCount) {
+		this.streamId = streamId;
+		writeSequenceId = RudpConstants.INITIAL_SEQUENCE_ID;
+		downQueue = new RetransmitQueue();
+		upStatus = new OrderedUpStatus(RudpConstants.RECEIVE_STATUS_MAX_MESSAGE_COUNT);
+		ackRanges = new int[maxAckRangeCount * 2];
+	}
+	
+	/**
+	 * 获取有序流ID。
+	 * 
+	 * @return
+	 */
+	public int getStreamId() {
+		return streamId;
+	}
+	
+	/**
+	 * 分配下一条发送消息的序号。
+	 * 
+	 * @return 消息序号
+	 */
+	public int nextWriteSequenceId() {
+		return writeSequenceId++;
+	}
+	
+	/**
+	 * 获取发送缓存。
+	 * 
+	 * @return
+	 */
+	public RetransmitQueue getDownQueue() {
+		return downQueue;
+	}
+	
+	/**
+	 * 获取接收状态。
+	 * 
+	 * @return
+	 */
+	public OrderedUpStatus getUpStatus() {
+		return upStatus;
+	}
+	
+	/**
+	 * 记录本流的一条消息在流0中发送。
+	 * 
+	 * @param sequenceId 消息在流0中的序号
+	 */
+	public void onFallback(int sequenceId) {
+		fallback = true;
+		lastFallbackSequenceId = sequenceId;
+	}
+	
+	/**
+	 * 在流0中发送的本流消息是否都已被确认（也就是都已交付），之后本流的消息才能在本流中发送，保证本流内的顺序。
+	 * 
+	 * @param defaultStream 流0
+	 * @return true，都已被确认；false，还有消息未被确认
+	 */
+	public boolean isFallbackAcked(OrderedStream defaultStream) {
+		if(fallback == false) {
+			return true;
+		}
+		RetransmitQueue defaultQueue = defaultStream.getDownQueue();
+		if(defaultQueue.isEmpty() || SequenceHelper.isAfter(defaultQueue.getLowSequenceId(), lastFallbackSequenceId)) {
+			fallback = false;
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * 一组封包是否在流0中发送。同一组封包必须在同一个流中连续编号，由第一个封包决定。
+	 * 
+	 * @return
+	 */
+	public boolean isFragmentFallback() {
+		return fragmentFallback;
+	}
+	
+	/**
+	 * 记录一组封包是否在流0中发送。
+	 * 
+	 * @param fragmentFallback
+	 */
+	public void setFragmentFallback(boolean fragmentFallback) {
+		this.fragmentFallback = fragmentFallback;
+	}
+	
+	/**
+	 * 获取构造扩展确认消息时使用的选择确认区段数组。
+	 * 
+	 * @return
+	 */
+	public int[] getAckRanges() {
+		return ackRanges;
+	}
+	
+	@Override
+	public String toString() {
+		return "OrderedStream [streamId=" + streamId + ", writeSequenceId=" + writeSequenceId +
+				", downQueue=" + downQueue + ", upStatus=" + upStatus + "]";
+	}
+}
@@ -1,31 +1,39 @@
 package com.ddpie.rudp.filter.reliability;
 
-import java.util.BitSet;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-
 import org.jboss.netty.buffer.ChannelBuffer;
 
+import com.ddpie.rudp.constant.RudpConstants;
+import com.ddpie.rudp.util.SequenceHelper;
+
 /**
  * 可靠且连续消息的接收状态。
- * 用来维护本地接收到的远程消息序号集合。
+ * 用来维护本地接收到的远程消息序号集合。<br>
+ * 尚未交付的消息存放在2的幂长度的环形数组中，下标为序号 & mask；
+ * 起始序号之前的消息都已交付，起始序号之后的消息是否收到由对应的槽位是否为空决定，不需要额外的BitSet。<br>
+ * 序号之间按{@link SequenceHelper}的序号算术比较，序号回绕后仍然正确。<br>
+ * 只在消息处理器线程中访问。
  * 
  * @author caobao
- * 
+ *
  */
 public class OrderedUpStatus {
-	private BitSet bitSet;						//存储消息状态的BitSet
-	private int size;							//所能存储消息状态的数量
-	private int curSequenceId = -1;				//最新接收到的消息序号
-	private int curBitIndex = -1;				//最新接收到的消息在BitSet中的位置
-	private int lastFeedbackSequenceId = -1;	//上次反馈的最大消息序号
-	private int startSequenceId = 1;			//连续消息的起始ID
-	private Map<Integer, ChannelBuffer> bufMap;	//消息缓存
+	private ChannelBuffer[] slots;				//尚未交付的消息，下标为序号 & mask
+	private int mask;							//环形数组下标掩码
+	private int curSequenceId;					//最新接收到的消息序号
+	private int lastFeedbackSequenceId;			//上次反馈的最大消息序号
+	private int startSequenceId;				//连续消息的起始ID，即下一条要交付的消息序号
+	private int cacheSize;						//缓存的尚未交付的消息数量
 	
 	public OrderedUpStatus(int size) {
-		this.size = size;
-		bitSet = new BitSet(size);
-		bufMap = new ConcurrentHashMap<Integer, ChannelBuffer>();
+		int capacity = 1;
+		while(capacity < size) {
+			capacity <<= 1;
+		}
+		slots = new ChannelBuffer[capacity];
+		mask = capacity - 1;
+		startSequenceId = RudpConstants.INITIAL_SEQUENCE_ID;
+		curSequenceId = startSequenceId - 1;
+		lastFeedbackSequenceId = curSequenceId;
 	}
 	
 	/**
@@ -34,120 +42,78 @@ public class OrderedUpStatus {
 	 * @return
 	 */
 	public int getCacheSize() {
-		return bufMap.size();
+		return cacheSize;
 	}
 	
 	/**
 	 * 收到新消息后的回调。
+	 * 已经连续的消息会按序号依次交给sink。
 	 * 
 	 * @param sequenceId 收到的消息的序号
+	 * @param buf 收到的消息
+	 * @param sink 接收连续消息的回调
 	 * @return 若不为null，则需要向远端反馈
 	 */
-	public OrderedFeedback onMessageReceived(int sequenceId, ChannelBuffer buf) {
-		//很老的消息了
+	public OrderedFeedback onMessageReceived(int sequenceId, ChannelBuffer buf, IOrderedMessageSink sink) {
+		//已经交付过的消息
 		//很可能是由于之前发给远端的反馈心跳消息丢失，导致远端重复发送
-		//也有可能是该消息确实一直未收到，远端一直重发，现在收到了，但此时消息已失去时效性
 		//无论如何，都应该给远端发送心跳，告知本消息已经收到
-		if(sequenceId < curSequenceId - size + 1) {
-			return new OrderedFeedback(sequenceId, (short) 1);
+		//这个消息前后消息的反馈也有可能丢失了，所以也把前后消息的接收状态带上（不会浪费空间）
+		if(SequenceHelper.isBefore(sequenceId, startSequenceId)) {
+			return buildFeedback(sequenceId - 7, sequenceId + 8);
 		}
 		
-		int bitIndex = sequenceId - curSequenceId + curBitIndex;
-		while(bitIndex < 0) {
-			bitIndex += size * 10;
-		}
-		if(bitIndex >= size) {
-			bitIndex = bitIndex % size;
+		//超出了接收窗口，无法缓存，丢弃该消息，等待远端重发
+		if(sequenceId - startSequenceId > mask) {
+			return null;
 		}
 		
-		//这条消息曾经收到过
-		//很可能是由于之前发给远端的反馈心跳消息丢失，导致远端重复发送
-		//需要告知远端，本消息已经收到了
-		//这个消息前后消息的反馈也有可能丢失了，所以也把前后消息的接收状态带上（不会浪费空间）
-		if(bitSet.get(bitIndex) && sequenceId <= curSequenceId) {
+		//这条消息曾经收到过，尚未交付
+		int index = sequenceId & mask;
+		if(slots[index] != null) {
 			return buildFeedback(sequenceId - 7, sequenceId + 8);
 		}
 		
-		//新消息，如果是跳跃性的，则需要重置跨过的bit
-		if(curSequenceId < sequenceId) {
-			resetBits(sequenceId);
+		//新消息
+		slots[index] = buf;
+		cacheSize++;
+		if(SequenceHelper.isBefore(curSequenceId, sequenceId)) {
 			curSequenceId = sequenceId;
-			curBitIndex = bitIndex;
 		}
-				
-		bitSet.set(bitIndex);
-		bufMap.put(sequenceId, buf);
 		
-		//检查连续性
-		ChannelBuffer[] orderedMsgs = getOrderedMessages();
+		//检查连续性，依次交付连续的消息
+		if(sequenceId == startSequenceId) {
+			ChannelBuffer message;
+			while((message = slots[startSequenceId & mask]) != null) {
+				slots[startSequenceId & mask] = null;
+				cacheSize--;
+				startSequenceId++;
+				sink.onOrderedMessage(message);
+			}
+		}
 		
 		//比较老的消息了，上次发送反馈的时候该消息还未收到
 		//需要给远端发送反馈
-		if(sequenceId < lastFeedbackSequenceId) {
-			OrderedFeedback feedback = buildFeedback(sequenceId - 7, sequenceId + 8);
-			feedback.setMsgArray(orderedMsgs);
-			return feedback;
+		if(SequenceHelper.isBefore(sequenceId, lastFeedbackSequenceId)) {
+			return buildFeedback(sequenceId - 7, sequenceId + 8);
 		}
 		//够了16条消息了，需要反馈了
 		else if(curSequenceId - lastFeedbackSequenceId >= 16) {
 			OrderedFeedback feedback = buildFeedback(curSequenceId - 15, curSequenceId);
 			lastFeedbackSequenceId = curSequenceId;
-			feedback.setMsgArray(orderedMsgs);
-			return feedback;
-		}
-		else if(orderedMsgs != null) {
-			OrderedFeedback feedback = new OrderedFeedback(0, (short) 0);
-			feedback.setMsgArray(orderedMsgs);
 			return feedback;
 		}
 		
 		return null;
 	}
 	
-	//检查消息是否连续
-	private ChannelBuffer[] getOrderedMessages() {
-		int startIndex = getIndex(startSequenceId);
-		if(startIndex < 0) {
-			return null;
-		}
-		int endIndex = bitSet.nextClearBit(startIndex);
-		//到头了，要从头开始
-		if(endIndex == size) {
-			int newEndIndex = bitSet.nextClearBit(0);
-			//如果全部都是1
-			if(newEndIndex == size) {
-				endIndex = curBitIndex + 1;
-			}
-			else if(newEndIndex > 0) {
-				endIndex = newEndIndex;
-			}
-		}
-		while(endIndex < startIndex) {
-			endIndex += size;
-		}
-		int endSequenceId = startSequenceId + endIndex - startIndex;
-		
-		if(endSequenceId <= startSequenceId) {
-			return null;
-		}
-		
-		ChannelBuffer[] msgArray = new ChannelBuffer[endSequenceId - startSequenceId];
-		for (int i = 0; i < msgArray.length; i++) {
-			int sequenceId = startSequenceId + i;
-			msgArray[i] = bufMap.remove(sequenceId);
-		}
-		startSequenceId = endSequenceId;
-
-		return msgArray;
-	}
-	
 	/**
 	 * 获取当前反馈
 	 * 
 	 * @return
 	 */
 	public OrderedFeedback getFeedback() {
-		if(curSequenceId > lastFeedbackSequenceId) {
+		if(SequenceHelper.isAfter(curSequenceId, lastFeedbackSequenceId)) {
 			lastFeedbackSequenceId = curSequenceId;
 			return buildFeedback(curSequenceId - 15, curSequenceId);
 		}
@@ -156,17 +122,68 @@ public class OrderedUpStatus {
 		}
 	}
 	
+	/**
+	 * 获取累计确认序号，该序号及之前的消息都已收到。
+	 * 
+	 * @return 累计确认序号，尚未收到任何连续消息时为起始序号的前一个
+	 */
+	public int getCumulativeSequenceId() {
+		return startSequenceId - 1;
+	}
+	
+	/**
+	 * 获取选择确认区段，并记为已经反馈。<br>
+	 * 累计确认序号之后已经收到的消息，按序号从低到高组织成区段，
+	 * 依次将每个区段的起始序号和结束序号存放到ranges中。
+	 * 
+	 * @param ranges 存放区段的数组
+	 * @param maxRangeCount 最多获取的区段数量
+	 * @return 区段数量
+	 */
+	public int getAckRanges(int[] ranges, int maxRangeCount) {
+		if(SequenceHelper.isAfter(curSequenceId, lastFeedbackSequenceId)) {
+			lastFeedbackSequenceId = curSequenceId;
+		}
+		int rangeCount = 0;
+		int rangeLength = 0;
+		int endSequenceId = curSequenceId + 1;
+		//startSequenceId一定尚未收到，从它的下一条开始
+		//序号可能回绕，任何序号都可能是区段的起点，所以用区段长度判断是否在区段中
+		for(int sequenceId = startSequenceId + 1; SequenceHelper.compare(sequenceId, endSequenceId) <= 0 && rangeCount < maxRangeCount; sequenceId++) {
+			boolean received = sequenceId != endSequenceId && slots[sequenceId & mask] != null;
+			//区段开始或延续
+			if(received) {
+				rangeLength++;
+			}
+			//区段结束
+			else if(rangeLength != 0) {
+				ranges[rangeCount * 2] = sequenceId - rangeLength;
+				ranges[rangeCount * 2 + 1] = sequenceId - 1;
+				rangeCount++;
+				rangeLength = 0;
+			}
+		}
+		return rangeCount;
+	}
+	
+	/**
+	 * 消息是否在接收窗口中，即能否通过累计确认序号和选择确认区段反馈。
+	 * 
+	 * @param sequenceId 消息序号
+	 * @return true，在接收窗口中；false，不在接收窗口中
+	 */
+	public boolean isInWindow(int sequenceId) {
+		return SequenceHelper.isAfter(sequenceId, curSequenceId) == false;
+	}
+	
 	//构造从起始消息到结束消息的反馈
 	private OrderedFeedback buildFeedback(int startSequenceId, int endSequenceId) {
-		if(startSequenceId < 1) {
-			startSequenceId = 1;
-		}
-		if(endSequenceId > curSequenceId) {
+		if(SequenceHelper.isAfter(endSequenceId, curSequenceId)) {
 			endSequenceId = curSequenceId;
 		}
 		
 		int bitFields = 0;
-		for(int sequenceId = startSequenceId; sequenceId <= endSequenceId; sequenceId++) {
+		for(int sequenceId = startSequenceId; SequenceHelper.compare(sequenceId, endSequenceId) <= 0; sequenceId++) {
 			if(getStatus(sequenceId)) {
 				bitFields |= 1;
 			}
@@ -176,53 +193,23 @@ public class OrderedUpStatus {
 		return new OrderedFeedback(endSequenceId, (short) bitFields);
 	}
 	
-	//获取指定消息对应的索引
-	private int getIndex(int sequenceId) {
-		//太老的消息了，已经丢失状态了
-		if(sequenceId < curSequenceId - size + 1) {
-			return -1;
-		}
-		//太新的消息，尚未得知其状态
-		if(sequenceId > curSequenceId) {
-			return -1;
-		}
-		int bitIndex = sequenceId - curSequenceId + curBitIndex;
-		while(bitIndex < 0) {
-			bitIndex += size * 10;
-		}
-		if(bitIndex >= size) {
-			bitIndex = bitIndex % size;
-		}
-		return bitIndex;
-	}
-	
 	//获取指定消息的接收状态
 	private boolean getStatus(int sequenceId) {
-		int bitIndex = getIndex(sequenceId);
-		if(bitIndex >= 0) {
-			return bitSet.get(bitIndex);
+		//已经交付了
+		if(SequenceHelper.isBefore(sequenceId, startSequenceId)) {
+			return true;
 		}
-		return false;
-	}
-	
-	//重置从当前index到目标消息id对应的index之间的bit为false。
-	private void resetBits(int toSequenceId) {
-		for(int sequenceId = curSequenceId + 1; sequenceId < toSequenceId; sequenceId++) {
-			int bitIndex = sequenceId - curSequenceId + curBitIndex;
-			while(bitIndex < 0) {
-				bitIndex += size * 10;
-			}
-			if(bitIndex >= size) {
-				bitIndex = bitIndex % size;
-			}
-			bitSet.clear(bitIndex);
+		//太新的消息，尚未得知其状态
+		if(SequenceHelper.isAfter(sequenceId, curSequenceId)) {
+			return false;
 		}
+		return slots[sequenceId & mask] != null;
 	}
-
+	
 	@Override
 	public String toString() {
-		return "MessageReceiveStatus [curSequenceId=" + curSequenceId
-				+ ", curBitIndex=" + curBitIndex + ", bitSet=" + bitSet
-				+ ", size=" + size + "]";
+		return "OrderedUpStatus [curSequenceId=" + curSequenceId
+				+ ", startSequenceId=" + startSequenceId + ", cacheSize=" + cacheSize
+				+ ", capacity=" + slots.length + "]";
 	}
 }
@@ -0,0 +1,195 @@
+package com.ddpie.rudp.filter.reliability;
+
+import com.ddpie.rudp.constant.RudpConstants;
+import com.ddpie.rudp.log.RudpLoggers;
+import com.ddpie.rudp.session.DirectWritter;
+import com.ddpie.rudp.session.IRudpSession;
+import com.ddpie.rudp.session.ISessionTickListener;
+import com.ddpie.rudp.session.RudpSession;
+import com.ddpie.rudp.util.MessageHelper;
+
+/**
+ * 路径MTU探测器。<br>
+ * 参照RFC 8899（PLPMTUD）的方法，向远端发送带填充的探测消息，远端完整收到后回应确认，确认的长度即为可用的路径MTU：
+ * 先尝试{@link RudpConstants#PMTU_MAX_LENGTH}，不可用时在已确认长度与失败长度之间二分查找。<br>
+ * 同一长度的探测消息连续{@link RudpConstants#PMTU_PROBE_MAX_COUNT}次未被确认，才认为该长度不可用；
+ * 每隔{@link RudpConstants#PMTU_REPROBE_INTERVAL}、或者超过初始长度的消息多次超时时，重新确认当前的路径MTU，
+ * 确认失败则回退到{@link RudpConstants#MESSAGE_MAX_LENGTH}后重新探测。<br>
+ * 与RUDP会话一一对应，只在消息处理器线程中更新。
+ * 
+ * @author caobao
+ *
+ */
+public class PmtuDiscoverer {
+	private IRudpSession session;				//关联的RUDP会话
+	private RttEstimator rttEstimator;			//往返时间估算器，用于探测超时
+	private volatile int mtu;					//当前的路径MTU
+	private boolean started;					//是否已经开始探测
+	private int highLength;						//已知不可用的最小长度，尚未得知时为最大探测长度加1
+	private int probeId;						//当前探测ID
+	private int probeLength;					//当前探测长度，没有在途的探测时为0
+	private int probeCount;						//当前探测长度已发送的次数
+	private boolean confirming;					//当前探测是否是在确认现有的路径MTU
+	private long probeExpireTime;				//当前探测的超时时间
+	private long nextProbeTime = Long.MAX_VALUE;	//下一次重新探测的时间
+	
+	public PmtuDiscoverer(IRudpSession session, RttEstimator rttEstimator) {
+		this.session = session;
+		this.rttEstimator = rttEstimator;
+		mtu = RudpConstants.MESSAGE_MAX_LENGTH;
+		initSessionScanner();
+	}
+	
+	private void initSessionScanner() {
+		if(session instanceof RudpSession == false) {
+			return;
+		}
+		((RudpSession) session).addTickListener(new ISessionTickListener() {
+			@Override
+			public long onTick(long currentTime) {
+				if(started == false || session.isSuspended()) {
+					return Long.MAX_VALUE;
+				}
+				if(probeLength != 0) {
+					if(currentTime >= probeExpireTime) {
+						onProbeTimeout(currentTime);
+					}
+				}
+				else if(currentTime >= nextProbeTime) {
+					reprobe(currentTime);
+				}
+				return probeLength != 0 ? probeExpireTime : nextProbeTime;
+			}
+		});
+	}
+	
+	/**
+	 * 获取当前的路径MTU。
+	 * 
+	 * @return 路径MTU，字节
+	 */
+	public int getMtu() {
+		return mtu;
+	}
+	
+	/**
+	 * 开始探测，得知远端支持路径MTU探测后调用。
+	 */
+	public void start() {
+		if(started || RudpConstants.PMTU_MAX_LENGTH <= mtu) {
+			return;
+		}
+		started = true;
+		highLength = RudpConstants.PMTU_MAX_LENGTH + 1;
+		probeNext(System.currentTimeMillis());
+	}
+	
+	/**
+	 * 收到探测确认时的回调。
+	 * 
+	 * @param probeId 探测ID
+	 * @param length 探测长度
+	 */
+	public void onProbeAcked(int probeId, int length) {
+		if(probeLength == 0 || probeId != this.probeId || length != probeLength) {
+			return;
+		}
+		if(length > mtu) {
+			mtu = length;
+		}
+		confirming = false;
+		probeNext(System.currentTimeMillis());
+	}
+	
+	/**
+	 * 超过初始长度的可靠消息多次超时的回调，可能是路径MTU变小了，立即重新确认当前的路径MTU。
+	 */
+	public void onLargeMessageLost() {
+		if(started == false || probeLength != 0 || mtu <= RudpConstants.MESSAGE_MAX_LENGTH) {
+			return;
+		}
+		if(RudpLoggers.reliabilityLogger.isDebugEnabled()) {
+			RudpLoggers.reliabilityLogger.debug("large messages to " + session.getRemoteAddress() + " are lost, so confirm pmtu " + mtu);
+		}
+		confirming = true;
+		probeCount = 0;
+		sendProbe(mtu, System.currentTimeMillis());
+	}
+	
+	//探测超时
+	private void onProbeTimeout(long currentTime) {
+		//可能只是随机丢包，重发同样长度的探测
+		if(probeCount < RudpConstants.PMTU_PROBE_MAX_COUNT) {
+			sendProbe(probeLength, currentTime);
+			return;
+		}
+		highLength = probeLength;
+		//现有的路径MTU已经不可用，回退到初始长度
+		if(confirming) {
+			RudpLoggers.reliabilityLogger.warn(
+					"pmtu " + mtu + " to " + session.getRemoteAddress() + " is not available any more, so fall back to " + RudpConstants.MESSAGE_MAX_LENGTH);
+			mtu = RudpConstants.MESSAGE_MAX_LENGTH;
+			confirming = false;
+		}
+		probeNext(currentTime);
+	}
+	
+	//定期重新探测：先确认现有的路径MTU，再尝试更大的长度
+	private void reprobe(long currentTime) {
+		highLength = RudpConstants.PMTU_MAX_LENGTH + 1;
+		if(mtu > RudpConstants.MESSAGE_MAX_LENGTH) {
+			confirming = true;
+			probeCount = 0;
+			sendProbe(mtu, currentTime);
+		}
+		else {
+			probeNext(currentTime);
+		}
+	}
+	
+	//发送下一个长度的探测，已经足够精确时结束本轮探测
+	private void probeNext(long currentTime) {
+		probeCount = 0;
+		int length;
+		if(highLength > RudpConstants.PMTU_MAX_LENGTH) {
+			length = RudpConstants.PMTU_MAX_LENGTH;
+		}
+		else {
+			length = (mtu + highLength) / 2;
+		}
+		if(highLength - mtu <= RudpConstants.PMTU_PROBE_STEP || length <= mtu) {
+			probeLength = 0;
+			nextProbeTime = currentTime + RudpConstants.PMTU_REPROBE_INTERVAL;
+			requestTick(nextProbeTime);
+			if(RudpLoggers.reliabilityLogger.isInfoEnabled()) {
+				RudpLoggers.reliabilityLogger.info("pmtu of " + session.getRemoteAddress() + " is " + mtu);
+			}
+			return;
+		}
+		sendProbe(length, currentTime);
+	}
+	
+	//发送探测消息，重发同样长度的探测时使用同一个探测ID，之前的探测迟到的确认同样有效
+	private void sendProbe(int length, long currentTime) {
+		if(probeCount == 0) {
+			probeId = (probeId + 1) & 0xFFFF;
+		}
+		probeLength = length;
+		probeCount++;
+		probeExpireTime = currentTime + rttEstimator.getRto();
+		DirectWritter.write(session, MessageHelper.getPmtuProbe(probeId, length));
+		requestTick(probeExpireTime);
+	}
+	
+	//登记滴答
+	private void requestTick(long dueTime) {
+		if(session instanceof RudpSession) {
+			((RudpSession) session).requestTick(dueTime);
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "PmtuDiscoverer [mtu=" + mtu + ", highLength=" + highLength + ", probeLength=" + probeLength + "]";
+	}
+}
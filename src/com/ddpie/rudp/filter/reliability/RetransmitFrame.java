@@ -0,0 +1,91 @@
+package com.ddpie.rudp.filter.reliability;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+
+import com.ddpie.rudp.constant.RudpConstants;
+
+/**
+ * 重发帧，重发队列中保存的不可变的消息副本。<br>
+ * 使用引用计数管理内存：重发队列持有一个引用，消息被确认时释放；每次重发时再持有一个引用，Netty发送完成时释放。
+ * 引用全部释放后，内存块归还到{@link RetransmitFramePool}中。<br>
+ * 重发时发送的是只读的视图，各次发送的读写位置相互独立。
+ * 
+ * @author caobao
+ *
+ */
+public class RetransmitFrame implements ChannelFutureListener {
+	private final RetransmitFramePool pool;		//所属的内存池
+	private final byte[] block;					//内存块
+	private final ChannelBuffer buffer;			//只读的消息内容
+	private final AtomicInteger refCount;		//引用计数
+	
+	RetransmitFrame(RetransmitFramePool pool, byte[] block, int length) {
+		this.pool = pool;
+		this.block = block;
+		buffer = ChannelBuffers.unmodifiableBuffer(ChannelBuffers.wrappedBuffer(RudpConstants.BYTE_ORDER, block, 0, length));
+		refCount = new AtomicInteger(1);
+	}
+	
+	/**
+	 * 获取只读的消息内容，只能在持有引用时访问。
+	 * 
+	 * @return
+	 */
+	public ChannelBuffer getBuffer() {
+		return buffer;
+	}
+	
+	/**
+	 * 获取一个只读的视图，用于发送。
+	 * 
+	 * @return
+	 */
+	public ChannelBuffer duplicate() {
+		return buffer.duplicate();
+	}
+	
+	/**
+	 * 获取消息长度。
+	 * 
+	 * @return
+	 */
+	public int length() {
+		return buffer.readableBytes();
+	}
+	
+	/**
+	 * 增加一个引用。
+	 */
+	public void retain() {
+		if(refCount.getAndIncrement() <= 0) {
+			refCount.decrementAndGet();
+			throw new IllegalStateException("frame has already been released");
+		}
+	}
+	
+	/**
+	 * 释放一个引用，全部释放后归还内存块。
+	 */
+	public void release() {
+		int count = refCount.decrementAndGet();
+		if(count == 0) {
+			pool.recycle(block);
+		}
+		else if(count < 0) {
+			throw new IllegalStateException("frame has already been released");
+		}
+	}
+	
+	/**
+	 * 重发完成时释放引用。
+	 */
+	@Override
+	public void operationComplete(ChannelFuture future) throws Exception {
+		release();
+	}
+}
@@ -0,0 +1,131 @@
+package com.ddpie.rudp.filter.reliability;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import com.ddpie.rudp.constant.RudpConstants;
+
+/**
+ * 重发帧的内存池。<br>
+ * 内存块的长度固定为可能的最大消息长度，可靠消息加入重发队列时复制到内存块中，成为不可变的{@link RetransmitFrame}；
+ * 重发帧的引用全部释放后，内存块立即归还到池中，池中最多保留{@link RudpConstants#RETRANSMIT_FRAME_POOL_SIZE}个内存块。<br>
+ * 所有会话共享，可以在任意线程中分配和归还。
+ * 
+ * @author caobao
+ *
+ */
+public class RetransmitFramePool {
+	private static final RetransmitFramePool instance = new RetransmitFramePool(
+			Math.max(RudpConstants.MESSAGE_MAX_LENGTH, RudpConstants.PMTU_MAX_LENGTH), RudpConstants.RETRANSMIT_FRAME_POOL_SIZE);
+	
+	private final int blockSize;				//内存块长度
+	private final int maxPooledCount;			//池中最多保留的内存块数量
+	private final Queue<byte[]> blocks;			//空闲的内存块
+	private final AtomicInteger pooledCount;	//空闲的内存块数量
+	private final AtomicLong allocatedCount;	//分配的重发帧数量
+	private final AtomicLong reusedCount;		//复用了空闲内存块的重发帧数量
+	
+	/**
+	 * 构造内存池。
+	 * 
+	 * @param blockSize 内存块长度，更长的消息不使用内存池
+	 * @param maxPooledCount 池中最多保留的内存块数量
+	 */
+	public RetransmitFramePool(int blockSize, int maxPooledCount) {
+		if(blockSize <= 0) {
+			throw new IllegalArgumentException("blockSize must be positive");
+		}
+		this.blockSize = blockSize;
+		this.maxPooledCount = maxPooledCount;
+		blocks = new ConcurrentLinkedQueue<byte[]>();
+		pooledCount = new AtomicInteger();
+		allocatedCount = new AtomicLong();
+		reusedCount = new AtomicLong();
+	}
+	
+	/**
+	 * 获取所有会话共享的内存池。
+	 * 
+	 * @return
+	 */
+	public static RetransmitFramePool getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * 把消息复制为重发帧，引用计数为1。
+	 * 
+	 * @param message 消息，不改变它的读写位置
+	 * @return 重发帧
+	 */
+	public RetransmitFrame allocate(ChannelBuffer message) {
+		int length = message.readableBytes();
+		allocatedCount.incrementAndGet();
+		byte[] block = null;
+		if(length <= blockSize) {
+			block = blocks.poll();
+			if(block != null) {
+				pooledCount.decrementAndGet();
+				reusedCount.incrementAndGet();
+			}
+			else {
+				block = new byte[blockSize];
+			}
+		}
+		else {
+			block = new byte[length];
+		}
+		message.getBytes(message.readerIndex(), block, 0, length);
+		return new RetransmitFrame(this, block, length);
+	}
+	
+	/**
+	 * 归还内存块，由{@link RetransmitFrame}在引用全部释放后调用。
+	 * 
+	 * @param block
+	 */
+	void recycle(byte[] block) {
+		if(block.length != blockSize || pooledCount.get() >= maxPooledCount) {
+			return;
+		}
+		pooledCount.incrementAndGet();
+		blocks.offer(block);
+	}
+	
+	/**
+	 * 获取空闲的内存块数量。
+	 * 
+	 * @return
+	 */
+	public int getPooledCount() {
+		return pooledCount.get();
+	}
+	
+	/**
+	 * 获取分配的重发帧数量。
+	 * 
+	 * @return
+	 */
+	public long getAllocatedCount() {
+		return allocatedCount.get();
+	}
+	
+	/**
+	 * 获取复用了空闲内存块的重发帧数量。
+	 * 
+	 * @return
+	 */
+	public long getReusedCount() {
+		return reusedCount.get();
+	}
+	
+	@Override
+	public String toString() {
+		return "RetransmitFramePool [blockSize=" + blockSize + ", pooledCount=" + pooledCount +
+				", allocatedCount=" + allocatedCount + ", reusedCount=" + reusedCount + "]";
+	}
+}
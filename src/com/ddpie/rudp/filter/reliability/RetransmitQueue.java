@@ -0,0 +1,320 @@
+package com.ddpie.rudp.filter.reliability;
+
+import com.ddpie.rudp.util.ChannelBufferHelper;
+
+/**
+ * 可靠消息的重发队列。<br>
+ * 已发送但尚未确认的消息按序号存放在环形数组中，确认时直接清空对应的槽位；
+ * 同时按超时时间组织成最小堆，扫描超时消息时只需要访问堆顶已经超时的消息。<br>
+ * 添加、确认、修改超时时间都是O(log n)以内的操作，且不需要装箱。<br>
+ * 队列持有每条消息的重发帧的一个引用，消息被替换或清空时释放；被移除的消息由调用者释放。<br>
+ * 该实现不是线程安全的，只能由消息处理器线程访问。
+ * 
+ * @author caobao
+ *
+ */
+public class RetransmitQueue {
+	/** 环形数组和堆的初始容量 */
+	private static final int INITIAL_CAPACITY = 64;
+
+	private MessageEntry[] ring;	//按序号存放消息的环形数组，下标为序号 & ringMask
+	private int ringMask;			//环形数组下标掩码
+	private int lowSequenceId;		//队列中的最小序号
+	private int highSequenceId;		//队列中的最大序号
+	private MessageEntry[] heap;	//按超时时间组织的最小堆
+	private int size;				//队列中的消息数量
+
+	public RetransmitQueue() {
+		ring = new MessageEntry[INITIAL_CAPACITY];
+		ringMask = INITIAL_CAPACITY - 1;
+		heap = new MessageEntry[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * 获取队列中的消息数量。
+	 * 
+	 * @return 消息数量
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * 队列是否为空。
+	 * 
+	 * @return true，为空；false，不为空
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * 获取队列中的最小序号。
+	 * 
+	 * @return 最小序号；队列为空时无意义
+	 */
+	public int getLowSequenceId() {
+		return lowSequenceId;
+	}
+	
+	/**
+	 * 获取队列中的最大序号。
+	 * 
+	 * @return 最大序号；队列为空时无意义
+	 */
+	public int getHighSequenceId() {
+		return highSequenceId;
+	}
+	
+	/**
+	 * 加入一条消息。若该序号已经在队列中，则替换原来的消息，并释放原来的重发帧。
+	 * 
+	 * @param sequenceId 消息序号
+	 * @param frame 消息的重发帧，队列接管它的引用
+	 * @param sendTime 首次发送时间，毫秒
+	 * @param expireTime 超时时间，毫秒
+	 * @return 加入的消息条目
+	 */
+	public MessageEntry add(int sequenceId, RetransmitFrame frame, long sendTime, long expireTime) {
+		MessageEntry oldEntry = remove(sequenceId);
+		if(oldEntry != null) {
+			oldEntry.frame.release();
+		}
+		if(size == 0) {
+			lowSequenceId = sequenceId;
+			highSequenceId = sequenceId;
+		}
+		else if(sequenceId - highSequenceId > 0) {
+			ensureRingCapacity(sequenceId - lowSequenceId + 1);
+			highSequenceId = sequenceId;
+		}
+		else if(sequenceId - lowSequenceId < 0) {
+			ensureRingCapacity(highSequenceId - sequenceId + 1);
+			lowSequenceId = sequenceId;
+		}
+		MessageEntry entry = new MessageEntry(sequenceId, frame, sendTime, expireTime);
+		ring[sequenceId & ringMask] = entry;
+		heapAdd(entry);
+		size++;
+		return entry;
+	}
+
+	/**
+	 * 获取指定序号的消息。
+	 * 
+	 * @param sequenceId 消息序号
+	 * @return 消息条目；若不在队列中，则返回null
+	 */
+	public MessageEntry get(int sequenceId) {
+		if(size == 0 || sequenceId - lowSequenceId < 0 || sequenceId - highSequenceId > 0) {
+			return null;
+		}
+		MessageEntry entry = ring[sequenceId & ringMask];
+		if(entry == null || entry.sequenceId != sequenceId) {
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * 移除指定序号的消息（消息已被确认）。
+	 * 
+	 * @param sequenceId 消息序号
+	 * @return 被移除的消息条目，由调用者释放它的重发帧；若不在队列中，则返回null
+	 */
+	public MessageEntry remove(int sequenceId) {
+		MessageEntry entry = get(sequenceId);
+		if(entry == null) {
+			return null;
+		}
+		ring[sequenceId & ringMask] = null;
+		heapRemove(entry.heapIndex);
+		size--;
+		if(size == 0) {
+			lowSequenceId = 0;
+			highSequenceId = 0;
+		}
+		//收缩范围的下界，跳过已被确认的槽位
+		else if(sequenceId == lowSequenceId) {
+			while(ring[lowSequenceId & ringMask] == null) {
+				lowSequenceId++;
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * 获取超时时间最早的消息。
+	 * 
+	 * @return 消息条目；若队列为空，则返回null
+	 */
+	public MessageEntry peekEarliest() {
+		return size == 0 ? null : heap[0];
+	}
+
+	/**
+	 * 获取最早的超时时间。
+	 * 
+	 * @return 超时时间，毫秒；若队列为空，则返回{@link Long#MAX_VALUE}
+	 */
+	public long getEarliestExpireTime() {
+		return size == 0 ? Long.MAX_VALUE : heap[0].expireTime;
+	}
+
+	/**
+	 * 修改消息的超时时间。
+	 * 
+	 * @param entry 队列中的消息条目
+	 * @param expireTime 新的超时时间，毫秒
+	 */
+	public void updateExpireTime(MessageEntry entry, long expireTime) {
+		long oldExpireTime = entry.expireTime;
+		entry.expireTime = expireTime;
+		if(expireTime < oldExpireTime) {
+			siftUp(entry.heapIndex);
+		}
+		else {
+			siftDown(entry.heapIndex);
+		}
+	}
+
+	/**
+	 * 清空队列，并释放所有消息的重发帧。
+	 */
+	public void clear() {
+		for (int i = 0; i < size; i++) {
+			heap[i].frame.release();
+			ring[heap[i].sequenceId & ringMask] = null;
+			heap[i] = null;
+		}
+		size = 0;
+		lowSequenceId = 0;
+		highSequenceId = 0;
+	}
+
+	//保证环形数组能容纳指定跨度的序号，必要时按2的幂扩容
+	private void ensureRingCapacity(int span) {
+		if(span <= ring.length) {
+			return;
+		}
+		int capacity = ring.length;
+		while(capacity < span) {
+			capacity <<= 1;
+		}
+		MessageEntry[] newRing = new MessageEntry[capacity];
+		int newMask = capacity - 1;
+		for (MessageEntry entry : ring) {
+			if(entry != null) {
+				newRing[entry.sequenceId & newMask] = entry;
+			}
+		}
+		ring = newRing;
+		ringMask = newMask;
+	}
+
+	//加入堆
+	private void heapAdd(MessageEntry entry) {
+		if(size == heap.length) {
+			MessageEntry[] newHeap = new MessageEntry[heap.length << 1];
+			System.arraycopy(heap, 0, newHeap, 0, size);
+			heap = newHeap;
+		}
+		heap[size] = entry;
+		entry.heapIndex = size;
+		siftUp(size);
+	}
+
+	//从堆中移除指定位置的元素，调用时size尚未减少
+	private void heapRemove(int index) {
+		int last = size - 1;
+		MessageEntry lastEntry = heap[last];
+		heap[last] = null;
+		if(index == last) {
+			return;
+		}
+		heap[index] = lastEntry;
+		lastEntry.heapIndex = index;
+		siftDown(index, last);
+		if(heap[index] == lastEntry) {
+			siftUp(index);
+		}
+	}
+
+	private void siftUp(int index) {
+		MessageEntry entry = heap[index];
+		while(index > 0) {
+			int parent = (index - 1) >>> 1;
+			MessageEntry parentEntry = heap[parent];
+			if(parentEntry.expireTime <= entry.expireTime) {
+				break;
+			}
+			heap[index] = parentEntry;
+			parentEntry.heapIndex = index;
+			index = parent;
+		}
+		heap[index] = entry;
+		entry.heapIndex = index;
+	}
+
+	private void siftDown(int index) {
+		siftDown(index, size);
+	}
+
+	//在前heapSize个元素的范围内下沉
+	private void siftDown(int index, int heapSize) {
+		MessageEntry entry = heap[index];
+		int half = heapSize >>> 1;
+		while(index < half) {
+			int child = (index << 1) + 1;
+			MessageEntry childEntry = heap[child];
+			int right = child + 1;
+			if(right < heapSize && heap[right].expireTime < childEntry.expireTime) {
+				child = right;
+				childEntry = heap[child];
+			}
+			if(entry.expireTime <= childEntry.expireTime) {
+				break;
+			}
+			heap[index] = childEntry;
+			childEntry.heapIndex = index;
+			index = child;
+		}
+		heap[index] = entry;
+		entry.heapIndex = index;
+	}
+
+	@Override
+	public String toString() {
+		return "RetransmitQueue [size=" + size + ", lowSequenceId=" + lowSequenceId + ", highSequenceId=" + highSequenceId +
+				", earliestExpireTime=" + getEarliestExpireTime() + "]";
+	}
+
+	/**
+	 * 重发队列中的消息条目。
+	 * 
+	 * @author caobao
+	 *
+	 */
+	static final class MessageEntry {
+		final int sequenceId;		//消息序号
+		final RetransmitFrame frame;	//消息的重发帧
+		final long sendTime;		//首次发送时间
+		long expireTime;			//超时时间，只能通过RetransmitQueue修改
+		long expireCount;			//超时次数
+		boolean fastRetransmitted;	//是否已经快速重发过
+		int heapIndex;				//在堆中的位置
+
+		MessageEntry(int sequenceId, RetransmitFrame frame, long sendTime, long expireTime) {
+			this.sequenceId = sequenceId;
+			this.frame = frame;
+			this.sendTime = sendTime;
+			this.expireTime = expireTime;
+		}
+
+		@Override
+		public String toString() {
+			return "Entry [sequenceId=" + sequenceId + ", buf=" + ChannelBufferHelper.toString(frame.getBuffer()) + ", sendTime=" + sendTime +
+					", expireTime=" + expireTime + ", expireCount=" + expireCount + ", fastRetransmitted=" + fastRetransmitted + "]";
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package com.ddpie.rudp.filter.reliability;
+
+import com.ddpie.rudp.constant.RudpConstants;
+
+/**
+ * 往返时间（RTT）估算器。<br>
+ * 按照RFC 6298的方法，根据确认消息测得的RTT样本维护平滑RTT和RTT偏差，
+ * 并由此计算重发超时时间（RTO）。<br>
+ * 样本只能来自未重发过的消息（Karn算法），否则无法区分确认的是哪一次发送。<br>
+ * 远端最多延迟{@link RudpConstants#MESSAGE_ACK_MAX_WAIT_TIME}才确认，样本已经扣除了确认消息携带的确认延迟，
+ * 所以RTO在平滑RTT和偏差之外再加上远端的最大确认延迟，不会因为延迟确认而误判超时。
+ * 与RUDP会话一一对应，仅在消息处理器线程中更新。
+ * 
+ * @author caobao
+ *
+ */
+public class RttEstimator {
+	/** 平滑RTT的增益 */
+	private static final double RTT_ALPHA = 1.0 / 8;
+	/** RTT偏差的增益 */
+	private static final double RTT_BETA = 1.0 / 4;
+	/** 超时退避的最大倍数（2的幂次） */
+	private static final int MAX_BACKOFF_SHIFT = 6;
+
+	private double smoothedRtt;			//平滑RTT，毫秒
+	private double rttVariance;			//RTT偏差，毫秒
+	private boolean hasSample;			//是否已经有过RTT样本
+	private volatile long rtt = -1;		//对外公开的平滑RTT，毫秒，尚未测量时为-1
+	private volatile long rto;			//当前的重发超时时间，毫秒
+
+	public RttEstimator() {
+		rto = clampRto(RudpConstants.MESSAGE_RETRANSMIT_TIME);
+	}
+
+	/**
+	 * 增加一个RTT样本。
+	 * 
+	 * @param sample 测得的RTT，毫秒
+	 */
+	public void onSample(long sample) {
+		if(sample < 0) {
+			return;
+		}
+		if(hasSample == false) {
+			smoothedRtt = sample;
+			rttVariance = sample / 2.0;
+			hasSample = true;
+		}
+		else {
+			rttVariance = (1 - RTT_BETA) * rttVariance + RTT_BETA * Math.abs(smoothedRtt - sample);
+			smoothedRtt = (1 - RTT_ALPHA) * smoothedRtt + RTT_ALPHA * sample;
+		}
+		rtt = Math.round(smoothedRtt);
+		rto = clampRto(Math.round(smoothedRtt + Math.max(RudpConstants.TIMING_WHEEL_TICK_DURATION, 4 * rttVariance)) + getMaxAckDelay());
+	}
+
+	/**
+	 * 获取远端的最大确认延迟：反馈等待时间，加上远端滴答的精度。
+	 * 
+	 * @return 最大确认延迟，毫秒
+	 */
+	public static long getMaxAckDelay() {
+		return RudpConstants.MESSAGE_ACK_MAX_WAIT_TIME + RudpConstants.TIMING_WHEEL_TICK_DURATION;
+	}
+
+	/**
+	 * 获取平滑RTT。
+	 * 
+	 * @return 平滑RTT，毫秒；尚未测量时返回-1
+	 */
+	public long getRtt() {
+		return rtt;
+	}
+
+	/**
+	 * 获取RTT偏差。
+	 * 
+	 * @return RTT偏差，毫秒；尚未测量时返回-1
+	 */
+	public long getRttVariance() {
+		return hasSample ? Math.round(rttVariance) : -1;
+	}
+
+	/**
+	 * 获取重发超时时间。
+	 * 
+	 * @return 重发超时时间，毫秒
+	 */
+	public long getRto() {
+		return rto;
+	}
+
+	/**
+	 * 获取已经超时若干次的消息的重发超时时间（指数退避）。
+	 * 
+	 * @param expireCount 已经超时的次数
+	 * @return 重发超时时间，毫秒
+	 */
+	public long getBackoffRto(long expireCount) {
+		int shift = (int) Math.min(expireCount, MAX_BACKOFF_SHIFT);
+		return clampRto(rto << shift);
+	}
+
+	//将超时时间限制在最小值和最大值之间
+	private static long clampRto(long value) {
+		if(value < RudpConstants.MESSAGE_RETRANSMIT_MIN_TIME) {
+			return RudpConstants.MESSAGE_RETRANSMIT_MIN_TIME;
+		}
+		if(value > RudpConstants.MESSAGE_RETRANSMIT_MAX_TIME) {
+			return RudpConstants.MESSAGE_RETRANSMIT_MAX_TIME;
+		}
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		return "RttEstimator [rtt=" + rtt + ", rttVariance=" + getRttVariance() + ", rto=" + rto + "]";
+	}
+}
@@ -2,19 +2,21 @@ package com.ddpie.rudp.filter.reliability;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 
-import com.ddpie.rudp.filter.IRudpFilter;
+import com.ddpie.rudp.filter.IRudpFilterContext;
+import com.ddpie.rudp.filter.IRudpPipelineFilter;
 import com.ddpie.rudp.log.RudpLoggers;
 import com.ddpie.rudp.session.IRudpSession;
 import com.ddpie.rudp.util.ChannelBufferHelper;
 import com.ddpie.rudp.util.MessageHelper;
 
 /**
- * 实现RUDP可靠性的Filter。
+ * 实现RUDP可靠性的Filter。<br>
+ * 一条有序消息可能使多条缓存的消息变得连续，通过上下文依次传递，不组装数组。
  * 
  * @author caobao
  *
  */
-public class RudpReliabilityFilter implements IRudpFilter {
+public class RudpReliabilityFilter implements IRudpPipelineFilter {
 
 	@Override
 	public void sessionOpened(IRudpSession session) {
@@ -34,7 +36,10 @@ public class RudpReliabilityFilter implements IRudpFilter {
 
 	@Override
 	public void sessionClosed(IRudpSession session) {
-		session.removeAttribute("reliability");
+		SessionReliabilityManager mgr = (SessionReliabilityManager) session.removeAttribute("reliability");
+		if(mgr != null) {
+			mgr.clear();
+		}
 	}
 
 	@Override
@@ -42,10 +47,24 @@ public class RudpReliabilityFilter implements IRudpFilter {
 		SessionReliabilityManager mgr = (SessionReliabilityManager) session.getAttribute("reliability");
 		ChannelBuffer buf = (ChannelBuffer) messageContent;
 		
-		switch(buf.getByte(buf.readerIndex())) {
+		//捎带了确认，先处理确认，再去掉捎带的部分
+		if(MessageHelper.hasPiggybackAck(buf)) {
+			mgr.onPiggybackAck(buf);
+		}
+		
+		switch(MessageHelper.getMessageType(buf)) {
 		case MessageHelper.HEARTBEAT_HEAD:
 			mgr.onHeartbeat(buf);
 			return null;
+		case MessageHelper.ACK_HEAD:
+			mgr.onAck(buf);
+			return null;
+		case MessageHelper.PMTU_PROBE_HEAD:
+			mgr.onPmtuProbe(buf);
+			return null;
+		case MessageHelper.PMTU_PROBE_ACK_HEAD:
+			mgr.onPmtuProbeAck(buf);
+			return null;
 		case MessageHelper.RELIABLE_DISORDERED_HEAD:
 			return mgr.onDisorderedReceived(buf);
 		case MessageHelper.RELIABLE_ORDERED_HEAD:
@@ -60,21 +79,48 @@ public class RudpReliabilityFilter implements IRudpFilter {
 		}
 	}
 
+	@Override
+	public void messageReceived(IRudpSession session, Object messageContent, IRudpFilterContext ctx) {
+		SessionReliabilityManager mgr = (SessionReliabilityManager) session.getAttribute("reliability");
+		ChannelBuffer buf = (ChannelBuffer) messageContent;
+		
+		//捎带了确认，先处理确认，再去掉捎带的部分
+		if(MessageHelper.hasPiggybackAck(buf)) {
+			mgr.onPiggybackAck(buf);
+		}
+		
+		//有序消息可能使多条缓存的消息变得连续，依次传递；其他消息按原来的方式处理
+		if(MessageHelper.getMessageType(buf) == MessageHelper.RELIABLE_ORDERED_HEAD) {
+			mgr.onOrderedReceived(buf, ctx);
+		}
+		else {
+			ctx.fireMessage(messageReceived(session, buf));
+		}
+	}
+
 	@Override
 	public Object writeRequested(IRudpSession session, Object messageContent) {
 		SessionReliabilityManager mgr = (SessionReliabilityManager) session.getAttribute("reliability");
 		ChannelBuffer buf = (ChannelBuffer) messageContent;
 		
-		switch(buf.getByte(buf.readerIndex())) {
+		switch(MessageHelper.getMessageType(buf)) {
 		case MessageHelper.RELIABLE_DISORDERED_HEAD:
-			mgr.onDisorderedWrite(buf);
-			break;
 		case MessageHelper.RELIABLE_ORDERED_HEAD:
-			mgr.onOrderedWrite(buf);
-			break;
+			//拥塞窗口已满，消息进入发送队列，不再向下传递
+			if(mgr.onReliableWrite(buf) == false) {
+				return null;
+			}
+			return mgr.piggybackAck(buf);
+		case MessageHelper.UNRELIABLE_HEAD:
+			return mgr.piggybackAck(buf);
 		}
 		
 		return messageContent;
 	}
 
+	@Override
+	public void writeRequested(IRudpSession session, Object messageContent, IRudpFilterContext ctx) {
+		ctx.fireMessage(writeRequested(session, messageContent));
+	}
+
 }
@@ -1,36 +1,64 @@
 package com.ddpie.rudp.filter.reliability;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Queue;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelFuture;
 
+import com.ddpie.rudp.constant.RudpCapabilities;
 import com.ddpie.rudp.constant.RudpConstants;
+import com.ddpie.rudp.filter.IRudpFilterContext;
+import com.ddpie.rudp.filter.reliability.RetransmitQueue.MessageEntry;
 import com.ddpie.rudp.log.RudpLoggers;
 import com.ddpie.rudp.session.DirectWritter;
 import com.ddpie.rudp.session.IRudpSession;
+import com.ddpie.rudp.session.ISessionTickListener;
 import com.ddpie.rudp.session.RudpSession;
 import com.ddpie.rudp.util.ChannelBufferHelper;
 import com.ddpie.rudp.util.MessageHelper;
+import com.ddpie.rudp.util.SequenceHelper;
 
 /**
  * 维持RUDP可靠性的管理器。<br>
  * 包括本地发送消息的状态和收到远端消息的状态。
- * 与RUDP会话一一对应。
+ * 与RUDP会话一一对应。<br>
+ * 消息序号是32位的循环序号，按{@link SequenceHelper}的序号算术比较，长时间运行的会话序号回绕后不需要重连。<br>
+ * 可靠且有序的消息可以分为多个相互独立的有序流（见{@link OrderedStream}），所有流共用同一个拥塞窗口和远端接收窗口。
  * 
  * @author caobao
  *
  */
 public class SessionReliabilityManager {
 	private IRudpSession session;							//绑定的RUDP会话
-	private Map<Integer, MessageEntry> orderedDownMap;		//可靠且连续消息发送缓存<消息序号, 消息>
-	private Map<Integer, MessageEntry> disorderedDownMap;	//可靠但不连续消息发送缓存<消息序号, 消息>
-	private OrderedUpStatus orderedUpStatus;				//可靠且连续消息的接收状态
+	private OrderedStream[] orderedStreams;					//可靠且连续消息的各个有序流，下标为有序流ID，流0之外的按需创建
+	private RetransmitQueue disorderedDownQueue;			//可靠但不连续消息发送缓存
 	private DisorderedUpStatus disorderedUpStatus;			//可靠但不连续消息的接收状态
-	private int orderedWriteSequenceId = 1;					//可靠且连续消息的当前序号
-	private int disorderedWriteSequenceId = 1;				//可靠但不连续消息的当前序号
+	private int disorderedWriteSequenceId;					//可靠但不连续消息的当前序号
+	private int receivedOrderedStreamCount = 1;				//收到过消息的有序流数量，即收到过的最大有序流ID加1
+	private RttEstimator rttEstimator;						//往返时间估算器
+	private PmtuDiscoverer pmtuDiscoverer;					//路径MTU探测器
+	private ICongestionController congestionController;		//拥塞控制器
+	private IReceiveWindowLimiter receiveWindowLimiter;		//接收窗口的限制者，没有时为null
+	private IDataMessageWriter dataMessageWriter;			//等待发送的消息的写入者，没有时直接发送
+	private Queue<ChannelBuffer> pendingWrites;				//超出拥塞窗口，等待发送的可靠消息
+	private long lastRttSample;								//处理一个心跳期间测得的最新往返时间
+	private long latestAckedSendTime;						//处理一个心跳期间新确认的、未重发过的消息中最晚的发送时间，没有时为-1
+	private long lastReliableReceiveTime;					//收到最近一条可靠消息的时间，用于计算确认延迟，尚未收到时为0
+	private long lastFastLossTime;							//上次因快速重发而通知拥塞控制器的时间
+	private int peerCapabilities = RudpCapabilities.UNKNOWN;	//远端能力
+	private int capabilityAdvertiseCount;					//远端能力未知时，已发送的携带本端能力的心跳数量
+	private int peerReceiveWindow = -1;						//远端接收窗口，即远端还能缓存的有序消息和封包数量；尚未得知时为-1，不限制
+	private int advertisedWindow = -1;						//最近一次通告给远端的接收窗口，尚未通告时为-1
+	private int[] disorderedAckRanges;						//构造扩展确认消息时使用的无序消息选择确认区段
+	private int[] ackCumulativeIds;							//构造扩展确认消息时使用的各个有序流的累计确认序号
+	private int[][] ackOrderedRanges;						//构造扩展确认消息时使用的各个有序流的选择确认区段
+	private int[] ackRangeCounts;							//构造扩展确认消息时使用的各个有序流的选择确认区段数量
+	private int[] ackStreamIndexes;							//解析扩展确认消息时使用的各个有序流确认的位置
+	private List<ChannelBuffer> orderedMessages;			//收到一条消息后变得连续的消息，重复使用
+	private IOrderedMessageSink orderedMessageSink;			//把连续的消息收集到orderedMessages中
 	
 	/**
 	 * 根据RUDP会话构造维持其可靠性的管理器。
@@ -39,10 +67,28 @@ public class SessionReliabilityManager {
 	 */
 	public SessionReliabilityManager(IRudpSession session) {
 		this.session = session;
-		orderedDownMap = new ConcurrentHashMap<Integer, MessageEntry>();
-		disorderedDownMap = new ConcurrentHashMap<Integer, MessageEntry>();
-		orderedUpStatus = new OrderedUpStatus(RudpConstants.RECEIVE_STATUS_MAX_MESSAGE_COUNT);
+		int maxRangeCount = Math.min(RudpConstants.EXTENDED_ACK_MAX_RANGE_COUNT, 255);
+		orderedStreams = new OrderedStream[MessageHelper.ORDERED_STREAM_MAX_COUNT];
+		orderedStreams[0] = new OrderedStream(0, maxRangeCount);
+		disorderedDownQueue = new RetransmitQueue();
 		disorderedUpStatus = new DisorderedUpStatus(RudpConstants.RECEIVE_STATUS_MAX_MESSAGE_COUNT);
+		disorderedWriteSequenceId = RudpConstants.INITIAL_SEQUENCE_ID;
+		rttEstimator = new RttEstimator();
+		pmtuDiscoverer = new PmtuDiscoverer(session, rttEstimator);
+		congestionController = new AimdCongestionController();
+		pendingWrites = new ArrayDeque<ChannelBuffer>();
+		disorderedAckRanges = new int[maxRangeCount * 2];
+		ackCumulativeIds = new int[MessageHelper.ORDERED_STREAM_MAX_COUNT];
+		ackOrderedRanges = new int[MessageHelper.ORDERED_STREAM_MAX_COUNT][];
+		ackRangeCounts = new int[MessageHelper.ORDERED_STREAM_MAX_COUNT];
+		ackStreamIndexes = new int[MessageHelper.ORDERED_STREAM_MAX_COUNT];
+		orderedMessages = new ArrayList<ChannelBuffer>();
+		orderedMessageSink = new IOrderedMessageSink() {
+			@Override
+			public void onOrderedMessage(ChannelBuffer message) {
+				orderedMessages.add(message);
+			}
+		};
 		initSessionScanner();
 	}
 	
@@ -50,114 +96,195 @@ public class SessionReliabilityManager {
 		if(session instanceof RudpSession == false) {
 			return;
 		}
-		((RudpSession) session).addTickListener(new Runnable() {
+		((RudpSession) session).addTickListener(new ISessionTickListener() {
 			@Override
-			public void run() {
-				//挂起状态的会话，不检测超时、缓冲区溢出等
+			public long onTick(long currentTime) {
+				//挂起状态的会话，不检测超时、缓冲区溢出等，恢复时会重新滴答
 				if(session.isSuspended()) {
-					return;
+					return Long.MAX_VALUE;
 				}
 				//扫描缓存中的消息，并将超时的消息重发
-				scanTimeoutMessages();
+				long nextExpireTime = scanTimeoutMessages(currentTime);
 				
 				//检测发送缓存是否超过容量，若超过容量，则断连接
+				//读取缓存由接收窗口控制，不会超过容量，不需要检测
 				checkWriteCacheSize();
 				
-				//检测读取缓存是否超过容量，若超过容量，则断连接
-				checkReadCacheSize();
+				//通告过很小的接收窗口，等待它变大
+				if(checkReceiveWindowUpdate()) {
+					nextExpireTime = Math.min(nextExpireTime, currentTime + RudpConstants.SESSION_TICK_INTERVAL);
+				}
+				return nextExpireTime;
 			}
 		});
 	}
 	
+	/*
+	 * 接收窗口因上层缓存紧张而变小后，可能在没有收到任何消息时重新变大（如其他会话释放了封包缓存），
+	 * 远端此时没有在途消息，得不到确认消息，要等到下一次心跳才能继续发送。
+	 * 通告过的窗口为0或者不到最大值的一半时，每次滴答检查一次，窗口翻倍时主动发送扩展确认消息。
+	 * 返回是否需要继续检查。
+	 */
+	private boolean checkReceiveWindowUpdate() {
+		int maxCacheSize = Math.min(RudpConstants.MAX_READ_CACHE_SIZE, RudpConstants.RECEIVE_STATUS_MAX_MESSAGE_COUNT);
+		if(advertisedWindow < 0 || advertisedWindow >= maxCacheSize / 2 || isExtendedAckEnabled() == false) {
+			return false;
+		}
+		int window = getReceiveWindow();
+		if(window > advertisedWindow && (advertisedWindow == 0 || window >= advertisedWindow * 2)) {
+			sendAck();
+		}
+		return advertisedWindow < maxCacheSize / 2;
+	}
+	
 	//检测发送缓存是否超过容量，若超过容量，则断连接
 	private void checkWriteCacheSize() {
-		if(orderedDownMap.size() + disorderedDownMap.size() > RudpConstants.MAX_WRITE_CACHE_SIZE) {
+		if(getInFlightCount() + pendingWrites.size() > RudpConstants.MAX_WRITE_CACHE_SIZE) {
 			RudpLoggers.rootLogger.warn("write cache too large, so close the session, " + session);
 			session.close();
 		}
 	}
 	
-	//检测读取缓存是否超过容量，若超过容量，则断连接
-	private void checkReadCacheSize() {
-		if(orderedUpStatus.getCacheSize() > RudpConstants.MAX_READ_CACHE_SIZE) {
-			RudpLoggers.rootLogger.warn("read cache too large, so close the session, " + session);
-			session.close();
+	//超过初始长度的消息多次超时，可能是路径MTU变小了
+	private void onLargeMessageExpired(MessageEntry messageEntry) {
+		if(messageEntry.expireCount == RudpConstants.PMTU_BLACK_HOLE_EXPIRE_COUNT && 
+				messageEntry.frame.length() > RudpConstants.MESSAGE_MAX_LENGTH) {
+			pmtuDiscoverer.onLargeMessageLost();
 		}
 	}
 	
-	//扫描缓存中的消息，并将超时的消息重发
-	private void scanTimeoutMessages() {
-		long currentTime = System.currentTimeMillis();
+	//扫描缓存中的消息，并将超时的消息重发，返回最早的超时时间
+	//重发队列按超时时间排序，只会访问已经超时的消息
+	private long scanTimeoutMessages(long currentTime) {
+		boolean timeout = false;
+		MessageEntry messageEntry;
 		
 		//有序消息
-		for(MessageEntry messageEntry : orderedDownMap.values()) {
-			long expireTime = messageEntry.expireTime;
-			ChannelBuffer message = messageEntry.message;
-			//超时了
-			if(currentTime >= expireTime) {
+		long nextExpireTime = Long.MAX_VALUE;
+		for (OrderedStream orderedStream : orderedStreams) {
+			if(orderedStream == null) {
+				continue;
+			}
+			RetransmitQueue orderedDownQueue = orderedStream.getDownQueue();
+			while((messageEntry = orderedDownQueue.peekEarliest()) != null && currentTime >= messageEntry.expireTime) {
+				ChannelBuffer message = messageEntry.frame.getBuffer();
 				if(RudpLoggers.reliabilityLogger.isDebugEnabled()) {
 					RudpLoggers.reliabilityLogger.debug("ordered message write timeout, so retransmit, " + ChannelBufferHelper.toString(message));
 				}
-				messageEntry.expireTime = currentTime + RudpConstants.MESSAGE_RETRANSMIT_TIME;
 				messageEntry.expireCount++;
+				onLargeMessageExpired(messageEntry);
+				//指数退避
+				orderedDownQueue.updateExpireTime(messageEntry, currentTime + rttEstimator.getBackoffRto(messageEntry.expireCount));
 				if(messageEntry.expireCount >= RudpConstants.MESSAGE_RETRANSMIT_MAX_COUNT) {
 					RudpLoggers.processorLogger.error(
 							"ordered message retransmit max count has been reached, so suspend the session, session=" + session + 
 							", message=" + ChannelBufferHelper.toString(message));
 					((RudpSession) session).suspend();
-					return;
+					return Long.MAX_VALUE;
 				}
-				DirectWritter.write(session, message);
+				retransmit(messageEntry);
+				timeout = true;
 			}
+			nextExpireTime = Math.min(nextExpireTime, orderedDownQueue.getEarliestExpireTime());
 		}
 		
 		//无序消息
-		for(MessageEntry messageEntry : disorderedDownMap.values()) {
-			long expireTime = messageEntry.expireTime;
-			ChannelBuffer message = messageEntry.message;
-			//超时了
-			if(currentTime >= expireTime) {
-				if(RudpLoggers.reliabilityLogger.isDebugEnabled()) {
-					RudpLoggers.reliabilityLogger.debug("disordered message write timeout, so retransmit, " + ChannelBufferHelper.toString(message));
-				}
-				messageEntry.expireTime = currentTime + RudpConstants.MESSAGE_RETRANSMIT_TIME;
-				messageEntry.expireCount++;
-				if(messageEntry.expireCount >= RudpConstants.MESSAGE_RETRANSMIT_MAX_COUNT) {
-					RudpLoggers.processorLogger.error(
-							"disordered message retransmit max count has been reached, so close the session, session=" + session + 
-							", message=" + ChannelBufferHelper.toString(message));
-					session.close();
-					return;
-				}
-				DirectWritter.write(session, message);
+		while((messageEntry = disorderedDownQueue.peekEarliest()) != null && currentTime >= messageEntry.expireTime) {
+			ChannelBuffer message = messageEntry.frame.getBuffer();
+			if(RudpLoggers.reliabilityLogger.isDebugEnabled()) {
+				RudpLoggers.reliabilityLogger.debug("disordered message write timeout, so retransmit, " + ChannelBufferHelper.toString(message));
 			}
+			messageEntry.expireCount++;
+			onLargeMessageExpired(messageEntry);
+			//指数退避
+			disorderedDownQueue.updateExpireTime(messageEntry, currentTime + rttEstimator.getBackoffRto(messageEntry.expireCount));
+			if(messageEntry.expireCount >= RudpConstants.MESSAGE_RETRANSMIT_MAX_COUNT) {
+				RudpLoggers.processorLogger.error(
+						"disordered message retransmit max count has been reached, so close the session, session=" + session + 
+						", message=" + ChannelBufferHelper.toString(message));
+				session.close();
+				return Long.MAX_VALUE;
+			}
+			retransmit(messageEntry);
+			timeout = true;
 		}
 		
+		//一次扫描中的超时只算作一次拥塞事件
+		if(timeout) {
+			congestionController.onLoss(true);
+		}
+		return Math.min(nextExpireTime, disorderedDownQueue.getEarliestExpireTime());
 	}
 
 	/**
 	 * 当收到远端可靠且连续消息时的回调。
 	 * 
 	 * @param message
-	 * @return
+	 * @return 变得连续、可以继续传递的消息：没有时为null，只有一条时为该消息，有多条时为消息数组
 	 */
-	public ChannelBuffer[] onOrderedReceived(ChannelBuffer message) {
-		int sequenceId = MessageHelper.getSequenceId(message);
-		OrderedFeedback feedback = orderedUpStatus.onMessageReceived(sequenceId, message);
-		if(feedback == null) {
+	public Object onOrderedReceived(ChannelBuffer message) {
+		receiveOrdered(message);
+		
+		//通常每次只有一条消息变得连续，不需要分配数组
+		int count = orderedMessages.size();
+		if(count == 0) {
 			return null;
 		}
+		Object result = count == 1 ? orderedMessages.get(0) : orderedMessages.toArray();
+		orderedMessages.clear();
+		return result;
+	}
+	
+	/**
+	 * 当收到远端可靠且连续消息时的回调，变得连续的消息依次通过上下文传递，不分配数组。
+	 * 
+	 * @param message
+	 * @param ctx 传递给下一个Filter的上下文
+	 */
+	public void onOrderedReceived(ChannelBuffer message, IRudpFilterContext ctx) {
+		receiveOrdered(message);
 		
+		for (int i = 0; i < orderedMessages.size(); i++) {
+			ctx.fireMessage(orderedMessages.get(i));
+		}
+		orderedMessages.clear();
+	}
+	
+	//把收到的可靠且连续消息交给有序流，变得连续的消息收集到orderedMessages中
+	private void receiveOrdered(ChannelBuffer message) {
+		lastReliableReceiveTime = System.currentTimeMillis();
+		int streamId = MessageHelper.getOrderedStreamId(message);
+		if(streamId >= receivedOrderedStreamCount) {
+			receivedOrderedStreamCount = streamId + 1;
+		}
+		OrderedStream orderedStream = getOrderedStream(streamId);
+		int sequenceId = MessageHelper.getSequenceId(message);
+		OrderedFeedback feedback = orderedStream.getUpStatus().onMessageReceived(sequenceId, message, orderedMessageSink);
+		if(feedback != null) {
+			onOrderedFeedback(orderedStream, feedback);
+		}
+	}
+	
+	//收到可靠且连续消息后，需要向远端反馈
+	private void onOrderedFeedback(OrderedStream orderedStream, OrderedFeedback feedback) {
 		int feedbackSequenceId = feedback.getSequenceId();
 		short feedbackBitfields = feedback.getBitFields();
-		ChannelBuffer[] msgArray = feedback.getMsgArray();
 		
 		//需要向远端反馈心跳
-		if(feedbackSequenceId != 0) {
-			MessageHelper.sendHeartbeat(session, feedbackSequenceId, feedbackBitfields, 0, (short) 0);
+		//远端支持扩展确认时，一次反馈整个接收窗口；不在接收窗口中的老消息，仍然通过心跳反馈
+		//心跳只能反馈流0，远端使用了其他有序流，说明远端一定支持扩展确认
+		//任何序号都是合法的，以bitfield是否为0判断有没有需要反馈的消息
+		if(feedbackBitfields != 0) {
+			if(orderedStream.getStreamId() != 0) {
+				sendAck();
+			}
+			else if(isExtendedAckEnabled() && orderedStream.getUpStatus().isInWindow(feedbackSequenceId)) {
+				sendAck();
+			}
+			else {
+				MessageHelper.sendHeartbeat(session, feedbackSequenceId, feedbackBitfields, 0, (short) 0);
+			}
 		}
-		
-		return msgArray;
 	}
 	
 	/**
@@ -167,6 +294,7 @@ public class SessionReliabilityManager {
 	 * @return
 	 */
 	public ChannelBuffer onDisorderedReceived(ChannelBuffer message) {
+		lastReliableReceiveTime = System.currentTimeMillis();
 		int sequenceId = MessageHelper.getSequenceId(message);
 		DisorderedFeedback feedback = disorderedUpStatus.onMessageReceived(sequenceId);
 		if(feedback == null) {
@@ -177,8 +305,15 @@ public class SessionReliabilityManager {
 		short feedbackBitfields = feedback.getBitFields();
 
 		//需要向远端反馈心跳
-		if(feedbackSequenceId != 0) {
-			MessageHelper.sendHeartbeat(session, 0, (short) 0, feedbackSequenceId, feedbackBitfields);
+		//远端支持扩展确认时，一次反馈整个接收窗口；不在接收窗口中的老消息，仍然通过心跳反馈
+		//任何序号都是合法的，以bitfield是否为0判断有没有需要反馈的消息
+		if(feedbackBitfields != 0) {
+			if(isExtendedAckEnabled() && disorderedUpStatus.isInWindow(feedbackSequenceId)) {
+				sendAck();
+			}
+			else {
+				MessageHelper.sendHeartbeat(session, 0, (short) 0, feedbackSequenceId, feedbackBitfields);
+			}
 		}
 		
 		//重复消息，不能跑到应用层
@@ -198,40 +333,433 @@ public class SessionReliabilityManager {
 	 * @param heartbeat
 	 */
 	public void onHeartbeat(ChannelBuffer heartbeat) {
-		int orderedSequenceId = heartbeat.getInt(1);
-		short orderedBitfields = heartbeat.getShort(5);
-		int disorderedSequenceId = heartbeat.getInt(7);
-		short disorderedBitfields = heartbeat.getShort(11);
+		int readerIndex = heartbeat.readerIndex();
+		int orderedSequenceId = heartbeat.getInt(readerIndex + 1);
+		short orderedBitfields = heartbeat.getShort(readerIndex + 5);
+		int disorderedSequenceId = heartbeat.getInt(readerIndex + 7);
+		short disorderedBitfields = heartbeat.getShort(readerIndex + 11);
+		onPeerCapabilities(MessageHelper.getCapabilities(heartbeat));
 		
-		onOrderedHearbeat(orderedSequenceId, orderedBitfields);
-		onDisorderedHearbeat(disorderedSequenceId, disorderedBitfields);
+		//心跳不携带确认延迟，样本中包含远端的延迟确认，RTO本身已经留出了最大确认延迟
+		latestAckedSendTime = -1;
+		int ackedCount = onOrderedHearbeat(orderedSequenceId, orderedBitfields);
+		ackedCount += onDisorderedHearbeat(disorderedSequenceId, disorderedBitfields);
+		onAcked(ackedCount, 0);
 	}
 	
-	//当收到远端可靠且连续消息的心跳时的回调
-	private void onOrderedHearbeat(int sequenceId, short bitfields) {
-		if(sequenceId <= 0) {
+	/**
+	 * 收到捎带了确认的数据消息时的回调。<br>
+	 * 处理其中的确认，并把消息还原为普通的数据消息（去掉标记和末尾的确认）。
+	 * 
+	 * @param message
+	 */
+	public void onPiggybackAck(ChannelBuffer message) {
+		int readerIndex = message.readerIndex();
+		int ackIndex = message.writerIndex() - MessageHelper.PIGGYBACK_ACK_LENGTH;
+		int orderedSequenceId = message.getInt(ackIndex);
+		short orderedBitfields = message.getShort(ackIndex + 4);
+		int disorderedSequenceId = message.getInt(ackIndex + 6);
+		short disorderedBitfields = message.getShort(ackIndex + 10);
+		peerReceiveWindow = message.getUnsignedShort(ackIndex + 12);
+		int ackDelay = message.getUnsignedShort(ackIndex + 14);
+		message.writerIndex(ackIndex);
+		message.setByte(readerIndex, message.getByte(readerIndex) & ~MessageHelper.PIGGYBACK_ACK_FLAG);
+		
+		latestAckedSendTime = -1;
+		int ackedCount = onOrderedHearbeat(orderedSequenceId, orderedBitfields);
+		ackedCount += onDisorderedHearbeat(disorderedSequenceId, disorderedBitfields);
+		onAcked(ackedCount, ackDelay);
+	}
+	
+	/**
+	 * 在发出的数据消息上捎带确认。<br>
+	 * 两端都支持捎带确认，且有尚未反馈的消息时，把当前的接收状态附加在消息末尾，
+	 * 并记为已经反馈，这样在反馈等待时间内有数据发出时，就不需要再单独发送心跳。
+	 * 
+	 * @param message 数据消息
+	 * @return 实际要发送的消息
+	 */
+	public ChannelBuffer piggybackAck(ChannelBuffer message) {
+		if(isPiggybackAckEnabled() == false || 
+				message.readableBytes() + MessageHelper.PIGGYBACK_ACK_LENGTH > MessageHelper.getMessageMaxLength(session)) {
+			return message;
+		}
+		//只捎带流0的确认，其他有序流通过扩展确认消息反馈
+		OrderedFeedback orderedFeedback = orderedStreams[0].getUpStatus().getFeedback();
+		DisorderedFeedback disorderedFeedback = disorderedUpStatus.getFeedback();
+		//没有需要反馈的消息
+		if(orderedFeedback.getBitFields() == 0 && disorderedFeedback.getBitFields() == 0) {
+			return message;
+		}
+		ChannelBuffer piggyback = MessageHelper.getPiggybackAck(
+				message, 
+				orderedFeedback.getSequenceId(), orderedFeedback.getBitFields(), 
+				disorderedFeedback.getSequenceId(), disorderedFeedback.getBitFields(), 
+				advertiseReceiveWindow(), getAckDelay());
+		//推迟单独的心跳
+		if(session instanceof RudpSession) {
+			((RudpSession) session).onHeartbeatSent();
+		}
+		return piggyback;
+	}
+	
+	/**
+	 * 收到扩展确认消息时的回调
+	 * 
+	 * @param ack
+	 */
+	public void onAck(ChannelBuffer ack) {
+		int readerIndex = ack.readerIndex();
+		int orderedIndex = readerIndex + 9;
+		int disorderedIndex = getAckRangesEndIndex(ack, orderedIndex);
+		int streamIndex = getAckRangesEndIndex(ack, disorderedIndex);
+		//其他有序流的确认
+		int streamCount = 1;
+		if(streamIndex >= 0 && streamIndex < ack.writerIndex()) {
+			streamCount = ack.getUnsignedByte(streamIndex);
+			streamIndex++;
+			for (int i = 1; i < streamCount && i < ackStreamIndexes.length; i++) {
+				ackStreamIndexes[i] = streamIndex;
+				streamIndex = getAckRangesEndIndex(ack, streamIndex);
+			}
+		}
+		if(streamIndex < 0 || streamCount > ackStreamIndexes.length) {
+			RudpLoggers.reliabilityLogger.warn("malformed ack received from " + session.getRemoteAddress() + ", " + ChannelBufferHelper.toString(ack));
 			return;
 		}
-		List<Integer> sequenceIdList = getFeedbackSequenceIds(sequenceId, bitfields);
+		onPeerCapabilities(MessageHelper.getCapabilities(ack));
+		peerReceiveWindow = ack.getUnsignedShort(readerIndex + 5);
+		int ackDelay = ack.getUnsignedShort(readerIndex + 7);
+		
+		long currentTime = System.currentTimeMillis();
+		latestAckedSendTime = -1;
+		int ackedCount = onAckRanges(orderedStreams[0].getDownQueue(), ack, orderedIndex, currentTime);
+		ackedCount += onAckRanges(disorderedDownQueue, ack, disorderedIndex, currentTime);
+		for (int i = 1; i < streamCount; i++) {
+			//本端没有使用过的有序流，没有需要确认的消息
+			if(orderedStreams[i] != null) {
+				ackedCount += onAckRanges(orderedStreams[i].getDownQueue(), ack, ackStreamIndexes[i], currentTime);
+			}
+		}
+		onAcked(ackedCount, ackDelay);
+	}
+	
+	//获取扩展确认消息中一种消息的确认的结束位置，超出消息长度时返回-1
+	private int getAckRangesEndIndex(ChannelBuffer ack, int index) {
+		if(index < 0 || index + 5 > ack.writerIndex()) {
+			return -1;
+		}
+		int endIndex = index + 5 + ack.getUnsignedByte(index + 4) * MessageHelper.ACK_RANGE_LENGTH;
+		return endIndex > ack.writerIndex() ? -1 : endIndex;
+	}
+	
+	//有消息被确认，或者收到了远端接收窗口，拥塞窗口和接收窗口可能变大，尝试发送等待中的消息
+	private void onAcked(int ackedCount, int ackDelay) {
+		onRttSample(ackDelay);
+		if(ackedCount > 0) {
+			congestionController.onAcked(ackedCount, lastRttSample);
+		}
+		flushPendingWrites();
+	}
+	
+	/*
+	 * 处理扩展确认消息中一种消息的确认：
+	 * 1、移除累计确认序号及之前的所有消息；
+	 * 2、移除各个区段中的消息；
+	 * 3、区段之间的空洞，若其后已确认的消息数量达到阈值，则快速重发。
+	 * 返回新确认的消息数量。
+	 */
+	private int onAckRanges(RetransmitQueue downQueue, ChannelBuffer ack, int index, long currentTime) {
+		int cumulativeId = ack.getInt(index);
+		int rangeCount = ack.getUnsignedByte(index + 4);
+		int rangeIndex = index + 5;
+		int ackedCount = 0;
+		
+		//累计确认
+		while(downQueue.isEmpty() == false && SequenceHelper.isAfter(downQueue.getLowSequenceId(), cumulativeId) == false) {
+			if(onMessageAcked(downQueue.remove(downQueue.getLowSequenceId()))) {
+				ackedCount++;
+			}
+		}
+		
+		//选择确认
+		int rangeAckedCount = 0;
+		for (int i = 0; i < rangeCount; i++) {
+			int startId = ack.getInt(rangeIndex + i * MessageHelper.ACK_RANGE_LENGTH);
+			int length = ack.getUnsignedShort(rangeIndex + i * MessageHelper.ACK_RANGE_LENGTH + 4);
+			for (int j = 0; j < length; j++) {
+				if(onMessageAcked(downQueue.remove(startId + j))) {
+					ackedCount++;
+				}
+			}
+			rangeAckedCount += length;
+		}
 		if(RudpLoggers.reliabilityLogger.isDebugEnabled()) {
-			RudpLoggers.reliabilityLogger.debug(session.getRemoteAddress() + " has received ordered messages: " + sequenceIdList);
+			RudpLoggers.reliabilityLogger.debug(session.getRemoteAddress() + " has acked messages up to " + cumulativeId + 
+					" and " + rangeAckedCount + " messages in " + rangeCount + " ranges");
+		}
+		
+		//快速重发区段之间的空洞，空洞之后已确认的消息数量为其后所有区段的长度之和
+		int threshold = RudpConstants.MESSAGE_FAST_RETRANSMIT_THRESHOLD;
+		if(threshold <= 0 || downQueue.isEmpty()) {
+			return ackedCount;
 		}
-		for (Integer id : sequenceIdList) {
-			orderedDownMap.remove(id);
+		boolean retransmitted = false;
+		int holeStartId = cumulativeId + 1;
+		for (int i = 0; i < rangeCount && rangeAckedCount >= threshold; i++) {
+			int startId = ack.getInt(rangeIndex + i * MessageHelper.ACK_RANGE_LENGTH);
+			int length = ack.getUnsignedShort(rangeIndex + i * MessageHelper.ACK_RANGE_LENGTH + 4);
+			int fromId = SequenceHelper.max(holeStartId, downQueue.getLowSequenceId());
+			int toId = SequenceHelper.min(startId - 1, downQueue.getHighSequenceId());
+			for (int id = fromId; SequenceHelper.compare(id, toId) <= 0; id++) {
+				if(fastRetransmit(downQueue, id, currentTime)) {
+					retransmitted = true;
+				}
+			}
+			holeStartId = startId + length;
+			rangeAckedCount -= length;
 		}
+		if(retransmitted) {
+			onFastRetransmitted(currentTime);
+		}
+		return ackedCount;
 	}
 	
-	//当收到远端可靠但不连续消息的心跳时的回调
-	private void onDisorderedHearbeat(int sequenceId, short bitfields) {
-		if(sequenceId <= 0) {
+	//收到远端能力
+	private void onPeerCapabilities(int capabilities) {
+		if(capabilities == RudpCapabilities.UNKNOWN || capabilities == peerCapabilities) {
 			return;
 		}
-		List<Integer> sequenceIdList = getFeedbackSequenceIds(sequenceId, bitfields);
+		if(RudpLoggers.reliabilityLogger.isInfoEnabled()) {
+			RudpLoggers.reliabilityLogger.info("capabilities of " + session.getRemoteAddress() + ": " + Integer.toHexString(capabilities));
+		}
+		peerCapabilities = capabilities;
+		if(session instanceof RudpSession) {
+			((RudpSession) session).setBundleEnabled(RudpCapabilities.isSupported(peerCapabilities, RudpCapabilities.BUNDLE) && 
+					RudpCapabilities.isSupported(RudpCapabilities.getLocalCapabilities(), RudpCapabilities.BUNDLE));
+		}
+		if(RudpCapabilities.isSupported(peerCapabilities, RudpCapabilities.PMTU_DISCOVERY) && 
+				RudpCapabilities.isSupported(RudpCapabilities.getLocalCapabilities(), RudpCapabilities.PMTU_DISCOVERY)) {
+			pmtuDiscoverer.start();
+		}
+	}
+	
+	/**
+	 * 是否使用扩展确认消息（两端都支持时才使用）。
+	 * 
+	 * @return true，使用扩展确认消息；false，使用心跳消息
+	 */
+	public boolean isExtendedAckEnabled() {
+		return RudpCapabilities.isSupported(peerCapabilities, RudpCapabilities.EXTENDED_ACK) && 
+				RudpCapabilities.isSupported(RudpCapabilities.getLocalCapabilities(), RudpCapabilities.EXTENDED_ACK);
+	}
+	
+	/**
+	 * 是否在发出的数据消息上捎带确认（两端都支持时才使用）。
+	 * 
+	 * @return true，捎带确认；false，不捎带确认
+	 */
+	public boolean isPiggybackAckEnabled() {
+		return RudpCapabilities.isSupported(peerCapabilities, RudpCapabilities.PIGGYBACK_ACK) && 
+				RudpCapabilities.isSupported(RudpCapabilities.getLocalCapabilities(), RudpCapabilities.PIGGYBACK_ACK);
+	}
+	
+	/**
+	 * 获取远端接收窗口。
+	 * 
+	 * @return 远端还能缓存的有序消息和封包数量；尚未得知时返回-1
+	 */
+	public int getPeerReceiveWindow() {
+		return peerReceiveWindow;
+	}
+	
+	//获取本端接收窗口，即乱序缓存还能容纳的有序消息数量，所有有序流共用；上层的缓存紧张时，不超过限制者给出的上限
+	private int getReceiveWindow() {
+		int maxCacheSize = Math.min(RudpConstants.MAX_READ_CACHE_SIZE, RudpConstants.RECEIVE_STATUS_MAX_MESSAGE_COUNT);
+		int window = maxCacheSize;
+		for (OrderedStream orderedStream : orderedStreams) {
+			if(orderedStream != null) {
+				window -= orderedStream.getUpStatus().getCacheSize();
+			}
+		}
+		if(receiveWindowLimiter != null) {
+			window = Math.min(window, receiveWindowLimiter.getReceiveWindowLimit());
+		}
+		return Math.min(Math.max(window, 0), 0xFFFF);
+	}
+	
+	//获取要通告给远端的接收窗口，并记录下来
+	private int advertiseReceiveWindow() {
+		advertisedWindow = getReceiveWindow();
+		return advertisedWindow;
+	}
+	
+	/**
+	 * 是否使用多个有序流（两端都支持多个有序流和扩展确认消息时才使用）。
+	 * 
+	 * @return true，使用多个有序流；false，所有有序消息都在流0中发送
+	 */
+	public boolean isOrderedStreamsEnabled() {
+		return isExtendedAckEnabled() && 
+				RudpCapabilities.isSupported(peerCapabilities, RudpCapabilities.ORDERED_STREAMS) && 
+				RudpCapabilities.isSupported(RudpCapabilities.getLocalCapabilities(), RudpCapabilities.ORDERED_STREAMS);
+	}
+	
+	//获取有序流，不存在则创建
+	private OrderedStream getOrderedStream(int streamId) {
+		OrderedStream orderedStream = orderedStreams[streamId];
+		if(orderedStream == null) {
+			orderedStream = new OrderedStream(streamId, disorderedAckRanges.length / 2);
+			orderedStreams[streamId] = orderedStream;
+		}
+		return orderedStream;
+	}
+	
+	/**
+	 * 获取远端能力。
+	 * 
+	 * @return 远端能力；尚未得知时返回{@link RudpCapabilities#UNKNOWN}
+	 */
+	public int getPeerCapabilities() {
+		return peerCapabilities;
+	}
+	
+	//当收到远端可靠且连续消息的心跳时的回调，返回新确认的消息数量
+	private int onOrderedHearbeat(int sequenceId, short bitfields) {
+		//任何序号都是合法的，bitfield为0表示没有反馈
+		if(bitfields == 0) {
+			return 0;
+		}
 		if(RudpLoggers.reliabilityLogger.isDebugEnabled()) {
-			RudpLoggers.reliabilityLogger.debug(session.getRemoteAddress() + " has received disordered messages: " + sequenceIdList);
+			RudpLoggers.reliabilityLogger.debug(session.getRemoteAddress() + " has received ordered messages: " + 
+					getFeedbackSequenceIds(sequenceId, bitfields));
 		}
-		for (Integer id : sequenceIdList) {
-			disorderedDownMap.remove(id);
+		return onFeedback(orderedStreams[0].getDownQueue(), sequenceId, bitfields);
+	}
+	
+	//当收到远端可靠但不连续消息的心跳时的回调，返回新确认的消息数量
+	private int onDisorderedHearbeat(int sequenceId, short bitfields) {
+		//任何序号都是合法的，bitfield为0表示没有反馈
+		if(bitfields == 0) {
+			return 0;
+		}
+		if(RudpLoggers.reliabilityLogger.isDebugEnabled()) {
+			RudpLoggers.reliabilityLogger.debug(session.getRemoteAddress() + " has received disordered messages: " + 
+					getFeedbackSequenceIds(sequenceId, bitfields));
+		}
+		return onFeedback(disorderedDownQueue, sequenceId, bitfields);
+	}
+	
+	//从重发队列中移除反馈中已确认的消息，并检测是否需要快速重发，返回新确认的消息数量
+	private int onFeedback(RetransmitQueue downQueue, int sequenceId, short bitfields) {
+		long currentTime = System.currentTimeMillis();
+		int ackedCount = 0;
+		for (int i = 0; i < 16; i++) {
+			if((bitfields & (1 << i)) != 0 && onMessageAcked(downQueue.remove(sequenceId - i))) {
+				ackedCount++;
+			}
+		}
+		fastRetransmit(downQueue, sequenceId, bitfields, currentTime);
+		return ackedCount;
+	}
+	
+	//消息被远端确认后的回调，记录未重发过的消息中最晚的发送时间用于测量RTT，返回是否是新确认的消息
+	private boolean onMessageAcked(MessageEntry messageEntry) {
+		if(messageEntry == null) {
+			return false;
+		}
+		messageEntry.frame.release();
+		if(messageEntry.expireCount == 0 && messageEntry.fastRetransmitted == false && messageEntry.sendTime > latestAckedSendTime) {
+			latestAckedSendTime = messageEntry.sendTime;
+		}
+		return true;
+	}
+	
+	/*
+	 * 用一次确认中最晚发送的消息测量RTT，扣除远端的确认延迟。
+	 * 确认延迟从远端收到最近一条可靠消息时算起，不超过这条消息实际等待的时间，扣除后的样本不会小于网络往返时间。
+	 */
+	private void onRttSample(int ackDelay) {
+		if(latestAckedSendTime < 0) {
+			lastRttSample = -1;
+			return;
+		}
+		lastRttSample = Math.max(System.currentTimeMillis() - latestAckedSendTime - ackDelay, 0);
+		rttEstimator.onSample(lastRttSample);
+	}
+	
+	//获取确认延迟，即收到最近一条可靠消息到现在经过的时间，毫秒
+	private int getAckDelay() {
+		if(lastReliableReceiveTime == 0) {
+			return 0;
+		}
+		return (int) Math.min(Math.max(System.currentTimeMillis() - lastReliableReceiveTime, 0), 0xFFFF);
+	}
+	
+	/*
+	 * 快速重发：
+	 * 反馈的第i位对应消息sequenceId - i，从高序号往低序号看，
+	 * 若某条消息未被确认，而它之后已经有不少于阈值数量的消息被确认，则认为它已经丢失，立即重发，不再等待超时。
+	 * 每条消息最多快速重发一次，之后仍由超时重发兜底。
+	 */
+	private void fastRetransmit(RetransmitQueue downQueue, int sequenceId, short bitfields, long currentTime) {
+		int threshold = RudpConstants.MESSAGE_FAST_RETRANSMIT_THRESHOLD;
+		if(threshold <= 0) {
+			return;
+		}
+		int ackedAfterCount = 0;
+		boolean retransmitted = false;
+		for (int i = 0; i < 16; i++) {
+			if((bitfields & (1 << i)) != 0) {
+				ackedAfterCount++;
+			}
+			else if(ackedAfterCount >= threshold && fastRetransmit(downQueue, sequenceId - i, currentTime)) {
+				retransmitted = true;
+			}
+		}
+		if(retransmitted) {
+			onFastRetransmitted(currentTime);
+		}
+	}
+	
+	//快速重发一条消息，返回是否重发了
+	private boolean fastRetransmit(RetransmitQueue downQueue, int sequenceId, long currentTime) {
+		MessageEntry messageEntry = downQueue.get(sequenceId);
+		if(messageEntry == null || messageEntry.fastRetransmitted) {
+			return false;
+		}
+		if(RudpLoggers.reliabilityLogger.isDebugEnabled()) {
+			RudpLoggers.reliabilityLogger.debug("message lost, so fast retransmit, " + ChannelBufferHelper.toString(messageEntry.frame.getBuffer()));
+		}
+		messageEntry.fastRetransmitted = true;
+		//重新计时，避免紧接着又超时重发
+		downQueue.updateExpireTime(messageEntry, currentTime + rttEstimator.getBackoffRto(messageEntry.expireCount));
+		retransmit(messageEntry);
+		return true;
+	}
+	
+	//重发一条消息：发送重发帧的只读视图，不复制消息，发送期间持有重发帧的一个引用
+	private void retransmit(MessageEntry messageEntry) {
+		RetransmitFrame frame = messageEntry.frame;
+		frame.retain();
+		ChannelFuture future = DirectWritter.write(session, frame.duplicate());
+		//已经复制到合并消息中，或者没有发送
+		if(future == null) {
+			frame.release();
+			return;
+		}
+		future.addListener(frame);
+	}
+	
+	//发生了快速重发，每个往返时间内最多通知拥塞控制器一次，同一批丢包只减小一次窗口
+	private void onFastRetransmitted(long currentTime) {
+		long rtt = rttEstimator.getRtt();
+		if(rtt < 0) {
+			rtt = rttEstimator.getRto();
+		}
+		if(currentTime - lastFastLossTime >= rtt) {
+			lastFastLossTime = currentTime;
+			congestionController.onLoss(false);
 		}
 	}
 	
@@ -247,6 +775,94 @@ public class SessionReliabilityManager {
 		return result;
 	}
 	
+	/**
+	 * 发送可靠消息时的回调。<br>
+	 * 若拥塞窗口未满，且有序消息未超出远端接收窗口，则为消息分配序号并加入重发缓冲区，消息可以立即发送；
+	 * 否则消息进入发送队列，等远端确认后由本管理器发送。
+	 * 
+	 * @param message 可靠且有序或可靠但无序的消息
+	 * @return true，可以立即发送；false，已进入发送队列
+	 */
+	public boolean onReliableWrite(ChannelBuffer message) {
+		//已经有消息在排队，必须排在后面，保证序号的分配顺序
+		if(pendingWrites.isEmpty() == false || canWrite(message) == false) {
+			pendingWrites.add(message);
+			return false;
+		}
+		assignAndCache(message);
+		return true;
+	}
+	
+	//为消息分配序号并加入重发缓冲区
+	private void assignAndCache(ChannelBuffer message) {
+		if(MessageHelper.isReliableOrdered(message)) {
+			onOrderedWrite(message);
+		}
+		else {
+			onDisorderedWrite(message);
+		}
+	}
+	
+	//在拥塞窗口和远端接收窗口允许的范围内，发送等待中的消息
+	private void flushPendingWrites() {
+		while(pendingWrites.isEmpty() == false && canWrite(pendingWrites.peek())) {
+			ChannelBuffer message = pendingWrites.poll();
+			assignAndCache(message);
+			//经过Filter发送的消息由下层Filter（如前向纠错）处理，这里也交给它们
+			if(dataMessageWriter != null) {
+				dataMessageWriter.write(piggybackAck(message));
+			}
+			else {
+				DirectWritter.write(session, piggybackAck(message));
+			}
+			if(RudpLoggers.businessDownLogger.isDebugEnabled()) {
+				RudpLoggers.businessDownLogger.debug(
+						"sent pending business message to " + session.getRemoteAddress() + ", msg=" + ChannelBufferHelper.toString(message));
+			}
+		}
+	}
+	
+	//获取在途（已发送但尚未确认）的可靠消息数量
+	private int getInFlightCount() {
+		return getOrderedInFlightCount() + disorderedDownQueue.size();
+	}
+	
+	//获取在途的有序消息数量，所有有序流之和
+	private int getOrderedInFlightCount() {
+		int count = 0;
+		for (OrderedStream orderedStream : orderedStreams) {
+			if(orderedStream != null) {
+				count += orderedStream.getDownQueue().size();
+			}
+		}
+		return count;
+	}
+	
+	/*
+	 * 消息能否立即发送：在途消息不超过拥塞窗口，在途的有序消息不超过远端接收窗口。
+	 * 没有拆分的无序消息收到后立即交付，不占用远端的缓存，所以只受拥塞窗口限制。
+	 * 封包要在远端缓存到收齐为止：普通封包在发送第一个封包时为整个消息预留接收窗口，之后的封包不再受接收窗口限制，
+	 * 以免各自收了一部分的消息占满远端的缓存而互相等待；扩展封包只缓存乱序到达的部分，每个封包都不超过接收窗口。
+	 */
+	private boolean canWrite(ChannelBuffer message) {
+		int inFlightCount = getInFlightCount();
+		if(inFlightCount >= congestionController.getWindow()) {
+			return false;
+		}
+		if(peerReceiveWindow < 0) {
+			return true;
+		}
+		boolean extended = MessageHelper.isExtendedFragment(message);
+		if(extended == false && MessageHelper.getFragmentCount(message) > 0) {
+			return MessageHelper.getFragmentIndex(message) > 0 || 
+					inFlightCount + MessageHelper.getFragmentCount(message) <= peerReceiveWindow;
+		}
+		if(MessageHelper.isReliableOrdered(message) && getOrderedInFlightCount() >= peerReceiveWindow) {
+			return false;
+		}
+		return extended == false || inFlightCount < peerReceiveWindow;
+	}
+	
 	/**
 	 * 发送有序消息时的回调。
 	 * 
@@ -255,20 +871,42 @@ public class SessionReliabilityManager {
 	public void onOrderedWrite(ChannelBuffer message) {
 		/*
 		 * 过程：
-		 * 1、读取消息的序号，如果不是0，则说明是重发的数据；
-		 * 2、如有必要（重发数据无需更新消息序号），则更新消息序号；
-		 * 3、将消息加入到重发缓冲区。
+		 * 1、确定有序流：得知远端支持多个有序流之前，其他流的消息也在流0中发送，
+		 *   之后要等这些消息都被确认，才能在各自的流中发送，保证流内的顺序；
+		 *   一组封包要在同一个流中连续编号，后续封包沿用第一个封包所在的流；
+		 * 2、在有序流中分配消息序号，序号超过Integer.MAX_VALUE后自然回绕，0也是合法的序号
+		 *   （重发的消息直接由DirectWritter写出，不会再经过这里）；
+		 * 3、将消息加入到有序流的重发缓冲区。
 		 */
-		int sequenceId = MessageHelper.getSequenceId(message);
-		if(sequenceId == 0) {
-			//更新消息序号
-			sequenceId = orderedWriteSequenceId++;
-			MessageHelper.setSequenceId(message, sequenceId);
+		OrderedStream orderedStream = getOrderedStream(MessageHelper.getOrderedStreamId(message));
+		OrderedStream defaultStream = orderedStreams[0];
+		int sequenceId;
+		boolean fallback = false;
+		if(orderedStream != defaultStream) {
+			if(MessageHelper.isFollowingFragment(message)) {
+				fallback = orderedStream.isFragmentFallback();
+			}
+			else {
+				fallback = isOrderedStreamsEnabled() == false || orderedStream.isFallbackAcked(defaultStream) == false;
+				orderedStream.setFragmentFallback(fallback);
+			}
+		}
+		if(fallback) {
+			MessageHelper.setOrderedStreamId(message, 0);
+			sequenceId = defaultStream.nextWriteSequenceId();
+			orderedStream.onFallback(sequenceId);
+			orderedStream = defaultStream;
+		}
+		else {
+			sequenceId = orderedStream.nextWriteSequenceId();
 		}
+		MessageHelper.setSequenceId(message, sequenceId);
 		
 		//将消息加入到重发缓冲区
-		long expireTime = System.currentTimeMillis() + RudpConstants.MESSAGE_RETRANSMIT_TIME;
-		orderedDownMap.put(sequenceId, new MessageEntry(message, expireTime));
+		long currentTime = System.currentTimeMillis();
+		long expireTime = currentTime + rttEstimator.getRto();
+		orderedStream.getDownQueue().add(sequenceId, RetransmitFramePool.getInstance().allocate(message), currentTime, expireTime);
+		requestTick(expireTime);
 	}
 	
 	/**
@@ -279,20 +917,121 @@ public class SessionReliabilityManager {
 	public void onDisorderedWrite(ChannelBuffer message) {
 		/*
 		 * 过程：
-		 * 1、读取消息的序号，如果不是0，则说明是重发的数据；
-		 * 2、如有必要（重发数据无需更新消息序号），则更新消息序号；
-		 * 3、将消息加入到重发缓冲区。
+		 * 1、分配消息序号，序号超过Integer.MAX_VALUE后自然回绕，0也是合法的序号
+		 *   （重发的消息直接由DirectWritter写出，不会再经过这里）；
+		 * 2、将消息加入到重发缓冲区。
 		 */
-		int sequenceId = MessageHelper.getSequenceId(message);
-		if(sequenceId == 0) {
-			//更新消息序号
-			sequenceId = disorderedWriteSequenceId++;
-			MessageHelper.setSequenceId(message, sequenceId);
-		}
+		int sequenceId = disorderedWriteSequenceId++;
+		MessageHelper.setSequenceId(message, sequenceId);
 		
 		//将消息加入到重发缓冲区
-		long expireTime = System.currentTimeMillis() + RudpConstants.MESSAGE_RETRANSMIT_TIME;
-		disorderedDownMap.put(sequenceId, new MessageEntry(message, expireTime));
+		long currentTime = System.currentTimeMillis();
+		long expireTime = currentTime + rttEstimator.getRto();
+		disorderedDownQueue.add(sequenceId, RetransmitFramePool.getInstance().allocate(message), currentTime, expireTime);
+		requestTick(expireTime);
+	}
+	
+	/**
+	 * 清空所有发送缓存，释放重发帧，会话关闭时调用。
+	 */
+	public void clear() {
+		for (OrderedStream orderedStream : orderedStreams) {
+			if(orderedStream != null) {
+				orderedStream.getDownQueue().clear();
+			}
+		}
+		disorderedDownQueue.clear();
+		pendingWrites.clear();
+	}
+	
+	//登记重发超时时间
+	private void requestTick(long expireTime) {
+		if(session instanceof RudpSession) {
+			((RudpSession) session).requestTick(expireTime);
+		}
+	}
+	
+	/**
+	 * 获取拥塞控制器。
+	 * 
+	 * @return 拥塞控制器
+	 */
+	public ICongestionController getCongestionController() {
+		return congestionController;
+	}
+	
+	/**
+	 * 替换拥塞控制器。
+	 * 应当在会话打开时（如{@link com.ddpie.rudp.filter.IRudpFilter#sessionOpened(IRudpSession)}中）调用。
+	 * 
+	 * @param congestionController 拥塞控制器
+	 */
+	public void setCongestionController(ICongestionController congestionController) {
+		if(congestionController == null) {
+			throw new IllegalArgumentException("congestionController cannot be null");
+		}
+		this.congestionController = congestionController;
+	}
+	
+	/**
+	 * 设置接收窗口的限制者。
+	 * 应当在会话打开时（如{@link com.ddpie.rudp.filter.IRudpFilter#sessionOpened(IRudpSession)}中）调用。
+	 * 
+	 * @param receiveWindowLimiter 接收窗口的限制者，为null时不限制
+	 */
+	public void setReceiveWindowLimiter(IReceiveWindowLimiter receiveWindowLimiter) {
+		this.receiveWindowLimiter = receiveWindowLimiter;
+	}
+	
+	/**
+	 * 设置等待发送的消息的写入者。
+	 * 
+	 * @param dataMessageWriter 等待发送的消息的写入者，为null时直接发送
+	 */
+	public void setDataMessageWriter(IDataMessageWriter dataMessageWriter) {
+		this.dataMessageWriter = dataMessageWriter;
+	}
+	
+	/**
+	 * 获取往返时间估算器。
+	 * 
+	 * @return 往返时间估算器
+	 */
+	public RttEstimator getRttEstimator() {
+		return rttEstimator;
+	}
+	
+	/**
+	 * 获取路径MTU探测器。
+	 * 
+	 * @return 路径MTU探测器
+	 */
+	public PmtuDiscoverer getPmtuDiscoverer() {
+		return pmtuDiscoverer;
+	}
+	
+	/**
+	 * 收到路径MTU探测消息时的回调，完整收到的探测消息才回应确认。
+	 * 
+	 * @param probe 探测消息
+	 */
+	public void onPmtuProbe(ChannelBuffer probe) {
+		if(MessageHelper.isPmtuProbe(probe) == false) {
+			return;
+		}
+		DirectWritter.write(session, MessageHelper.getPmtuProbeAck(MessageHelper.getPmtuProbeId(probe), MessageHelper.getPmtuProbeLength(probe)));
+	}
+	
+	/**
+	 * 收到路径MTU探测确认消息时的回调。
+	 * 
+	 * @param probeAck 探测确认消息
+	 */
+	public void onPmtuProbeAck(ChannelBuffer probeAck) {
+		if(MessageHelper.isPmtuProbeAck(probeAck) == false) {
+			return;
+		}
+		pmtuDiscoverer.onProbeAcked(MessageHelper.getPmtuProbeId(probeAck), MessageHelper.getPmtuProbeLength(probeAck));
 	}
 	
 	/**
@@ -300,44 +1039,53 @@ public class SessionReliabilityManager {
 	 * 
 	 */
 	public void sendHeartbeat() {
-		OrderedFeedback orderedFeedback = orderedUpStatus.getFeedback();
+		//两端都支持扩展确认，或者远端使用了其他有序流，则用扩展确认消息代替心跳
+		if(isExtendedAckEnabled() || receivedOrderedStreamCount > 1) {
+			sendAck();
+			return;
+		}
+		
+		OrderedFeedback orderedFeedback = orderedStreams[0].getUpStatus().getFeedback();
 		DisorderedFeedback disorderedFeedback = disorderedUpStatus.getFeedback();
 		int orderedSequence = orderedFeedback.getSequenceId();
 		short orderedBitfield = orderedFeedback.getBitFields();
 		int disorderedSequence = disorderedFeedback.getSequenceId();
 		short disorderedBitfield = disorderedFeedback.getBitFields();
-		if(orderedSequence < 0) {
-			orderedSequence = 0;
+		//远端是新版本，或者尚未确定远端是否是旧版本，则在心跳中携带本端能力
+		if(peerCapabilities != RudpCapabilities.UNKNOWN || capabilityAdvertiseCount < RudpConstants.CAPABILITY_ADVERTISE_MAX_COUNT) {
+			if(peerCapabilities == RudpCapabilities.UNKNOWN) {
+				capabilityAdvertiseCount++;
+			}
+			MessageHelper.sendHeartbeat(session, orderedSequence, orderedBitfield, disorderedSequence, disorderedBitfield, 
+					RudpCapabilities.getLocalCapabilities());
 		}
-		if(disorderedSequence < 0) {
-			disorderedSequence = 0;
+		else {
+			MessageHelper.sendHeartbeat(session, orderedSequence, orderedBitfield, disorderedSequence, disorderedBitfield);
 		}
-		MessageHelper.sendHeartbeat(session, orderedSequence, orderedBitfield, disorderedSequence, disorderedBitfield);
 	}
 	
-	/**
-	 * 消息和超时时间的映射关系类
-	 * 
-	 * @author caobao
-	 *
-	 */
-	private static final class MessageEntry {
-		private ChannelBuffer message;	//消息
-		private long expireTime;		//超时时间
-		private long expireCount;		//超时次数
-		
-		public MessageEntry(ChannelBuffer buf, long expireTime) {
-			super();
-			this.message = buf;
-			this.expireTime = expireTime;
-			this.expireCount = 0;
-		}
-		
-		@Override
-		public String toString() {
-			return "Entry [buf=" + ChannelBufferHelper.toString(message) + ", expireTime=" + expireTime + ", expireCount=" + expireCount +"]";
+	//向远端发送扩展确认消息，反馈整个接收窗口，包括所有收到过消息的有序流
+	private void sendAck() {
+		int maxRangeCount = disorderedAckRanges.length / 2;
+		for (int i = 0; i < receivedOrderedStreamCount; i++) {
+			OrderedStream orderedStream = orderedStreams[i];
+			//没有收到过消息的有序流
+			if(orderedStream == null) {
+				ackCumulativeIds[i] = RudpConstants.INITIAL_SEQUENCE_ID - 1;
+				ackOrderedRanges[i] = disorderedAckRanges;
+				ackRangeCounts[i] = 0;
+				continue;
+			}
+			ackCumulativeIds[i] = orderedStream.getUpStatus().getCumulativeSequenceId();
+			ackOrderedRanges[i] = orderedStream.getAckRanges();
+			ackRangeCounts[i] = orderedStream.getUpStatus().getAckRanges(orderedStream.getAckRanges(), maxRangeCount);
 		}
-		
+		int disorderedRangeCount = disorderedUpStatus.getAckRanges(disorderedAckRanges, maxRangeCount);
+		ChannelBuffer ack = MessageHelper.getAck(
+				RudpCapabilities.getLocalCapabilities(), advertiseReceiveWindow(), getAckDelay(), 
+				ackCumulativeIds, ackOrderedRanges, ackRangeCounts, receivedOrderedStreamCount, 
+				disorderedUpStatus.getCumulativeSequenceId(), disorderedAckRanges, disorderedRangeCount);
+		MessageHelper.sendAck(session, ack);
 	}
 	
 }
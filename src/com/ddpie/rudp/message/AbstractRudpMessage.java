@@ -26,6 +26,17 @@ public abstract class AbstractRudpMessage implements IRudpMessage {
 		this.remoteAddress = remoteAddress;
 	}
 
+	/**
+	 * 重新设置会话和远端地址，供消息池重复使用消息。
+	 * 
+	 * @param session RUDP会话
+	 * @param remoteAddress 远端地址
+	 */
+	void reset(IRudpSession session, SocketAddress remoteAddress) {
+		this.session = session;
+		this.remoteAddress = remoteAddress;
+	}
+
 	@Override
 	public IRudpSession getSession() {
 		return session;
@@ -2,6 +2,7 @@ package com.ddpie.rudp.message;
 
 import java.net.SocketAddress;
 
+import com.ddpie.rudp.processor.SessionRoute;
 import com.ddpie.rudp.session.IRudpSession;
 
 /**
@@ -11,9 +12,15 @@ import com.ddpie.rudp.session.IRudpSession;
  *
  */
 public class RudpCloseMessage extends AbstractRudpMessage {
+	private SessionRoute route;			//关闭的会话路由，会话没有路由时为null
 
 	public RudpCloseMessage(IRudpSession session, SocketAddress remoteAddress) {
+		this(session, remoteAddress, null);
+	}
+
+	public RudpCloseMessage(IRudpSession session, SocketAddress remoteAddress, SessionRoute route) {
 		super(session, remoteAddress);
+		this.route = route;
 	}
 
 	@Override
@@ -21,6 +28,15 @@ public class RudpCloseMessage extends AbstractRudpMessage {
 		return RudpMessageType.CLOSE;
 	}
 
+	/**
+	 * 获取关闭的会话路由，处理完关闭消息后删除。
+	 * 
+	 * @return 会话路由，会话没有路由时为null
+	 */
+	public SessionRoute getRoute() {
+		return route;
+	}
+
 	@Override
 	public String toString() {
 		return "RudpCloseMessage [session=" + getSession()
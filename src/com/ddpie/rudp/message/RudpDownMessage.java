@@ -17,6 +17,7 @@ import com.ddpie.rudp.util.ChannelBufferHelper;
 public class RudpDownMessage extends AbstractRudpMessage {
 	private Channel channel;				//Netty channel
 	private Object content;					//消息实体
+	private RudpMessagePool pool;			//取出消息的消息池，不是从消息池取出时为null
 	
 	/**
 	 * 构造RUDP下行消息。
@@ -33,6 +34,26 @@ public class RudpDownMessage extends AbstractRudpMessage {
 		this.content = content;
 	}
 	
+	//从消息池取出时，重新设置消息的内容
+	void reset(RudpMessagePool pool, IRudpSession session, SocketAddress remoteAddress, Channel channel, Object content) {
+		reset(session, remoteAddress);
+		this.pool = pool;
+		this.channel = channel;
+		this.content = content;
+	}
+	
+	//处理完后连同其中从消息池取出的封装对象一起归还，不是从消息池取出的消息忽略
+	void release() {
+		RudpMessagePool owner = pool;
+		if(owner != null) {
+			if(content instanceof WritableMessageWrapper) {
+				((WritableMessageWrapper) content).release();
+			}
+			reset(null, null, null, null, null);
+			owner.recycle(this);
+		}
+	}
+	
 	@Override
 	public RudpMessageType getType() {
 		return RudpMessageType.DOWN;
@@ -0,0 +1,147 @@
+package com.ddpie.rudp.message;
+
+import java.net.SocketAddress;
+
+import org.jboss.netty.channel.Channel;
+
+import com.ddpie.rudp.filter.IRudpFilterCallback;
+import com.ddpie.rudp.session.IRudpSession;
+
+/**
+ * RUDP消息池。<br>
+ * 缓存处理完的上行消息、下行消息和内部创建的{@link WritableMessageWrapper}，投递消息时重复使用，减少每个数据报产生的短命对象。<br>
+ * 每个消息处理器有一个消息池：投递消息的线程从中取出，处理消息的线程处理完后通过{@link RudpMessages#release(IRudpMessage)}归还，
+ * 消息总是归还到取出它的消息池。每种消息缓存的数量有上限，超出时丢弃，由垃圾回收处理。
+ * 
+ * @author caobao
+ *
+ */
+public class RudpMessagePool {
+	private static final int INITIAL_FREE_LIST_SIZE = 16;	//空闲列表的初始大小
+	
+	private FreeList<RudpUpMessage> upMessages;				//空闲的上行消息
+	private FreeList<RudpDownMessage> downMessages;			//空闲的下行消息
+	private FreeList<WritableMessageWrapper> wrappers;		//空闲的消息封装对象
+	
+	/**
+	 * 构造消息池。
+	 * 
+	 * @param capacity 每种消息最多缓存的数量，不大于0时不缓存
+	 */
+	public RudpMessagePool(int capacity) {
+		upMessages = new FreeList<RudpUpMessage>(capacity);
+		downMessages = new FreeList<RudpDownMessage>(capacity);
+		wrappers = new FreeList<WritableMessageWrapper>(capacity);
+	}
+	
+	/**
+	 * 取出一条上行消息，没有空闲的消息时创建。
+	 * 
+	 * @param session RUDP会话
+	 * @param remoteAddress 远端地址
+	 * @param channel Netty Channel
+	 * @param content 消息实体
+	 * @param callback 所有RUDP的IRudpFilter操作结束后的回调
+	 * @return
+	 */
+	public RudpUpMessage acquireUpMessage(IRudpSession session, SocketAddress remoteAddress,
+			Channel channel, Object content, IRudpFilterCallback callback) {
+		RudpUpMessage message = upMessages.poll();
+		if(message == null) {
+			message = new RudpUpMessage(null, null, null, null, null);
+		}
+		message.reset(this, session, remoteAddress, channel, content, callback);
+		return message;
+	}
+	
+	/**
+	 * 取出一条下行消息，没有空闲的消息时创建。
+	 * 
+	 * @param session RUDP会话
+	 * @param remoteAddress 远端地址
+	 * @param channel Netty Channel
+	 * @param content 消息实体
+	 * @return
+	 */
+	public RudpDownMessage acquireDownMessage(IRudpSession session, SocketAddress remoteAddress,
+			Channel channel, Object content) {
+		RudpDownMessage message = downMessages.poll();
+		if(message == null) {
+			message = new RudpDownMessage(null, null, null, null);
+		}
+		message.reset(this, session, remoteAddress, channel, content);
+		return message;
+	}
+	
+	/**
+	 * 取出一个消息封装对象，没有空闲的对象时创建。
+	 * 随包含它的下行消息一起归还，只能在写请求经过Filter的过程中使用，Filter不能保留它的引用。
+	 * 
+	 * @param messageContent 消息实体
+	 * @param type 发送类型
+	 * @param streamId 有序流ID，只对可靠且有序的消息有效
+	 * @return
+	 */
+	public WritableMessageWrapper acquireWrapper(Object messageContent, WritableMessageType type, int streamId) {
+		if(messageContent instanceof WritableMessageWrapper) {
+			throw new RuntimeException("recursive wrap: " + messageContent);
+		}
+		WritableMessageWrapper wrapper = wrappers.poll();
+		if(wrapper == null) {
+			wrapper = new WritableMessageWrapper();
+		}
+		wrapper.reset(this, messageContent, type, streamId);
+		return wrapper;
+	}
+	
+	//归还上行消息
+	void recycle(RudpUpMessage message) {
+		upMessages.offer(message);
+	}
+	
+	//归还下行消息
+	void recycle(RudpDownMessage message) {
+		downMessages.offer(message);
+	}
+	
+	//归还消息封装对象
+	void recycle(WritableMessageWrapper wrapper) {
+		wrappers.offer(wrapper);
+	}
+	
+	/**
+	 * 一种消息的空闲列表，投递线程和处理线程并发访问。
+	 */
+	private static final class FreeList<T> {
+		private final int capacity;		//最多缓存的数量
+		private Object[] elements;		//空闲的消息，按需扩大
+		private int size;				//空闲消息的数量
+		
+		FreeList(int capacity) {
+			this.capacity = Math.max(0, capacity);
+			elements = new Object[Math.min(this.capacity, INITIAL_FREE_LIST_SIZE)];
+		}
+		
+		@SuppressWarnings("unchecked")
+		synchronized T poll() {
+			if(size == 0) {
+				return null;
+			}
+			T element = (T) elements[--size];
+			elements[size] = null;
+			return element;
+		}
+		
+		synchronized void offer(T element) {
+			if(size >= capacity) {
+				return;
+			}
+			if(size == elements.length) {
+				Object[] newElements = new Object[Math.min(capacity, size << 1)];
+				System.arraycopy(elements, 0, newElements, 0, size);
+				elements = newElements;
+			}
+			elements[size++] = element;
+		}
+	}
+}
@@ -21,4 +21,10 @@ public enum RudpMessageType {
 	
 	/** 会话关闭消息 */
 	CLOSE,
+	
+	/** 会话迁出消息，由原消息处理器处理 */
+	MIGRATE_OUT,
+	
+	/** 会话迁入消息，由新消息处理器处理 */
+	MIGRATE_IN,
 }
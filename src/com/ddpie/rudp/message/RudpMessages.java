@@ -6,6 +6,7 @@ import org.jboss.netty.channel.Channel;
 
 import com.ddpie.rudp.filter.IRudpFilter;
 import com.ddpie.rudp.filter.IRudpFilterCallback;
+import com.ddpie.rudp.processor.SessionRoute;
 import com.ddpie.rudp.session.IRudpSession;
 
 /**
@@ -46,6 +47,55 @@ public class RudpMessages {
 		return new RudpDownMessage(session, remoteAddress, channel, message);
 	}
 	
+	/**
+	 * 从消息池中取出上行RUDP消息。
+	 * 
+	 * @param pool 消息池
+	 * @param session RUDP会话
+	 * @param channel Netty Channel
+	 * @param remoteAddress 远端地址
+	 * @param content 消息实体
+	 * @param callback 所有RUDP的{@link IRudpFilter}操作结束后的回调对象
+	 * 
+	 * @return 设置完成的RUDP上行消息，处理完后需要调用{@link #release(IRudpMessage)}归还
+	 */
+	public static IRudpMessage newUpMessage(RudpMessagePool pool, IRudpSession session, Channel channel, SocketAddress remoteAddress, Object content, IRudpFilterCallback callback) {
+		return pool.acquireUpMessage(session, remoteAddress, channel, content, callback);
+	}
+	
+	/**
+	 * 从消息池中取出下行RUDP消息，消息实体按发送类型包装，包装对象也从消息池中取出。
+	 * 
+	 * @param pool 消息池
+	 * @param session RUDP会话
+	 * @param channel Netty Channel
+	 * @param remoteAddress 远端地址
+	 * @param message 未包装的消息实体
+	 * @param type 发送类型
+	 * @param streamId 有序流ID，只对可靠且有序的消息有效
+	 * 
+	 * @return 设置完成的RUDP下行消息，处理完后需要调用{@link #release(IRudpMessage)}归还
+	 */
+	public static IRudpMessage newDownMessage(RudpMessagePool pool, IRudpSession session, Channel channel, SocketAddress remoteAddress,
+			Object message, WritableMessageType type, int streamId) {
+		return pool.acquireDownMessage(session, remoteAddress, channel, pool.acquireWrapper(message, type, streamId));
+	}
+	
+	/**
+	 * 归还处理完的RUDP消息，不是从消息池中取出的消息忽略。
+	 * 只能由处理消息的线程在处理完后调用一次，归还后不能再使用。
+	 * 
+	 * @param message RUDP消息
+	 */
+	public static void release(IRudpMessage message) {
+		if(message instanceof RudpUpMessage) {
+			((RudpUpMessage) message).release();
+		}
+		else if(message instanceof RudpDownMessage) {
+			((RudpDownMessage) message).release();
+		}
+	}
+	
 	/**
 	 * 构造会话挂起消息。
 	 * 
@@ -82,4 +132,39 @@ public class RudpMessages {
 		return new RudpCloseMessage(session, remoteAddress);
 	}
 	
+	/**
+	 * 构造会话关闭消息，处理完后删除会话的路由。
+	 * 
+	 * @param session RUDP会话
+	 * @param remoteAddress
+	 * @param route 关闭的会话路由
+	 * 
+	 * @return 构造完成的RUDP关闭消息
+	 */
+	public static IRudpMessage newCloseMessage(IRudpSession session, SocketAddress remoteAddress, SessionRoute route) {
+		return new RudpCloseMessage(session, remoteAddress, route);
+	}
+	
+	/**
+	 * 构造会话迁出消息。
+	 * 
+	 * @param route 迁移的会话路由
+	 * 
+	 * @return 构造完成的RUDP迁出消息
+	 */
+	public static IRudpMessage newMigrateOutMessage(SessionRoute route) {
+		return new RudpMigrateMessage(RudpMessageType.MIGRATE_OUT, route);
+	}
+	
+	/**
+	 * 构造会话迁入消息。
+	 * 
+	 * @param route 迁移的会话路由
+	 * 
+	 * @return 构造完成的RUDP迁入消息
+	 */
+	public static IRudpMessage newMigrateInMessage(SessionRoute route) {
+		return new RudpMigrateMessage(RudpMessageType.MIGRATE_IN, route);
+	}
+
 }
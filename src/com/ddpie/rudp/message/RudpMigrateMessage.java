@@ -0,0 +1,41 @@
+package com.ddpie.rudp.message;
+
+import com.ddpie.rudp.processor.SessionRoute;
+
+/**
+ * RUDP会话迁移消息，在消息处理器之间迁移会话时使用。
+ * 
+ * @author caobao
+ *
+ */
+public class RudpMigrateMessage extends AbstractRudpMessage {
+	private RudpMessageType type;		//迁出或者迁入
+	private SessionRoute route;			//迁移的会话路由
+	
+	public RudpMigrateMessage(RudpMessageType type, SessionRoute route) {
+		super(route.getSession(), route.getSession().getRemoteAddress());
+		this.type = type;
+		this.route = route;
+	}
+	
+	@Override
+	public RudpMessageType getType() {
+		return type;
+	}
+	
+	/**
+	 * 获取迁移的会话路由。
+	 * 
+	 * @return
+	 */
+	public SessionRoute getRoute() {
+		return route;
+	}
+	
+	@Override
+	public String toString() {
+		return "RudpMigrateMessage [type=" + type + ", session=" + getSession()
+				+ ", remoteAddress=" + getRemoteAddress() + "]";
+	}
+
+}
@@ -19,6 +19,7 @@ public class RudpUpMessage extends AbstractRudpMessage {
 	private Channel channel;				//Netty channel
 	private Object content;					//消息实体
 	private IRudpFilterCallback callback;	//所有RUDP的IRudpFilter操作结束后的回调
+	private RudpMessagePool pool;			//取出消息的消息池，不是从消息池取出时为null
 	
 	/**
 	 * 构造RUDP上行消息。
@@ -36,6 +37,25 @@ public class RudpUpMessage extends AbstractRudpMessage {
 		this.callback = callback;
 	}
 	
+	//从消息池取出时，重新设置消息的内容
+	void reset(RudpMessagePool pool, IRudpSession session, SocketAddress remoteAddress,
+			Channel channel, Object content, IRudpFilterCallback callback) {
+		reset(session, remoteAddress);
+		this.pool = pool;
+		this.channel = channel;
+		this.content = content;
+		this.callback = callback;
+	}
+	
+	//处理完后归还到取出它的消息池，不是从消息池取出的消息忽略
+	void release() {
+		RudpMessagePool owner = pool;
+		if(owner != null) {
+			reset(null, null, null, null, null, null);
+			owner.recycle(this);
+		}
+	}
+	
 	@Override
 	public RudpMessageType getType() {
 		return RudpMessageType.UP;
@@ -10,6 +10,13 @@ package com.ddpie.rudp.message;
 public final class WritableMessageWrapper {
 	private Object messageContent;		//消息实体
 	private WritableMessageType type;	//发送类型
+	private int streamId;				//有序流ID，只对可靠且有序的消息有效
+	private RudpMessagePool pool;		//取出对象的消息池，不是从消息池取出时为null
+	
+	//由消息池创建
+	WritableMessageWrapper() {
+		super();
+	}
 	
 	private WritableMessageWrapper(Object messageContent,
 			WritableMessageType type) {
@@ -18,6 +25,29 @@ public final class WritableMessageWrapper {
 		this.type = type;
 	}
 	
+	private WritableMessageWrapper(Object messageContent,
+			WritableMessageType type, int streamId) {
+		this(messageContent, type);
+		this.streamId = streamId;
+	}
+	
+	//从消息池取出时，重新设置消息的内容
+	void reset(RudpMessagePool pool, Object messageContent, WritableMessageType type, int streamId) {
+		this.pool = pool;
+		this.messageContent = messageContent;
+		this.type = type;
+		this.streamId = streamId;
+	}
+	
+	//随下行消息归还到取出它的消息池，不是从消息池取出的对象忽略
+	void release() {
+		RudpMessagePool owner = pool;
+		if(owner != null) {
+			reset(null, null, null, 0);
+			owner.recycle(this);
+		}
+	}
+	
 	/**
 	 * 获取消息实体
 	 * 
@@ -36,9 +66,18 @@ public final class WritableMessageWrapper {
 		return type;
 	}
 	
+	/**
+	 * 获取有序流ID
+	 * 
+	 * @return
+	 */
+	public int getStreamId() {
+		return streamId;
+	}
+	
 	@Override
 	public String toString() {
-		return "WritableMessageWrapper [type=" + type + ", messageContent="
+		return "WritableMessageWrapper [type=" + type + ", streamId=" + streamId + ", messageContent="
 				+ messageContent + "]";
 	}
 
@@ -55,6 +94,20 @@ public final class WritableMessageWrapper {
 		return new WritableMessageWrapper(messageContent, WritableMessageType.RELIABLE_ORDERED);
 	}
 	
+	/**
+	 * 包装指定有序流的可靠且有序的消息。
+	 * 
+	 * @param messageContent
+	 * @param streamId 有序流ID
+	 * @return
+	 */
+	public static WritableMessageWrapper newReliableOrdered(Object messageContent, int streamId) {
+		if(messageContent instanceof WritableMessageWrapper) {
+			throw new RuntimeException("recursive wrap: " + messageContent);
+		}
+		return new WritableMessageWrapper(messageContent, WritableMessageType.RELIABLE_ORDERED, streamId);
+	}
+	
 	/**
 	 * 包装可靠但无序的消息。
 	 * 
@@ -81,4 +134,19 @@ public final class WritableMessageWrapper {
 		return new WritableMessageWrapper(messageContent, WritableMessageType.UNRELIABLE);
 	}
 	
+	/**
+	 * 按指定的发送类型包装消息。
+	 * 
+	 * @param messageContent
+	 * @param type 发送类型
+	 * @param streamId 有序流ID，只对可靠且有序的消息有效
+	 * @return
+	 */
+	public static WritableMessageWrapper newInstance(Object messageContent, WritableMessageType type, int streamId) {
+		if(messageContent instanceof WritableMessageWrapper) {
+			throw new RuntimeException("recursive wrap: " + messageContent);
+		}
+		return new WritableMessageWrapper(messageContent, type, streamId);
+	}
+	
 }
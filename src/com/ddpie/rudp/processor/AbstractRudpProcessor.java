@@ -0,0 +1,628 @@
+package com.ddpie.rudp.processor;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import com.ddpie.rudp.config.IRudpConfig;
+import com.ddpie.rudp.constant.RudpConstants;
+import com.ddpie.rudp.filter.IRudpFilter;
+import com.ddpie.rudp.filter.IRudpFilterCallback;
+import com.ddpie.rudp.filter.IRudpSharedFilterCallback;
+import com.ddpie.rudp.filter.reliability.SessionReliabilityManager;
+import com.ddpie.rudp.log.RudpLoggers;
+import com.ddpie.rudp.message.IRudpMessage;
+import com.ddpie.rudp.message.RudpCloseMessage;
+import com.ddpie.rudp.message.RudpDownMessage;
+import com.ddpie.rudp.message.RudpMessagePool;
+import com.ddpie.rudp.message.RudpMessages;
+import com.ddpie.rudp.message.RudpMigrateMessage;
+import com.ddpie.rudp.message.RudpResumeMessage;
+import com.ddpie.rudp.message.RudpSuspendMessage;
+import com.ddpie.rudp.message.RudpUpMessage;
+import com.ddpie.rudp.message.WritableMessageWrapper;
+import com.ddpie.rudp.session.IRudpSession;
+import com.ddpie.rudp.session.IRudpSessionManager;
+import com.ddpie.rudp.session.MessageBundler;
+import com.ddpie.rudp.session.RudpSession;
+import com.ddpie.rudp.util.ChannelBufferHelper;
+import com.ddpie.rudp.util.MessageHelper;
+
+/**
+ * RUDP消息处理器的基类。<br>
+ * 实现消息的处理流程：建立会话、把消息交给Filter管道、通知会话状态的变化、合并发送和会话滴答；
+ * 子类决定消息在哪个线程中处理、滴答时间登记在哪里。处理消息的方法只能在处理消息的线程中调用。
+ * 
+ * @author caobao
+ *
+ */
+public abstract class AbstractRudpProcessor implements IRudpProcessor {
+	private IRudpConfig rudpConfig;						//RUDP配置信息
+	private List<IRudpFilter> rudpFilters;				//RUDP Filter集合
+	private String processorName;						//消息处理器名称
+	private RudpMessagePool messagePool;				//投递给本处理器的消息所用的消息池
+	private Queue<RudpSession> bundlingSessions;		//有待发送的合并消息的会话，第一次合并时创建，仅由处理消息的线程访问
+	private long bundleStartTime;						//本批合并消息中第一条消息的合并时间，纳秒
+	private volatile long busyTime;						//处理消息、滴答和发送合并消息累计花费的时间，纳秒
+	
+	/**
+	 * 构造消息处理器。
+	 * 
+	 * @param rudpConfig RUDP配置信息
+	 * @param rudpFilters RUDP Filter集合
+	 * @param processorName 消息处理器名称
+	 * @param messagePool 投递给本处理器的消息所用的消息池
+	 */
+	protected AbstractRudpProcessor(IRudpConfig rudpConfig, List<IRudpFilter> rudpFilters, String processorName, RudpMessagePool messagePool) {
+		if(rudpFilters == null) {
+			throw new IllegalArgumentException("rudpFilters cannot be null");
+		}
+		if(messagePool == null) {
+			throw new IllegalArgumentException("messagePool cannot be null");
+		}
+		this.rudpConfig = rudpConfig;
+		this.rudpFilters = rudpFilters;
+		this.processorName = processorName;
+		this.messagePool = messagePool;
+	}
+	
+	@Override
+	public boolean bundle(IRudpSession session, ChannelBuffer message) {
+		if(session instanceof RudpSession == false || isProcessorThread() == false) {
+			return false;
+		}
+		MessageBundler bundler = ((RudpSession) session).getBundler();
+		boolean empty = bundler.isEmpty();
+		if(bundler.add(message) == false) {
+			return false;
+		}
+		if(empty) {
+			if(bundlingSessions == null) {
+				bundlingSessions = new ArrayDeque<RudpSession>();
+			}
+			if(bundlingSessions.isEmpty()) {
+				bundleStartTime = System.nanoTime();
+			}
+			bundlingSessions.add((RudpSession) session);
+		}
+		return true;
+	}
+	
+	/**
+	 * 当前线程是否是处理本处理器消息的线程。
+	 * 
+	 * @return
+	 */
+	protected abstract boolean isProcessorThread();
+	
+	/**
+	 * 取消会话已经登记的滴答，会话关闭时在处理消息的线程中调用。
+	 * 
+	 * @param session RUDP会话
+	 */
+	protected abstract void cancelTick(RudpSession session);
+	
+	/**
+	 * 获取编译好的Filter管道，只在处理消息的线程中调用。
+	 * 
+	 * @return
+	 */
+	protected abstract RudpFilterPipeline getFilterPipeline();
+	
+	/**
+	 * 获取RUDP配置信息。
+	 * 
+	 * @return
+	 */
+	protected IRudpConfig getRudpConfig() {
+		return rudpConfig;
+	}
+	
+	/**
+	 * 获取RUDP Filter集合。
+	 * 
+	 * @return
+	 */
+	protected List<IRudpFilter> getRudpFilters() {
+		return rudpFilters;
+	}
+	
+	/**
+	 * 是否有等待发送的合并消息。
+	 * 
+	 * @return
+	 */
+	protected boolean hasPendingBundles() {
+		return bundlingSessions != null && bundlingSessions.isEmpty() == false;
+	}
+	
+	/**
+	 * 累加处理器线程的忙碌时间，只能在处理消息的线程中调用。
+	 * 
+	 * @param nanos 忙碌时间，纳秒
+	 */
+	protected void addBusyTime(long nanos) {
+		busyTime += nanos;
+	}
+	
+	/**
+	 * 获取处理消息、滴答和发送合并消息累计花费的时间，用于统计处理器的负载。
+	 * 
+	 * @return 忙碌时间，纳秒
+	 */
+	public long getBusyTime() {
+		return busyTime;
+	}
+	
+	/**
+	 * 获取投递给本处理器的消息所用的消息池。
+	 * 
+	 * @return
+	 */
+	public RudpMessagePool getMessagePool() {
+		return messagePool;
+	}
+	
+	/**
+	 * 获取消息处理器名称。
+	 * 
+	 * @return
+	 */
+	protected String getProcessorName() {
+		return processorName;
+	}
+	
+	/**
+	 * 处理单条消息，出错时关闭对应的会话，处理完后归还从消息池取出的消息，只能在处理消息的线程中调用。
+	 * 
+	 * @param message
+	 */
+	protected void processSafely(IRudpMessage message) {
+		try {
+			process(message);
+		}
+		catch(Exception e) {
+			//记录日志，含远程地址和异常信息
+			if(message.getRemoteAddress() != null) {
+				RudpLoggers.processorLogger.error("process rudp message error from " + message.getRemoteAddress(), e);
+			}
+			else {
+				RudpLoggers.processorLogger.error("process rudp message error", e);
+			}
+			//关闭会话
+			if(message.getSession() != null) {
+				message.getSession().close();
+			}
+		}
+		finally {
+			RudpMessages.release(message);
+		}
+	}
+	
+	/**
+	 * 滴答一次会话，返回的下一次滴答时间通过{@link #scheduleTick(IRudpSession, long)}重新登记，只能在处理消息的线程中调用。
+	 * 
+	 * @param session RUDP会话
+	 * @param currentTime 当前时间，毫秒
+	 */
+	protected void tick(RudpSession session, long currentTime) {
+		if(session.isClosed()) {
+			return;
+		}
+		try {
+			long nextTickTime = session.tick(currentTime);
+			if(nextTickTime != Long.MAX_VALUE) {
+				scheduleTick(session, nextTickTime);
+			}
+		}
+		catch(Exception e) {
+			RudpLoggers.processorLogger.error("tick rudp session error, session=" + session, e);
+			session.close();
+		}
+	}
+	
+	/**
+	 * 获取本批合并消息的发送时间。
+	 * 
+	 * @return 发送时间，纳秒
+	 */
+	protected long getBundleFlushTime() {
+		return bundleStartTime + TimeUnit.MICROSECONDS.toNanos(RudpConstants.BUNDLE_FLUSH_DELAY);
+	}
+	
+	/**
+	 * 发送所有会话的合并消息，合并等待时间未到期时暂不发送，只能在处理消息的线程中调用。
+	 */
+	protected void flushBundles() {
+		if(hasPendingBundles() == false) {
+			return;
+		}
+		if(RudpConstants.BUNDLE_FLUSH_DELAY > 0 && System.nanoTime() < getBundleFlushTime()) {
+			return;
+		}
+		RudpSession session;
+		while((session = bundlingSessions.poll()) != null) {
+			try {
+				session.getBundler().flush();
+			}
+			catch(Exception e) {
+				RudpLoggers.processorLogger.error("flush bundled messages error, session=" + session, e);
+			}
+		}
+	}
+	
+	/**
+	 * 立即发送一个会话的合并消息，会话离开本处理器时调用，只能在处理消息的线程中调用。
+	 * 
+	 * @param session RUDP会话
+	 */
+	protected void flushBundle(RudpSession session) {
+		if(bundlingSessions != null && bundlingSessions.remove(session)) {
+			session.getBundler().flush();
+		}
+	}
+	
+	//处理消息
+	private void process(IRudpMessage message) throws Exception{
+		if(message == null) {
+			return;
+		}
+		switch(message.getType()) {
+		case UP:
+			processUpMessage((RudpUpMessage) message);
+			break;
+		case DOWN:
+			processDownMessage((RudpDownMessage) message);
+			break;
+		case SUSPEND:
+			processSuspendMessage((RudpSuspendMessage) message);
+			break;
+		case RESUME:
+			processResumeMessage((RudpResumeMessage) message);
+			break;
+		case CLOSE:
+			processCloseMessage((RudpCloseMessage) message);
+			break;
+		case MIGRATE_OUT:
+		case MIGRATE_IN:
+			processMigrateMessage((RudpMigrateMessage) message);
+			break;
+		default:
+			RudpLoggers.processorLogger.error("unkown message: " + message);
+		}
+	}
+	
+	//处理上行消息
+	private void processUpMessage(RudpUpMessage message) {
+		//不是ChannelBuffer，则抛弃消息
+		if(message.getContent() instanceof ChannelBuffer == false) {
+			RudpLoggers.processorLogger.error("rudp processor cannot process the message, msg=" + message);
+			return;
+		}
+		
+		//合并消息，拆开后逐条处理
+		ChannelBuffer buf = (ChannelBuffer) message.getContent();
+		if(MessageHelper.isBundle(buf)) {
+			processBundleMessage(message, buf);
+			return;
+		}
+		
+		//作为服务器处理
+		if(rudpConfig.isServer()) {
+			processUpMessageAsServer(message);
+		}
+		//作为客户端处理
+		else {
+			processUpMessageAsClient(message);
+		}
+	}
+	
+	//处理合并消息，其中的每条消息都按单独收到的消息处理
+	private void processBundleMessage(RudpUpMessage message, ChannelBuffer buf) {
+		ChannelBuffer[] frames = MessageHelper.getBundleFrames(buf);
+		if(frames == null) {
+			RudpLoggers.processorLogger.warn(
+					"invalid bundle message from " + message.getRemoteAddress() + ", msg=" + ChannelBufferHelper.toString(buf));
+			return;
+		}
+		for (ChannelBuffer frame : frames) {
+			//不允许嵌套
+			if(MessageHelper.isBundle(frame)) {
+				continue;
+			}
+			RudpUpMessage frameMessage = (RudpUpMessage) RudpMessages.newUpMessage(messagePool,
+					message.getSession(), message.getChannel(), message.getRemoteAddress(), frame, message.getCallback());
+			try {
+				processUpMessage(frameMessage);
+			}
+			finally {
+				RudpMessages.release(frameMessage);
+			}
+		}
+	}
+	
+	/*
+	 * 客户端处理上行消息的流程：
+	 * 
+	 * 1、如果远端地址不是服务器地址，则直接抛弃；
+	 * 2、如果会话已建立，则直接将数据抛给Filter集合；
+	 * 3、如果会话未建立，则建立会话，然后把数据抛给Filter集合。
+	 */
+	private void processUpMessageAsClient(RudpUpMessage message) {
+		ChannelBuffer buf = (ChannelBuffer) message.getContent();
+		
+		//关闭消息，则立即关闭会话
+		if(MessageHelper.isClose(buf)) {
+			IRudpSession session = message.getSession();
+			if(session != null && !session.isClosed()) {
+				if(RudpLoggers.sessionLogger.isInfoEnabled()) {
+					RudpLoggers.sessionLogger.info("receive close message from " + session.getRemoteAddress() + ", so close the session");
+				}
+				session.close();
+			}
+			return;
+		}
+		
+		if(rudpConfig.getServerAddress().equals(message.getRemoteAddress()) == false) {
+			return;
+		}
+		
+		//记录日志
+		if(RudpLoggers.heartbeatUpLogger.isDebugEnabled()) {
+			if(MessageHelper.isHeartbeat((ChannelBuffer) message.getContent())) {
+				RudpLoggers.heartbeatUpLogger.debug(
+						"received heartbeat from " + message.getRemoteAddress() + ", " + ChannelBufferHelper.toString(buf));
+			}
+			else if(MessageHelper.isHandshake((ChannelBuffer) message.getContent())) {
+				RudpLoggers.heartbeatUpLogger.debug(
+						"received handshake from " + message.getRemoteAddress() + ", " + ChannelBufferHelper.toString(buf));
+			}
+		}
+		
+		//如果session处于连接状态
+		IRudpSessionManager sessionMgr = rudpConfig.getSessionManager();
+		if(sessionMgr.isConnected(message.getRemoteAddress())) {
+			IRudpSession session = sessionMgr.getRudpSession(message.getRemoteAddress());
+			if(MessageHelper.isHeartbeat(buf) && session instanceof RudpSession) {
+				((RudpSession) session).onHeartbeatReceived();
+			}
+			else {
+				if(RudpLoggers.businessUpLogger.isDebugEnabled()) {
+					RudpLoggers.businessUpLogger.debug(
+							"received business message from " + message.getRemoteAddress() + 
+							", msg=" + ChannelBufferHelper.toString(buf));
+				}
+				if(session instanceof RudpSession) {
+					((RudpSession) session).onMessageReceived();
+				}
+			}
+			notifyMessageReceived(session, message, message.getCallback());
+			notifyCallback(message);
+			return;
+		}
+		
+		//创建会话并连接
+		RudpSession session = new RudpSession(rudpConfig, message.getChannel(), message.getRemoteAddress());
+		session.onHeartbeatReceived();
+		sessionMgr.addSession(session);
+		
+		//通知监听器列表
+		notifySessionOpened(session);
+		
+		//抛给Filter集合
+		if(MessageHelper.isHeartbeat(buf) == false) {
+			if(RudpLoggers.businessUpLogger.isDebugEnabled()) {
+				RudpLoggers.businessUpLogger.debug(
+						"received business message from " + message.getRemoteAddress() + 
+						", msg=" + ChannelBufferHelper.toString(buf));
+			}
+		}
+		notifyMessageReceived(session, message, message.getCallback());
+		notifyCallback(message);
+	}
+	
+	/*
+	 * 服务器处理上行消息的流程：
+	 * 
+	 * 1、如果会话已建立，则直接将数据抛给Filter集合；
+	 * 2、如果会话未建立，则判断收到的消息是否是握手。如果是握手则建立会话，否则抛弃消息。
+	 */
+	private void processUpMessageAsServer(RudpUpMessage message) {
+		ChannelBuffer buf = (ChannelBuffer) message.getContent();
+		
+		//关闭消息，则立即挂起会话
+		if(MessageHelper.isClose(buf)) {
+			IRudpSession session = message.getSession();
+			if(session != null && !session.isClosed() && !session.isSuspended()) {
+				if(RudpLoggers.sessionLogger.isInfoEnabled()) {
+					RudpLoggers.sessionLogger.info("receive close message from " + session.getRemoteAddress() + ", so suspend the session");
+				}
+				((RudpSession) session).suspend();
+			}
+			return;
+		}
+		
+		IRudpSessionManager sessionMgr = rudpConfig.getSessionManager();
+		//如果session处于连接或挂起状态
+		if(sessionMgr.isConnected(message.getRemoteAddress())) {
+			IRudpSession session = sessionMgr.getRudpSession(message.getRemoteAddress());
+			//挂起状态
+			if(session.isSuspended()) {
+				//不是握手消息，则抛弃消息
+				if(MessageHelper.isHandshake(buf) == false) {
+					return;
+				}
+				if(RudpLoggers.sessionLogger.isInfoEnabled()) {
+					RudpLoggers.sessionLogger.info("session resumed, session: " + session);
+				}
+				((RudpSession) session).resume();
+			}
+			//记录日志
+			if(RudpLoggers.heartbeatUpLogger.isDebugEnabled()) {
+				if(MessageHelper.isHeartbeat((ChannelBuffer) message.getContent())) {
+					RudpLoggers.heartbeatUpLogger.debug(
+							"received heartbeat from " + message.getRemoteAddress() + ", " + ChannelBufferHelper.toString(buf));
+				}
+				else if(MessageHelper.isHandshake((ChannelBuffer) message.getContent())) {
+					RudpLoggers.heartbeatUpLogger.debug(
+							"received handshake from " + message.getRemoteAddress() + ", " + ChannelBufferHelper.toString(buf));
+				}
+			}
+			
+			//心跳消息
+			if(MessageHelper.isHeartbeat(buf)) {
+				if(session instanceof RudpSession) {
+					((RudpSession) session).onHeartbeatReceived();
+				}
+				notifyMessageReceived(session, message, message.getCallback());
+			}
+			//握手消息，有可能是客户端挂起恢复，反馈心跳
+			else if(MessageHelper.isHandshake(buf)) {
+				if(RudpLoggers.heartbeatUpLogger.isDebugEnabled()) {
+					RudpLoggers.heartbeatUpLogger.debug(
+							"connection is already established, received useless handshake, " + message.getRemoteAddress());
+				}
+				for (int i = 0; i < RudpConstants.HANDSHAKE_RESPONSE_MESSAGE_COUNT; i++) {
+					SessionReliabilityManager mgr = (SessionReliabilityManager) session.getAttribute("reliability");
+					if(mgr != null) {
+						mgr.sendHeartbeat();
+					}
+				}
+			}
+			//业务消息
+			else {
+				if(RudpLoggers.businessUpLogger.isDebugEnabled()) {
+					RudpLoggers.businessUpLogger.debug(
+							"received business message from " + message.getRemoteAddress() + 
+							", msg=" + ChannelBufferHelper.toString(buf));
+				}
+				notifyMessageReceived(session, message, message.getCallback());
+				if(session instanceof RudpSession) {
+					((RudpSession) session).onMessageReceived();
+				}
+			}
+			return;
+		}
+		
+		//不是握手消息，则抛弃消息
+		if(MessageHelper.isHandshake(buf) == false) {
+			return;
+		}
+		
+		//是握手消息，创建会话并连接
+		RudpSession newSession = new RudpSession(rudpConfig, message.getChannel(), message.getRemoteAddress());
+		newSession.onHeartbeatReceived();
+		sessionMgr.addSession(newSession);
+		
+		//通知监听器列表
+		notifySessionOpened(newSession);
+		
+		//给客户端发送连接响应
+		for (int i = 0; i < RudpConstants.HANDSHAKE_RESPONSE_MESSAGE_COUNT; i++) {
+			MessageHelper.sendHeartbeat(newSession, 0, (short)0, 0, (short)0);
+		}
+	}
+	
+	//处理下行消息
+	private void processDownMessage(RudpDownMessage message) {
+		IRudpSessionManager sessionMgr = rudpConfig.getSessionManager();
+		IRudpSession session = sessionMgr.getRudpSession(message.getRemoteAddress());
+		if(session != null) {
+			//一批消息，依次经过Filter，本批处理完后一起发送
+			if(message.getContent() instanceof WritableMessageWrapper[]) {
+				for (WritableMessageWrapper wrapper : (WritableMessageWrapper[]) message.getContent()) {
+					notifyWriteRequested(session, wrapper);
+				}
+			}
+			else {
+				notifyWriteRequested(session, message.getContent());
+			}
+		}
+		else {
+			RudpLoggers.processorLogger.warn("cannot find session when process down message " + message);
+		}
+	}
+	
+	/**
+	 * 处理内部关闭消息：取消会话的滴答，通知所有RUDP Filter。
+	 * 
+	 * @param message 关闭消息
+	 */
+	protected void processCloseMessage(RudpCloseMessage message) {
+		if(message.getSession() instanceof RudpSession) {
+			cancelTick((RudpSession) message.getSession());
+		}
+		notifySessionClosed(message.getSession());
+	}
+	
+	/**
+	 * 处理会话迁移消息，只有支持迁移的处理器才会收到。
+	 * 
+	 * @param message 迁移消息
+	 */
+	protected void processMigrateMessage(RudpMigrateMessage message) {
+		RudpLoggers.processorLogger.error("unkown message: " + message);
+	}
+	
+	//处理内部挂起消息
+	private void processSuspendMessage(RudpSuspendMessage message) {
+		notifySessionSuspended(message.getSession());
+	}
+	
+	//处理内部恢复消息
+	private void processResumeMessage(RudpResumeMessage message) {
+		notifySessionResumed(message.getSession());
+	}
+	
+	//通知所有RUDP Filter，一个RUDP连接打开了。
+	private void notifySessionOpened(IRudpSession session) {
+		for (IRudpFilter rudpFilter : rudpFilters) {
+			rudpFilter.sessionOpened(session);
+		}
+	}
+	
+	//通知所有RUDP Filter，一个RUDP会话挂起了。
+	private void notifySessionSuspended(IRudpSession session) {
+		for (IRudpFilter rudpFilter : rudpFilters) {
+			rudpFilter.sessionSuspended(session);
+		}
+	}
+	
+	//通知所有RUDP Filter，一个RUDP会话恢复了。
+	private void notifySessionResumed(IRudpSession session) {
+		for (IRudpFilter rudpFilter : rudpFilters) {
+			rudpFilter.sessionResumed(session);
+		}
+	}
+	
+	//通知所有RUDP Filter，一个RUDP连接关闭了。
+	private void notifySessionClosed(IRudpSession session) {
+		for (IRudpFilter rudpFilter : rudpFilters) {
+			rudpFilter.sessionClosed(session);
+		}
+	}
+	
+	//通知所有RUDP Filter，一个消息收到了。
+	private void notifyMessageReceived(IRudpSession session, RudpUpMessage message, IRudpFilterCallback callback) {
+		getFilterPipeline().fireMessageReceived(session, message.getContent(), callback);
+	}
+	
+	//把收到的原始消息直接交给回调，可共用的回调同时给出远端地址
+	private void notifyCallback(RudpUpMessage message) {
+		IRudpFilterCallback callback = message.getCallback();
+		if(callback instanceof IRudpSharedFilterCallback) {
+			((IRudpSharedFilterCallback) callback).callback(message.getRemoteAddress(), message.getContent());
+		}
+		else {
+			callback.callback(message.getContent());
+		}
+	}
+	
+	//通知所有RUDP Filter，一个写请求。
+	private void notifyWriteRequested(IRudpSession session, Object messageContent) {
+		getFilterPipeline().fireWriteRequested(session, messageContent);
+	}
+}
@@ -1,5 +1,7 @@
 package com.ddpie.rudp.processor;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+
 import com.ddpie.rudp.message.IRudpMessage;
 import com.ddpie.rudp.session.IRudpSession;
 
@@ -29,9 +31,30 @@ public interface IRudpProcessor {
 	void put(IRudpMessage message);
 	
 	/**
-	 * 执行指定RUDP会话的tick操作。
+	 * 尽快执行指定RUDP会话的tick操作。
+	 * 可以在任意线程中调用。
 	 * 
 	 * @param session
 	 */
 	void tickSession(IRudpSession session);
+	
+	/**
+	 * 登记指定RUDP会话的下一次tick时间，会话最迟在该时间被tick。
+	 * 若已经登记了更早的时间，则忽略。
+	 * 不在消息处理器线程中调用时，等同于{@link #tickSession(IRudpSession)}。
+	 * 
+	 * @param session RUDP会话
+	 * @param dueTime tick时间，毫秒
+	 */
+	void scheduleTick(IRudpSession session, long dueTime);
+	
+	/**
+	 * 把发给会话远端的消息合并到待发送的数据报中，在本批消息处理完后，或者等待{@link com.ddpie.rudp.constant.RudpConstants#BUNDLE_FLUSH_DELAY}后发送。
+	 * 只能合并在消息处理器线程中发送的消息，在其他线程中调用时返回false。
+	 * 
+	 * @param session RUDP会话
+	 * @param message 消息
+	 * @return true，已经合并；false，不能合并，需要直接发送
+	 */
+	boolean bundle(IRudpSession session, ChannelBuffer message);
 }
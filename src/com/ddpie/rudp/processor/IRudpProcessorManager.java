@@ -2,10 +2,12 @@ package com.ddpie.rudp.processor;
 
 import java.net.SocketAddress;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 
 import com.ddpie.rudp.filter.IRudpFilter;
 import com.ddpie.rudp.filter.IRudpFilterCallback;
+import com.ddpie.rudp.message.WritableMessageType;
 import com.ddpie.rudp.session.IRudpSession;
 
 /**
@@ -21,6 +23,16 @@ public interface IRudpProcessorManager {
 	 */
 	void addRudpFilter(IRudpFilter rudpFilter);
 	
+	/**
+	 * 启动所有的消息处理器
+	 */
+	void start();
+	
+	/**
+	 * 停止所有的消息处理器
+	 */
+	void stop();
+	
 	/**
 	 * 滴答一个会话
 	 * 
@@ -28,6 +40,23 @@ public interface IRudpProcessorManager {
 	 */
 	void tickSession(IRudpSession session);
 	
+	/**
+	 * 登记一个会话的下一次滴答时间
+	 * 
+	 * @param session 要进行滴答的会话
+	 * @param dueTime 滴答时间，毫秒
+	 */
+	void scheduleTick(IRudpSession session, long dueTime);
+	
+	/**
+	 * 把发给会话远端的消息合并到待发送的数据报中。
+	 * 
+	 * @param session RUDP会话
+	 * @param message 消息
+	 * @return true，已经合并；false，不能合并，需要直接发送
+	 */
+	boolean bundle(IRudpSession session, ChannelBuffer message);
+	
 	/**
 	 * 网络层收到消息后的回调。
 	 * 
@@ -47,6 +76,25 @@ public interface IRudpProcessorManager {
 	 */
 	void onWriteRequested(Channel channel, SocketAddress remoteAddress, Object message);
 	
+	/**
+	 * 向网络层发送未包装的消息时的回调，由管理器按发送类型包装。
+	 * 
+	 * @param channel 通道
+	 * @param remoteAddress 远端地址
+	 * @param message 未包装的消息
+	 * @param type 发送类型
+	 * @param streamId 有序流ID，只对可靠且有序的消息有效
+	 */
+	void onWriteRequested(Channel channel, SocketAddress remoteAddress, Object message, WritableMessageType type, int streamId);
+	
+	/**
+	 * 会话建立后的回调，在会话的第一次滴答登记之前调用。
+	 * 
+	 * @param session 会话
+	 * @param remoteAddress 远端地址
+	 */
+	void onSessionOpened(IRudpSession session, SocketAddress remoteAddress);
+	
 	/**
 	 * 当检测到会话挂起时的回调
 	 * 
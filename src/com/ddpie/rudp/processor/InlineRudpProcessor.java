@@ -0,0 +1,213 @@
+package com.ddpie.rudp.processor;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jboss.netty.channel.Channel;
+
+import com.ddpie.rudp.config.IRudpConfig;
+import com.ddpie.rudp.constant.RudpConstants;
+import com.ddpie.rudp.filter.IRudpFilter;
+import com.ddpie.rudp.log.RudpLoggers;
+import com.ddpie.rudp.message.IRudpMessage;
+import com.ddpie.rudp.message.RudpDownMessage;
+import com.ddpie.rudp.message.RudpUpMessage;
+import com.ddpie.rudp.processor.queue.RudpMessageQueues;
+import com.ddpie.rudp.session.IRudpSession;
+
+/**
+ * 内联的RUDP消息处理器。<br>
+ * 不使用消息队列和独立的处理线程，直接在Netty的I/O线程中执行RUDP Filter和上层回调，省去每个消息的线程切换。<br>
+ * 处理器绑定到第一个经过它的消息所属的{@link Channel}，之后所有的消息、会话滴答和合并消息的发送都在该Channel的I/O线程中执行；
+ * 在其他线程中投递的消息，通过{@link org.jboss.netty.channel.ChannelPipeline#execute(Runnable)}转到I/O线程中执行。
+ * 同一个远端{@link java.net.SocketAddress}总是由同一个消息处理器处理，因此也总是在同一个I/O线程中处理。<br>
+ * 注意：处理器按Channel而不是按远端地址分配I/O线程。UDP服务器只有一个DatagramChannel，也就只有一个NIO worker线程，
+ * 所有的内联处理器都会绑定到这个Channel，整个服务器的消息都在这一个线程中处理，多个处理器并不能分摊到多个I/O线程上；
+ * 内联模式适合单个会话延迟敏感、总负载一个线程能够承担的场景，需要多核并行时应使用消息队列模式。<br>
+ * 定时器线程只负责按时间轮的滴答时长唤醒，会话的滴答操作仍在I/O线程中执行。<br>
+ * 适用于NIO的Channel，Filter和上层回调中不能有阻塞操作，否则会阻塞同一个I/O线程上的所有会话。
+ * 
+ * @author caobao
+ *
+ */
+public class InlineRudpProcessor extends RudpProcessor {
+	private volatile Channel channel;					//绑定的Channel，在它的I/O线程中处理消息
+	private volatile Thread ioThread;					//绑定的I/O线程
+	private volatile long nextWakeTime;					//下一次需要在I/O线程中滴答的时间，毫秒
+	private volatile boolean tickRequested;				//其他线程是否请求了立即滴答
+	private AtomicBoolean tickPending;					//是否已经向I/O线程投递了滴答任务
+	private Queue<IRudpMessage> deferredMessages;		//处理消息期间投递的消息，当前消息处理完后再处理，仅由I/O线程访问
+	private boolean isProcessing;						//是否正在处理消息或滴答，仅由I/O线程访问
+	private Timer wakeTimer;							//唤醒定时器
+	private final Runnable tickTask;					//在I/O线程中执行的滴答任务
+	
+	public InlineRudpProcessor(IRudpConfig rudpConfig, List<IRudpFilter> rudpFilters, String processorName) {
+		//消息直接处理，队列不会被使用
+		super(rudpConfig, rudpFilters, processorName, RudpMessageQueues.newLinkedQueue());
+		tickPending = new AtomicBoolean();
+		deferredMessages = new ArrayDeque<IRudpMessage>();
+		tickTask = new Runnable() {
+			@Override
+			public void run() {
+				tickPending.set(false);
+				ioThread = Thread.currentThread();
+				processInline(null);
+			}
+		};
+	}
+	
+	@Override
+	public synchronized void start() {
+		if(isRunning()) {
+			RudpLoggers.processorLogger.error(getProcessorName() + " has already started.");
+			return;
+		}
+		setRunning(true);
+		wakeTimer = new Timer(getProcessorName() + " Wake Timer", true);
+		long period = Math.max(1, RudpConstants.TIMING_WHEEL_TICK_DURATION);
+		wakeTimer.scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run() {
+				wakeIfNecessary();
+			}
+		}, period, period);
+	}
+	
+	@Override
+	public synchronized void stop() {
+		setRunning(false);
+		if(wakeTimer != null) {
+			wakeTimer.cancel();
+			wakeTimer = null;
+		}
+	}
+	
+	@Override
+	public void tickSession(IRudpSession session) {
+		super.tickSession(session);
+		//下一次唤醒时执行
+		tickRequested = true;
+	}
+	
+	@Override
+	public void put(final IRudpMessage message) {
+		if(isRunning() == false) {
+			RudpLoggers.processorLogger.warn("process is not running, cannot put message, message=" + message);
+			return;
+		}
+		if(isProcessorThread()) {
+			processInline(message);
+			return;
+		}
+		Channel boundChannel = bindChannel(getChannel(message));
+		if(boundChannel == null) {
+			RudpLoggers.processorLogger.error(getProcessorName() + " has no channel to process message, message=" + message);
+			return;
+		}
+		//NIO的Channel在I/O线程中调用时直接执行，否则投递到I/O线程的任务队列中
+		boundChannel.getPipeline().execute(new Runnable() {
+			@Override
+			public void run() {
+				ioThread = Thread.currentThread();
+				processInline(message);
+			}
+		});
+	}
+	
+	/**
+	 * 消息直接在I/O线程中处理或者转到I/O线程中执行，不进入消息队列，也不会等待。
+	 */
+	@Override
+	boolean tryPut(IRudpMessage message) {
+		put(message);
+		return true;
+	}
+	
+	@Override
+	protected boolean isProcessorThread() {
+		return Thread.currentThread() == ioThread;
+	}
+	
+	//获取消息所属的Channel，内部的会话状态消息没有Channel，此时处理器一定已经绑定了Channel
+	private Channel getChannel(IRudpMessage message) {
+		if(message instanceof RudpUpMessage) {
+			return ((RudpUpMessage) message).getChannel();
+		}
+		if(message instanceof RudpDownMessage) {
+			return ((RudpDownMessage) message).getChannel();
+		}
+		return null;
+	}
+	
+	//绑定到第一个经过的Channel
+	private Channel bindChannel(Channel messageChannel) {
+		if(channel == null && messageChannel != null) {
+			synchronized(this) {
+				if(channel == null) {
+					channel = messageChannel;
+				}
+			}
+		}
+		return channel;
+	}
+	
+	/*
+	 * 在I/O线程中处理一条消息，消息为null时只执行滴答。
+	 * 处理期间Filter或上层回调投递的消息（例如关闭会话、回调中发送的消息），
+	 * 在当前消息处理完后依次处理，不会嵌套进入Filter。
+	 */
+	private void processInline(IRudpMessage message) {
+		if(isProcessing) {
+			if(message != null) {
+				deferredMessages.add(message);
+			}
+			return;
+		}
+		isProcessing = true;
+		long startTime = System.nanoTime();
+		try {
+			if(message != null) {
+				processSafely(message);
+			}
+			else {
+				tickSessions();
+			}
+			IRudpMessage deferredMessage;
+			while((deferredMessage = deferredMessages.poll()) != null) {
+				processSafely(deferredMessage);
+			}
+			flushBundles();
+		}
+		catch(Exception e) {
+			RudpLoggers.processorLogger.error("process rudp message inline error", e);
+		}
+		finally {
+			isProcessing = false;
+			addBusyTime(System.nanoTime() - startTime);
+			//合并消息还在等待时，下一次唤醒时发送
+			long waitTime = hasPendingBundles() ? 0 : getWaitTime();
+			nextWakeTime = Math.min(nextWakeTime, System.currentTimeMillis() + waitTime);
+		}
+	}
+	
+	//由唤醒定时器调用，到了滴答时间时，向I/O线程投递滴答任务
+	private void wakeIfNecessary() {
+		Channel boundChannel = channel;
+		if(boundChannel == null || (tickRequested == false && System.currentTimeMillis() < nextWakeTime) || tickPending.getAndSet(true)) {
+			return;
+		}
+		tickRequested = false;
+		nextWakeTime = Long.MAX_VALUE;
+		try {
+			boundChannel.getPipeline().execute(tickTask);
+		}
+		catch(Exception e) {
+			tickPending.set(false);
+			RudpLoggers.processorLogger.error(getProcessorName() + " wake io thread error", e);
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package com.ddpie.rudp.processor;
+
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import com.ddpie.rudp.filter.IRudpFilter;
+import com.ddpie.rudp.filter.IRudpFilterCallback;
+import com.ddpie.rudp.filter.IRudpFilterContext;
+import com.ddpie.rudp.filter.IRudpPipelineFilter;
+import com.ddpie.rudp.filter.IRudpSharedFilterCallback;
+import com.ddpie.rudp.log.RudpLoggers;
+import com.ddpie.rudp.session.DirectWritter;
+import com.ddpie.rudp.session.IRudpSession;
+import com.ddpie.rudp.util.ChannelBufferHelper;
+
+/**
+ * 编译好的RUDP Filter管道。<br>
+ * 由Filter集合的快照一次性构造，每个Filter在每个方向上有一个固定的节点，节点就是传递结果的上下文。
+ * 节点产生的消息压入显式的栈中，按深度优先的顺序依次交给后面的节点，与逐层递归调用的顺序相同，但不递归，
+ * {@link IRudpPipelineFilter}产生多条消息时也不需要分配数组。<br>
+ * 与消息处理器一一对应，只在消息处理器线程中使用。
+ * 
+ * @author caobao
+ *
+ */
+public class RudpFilterPipeline {
+	private static final int INITIAL_STACK_SIZE = 16;	//栈的初始大小
+	
+	private IRudpFilter[] filters;			//Filter集合的快照
+	private Stage[] receiveStages;			//接收方向的节点，从第一个Filter到最后一个Filter
+	private Stage[] writeStages;			//发送方向的节点，从最后一个Filter到第一个Filter
+	private int[] stackStageIndexes;		//栈中每条消息要交给的节点下标
+	private Object[] stackContents;			//栈中的消息
+	private int top;						//栈顶位置
+	
+	/**
+	 * 根据Filter集合的快照编译管道。
+	 * 
+	 * @param rudpFilters RUDP Filter集合
+	 */
+	public RudpFilterPipeline(List<IRudpFilter> rudpFilters) {
+		if(rudpFilters == null) {
+			throw new IllegalArgumentException("rudpFilters cannot be null");
+		}
+		filters = rudpFilters.toArray(new IRudpFilter[0]);
+		receiveStages = new Stage[filters.length];
+		writeStages = new Stage[filters.length];
+		for (int i = 0; i < filters.length; i++) {
+			receiveStages[i] = new Stage(filters[i], i + 1);
+			writeStages[i] = new Stage(filters[filters.length - 1 - i], i + 1);
+		}
+		stackStageIndexes = new int[INITIAL_STACK_SIZE];
+		stackContents = new Object[INITIAL_STACK_SIZE];
+	}
+	
+	/**
+	 * 管道是否已经与Filter集合不一致，需要重新编译。
+	 * Filter只会增加，不会删除，所以数量不同时即不一致。
+	 * 
+	 * @param rudpFilters RUDP Filter集合
+	 * @return
+	 */
+	public boolean isStale(List<IRudpFilter> rudpFilters) {
+		return filters.length != rudpFilters.size();
+	}
+	
+	/**
+	 * 把收到的消息依次交给各个Filter，最后一个Filter传递出的消息交给回调。
+	 * 回调是{@link IRudpSharedFilterCallback}时，同时给出会话的远端地址。
+	 * 
+	 * @param session RUDP会话
+	 * @param messageContent 收到的消息
+	 * @param callback 所有Filter操作结束后的回调对象
+	 */
+	public void fireMessageReceived(IRudpSession session, Object messageContent, IRudpFilterCallback callback) {
+		if(receiveStages.length == 0) {
+			return;
+		}
+		IRudpSharedFilterCallback sharedCallback = callback instanceof IRudpSharedFilterCallback ? (IRudpSharedFilterCallback) callback : null;
+		int base = top;
+		push(0, messageContent);
+		try {
+			while(top > base) {
+				int stageIndex = stackStageIndexes[--top];
+				Object content = stackContents[top];
+				stackContents[top] = null;
+				if(stageIndex == receiveStages.length) {
+					if(sharedCallback != null) {
+						sharedCallback.callback(session.getRemoteAddress(), content);
+					}
+					else {
+						callback.callback(content);
+					}
+					continue;
+				}
+				int mark = top;
+				receiveStages[stageIndex].messageReceived(session, content);
+				reverse(mark);
+			}
+		}
+		finally {
+			clear(base);
+		}
+	}
+	
+	/**
+	 * 把要写入的消息从最后一个Filter开始依次交给各个Filter，第一个Filter传递出的消息直接发送。
+	 * 
+	 * @param session RUDP会话
+	 * @param messageContent 要写入的消息
+	 */
+	public void fireWriteRequested(IRudpSession session, Object messageContent) {
+		if(writeStages.length == 0) {
+			return;
+		}
+		int base = top;
+		push(0, messageContent);
+		try {
+			while(top > base) {
+				int stageIndex = stackStageIndexes[--top];
+				Object content = stackContents[top];
+				stackContents[top] = null;
+				if(stageIndex == writeStages.length) {
+					write(session, content);
+					continue;
+				}
+				int mark = top;
+				writeStages[stageIndex].writeRequested(session, content);
+				reverse(mark);
+			}
+		}
+		finally {
+			clear(base);
+		}
+	}
+	
+	//发送经过所有Filter的消息
+	private void write(IRudpSession session, Object content) {
+		DirectWritter.write(session, content);
+		if(RudpLoggers.businessDownLogger.isDebugEnabled()) {
+			ChannelBuffer buf = (ChannelBuffer) content;
+			RudpLoggers.businessDownLogger.debug(
+					"sent business message to " + session.getRemoteAddress() + ", msg=" + ChannelBufferHelper.toString(buf));
+		}
+	}
+	
+	//压入一条消息
+	private void push(int stageIndex, Object content) {
+		if(top == stackContents.length) {
+			int[] newStageIndexes = new int[top << 1];
+			Object[] newContents = new Object[top << 1];
+			System.arraycopy(stackStageIndexes, 0, newStageIndexes, 0, top);
+			System.arraycopy(stackContents, 0, newContents, 0, top);
+			stackStageIndexes = newStageIndexes;
+			stackContents = newContents;
+		}
+		stackStageIndexes[top] = stageIndex;
+		stackContents[top] = content;
+		top++;
+	}
+	
+	//一个节点按顺序压入的多条消息反转过来，使第一条消息位于栈顶，先被处理
+	private void reverse(int mark) {
+		for (int i = mark, j = top - 1; i < j; i++, j--) {
+			int stageIndex = stackStageIndexes[i];
+			stackStageIndexes[i] = stackStageIndexes[j];
+			stackStageIndexes[j] = stageIndex;
+			Object content = stackContents[i];
+			stackContents[i] = stackContents[j];
+			stackContents[j] = content;
+		}
+	}
+	
+	//出错时丢弃本次传递中剩余的消息
+	private void clear(int base) {
+		while(top > base) {
+			stackContents[--top] = null;
+		}
+	}
+	
+	/**
+	 * 管道中的一个节点，同时是它所包装的Filter传递结果的上下文。
+	 */
+	private final class Stage implements IRudpFilterContext {
+		private final IRudpFilter filter;					//包装的Filter
+		private final IRudpPipelineFilter pipelineFilter;	//通过上下文传递结果的Filter，不是时为null
+		private final int nextStageIndex;					//下一个节点的下标
+		
+		Stage(IRudpFilter filter, int nextStageIndex) {
+			this.filter = filter;
+			this.pipelineFilter = filter instanceof IRudpPipelineFilter ? (IRudpPipelineFilter) filter : null;
+			this.nextStageIndex = nextStageIndex;
+		}
+		
+		void messageReceived(IRudpSession session, Object messageContent) {
+			if(pipelineFilter != null) {
+				pipelineFilter.messageReceived(session, messageContent, this);
+				return;
+			}
+			fireResult(filter.messageReceived(session, messageContent));
+		}
+		
+		void writeRequested(IRudpSession session, Object messageContent) {
+			if(pipelineFilter != null) {
+				pipelineFilter.writeRequested(session, messageContent, this);
+				return;
+			}
+			fireResult(filter.writeRequested(session, messageContent));
+		}
+		
+		@Override
+		public void fireMessage(Object messageContent) {
+			if(messageContent != null) {
+				push(nextStageIndex, messageContent);
+			}
+		}
+		
+		//按原来的方式传递Filter的返回值：为null时禁止继续传递，为数组时依次传递
+		private void fireResult(Object result) {
+			if(result instanceof Object[]) {
+				for (Object content : (Object[]) result) {
+					fireMessage(content);
+				}
+			}
+			else {
+				fireMessage(result);
+			}
+		}
+	}
+}
@@ -1,72 +1,90 @@
 package com.ddpie.rudp.processor;
 
 import java.net.SocketAddress;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
-
-import org.jboss.netty.buffer.ChannelBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import com.ddpie.rudp.config.IRudpConfig;
 import com.ddpie.rudp.constant.RudpConstants;
 import com.ddpie.rudp.filter.IRudpFilter;
-import com.ddpie.rudp.filter.IRudpFilterCallback;
-import com.ddpie.rudp.filter.reliability.SessionReliabilityManager;
 import com.ddpie.rudp.log.RudpLoggers;
 import com.ddpie.rudp.message.IRudpMessage;
 import com.ddpie.rudp.message.RudpCloseMessage;
-import com.ddpie.rudp.message.RudpDownMessage;
-import com.ddpie.rudp.message.RudpResumeMessage;
-import com.ddpie.rudp.message.RudpSuspendMessage;
-import com.ddpie.rudp.message.RudpUpMessage;
-import com.ddpie.rudp.session.DirectWritter;
+import com.ddpie.rudp.message.RudpMessagePool;
+import com.ddpie.rudp.message.RudpMessageType;
+import com.ddpie.rudp.message.RudpMessages;
+import com.ddpie.rudp.message.RudpMigrateMessage;
+import com.ddpie.rudp.processor.queue.IRudpMessageQueue;
+import com.ddpie.rudp.processor.queue.RudpMessageQueues;
 import com.ddpie.rudp.session.IRudpSession;
-import com.ddpie.rudp.session.IRudpSessionManager;
 import com.ddpie.rudp.session.RudpSession;
-import com.ddpie.rudp.util.ChannelBufferHelper;
-import com.ddpie.rudp.util.MessageHelper;
 
 /**
  * RUDP消息处理器。<br>
  * 每个消息处理器都只有一个线程。<br>
- * 对于同一个远端{@link SocketAddress}采用同一个消息处理器处理，这个规则由{@link RudpProcessorManager}保证。
+ * 对于同一个远端{@link SocketAddress}采用同一个消息处理器处理，这个规则由{@link RudpProcessorManager}保证。<br>
+ * 消息队列有容量上限，队列已满时：消息处理器线程（包括其他处理器的线程）投递的消息进入溢出队列，不等待，避免处理器之间互相等待而死锁；
+ * Netty I/O线程投递的上行数据报直接丢弃并计数，由可靠性的重发补偿，不阻塞所有会话的接收；只有业务线程投递的其他消息等待队列腾出空间。
  * 
  * @author caobao
  *
  */
-public class RudpProcessor implements Runnable, IRudpProcessor {
-	private IRudpConfig rudpConfig;						//RUDP配置信息
-	private BlockingQueue<IRudpMessage> messageQueue;	//消息队列
-	private Set<IRudpSession> tickableSessions;			//需要执行滴答操作的会话
+public class RudpProcessor extends AbstractRudpProcessor implements Runnable, TimingWheel.IExpiredHandler<RudpSession> {
+	private static final long PUT_RETRY_INTERVAL_NANOS = 50 * 1000;	//队列已满时，重新投递的间隔，纳秒
+	
+	private IRudpMessageQueue messageQueue;				//消息队列
+	private IRudpMessage[] messageBatch;				//每次从消息队列中批量取出的消息
+	private static final ThreadLocal<RudpProcessor> currentProcessor = new ThreadLocal<RudpProcessor>();	//当前线程所属的消息处理器
+	
+	private Queue<IRudpMessage> overflowMessages;		//队列已满时，消息处理器线程投递的消息
+	private int overflowBarrier = -1;					//溢出队列之前还要处理的队列消息数量，溢出队列为空时为-1，仅由处理器线程访问
+	private AtomicLong droppedMessageCount;				//队列已满时丢弃的上行数据报数量
+	private TimingWheel<RudpSession> tickWheel;			//会话滴答时间轮，仅由处理器线程访问
+	private Queue<IRudpSession> pendingTickSessions;	//其他线程请求立即滴答的会话
 	private Thread processorThread;						//消息处理线程
 	private volatile boolean isRunning;					//是否处于运行状态
-	private String processorName;						//消息处理器名称
-	private List<IRudpFilter> rudpFilters;				//RUDP Filter集合
+	private RudpFilterPipeline filterPipeline;			//编译好的Filter管道，仅由处理器线程访问
 	
 	public RudpProcessor(IRudpConfig rudpConfig, List<IRudpFilter> rudpFilters, String processorName) {
-		if(rudpFilters == null) {
-			throw new IllegalArgumentException("rudpFilters cannot be null");
-		}
-		this.rudpConfig = rudpConfig;
-		messageQueue = new LinkedBlockingQueue<IRudpMessage>();
-		tickableSessions = new HashSet<IRudpSession>();
-		this.rudpFilters = rudpFilters;
-		this.processorName = processorName;
+		this(rudpConfig, rudpFilters, processorName, RudpMessageQueues.newQueue());
+	}
+	
+	/**
+	 * 使用指定的消息队列构造消息处理器。
+	 * 
+	 * @param rudpConfig RUDP配置信息
+	 * @param rudpFilters RUDP Filter集合
+	 * @param processorName 消息处理器名称
+	 * @param messageQueue 消息队列
+	 */
+	public RudpProcessor(IRudpConfig rudpConfig, List<IRudpFilter> rudpFilters, String processorName, IRudpMessageQueue messageQueue) {
+		super(rudpConfig, rudpFilters, processorName, new RudpMessagePool(RudpConstants.PROCESSOR_MESSAGE_POOL_CAPACITY));
+		if(messageQueue == null) {
+			throw new IllegalArgumentException("messageQueue cannot be null");
+		}
+		this.messageQueue = messageQueue;
+		messageBatch = new IRudpMessage[Math.max(1, RudpConstants.PROCESSOR_DRAIN_MAX_COUNT)];
+		overflowMessages = new ConcurrentLinkedQueue<IRudpMessage>();
+		droppedMessageCount = new AtomicLong();
+		tickWheel = new TimingWheel<RudpSession>(RudpConstants.TIMING_WHEEL_TICK_DURATION, System.currentTimeMillis());
+		pendingTickSessions = new ConcurrentLinkedQueue<IRudpSession>();
 	}
 
 	@Override
 	public synchronized void start() {
 		if(isRunning) {
-			RudpLoggers.processorLogger.error(processorName + " has already started.");
+			RudpLoggers.processorLogger.error(getProcessorName() + " has already started.");
 			return;
 		}
 		isRunning = true;
 		if(processorThread == null) {
-			processorThread = new Thread(this, processorName);
+			processorThread = new Thread(this, getProcessorName());
 		}
 		processorThread.start();
 	}
@@ -79,451 +97,270 @@ public class RudpProcessor implements Runnable, IRudpProcessor {
 	
 	@Override
 	public void tickSession(IRudpSession session) {
-		synchronized(tickableSessions) {
-			tickableSessions.add(session);
+		pendingTickSessions.add(session);
+	}
+	
+	@Override
+	public void scheduleTick(IRudpSession session, long dueTime) {
+		if(session instanceof RudpSession == false) {
+			return;
 		}
+		//时间轮只能由处理器线程访问，其他线程请求立即滴答，滴答后会重新计算下一次的时间
+		if(isProcessorThread() == false) {
+			tickSession(session);
+			return;
+		}
+		TimingWheel.Node<RudpSession> tickNode = ((RudpSession) session).getTickNode();
+		if(tickNode.isScheduled() && tickNode.getDeadline() <= dueTime) {
+			return;
+		}
+		tickWheel.schedule(tickNode, dueTime);
 	}
 
 	@Override
 	public void put(IRudpMessage message) {
-		if(isRunning == false) {
-			RudpLoggers.processorLogger.warn("process is not running, cannot put message, message=" + message);
+		if(tryPut(message)) {
 			return;
 		}
-		try {
-			messageQueue.put(message);
-		} catch (InterruptedException e) {
-			RudpLoggers.processorLogger.error("put rudp message error", e);
+		//业务线程投递的消息，等待处理器线程腾出空间
+		RudpLoggers.processorLogger.warn(getProcessorName() + " message queue is full, wait for free space, queue=" + messageQueue);
+		do {
+			LockSupport.parkNanos(PUT_RETRY_INTERVAL_NANOS);
 		}
+		while(tryPut(message) == false);
 	}
 
-	@Override
-	public void run() {
-		while(isRunning) {
-			IRudpMessage message = null;
-			try {
-				message = messageQueue.poll(RudpConstants.SESSION_TICK_INTERVAL, TimeUnit.MILLISECONDS);
-				process(message);
-				tickSessions();
-			}
-			catch(Exception e) {
-				if(message != null) {
-					//记录日志，含远程地址和异常信息
-					if(message.getRemoteAddress() != null) {
-						RudpLoggers.processorLogger.error("process rudp message error from " + message.getRemoteAddress(), e);
-					}
-					//关闭会话
-					if(message.getSession() != null) {
-						message.getSession().close();
-					}
-				}
-				else {
-					RudpLoggers.processorLogger.error("process rudp message error", e);
-				}
-				e.printStackTrace();
+	/**
+	 * 不等待地投递消息，由{@link SessionRoute}和{@link RudpProcessorManager}在锁内调用。<br>
+	 * 队列已满时，消息处理器线程投递的消息进入溢出队列，上行数据报被丢弃，都返回true；
+	 * 溢出队列非空时，处理器线程投递的消息也进入溢出队列，排在之前溢出的消息之后。
+	 * 
+	 * @param message RUDP消息
+	 * @return true，已经投递、进入溢出队列、被丢弃或者处理器未运行；false，队列已满，业务线程需要在锁外等待后重试
+	 */
+	boolean tryPut(IRudpMessage message) {
+		if(isRunning == false) {
+			RudpLoggers.processorLogger.warn("process is not running, cannot put message, message=" + message);
+			return true;
+		}
+		boolean isFromProcessor = currentProcessor.get() != null;
+		if((isFromProcessor == false || overflowMessages.isEmpty()) && messageQueue.offer(message)) {
+			return true;
+		}
+		//处理器线程投递消息时不能等待，否则处理器之间会互相等待，暂存到溢出队列中
+		if(isFromProcessor) {
+			overflowMessages.add(message);
+			return true;
+		}
+		//上行数据报丢弃，远端会重发可靠消息
+		if(message.getType() == RudpMessageType.UP) {
+			long droppedCount = droppedMessageCount.incrementAndGet();
+			if(RudpLoggers.processorLogger.isDebugEnabled()) {
+				RudpLoggers.processorLogger.debug(getProcessorName() + " message queue is full, drop received message, droppedCount=" + 
+						droppedCount + ", message=" + message);
 			}
+			RudpMessages.release(message);
+			return true;
 		}
+		return false;
 	}
 	
-	//执行所有会话的滴答操作
-	private void tickSessions() {
-		synchronized(tickableSessions) {
-			if(tickableSessions.size() == 0) {
-				return;
-			}
-			for(Iterator<IRudpSession> it = tickableSessions.iterator(); it.hasNext(); ) {
-				IRudpSession session = it.next();
-				if(session instanceof RudpSession) {
-					((RudpSession) session).tick();
-				}
-				it.remove();
-			}
-		}
-	}
-
-	//处理消息
-	private void process(IRudpMessage message) throws Exception{
-		if(message == null) {
-			return;
-		}
-		switch(message.getType()) {
-		case UP:
-			processUpMessage((RudpUpMessage) message);
-			break;
-		case DOWN:
-			processDownMessage((RudpDownMessage) message);
-			break;
-		case SUSPEND:
-			processSuspendMessage((RudpSuspendMessage) message);
-			break;
-		case RESUME:
-			processResumeMessage((RudpResumeMessage) message);
-			break;
-		case CLOSE:
-			processCloseMessage((RudpCloseMessage) message);
-			break;
-		default:
-			RudpLoggers.processorLogger.error("unkown message: " + message);
-		}
+	/**
+	 * 是否处于运行状态。
+	 * 
+	 * @return
+	 */
+	protected boolean isRunning() {
+		return isRunning;
 	}
 	
-	//处理上行消息
-	private void processUpMessage(RudpUpMessage message) {
-		//不是ChannelBuffer，则抛弃消息
-		if(message.getContent() instanceof ChannelBuffer == false) {
-			RudpLoggers.processorLogger.error("rudp processor cannot process the message, msg=" + message);
-			return;
-		}
-		
-		//作为服务器处理
-		if(rudpConfig.isServer()) {
-			processUpMessageAsServer(message);
-		}
-		//作为客户端处理
-		else {
-			processUpMessageAsClient(message);
-		}
+	/**
+	 * 设置运行状态，供不使用处理器线程的子类在启动和停止时调用。
+	 * 
+	 * @param isRunning 是否处于运行状态
+	 */
+	protected void setRunning(boolean isRunning) {
+		this.isRunning = isRunning;
 	}
 	
-	/*
-	 * 客户端处理上行消息的流程：
+	/**
+	 * 获取队列已满时丢弃的上行数据报数量。
 	 * 
-	 * 1、如果远端地址不是服务器地址，则直接抛弃；
-	 * 2、如果会话已建立，则直接将数据抛给Filter集合；
-	 * 3、如果会话未建立，则建立会话，然后把数据抛给Filter集合。
+	 * @return
 	 */
-	private void processUpMessageAsClient(RudpUpMessage message) {
-		ChannelBuffer buf = (ChannelBuffer) message.getContent();
-		
-		//关闭消息，则立即关闭会话
-		if(MessageHelper.isClose(buf)) {
-			IRudpSession session = message.getSession();
-			if(session != null && !session.isClosed()) {
-				if(RudpLoggers.sessionLogger.isInfoEnabled()) {
-					RudpLoggers.sessionLogger.info("receive close message from " + session.getRemoteAddress() + ", so close the session");
-				}
-				session.close();
-			}
-			return;
-		}
-		
-		if(rudpConfig.getServerAddress().equals(message.getRemoteAddress()) == false) {
-			return;
-		}
-
-		//记录日志
-		if(RudpLoggers.heartbeatUpLogger.isDebugEnabled()) {
-			if(MessageHelper.isHeartbeat((ChannelBuffer) message.getContent())) {
-				RudpLoggers.heartbeatUpLogger.debug(
-						"received heartbeat from " + message.getRemoteAddress() + ", " + ChannelBufferHelper.toString(buf));
-			}
-			else if(MessageHelper.isHandshake((ChannelBuffer) message.getContent())) {
-				RudpLoggers.heartbeatUpLogger.debug(
-						"received handshake from " + message.getRemoteAddress() + ", " + ChannelBufferHelper.toString(buf));
-			}
-		}
+	public long getDroppedMessageCount() {
+		return droppedMessageCount.get();
+	}
 
-		//如果session处于连接状态
-		IRudpSessionManager sessionMgr = rudpConfig.getSessionManager();
-		if(sessionMgr.isConnected(message.getRemoteAddress())) {
-			IRudpSession session = sessionMgr.getRudpSession(message.getRemoteAddress());
-			if(MessageHelper.isHeartbeat(buf) && session instanceof RudpSession) {
-				((RudpSession) session).onHeartbeatReceived();
-			}
-			else {
-				if(RudpLoggers.businessUpLogger.isDebugEnabled()) {
-					RudpLoggers.businessUpLogger.debug(
-							"received business message from " + message.getRemoteAddress() + 
-							", msg=" + ChannelBufferHelper.toString(buf));
+	@Override
+	public void run() {
+		currentProcessor.set(this);
+		while(isRunning) {
+			try {
+				long waitNanos = TimeUnit.MILLISECONDS.toNanos(getWaitTime());
+				//有等待发送的合并消息时，最迟在合并等待时间到期时唤醒
+				if(hasPendingBundles()) {
+					waitNanos = Math.min(waitNanos, Math.max(0, getBundleFlushTime() - System.nanoTime()));
 				}
-				if(session instanceof RudpSession) {
-					((RudpSession) session).onMessageReceived();
+				//有溢出的消息时不等待
+				if(overflowMessages.isEmpty() == false) {
+					waitNanos = 0;
 				}
+				int count = messageQueue.drainTo(messageBatch, waitNanos, TimeUnit.NANOSECONDS);
+				long startTime = System.nanoTime();
+				for (int i = 0; i < count; i++) {
+					IRudpMessage message = messageBatch[i];
+					messageBatch[i] = null;
+					processSafely(message);
+				}
+				drainOverflowMessages(count);
+				tickSessions();
+				flushBundles();
+				addBusyTime(System.nanoTime() - startTime);
 			}
-			notifyMessageReceived(session, message, message.getCallback());
-			message.getCallback().callback(message.getContent());
-			return;
-		}
-		
-		//创建会话并连接
-		RudpSession session = new RudpSession(rudpConfig, message.getChannel(), message.getRemoteAddress());
-		session.onHeartbeatReceived();
-		sessionMgr.addSession(session);
-
-		//通知监听器列表
-		notifySessionOpened(session);
-		
-		//抛给Filter集合
-		if(MessageHelper.isHeartbeat(buf) == false) {
-			if(RudpLoggers.businessUpLogger.isDebugEnabled()) {
-				RudpLoggers.businessUpLogger.debug(
-						"received business message from " + message.getRemoteAddress() + 
-						", msg=" + ChannelBufferHelper.toString(buf));
+			catch(Exception e) {
+				RudpLoggers.processorLogger.error("process rudp message error", e);
 			}
 		}
-		notifyMessageReceived(session, message, message.getCallback());
-		message.getCallback().callback(message.getContent());
+	}
+	
+	@Override
+	protected boolean isProcessorThread() {
+		return Thread.currentThread() == processorThread;
 	}
 	
 	/*
-	 * 服务器处理上行消息的流程：
-	 * 
-	 * 1、如果会话已建立，则直接将数据抛给Filter集合；
-	 * 2、如果会话未建立，则判断收到的消息是否是握手。如果是握手则建立会话，否则抛弃消息。
+	 * 处理溢出队列中的消息。
+	 * 溢出队列非空时，处理器线程投递的消息都进入溢出队列，但它们之前投递的消息可能还在队列中，
+	 * 所以先记下队列中的消息数量，处理完这么多条队列中的消息后，才处理溢出队列，保证同一个线程投递的消息按顺序处理。
 	 */
-	private void processUpMessageAsServer(RudpUpMessage message) {
-		ChannelBuffer buf = (ChannelBuffer) message.getContent();
-		
-		//关闭消息，则立即挂起会话
-		if(MessageHelper.isClose(buf)) {
-			IRudpSession session = message.getSession();
-			if(session != null && !session.isClosed() && !session.isSuspended()) {
-				if(RudpLoggers.sessionLogger.isInfoEnabled()) {
-					RudpLoggers.sessionLogger.info("receive close message from " + session.getRemoteAddress() + ", so suspend the session");
-				}
-				((RudpSession) session).suspend();
-			}
-			return;
-		}
-		
-		IRudpSessionManager sessionMgr = rudpConfig.getSessionManager();
-		//如果session处于连接或挂起状态
-		if(sessionMgr.isConnected(message.getRemoteAddress())) {
-			IRudpSession session = sessionMgr.getRudpSession(message.getRemoteAddress());
-			//挂起状态
-			if(session.isSuspended()) {
-				//不是握手消息，则抛弃消息
-				if(MessageHelper.isHandshake(buf) == false) {
-					return;
-				}
-				if(RudpLoggers.sessionLogger.isInfoEnabled()) {
-					RudpLoggers.sessionLogger.info("session resumed, session: " + session);
-				}
-				((RudpSession) session).resume();
-			}
-			//记录日志
-			if(RudpLoggers.heartbeatUpLogger.isDebugEnabled()) {
-				if(MessageHelper.isHeartbeat((ChannelBuffer) message.getContent())) {
-					RudpLoggers.heartbeatUpLogger.debug(
-							"received heartbeat from " + message.getRemoteAddress() + ", " + ChannelBufferHelper.toString(buf));
-				}
-				else if(MessageHelper.isHandshake((ChannelBuffer) message.getContent())) {
-					RudpLoggers.heartbeatUpLogger.debug(
-							"received handshake from " + message.getRemoteAddress() + ", " + ChannelBufferHelper.toString(buf));
-				}
-			}
-
-			//心跳消息
-			if(MessageHelper.isHeartbeat(buf)) {
-				if(session instanceof RudpSession) {
-					((RudpSession) session).onHeartbeatReceived();
-				}
-				notifyMessageReceived(session, message, message.getCallback());
-			}
-			//握手消息，有可能是客户端挂起恢复，反馈心跳
-			else if(MessageHelper.isHandshake(buf)) {
-				if(RudpLoggers.heartbeatUpLogger.isDebugEnabled()) {
-					RudpLoggers.heartbeatUpLogger.debug(
-							"connection is already established, received useless handshake, " + message.getRemoteAddress());
-				}
-				for (int i = 0; i < RudpConstants.HANDSHAKE_RESPONSE_MESSAGE_COUNT; i++) {
-					SessionReliabilityManager mgr = (SessionReliabilityManager) session.getAttribute("reliability");
-					if(mgr != null) {
-						mgr.sendHeartbeat();
-					}
-				}
-			}
-			//业务消息
-			else {
-				if(RudpLoggers.businessUpLogger.isDebugEnabled()) {
-					RudpLoggers.businessUpLogger.debug(
-							"received business message from " + message.getRemoteAddress() + 
-							", msg=" + ChannelBufferHelper.toString(buf));
-				}
-				notifyMessageReceived(session, message, message.getCallback());
-				if(session instanceof RudpSession) {
-					((RudpSession) session).onMessageReceived();
-				}
-			}
+	private void drainOverflowMessages(int drainedCount) {
+		if(overflowMessages.isEmpty()) {
+			overflowBarrier = -1;
 			return;
 		}
-		
-		//不是握手消息，则抛弃消息
-		if(MessageHelper.isHandshake(buf) == false) {
-			return;
+		if(overflowBarrier < 0) {
+			overflowBarrier = messageQueue.size();
 		}
-		
-		//是握手消息，创建会话并连接
-		RudpSession newSession = new RudpSession(rudpConfig, message.getChannel(), message.getRemoteAddress());
-		newSession.onHeartbeatReceived();
-		sessionMgr.addSession(newSession);
-		
-		//通知监听器列表
-		notifySessionOpened(newSession);
-		
-		//给客户端发送连接响应
-		for (int i = 0; i < RudpConstants.HANDSHAKE_RESPONSE_MESSAGE_COUNT; i++) {
-			MessageHelper.sendHeartbeat(newSession, 0, (short)0, 0, (short)0);
+		else {
+			overflowBarrier -= drainedCount;
 		}
-	}
-
-	//处理下行消息
-	private void processDownMessage(RudpDownMessage message) {
-		IRudpSessionManager sessionMgr = rudpConfig.getSessionManager();
-		IRudpSession session = sessionMgr.getRudpSession(message.getRemoteAddress());
-		if(session != null) {
-			notifyWriteRequested(session, message);
+		if(overflowBarrier > 0) {
+			return;
 		}
-		else {
-			RudpLoggers.processorLogger.warn("cannot find session when process down message " + message);
+		IRudpMessage overflowMessage;
+		while((overflowMessage = overflowMessages.poll()) != null) {
+			processSafely(overflowMessage);
 		}
-	}
-
-	//处理内部关闭消息
-	private void processCloseMessage(RudpCloseMessage message) {
-		notifySessionClosed(message.getSession());
+		overflowBarrier = -1;
 	}
 	
-	//处理内部挂起消息
-	private void processSuspendMessage(RudpSuspendMessage message) {
-		notifySessionSuspended(message.getSession());
+	/**
+	 * 获取距离下一次需要滴答的等待时间：时间轮中有会话时，按时间轮的滴答时长唤醒。
+	 * 
+	 * @return 等待时间，毫秒
+	 */
+	protected long getWaitTime() {
+		return tickWheel.size() > 0 ? tickWheel.getTickDuration() : RudpConstants.SESSION_TICK_INTERVAL;
 	}
 	
-	//处理内部恢复消息
-	private void processResumeMessage(RudpResumeMessage message) {
-		notifySessionResumed(message.getSession());
+	/**
+	 * 执行所有到期会话的滴答操作，只能在处理消息的线程中调用。
+	 */
+	protected void tickSessions() {
+		long currentTime = System.currentTimeMillis();
+		IRudpSession pendingSession;
+		while((pendingSession = pendingTickSessions.poll()) != null) {
+			scheduleTick(pendingSession, currentTime);
+		}
+		tickWheel.advance(currentTime, this);
 	}
 	
-	//通知所有RUDP Filter，一个RUDP连接打开了。
-	private void notifySessionOpened(IRudpSession session) {
-		for (IRudpFilter rudpFilter : rudpFilters) {
-			rudpFilter.sessionOpened(session);
-		}
+	@Override
+	public void onExpired(RudpSession session, long currentTime) {
+		tick(session, currentTime);
 	}
 	
-	//通知所有RUDP Filter，一个RUDP会话挂起了。
-	private void notifySessionSuspended(IRudpSession session) {
-		for (IRudpFilter rudpFilter : rudpFilters) {
-			rudpFilter.sessionSuspended(session);
-		}
+	@Override
+	protected void cancelTick(RudpSession session) {
+		tickWheel.cancel(session.getTickNode());
 	}
 	
-	//通知所有RUDP Filter，一个RUDP会话恢复了。
-	private void notifySessionResumed(IRudpSession session) {
-		for (IRudpFilter rudpFilter : rudpFilters) {
-			rudpFilter.sessionResumed(session);
+	@Override
+	protected void processMigrateMessage(RudpMigrateMessage message) {
+		if(message.getType() == RudpMessageType.MIGRATE_OUT) {
+			processMigrateOutMessage(message);
+		}
+		else {
+			processMigrateInMessage(message);
 		}
 	}
-	
-	//通知所有RUDP Filter，一个RUDP连接关闭了。
-	private void notifySessionClosed(IRudpSession session) {
-		for (IRudpFilter rudpFilter : rudpFilters) {
-			rudpFilter.sessionClosed(session);
+
+	/*
+	 * 处理内部关闭消息。
+	 * 会话有路由时，关闭之后投递的消息暂存在路由中，依次处理完后才删除路由，之后远端的消息才会按hash投递到其他处理器。
+	 */
+	@Override
+	protected void processCloseMessage(RudpCloseMessage message) {
+		super.processCloseMessage(message);
+		if(message.getRoute() != null) {
+			processOverflowMessages(message.getRemoteAddress());
+			IRudpMessage closedMessage;
+			while((closedMessage = message.getRoute().pollClosedMessage()) != null) {
+				processSafely(closedMessage);
+			}
 		}
 	}
 	
-	//通知所有RUDP Filter，一个消息收到了。
-	private void notifyMessageReceived(IRudpSession session, RudpUpMessage message, IRudpFilterCallback callback) {
-		notifyOneFilterMessageReceived(0, session, message.getContent(), callback);
+	/*
+	 * 处理会话迁出消息，此前投递的会话消息都已经处理完：
+	 * 先处理溢出队列中该会话的消息，再取消滴答登记、发送合并消息，最后通知目标处理器迁入。
+	 */
+	private void processMigrateOutMessage(RudpMigrateMessage message) {
+		processOverflowMessages(message.getRemoteAddress());
+		if(message.getSession() instanceof RudpSession) {
+			RudpSession session = (RudpSession) message.getSession();
+			cancelTick(session);
+			pendingTickSessions.remove(session);
+			flushBundle(session);
+		}
+		message.getRoute().getTargetProcessor().put(RudpMessages.newMigrateInMessage(message.getRoute()));
 	}
 	
-	//从当前Filter节点开始，根据操作结果，递归向后面的节点传递消息
-	private void notifyOneFilterMessageReceived(int filterIndex, IRudpSession session, Object messageContent, IRudpFilterCallback callback) {
-		if(filterIndex < 0 || filterIndex >= rudpFilters.size()) {
-			return;
+	//处理会话迁入消息，依次处理迁移期间暂存的消息，切换路由后立即滴答会话，暂存的消息中有关闭消息时不再滴答
+	private void processMigrateInMessage(RudpMigrateMessage message) {
+		IRudpMessage pendingMessage;
+		while((pendingMessage = message.getRoute().pollPendingMessage()) != null) {
+			processSafely(pendingMessage);
 		}
-		IRudpFilter rudpFilter = rudpFilters.get(filterIndex);
-		Object resultContent = rudpFilter.messageReceived(session, messageContent);
-		//当前Filter禁止消息继续传递，直接返回
-		if(resultContent == null) {
-			return;
+		if(message.getSession() instanceof RudpSession && message.getSession().isClosed() == false) {
+			scheduleTick(message.getSession(), System.currentTimeMillis());
 		}
-
-		//最后一个Filter
-		if(filterIndex == rudpFilters.size() - 1) {
-			//若结果是数组，则依次调用回调
-			if(resultContent instanceof Object[]) {
-				Object[] resultContentArray = (Object[]) resultContent;
-				for (int i = 0; i < resultContentArray.length; i++) {
-					callback.callback(resultContentArray[i]);
-				}
-			}
-			//不是数组，直接调用回调
-			else {
-				callback.callback(resultContent);
+	}
+	
+	//处理溢出队列中来自远端地址的消息，它们投递得比当前消息早
+	private void processOverflowMessages(SocketAddress remoteAddress) {
+		List<IRudpMessage> sessionMessages = new ArrayList<IRudpMessage>();
+		Iterator<IRudpMessage> it = overflowMessages.iterator();
+		while(it.hasNext()) {
+			IRudpMessage overflowMessage = it.next();
+			if(remoteAddress.equals(overflowMessage.getRemoteAddress())) {
+				it.remove();
+				sessionMessages.add(overflowMessage);
 			}
 		}
-		//不是最后一个Filter，需要继续传递
-		else {
-			//若结果是数组，则依次调用下个Filter
-			if(resultContent instanceof Object[]) {
-				Object[] resultContentArray = (Object[]) resultContent;
-				for (int i = 0; i < resultContentArray.length; i++) {
-					notifyOneFilterMessageReceived(filterIndex + 1, session, resultContentArray[i], callback);
-				}
-			}
-			//不是数组，直接调用下个Filter
-			else {
-				notifyOneFilterMessageReceived(filterIndex + 1, session, resultContent, callback);
-			}
+		for (IRudpMessage sessionMessage : sessionMessages) {
+			processSafely(sessionMessage);
 		}
 	}
-
-	//通知所有RUDP Filter，一个写请求。
-	private void notifyWriteRequested(IRudpSession session, RudpDownMessage message) {
-		notifyOneFilterWriteRequested(rudpFilters.size() - 1, session, message.getContent());
-	}
 	
-	//从当前Filter节点开始，根据操作结果，递归向后面的节点传递消息
-	private void notifyOneFilterWriteRequested(int filterIndex, IRudpSession session, Object messageContent) {
-		if(filterIndex < 0 || filterIndex >= rudpFilters.size()) {
-			return;
-		}
-		IRudpFilter rudpFilter = rudpFilters.get(filterIndex);
-		Object resultContent = rudpFilter.writeRequested(session, messageContent);
-		//当前Filter禁止消息继续传递，直接返回
-		if(resultContent == null) {
-			return;
-		}
-		
-		//最后一个Filter
-		if(filterIndex == 0) {
-			//若结果是数组，则依次发送消息
-			if(resultContent instanceof Object[]) {
-				Object[] resultContentArray = (Object[]) resultContent;
-				for (int i = 0; i < resultContentArray.length; i++) {
-					DirectWritter.write(session, resultContentArray[i]);
-					if(RudpLoggers.businessDownLogger.isDebugEnabled()) {
-						ChannelBuffer buf = (ChannelBuffer) resultContentArray[i];
-						RudpLoggers.businessDownLogger.debug(
-								"sent business message to " + session.getRemoteAddress() + ", msg=" + ChannelBufferHelper.toString(buf));
-					}
-				}
-			}
-			//不是数组，直接发送消息
-			else {
-				DirectWritter.write(session, resultContent);
-				if(RudpLoggers.businessDownLogger.isDebugEnabled()) {
-					ChannelBuffer buf = (ChannelBuffer) resultContent;
-					RudpLoggers.businessDownLogger.debug(
-							"sent business message to " + session.getRemoteAddress() + ", msg=" + ChannelBufferHelper.toString(buf));
-				}
-			}
-		}
-		//不是最后一个Filter，需要继续传递
-		else {
-			//若结果是数组，则依次调用下个Filter
-			if(resultContent instanceof Object[]) {
-				Object[] resultContentArray = (Object[]) resultContent;
-				for (int i = 0; i < resultContentArray.length; i++) {
-					notifyOneFilterWriteRequested(filterIndex - 1, session, resultContentArray[i]);
-				}
-			}
-			//不是数组，直接调用下个Filter
-			else {
-				notifyOneFilterWriteRequested(filterIndex - 1, session, resultContent);
-			}
+	//获取编译好的Filter管道，Filter集合有变化时重新编译
+	@Override
+	protected RudpFilterPipeline getFilterPipeline() {
+		if(filterPipeline == null || filterPipeline.isStale(getRudpFilters())) {
+			filterPipeline = new RudpFilterPipeline(getRudpFilters());
 		}
+		return filterPipeline;
 	}
 	
 }
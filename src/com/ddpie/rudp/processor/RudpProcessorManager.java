@@ -1,28 +1,53 @@
 package com.ddpie.rudp.processor;
 
 import java.net.SocketAddress;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 
 import com.ddpie.rudp.config.IRudpConfig;
+import com.ddpie.rudp.constant.RudpConstants;
 import com.ddpie.rudp.filter.IRudpFilter;
 import com.ddpie.rudp.filter.IRudpFilterCallback;
+import com.ddpie.rudp.log.RudpLoggers;
 import com.ddpie.rudp.message.IRudpMessage;
+import com.ddpie.rudp.message.RudpMessagePool;
 import com.ddpie.rudp.message.RudpMessages;
+import com.ddpie.rudp.message.WritableMessageType;
 import com.ddpie.rudp.session.IRudpSession;
 
 /**
- * 负责RUDP消息处理器的管理工作。
+ * 负责RUDP消息处理器的管理工作。<br>
+ * 会话建立时分配给负载最低的消息处理器，之后定期统计各消息处理器的负载，把最忙的消息处理器上的一个会话迁移到最闲的消息处理器，见{@link SessionRoute}。
+ * 只有一个消息处理器或者内联模式时，按远端地址的hash选择消息处理器。
  * 
  * @author caobao
  *
  */
 public class RudpProcessorManager implements IRudpProcessorManager {
-	private IRudpConfig rudpConfig;			//RUDP配置信息
-	private IRudpProcessor[] processors;	//RUDP消息处理器集合
-	private List<IRudpFilter> rudpFilters;	//RUDP Filter集合
+	private static final long PUT_RETRY_INTERVAL_NANOS = 50 * 1000;	//处理器队列已满时，重新投递的间隔，纳秒
+	
+	private IRudpConfig rudpConfig;							//RUDP配置信息
+	private RudpProcessor[] processors;						//RUDP消息处理器集合
+	private List<IRudpFilter> rudpFilters;					//RUDP Filter集合
+	private boolean isRouteEnabled;							//是否按负载分配会话
+	private ConcurrentMap<SocketAddress, SessionRoute> routes;	//已建立的会话的路由
+	private Object[] routeLocks;							//按hash选择处理器的消息与创建路由之间互斥的锁，与处理器一一对应
+	private AtomicIntegerArray sessionCounts;				//各个处理器上的会话数量
+	private volatile long[] processorLoads;					//上一个统计周期内各个处理器的忙碌时间，纳秒
+	private volatile long sessionLoad;						//上一个统计周期内平均每个会话的忙碌时间，纳秒
+	private long[] lastBusyTimes;							//上一次统计时各个处理器的忙碌时间，仅由负载统计线程访问
+	private Timer rebalanceTimer;							//负载统计定时器
 	
 	/**
 	 * 根据消息处理器的数量构造管理器。
@@ -36,11 +61,28 @@ public class RudpProcessorManager implements IRudpProcessorManager {
 		}
 		this.rudpConfig = rudpConfig;
 		rudpFilters = new CopyOnWriteArrayList<IRudpFilter>();
-		processors = new IRudpProcessor[processorCount];
+		processors = new RudpProcessor[processorCount];
 		for (int i = 0; i < processors.length; i++) {
-			processors[i] = new RudpProcessor(rudpConfig, rudpFilters, 
-					"RUDP Message Processor " + (i + 1) + "/" + processorCount);
+			String processorName = "RUDP Message Processor " + (i + 1) + "/" + processorCount;
+			//内联模式下，消息直接在Netty的I/O线程中处理
+			if(RudpConstants.PROCESSOR_INLINE_ENABLED) {
+				processors[i] = new InlineRudpProcessor(rudpConfig, rudpFilters, processorName);
+			}
+			else {
+				processors[i] = new RudpProcessor(rudpConfig, rudpFilters, processorName);
+			}
 		}
+		//内联模式下，处理器所在的线程由Channel决定，迁移没有意义
+		isRouteEnabled = processorCount > 1 && RudpConstants.PROCESSOR_INLINE_ENABLED == false;
+		routes = new ConcurrentHashMap<SocketAddress, SessionRoute>();
+		routeLocks = new Object[processorCount];
+		for (int i = 0; i < routeLocks.length; i++) {
+			routeLocks[i] = new Object();
+		}
+		sessionCounts = new AtomicIntegerArray(processorCount);
+		processorLoads = new long[processorCount];
+		sessionLoad = 1;
+		lastBusyTimes = new long[processorCount];
 	}
 	
 	@Override
@@ -48,21 +90,35 @@ public class RudpProcessorManager implements IRudpProcessorManager {
 		rudpFilters.add(rudpFilter);
 	}
 	
-	/**
-	 * 启动所有的消息处理器
-	 */
+	@Override
 	public void start() {
 		if(processors != null) {
 			for (IRudpProcessor processor : processors) {
 				processor.start();
 			}
 		}
+		if(isRouteEnabled && RudpConstants.PROCESSOR_REBALANCE_INTERVAL > 0) {
+			rebalanceTimer = new Timer("RUDP Processor Rebalance Timer", true);
+			rebalanceTimer.scheduleAtFixedRate(new TimerTask() {
+				@Override
+				public void run() {
+					try {
+						rebalance();
+					}
+					catch(Exception e) {
+						RudpLoggers.processorLogger.error("rebalance rudp processors error", e);
+					}
+				}
+			}, RudpConstants.PROCESSOR_REBALANCE_INTERVAL, RudpConstants.PROCESSOR_REBALANCE_INTERVAL);
+		}
 	}
 	
-	/**
-	 * 停止所有的消息处理器
-	 */
+	@Override
 	public void stop() {
+		if(rebalanceTimer != null) {
+			rebalanceTimer.cancel();
+			rebalanceTimer = null;
+		}
 		if(processors != null) {
 			for (IRudpProcessor processor : processors) {
 				processor.stop();
@@ -72,59 +128,277 @@ public class RudpProcessorManager implements IRudpProcessorManager {
 	
 	@Override
 	public void tickSession(IRudpSession session) {
+		SessionRoute route = getRoute(session.getRemoteAddress());
+		if(route != null) {
+			route.tickSession(session);
+			return;
+		}
 		IRudpProcessor processor = pickAProcessor(session.getRemoteAddress());
 		processor.tickSession(session);
 	}
 	
+	@Override
+	public void scheduleTick(IRudpSession session, long dueTime) {
+		SessionRoute route = getRoute(session.getRemoteAddress());
+		if(route != null) {
+			route.scheduleTick(session, dueTime);
+			return;
+		}
+		IRudpProcessor processor = pickAProcessor(session.getRemoteAddress());
+		processor.scheduleTick(session, dueTime);
+	}
+	
+	@Override
+	public boolean bundle(IRudpSession session, ChannelBuffer message) {
+		SessionRoute route = getRoute(session.getRemoteAddress());
+		if(route != null) {
+			return route.bundle(session, message);
+		}
+		IRudpProcessor processor = pickAProcessor(session.getRemoteAddress());
+		return processor.bundle(session, message);
+	}
+	
 	@Override
 	public void onMessageReceived(Channel channel, SocketAddress remoteAddress, Object message, IRudpFilterCallback callback) {
-		IRudpMessage rudpMessage = RudpMessages.newUpMessage(
+		IRudpMessage rudpMessage = RudpMessages.newUpMessage(getMessagePool(remoteAddress),
 				rudpConfig.getSessionManager().getRudpSession(remoteAddress), channel, remoteAddress, message, callback);
-		IRudpProcessor processor = pickAProcessor(remoteAddress);
-		processor.put(rudpMessage);
+		put(remoteAddress, rudpMessage);
 	}
 	
 	@Override
 	public void onWriteRequested(Channel channel, SocketAddress remoteAddress, Object message) {
 		IRudpMessage rudpMessage = RudpMessages.newDownMessage(
 				rudpConfig.getSessionManager().getRudpSession(remoteAddress), channel, remoteAddress, message);
-		IRudpProcessor processor = pickAProcessor(remoteAddress);
-		processor.put(rudpMessage);
+		put(remoteAddress, rudpMessage);
+	}
+	
+	@Override
+	public void onWriteRequested(Channel channel, SocketAddress remoteAddress, Object message, WritableMessageType type, int streamId) {
+		IRudpMessage rudpMessage = RudpMessages.newDownMessage(getMessagePool(remoteAddress),
+				rudpConfig.getSessionManager().getRudpSession(remoteAddress), channel, remoteAddress, message, type, streamId);
+		put(remoteAddress, rudpMessage);
+	}
+	
+	@Override
+	public void onSessionOpened(IRudpSession session, SocketAddress remoteAddress) {
+		if(isRouteEnabled == false) {
+			return;
+		}
+		/*
+		 * 会话在按hash选择的处理器中建立，创建路由后迁移到负载最低的处理器。
+		 * 同一个远端的上一个会话正在关闭时，握手消息由处理关闭消息的处理器处理，新路由也从这个处理器开始，
+		 * 它处理完上一个会话暂存的消息后才会处理新路由的消息。
+		 */
+		int hashIndex = getProcessorIndex(remoteAddress);
+		synchronized(routeLocks[hashIndex]) {
+			int index = getCurrentProcessorIndex(hashIndex);
+			SessionRoute route = new SessionRoute(this, session, processors[index], index);
+			routes.put(remoteAddress, route);
+			sessionCounts.incrementAndGet(index);
+			int targetIndex = pickLeastLoadedIndex();
+			if(targetIndex != index && route.migrate(processors[targetIndex], targetIndex)) {
+				sessionCounts.decrementAndGet(index);
+				sessionCounts.incrementAndGet(targetIndex);
+			}
+		}
 	}
 	
 	@Override
 	public void onSessionClosed(IRudpSession session, SocketAddress remoteAddress) {
+		//路由在处理器处理完关闭消息后删除，见removeRoute
+		SessionRoute route = getRoute(remoteAddress);
+		if(route != null && route.getSession() == session
+				&& route.close(RudpMessages.newCloseMessage(session, remoteAddress, route))) {
+			return;
+		}
 		IRudpMessage rudpMessage = RudpMessages.newCloseMessage(session, remoteAddress);
-		IRudpProcessor processor = pickAProcessor(remoteAddress);
-		processor.put(rudpMessage);
+		put(remoteAddress, rudpMessage);
+	}
+	
+	/**
+	 * 取出会话关闭后暂存在路由中的一条消息，没有时删除路由，由处理关闭消息的处理器调用。
+	 * 与按hash投递的消息互斥，保证路由删除前投递的消息都已经取出。
+	 * 
+	 * @param route 关闭的会话路由
+	 * @return 暂存的消息，null表示路由已经删除
+	 */
+	IRudpMessage removeRoute(SessionRoute route) {
+		SocketAddress remoteAddress = route.getSession().getRemoteAddress();
+		synchronized(routeLocks[getProcessorIndex(remoteAddress)]) {
+			IRudpMessage message = route.pollOrRemove();
+			if(message != null) {
+				return message;
+			}
+			//同一个远端的新会话可能已经替换了路由，这时只减少计数
+			routes.remove(remoteAddress, route);
+			sessionCounts.decrementAndGet(route.getProcessorIndex());
+			return null;
+		}
 	}
 	
 	@Override
 	public void onSessionSuspended(IRudpSession session, SocketAddress remoteAddress) {
 		IRudpMessage rudpMessage = RudpMessages.newSuspendMessage(session, remoteAddress);
-		IRudpProcessor processor = pickAProcessor(remoteAddress);
-		processor.put(rudpMessage);
+		put(remoteAddress, rudpMessage);
 	}
 	
 	@Override
 	public void onSessionResumed(IRudpSession session, SocketAddress remoteAddress) {
 		IRudpMessage rudpMessage = RudpMessages.newResumeMessage(session, remoteAddress);
-		IRudpProcessor processor = pickAProcessor(remoteAddress);
-		processor.put(rudpMessage);
+		put(remoteAddress, rudpMessage);
+	}
+	
+	//获取远端地址的会话路由，没有时返回null
+	private SessionRoute getRoute(SocketAddress remoteAddress) {
+		if(isRouteEnabled == false || remoteAddress == null) {
+			return null;
+		}
+		return routes.get(remoteAddress);
+	}
+	
+	/*
+	 * 投递消息：已建立会话的消息投递到会话路由，其他消息投递到按hash选择的处理器。
+	 * 按hash投递时与创建路由互斥，保证路由创建前投递的消息都排在迁出消息之前。
+	 */
+	private void put(SocketAddress remoteAddress, IRudpMessage message) {
+		if(isRouteEnabled == false) {
+			pickAProcessor(remoteAddress).put(message);
+			return;
+		}
+		SessionRoute route = getRoute(remoteAddress);
+		if(route != null && route.put(message)) {
+			return;
+		}
+		int index = getProcessorIndex(remoteAddress);
+		RudpProcessor processor = processors[index];
+		while(true) {
+			synchronized(routeLocks[index]) {
+				route = routes.get(remoteAddress);
+				//处理器线程投递的消息进入溢出队列，上行数据报被丢弃，只有业务线程投递的消息需要在锁外等待
+				if(route == null && processor.tryPut(message)) {
+					return;
+				}
+			}
+			//路由刚刚删除时重新按hash投递
+			if(route != null) {
+				if(route.put(message)) {
+					return;
+				}
+				continue;
+			}
+			LockSupport.parkNanos(PUT_RETRY_INTERVAL_NANOS);
+		}
+	}
+	
+	//获取当前线程所属的消息处理器的下标，不是处理器线程时返回默认的下标
+	private int getCurrentProcessorIndex(int defaultIndex) {
+		for (int i = 0; i < processors.length; i++) {
+			if(processors[i].isProcessorThread()) {
+				return i;
+			}
+		}
+		return defaultIndex;
 	}
 	
 	//根据远端地址选择一个消息处理器
 	private IRudpProcessor pickAProcessor(SocketAddress remoteAddress) {
+		return processors[getProcessorIndex(remoteAddress)];
+	}
+	
+	//获取远端地址的消息所用的消息池，按hash选择，与会话当前所在的处理器无关，消息总是归还到取出它的消息池
+	private RudpMessagePool getMessagePool(SocketAddress remoteAddress) {
+		return processors[getProcessorIndex(remoteAddress)].getMessagePool();
+	}
+	
+	//根据远端地址的hash选择消息处理器的下标
+	private int getProcessorIndex(SocketAddress remoteAddress) {
 		if(remoteAddress == null) {
 			throw new IllegalArgumentException("remoteAddress cannot be null");
 		}
 		//如果只有一个消息处理器，则直接返回
 		if(processors.length == 1) {
-			return processors[0];
+			return 0;
 		}
 		//根据hash与processCount求余，选择消息处理器
 		int hash = remoteAddress.hashCode();
-		int index = Math.abs(hash % processors.length);
-		return processors[index];
+		return Math.abs(hash % processors.length);
+	}
+	
+	//选择预计负载最低的处理器：上一个统计周期的忙碌时间，加上按会话数量估算的负载
+	private int pickLeastLoadedIndex() {
+		long[] loads = processorLoads;
+		long loadPerSession = sessionLoad;
+		int leastIndex = 0;
+		long leastLoad = Long.MAX_VALUE;
+		for (int i = 0; i < processors.length; i++) {
+			long load = loads[i] + sessionCounts.get(i) * loadPerSession;
+			if(load < leastLoad) {
+				leastLoad = load;
+				leastIndex = i;
+			}
+		}
+		return leastIndex;
+	}
+	
+	/*
+	 * 统计各处理器在上一个周期内的忙碌时间，最忙与最闲的处理器相差过大时，
+	 * 按消息数量估算最忙的处理器上各个会话的负载，迁移一个能够缩小差距的、负载最高的会话。
+	 */
+	private void rebalance() {
+		long[] loads = new long[processors.length];
+		long totalLoad = 0;
+		for (int i = 0; i < processors.length; i++) {
+			long busyTime = processors[i].getBusyTime();
+			loads[i] = busyTime - lastBusyTimes[i];
+			lastBusyTimes[i] = busyTime;
+			totalLoad += loads[i];
+		}
+		List<SessionRoute> routeList = new ArrayList<SessionRoute>(routes.values());
+		long[] routeMessageCounts = new long[routeList.size()];
+		long[] messageCounts = new long[processors.length];
+		for (int i = 0; i < routeList.size(); i++) {
+			routeMessageCounts[i] = routeList.get(i).takeMessageCount();
+			messageCounts[routeList.get(i).getProcessorIndex()] += routeMessageCounts[i];
+		}
+		processorLoads = loads;
+		sessionLoad = Math.max(1, totalLoad / Math.max(1, routeList.size()));
+		
+		int busiestIndex = 0;
+		int idlestIndex = 0;
+		for (int i = 1; i < loads.length; i++) {
+			if(loads[i] > loads[busiestIndex]) {
+				busiestIndex = i;
+			}
+			if(loads[i] < loads[idlestIndex]) {
+				idlestIndex = i;
+			}
+		}
+		long loadGap = loads[busiestIndex] - loads[idlestIndex];
+		long interval = TimeUnit.MILLISECONDS.toNanos(RudpConstants.PROCESSOR_REBALANCE_INTERVAL);
+		if(loadGap <= interval * RudpConstants.PROCESSOR_REBALANCE_THRESHOLD || messageCounts[busiestIndex] == 0) {
+			return;
+		}
+		//迁移后最忙的处理器不能比原来更忙，所以会话的负载要小于差距
+		SessionRoute hottestRoute = null;
+		long hottestLoad = 0;
+		for (int i = 0; i < routeList.size(); i++) {
+			SessionRoute route = routeList.get(i);
+			if(route.getProcessorIndex() != busiestIndex || route.isMigrating()) {
+				continue;
+			}
+			long routeLoad = loads[busiestIndex] * routeMessageCounts[i] / messageCounts[busiestIndex];
+			if(routeLoad > hottestLoad && routeLoad < loadGap) {
+				hottestLoad = routeLoad;
+				hottestRoute = route;
+			}
+		}
+		if(hottestRoute != null && hottestRoute.migrate(processors[idlestIndex], idlestIndex)) {
+			sessionCounts.decrementAndGet(busiestIndex);
+			sessionCounts.incrementAndGet(idlestIndex);
+			if(RudpLoggers.processorLogger.isInfoEnabled()) {
+				RudpLoggers.processorLogger.info("migrate session from processor " + (busiestIndex + 1) + " to processor " + (idlestIndex + 1) + 
+						", estimated load=" + hottestLoad + "ns, " + hottestRoute);
+			}
+		}
 	}
 }
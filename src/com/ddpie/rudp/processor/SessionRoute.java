@@ -0,0 +1,248 @@
+package com.ddpie.rudp.processor;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.locks.LockSupport;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import com.ddpie.rudp.log.RudpLoggers;
+import com.ddpie.rudp.message.IRudpMessage;
+import com.ddpie.rudp.message.RudpMessages;
+import com.ddpie.rudp.session.IRudpSession;
+
+/**
+ * 会话的路由，记录会话当前由哪个消息处理器处理。<br>
+ * 会话创建时由{@link RudpProcessorManager}按各消息处理器的负载选定，之后只在迁移时改变。迁移的过程：
+ * <ol>
+ * <li>向原处理器投递迁出消息，此后会话的消息暂存在路由中，滴答请求被忽略；</li>
+ * <li>原处理器处理完迁出消息之前的所有消息后，取消会话在时间轮中的登记，发送合并消息，向新处理器投递迁入消息；</li>
+ * <li>新处理器依次处理暂存的消息，切换路由，立即滴答一次会话，重新登记滴答时间。</li>
+ * </ol>
+ * 所有的投递都在路由的锁内完成，锁内不会等待，因此迁移前后会话的消息顺序不变。<br>
+ * 会话关闭时，关闭消息同样投递到会话当前的处理器，此后的消息暂存在路由中。该处理器处理关闭消息时依次处理暂存的消息，
+ * 没有暂存的消息后才删除路由，之后远端的消息再按hash投递，因此关闭前后同一个远端的消息顺序也不变。
+ * 
+ * @author caobao
+ *
+ */
+public class SessionRoute {
+	private static final long PUT_RETRY_INTERVAL_NANOS = 50 * 1000;	//消息处理器队列已满时，重新投递的间隔，纳秒
+	
+	private IRudpSession session;				//RUDP会话
+	private RudpProcessor processor;			//当前处理会话消息的处理器
+	private int processorIndex;					//会话分配到的处理器下标，迁移开始时即改为新处理器
+	private RudpProcessor targetProcessor;		//迁移的目标处理器，没有迁移时为null
+	private Queue<IRudpMessage> pendingMessages;	//迁移期间暂存的消息
+	private long messageCount;					//投递的消息数量
+	private long lastMessageCount;				//上一次统计负载时的消息数量，仅由负载统计线程访问
+	private boolean isClosing;					//是否已经投递关闭消息，之后的消息暂存
+	private boolean isRemoved;					//路由是否已经删除，删除后不再接受消息
+	private RudpProcessorManager manager;		//创建路由的消息处理器管理器
+	
+	SessionRoute(RudpProcessorManager manager, IRudpSession session, RudpProcessor processor, int processorIndex) {
+		this.manager = manager;
+		this.session = session;
+		this.processor = processor;
+		this.processorIndex = processorIndex;
+		pendingMessages = new ArrayDeque<IRudpMessage>();
+	}
+	
+	/**
+	 * 获取RUDP会话。
+	 * 
+	 * @return
+	 */
+	public IRudpSession getSession() {
+		return session;
+	}
+	
+	/**
+	 * 是否正在迁移。
+	 * 
+	 * @return
+	 */
+	public synchronized boolean isMigrating() {
+		return targetProcessor != null;
+	}
+	
+	/**
+	 * 获取会话分配到的处理器下标。
+	 * 
+	 * @return
+	 */
+	synchronized int getProcessorIndex() {
+		return processorIndex;
+	}
+	
+	/**
+	 * 获取本次统计周期内投递的消息数量，并开始新的统计周期，仅由负载统计线程调用。
+	 * 
+	 * @return
+	 */
+	synchronized long takeMessageCount() {
+		long count = messageCount - lastMessageCount;
+		lastMessageCount = messageCount;
+		return count;
+	}
+	
+	/**
+	 * 向当前的处理器投递消息，迁移期间和投递关闭消息之后暂存。
+	 * 处理器队列已满时，处理器线程投递的消息放入溢出队列，上行数据报被丢弃，业务线程投递的其他消息在锁外等待后重试。
+	 * 
+	 * @param message RUDP消息
+	 * @return true，已经投递；false，路由已经删除，需要按hash重新投递
+	 */
+	boolean put(IRudpMessage message) {
+		return put(message, false);
+	}
+	
+	/**
+	 * 投递会话的关闭消息，此后的消息暂存，直到处理器处理完关闭消息。
+	 * 
+	 * @param closeMessage 关闭消息
+	 * @return true，已经投递；false，路由已经删除或者已经投递过关闭消息
+	 */
+	boolean close(IRudpMessage closeMessage) {
+		return put(closeMessage, true);
+	}
+	
+	//投递消息，投递的是关闭消息时同时标记路由正在关闭
+	private boolean put(IRudpMessage message, boolean isClose) {
+		while(true) {
+			synchronized(this) {
+				if(isRemoved || (isClose && isClosing)) {
+					return false;
+				}
+				if(targetProcessor != null || isClosing) {
+					messageCount++;
+					pendingMessages.add(message);
+					isClosing |= isClose;
+					return true;
+				}
+				if(processor.tryPut(message)) {
+					messageCount++;
+					isClosing |= isClose;
+					return true;
+				}
+			}
+			//只有业务线程投递的消息需要等待，处理器线程的消息进入溢出队列，上行数据报被丢弃
+			LockSupport.parkNanos(PUT_RETRY_INTERVAL_NANOS);
+		}
+	}
+	
+	/**
+	 * 请求立即滴答会话，迁移期间忽略，迁入后会立即滴答；投递关闭消息之后忽略。
+	 * 
+	 * @param session RUDP会话
+	 */
+	synchronized void tickSession(IRudpSession session) {
+		if(targetProcessor == null && isClosing == false) {
+			processor.tickSession(session);
+		}
+	}
+	
+	/**
+	 * 登记会话的下一次滴答时间，迁移期间忽略，迁入后会立即滴答；投递关闭消息之后忽略。
+	 * 
+	 * @param session RUDP会话
+	 * @param dueTime 滴答时间，毫秒
+	 */
+	synchronized void scheduleTick(IRudpSession session, long dueTime) {
+		if(targetProcessor == null && isClosing == false) {
+			processor.scheduleTick(session, dueTime);
+		}
+	}
+	
+	/**
+	 * 合并发给会话远端的消息，迁移期间和投递关闭消息之后不合并。
+	 * 
+	 * @param session RUDP会话
+	 * @param message 消息
+	 * @return true，已经合并；false，不能合并，需要直接发送
+	 */
+	synchronized boolean bundle(IRudpSession session, ChannelBuffer message) {
+		if(targetProcessor != null || isClosing) {
+			return false;
+		}
+		return processor.bundle(session, message);
+	}
+	
+	/**
+	 * 取出一条投递关闭消息之后暂存的消息，没有时删除路由，由处理关闭消息的处理器调用。
+	 * 
+	 * @return 暂存的消息，null表示路由已经删除
+	 */
+	IRudpMessage pollClosedMessage() {
+		IRudpMessage message;
+		synchronized(this) {
+			if(isRemoved) {
+				return null;
+			}
+			message = pendingMessages.poll();
+		}
+		return message != null ? message : manager.removeRoute(this);
+	}
+	
+	/**
+	 * 取出一条暂存的消息，没有时把路由标记为已删除，由消息处理器管理器在删除路由时调用。
+	 * 
+	 * @return 暂存的消息，null表示路由已经标记为删除
+	 */
+	synchronized IRudpMessage pollOrRemove() {
+		IRudpMessage message = pendingMessages.poll();
+		if(message == null) {
+			isRemoved = true;
+		}
+		return message;
+	}
+	
+	/**
+	 * 开始把会话迁移到另一个处理器，向原处理器投递迁出消息。
+	 * 
+	 * @param target 目标处理器
+	 * @param targetIndex 目标处理器的下标
+	 * @return true，已经开始迁移；false，正在迁移、目标相同、正在关闭或者原处理器队列已满，本次不迁移
+	 */
+	synchronized boolean migrate(RudpProcessor target, int targetIndex) {
+		if(targetProcessor != null || target == processor || isClosing) {
+			return false;
+		}
+		//迁出消息必须排在会话已投递的所有消息之后：进入溢出队列时，也要等之前投递的队列消息处理完才会处理
+		if(processor.tryPut(RudpMessages.newMigrateOutMessage(this)) == false) {
+			RudpLoggers.processorLogger.warn("processor queue is full, cancel session migration, session=" + session);
+			return false;
+		}
+		targetProcessor = target;
+		processorIndex = targetIndex;
+		return true;
+	}
+	
+	/**
+	 * 获取迁移的目标处理器，由原处理器在处理迁出消息时调用。
+	 * 
+	 * @return
+	 */
+	synchronized RudpProcessor getTargetProcessor() {
+		return targetProcessor;
+	}
+	
+	/**
+	 * 取出一条暂存的消息，没有时完成迁移，切换到目标处理器，由目标处理器在处理迁入消息时调用。
+	 * 
+	 * @return 暂存的消息，null表示迁移已经完成
+	 */
+	synchronized IRudpMessage pollPendingMessage() {
+		IRudpMessage message = pendingMessages.poll();
+		if(message == null && targetProcessor != null) {
+			processor = targetProcessor;
+			targetProcessor = null;
+		}
+		return message;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return "SessionRoute [session=" + session + ", processorIndex=" + processorIndex + ", migrating=" + (targetProcessor != null) + "]";
+	}
+}
@@ -0,0 +1,276 @@
+package com.ddpie.rudp.processor;
+
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.ddpie.rudp.config.IRudpConfig;
+import com.ddpie.rudp.constant.RudpConstants;
+import com.ddpie.rudp.filter.IRudpFilter;
+import com.ddpie.rudp.log.RudpLoggers;
+import com.ddpie.rudp.message.IRudpMessage;
+import com.ddpie.rudp.message.RudpMessagePool;
+import com.ddpie.rudp.session.IRudpSession;
+import com.ddpie.rudp.session.RudpSession;
+
+/**
+ * 单个远端的RUDP消息处理器。<br>
+ * 不独占线程，而是作为串行执行器运行在共享的线程池中：同一时刻最多只有一个线程在处理它的消息，消息按投递的顺序处理；
+ * 有消息或者滴答到期时才向线程池提交处理任务，处理完后释放线程。<br>
+ * 每个远端{@link SocketAddress}有自己的消息处理器，Filter或上层回调中的阻塞操作只会阻塞这一个会话，由{@link SessionRudpProcessorManager}创建和回收。<br>
+ * 处理器只处理一个会话，因此只保存待处理的消息队列和会话的下一次滴答时间；消息池、Filter管道和唤醒用的时间轮都由管理器共享。
+ * 
+ * @author caobao
+ *
+ */
+public class SessionRudpProcessor extends AbstractRudpProcessor implements Runnable {
+	private SessionRudpProcessorManager manager;		//创建处理器的管理器
+	private SocketAddress remoteAddress;				//处理的远端地址
+	private Executor executor;							//执行处理任务的线程池
+	private Queue<IRudpMessage> messages;				//待处理的消息
+	private AtomicBoolean isScheduled;					//是否已经提交了处理任务
+	private volatile Thread runningThread;				//正在执行处理任务的线程
+	private volatile boolean isRunning;					//是否处于运行状态
+	private volatile boolean isTickRequested;			//是否请求了立即滴答
+	private boolean isRetired;							//是否已经被管理器回收，回收后不再接受消息
+	private long tickDeadline;							//会话的下一次滴答时间，毫秒，仅在处理任务中访问
+	private volatile long wakeTime;						//需要唤醒的时间，毫秒，由管理器的唤醒线程读取
+	private TimingWheel.Node<SessionRudpProcessor> wakeNode;	//唤醒时间轮中的节点，仅由管理器的唤醒线程访问
+	
+	/**
+	 * 构造消息处理器。
+	 * 
+	 * @param manager 创建处理器的管理器
+	 * @param rudpConfig RUDP配置信息
+	 * @param rudpFilters RUDP Filter集合
+	 * @param remoteAddress 处理的远端地址
+	 * @param executor 执行处理任务的线程池
+	 * @param messagePool 管理器共享的消息池
+	 */
+	SessionRudpProcessor(SessionRudpProcessorManager manager, IRudpConfig rudpConfig, List<IRudpFilter> rudpFilters,
+			SocketAddress remoteAddress, Executor executor, RudpMessagePool messagePool) {
+		super(rudpConfig, rudpFilters, "RUDP Session Processor " + remoteAddress, messagePool);
+		if(remoteAddress == null) {
+			throw new IllegalArgumentException("remoteAddress cannot be null");
+		}
+		if(executor == null) {
+			throw new IllegalArgumentException("executor cannot be null");
+		}
+		this.manager = manager;
+		this.remoteAddress = remoteAddress;
+		this.executor = executor;
+		messages = new ConcurrentLinkedQueue<IRudpMessage>();
+		isScheduled = new AtomicBoolean();
+		tickDeadline = Long.MAX_VALUE;
+		wakeTime = Long.MAX_VALUE;
+		wakeNode = new TimingWheel.Node<SessionRudpProcessor>(this);
+	}
+	
+	@Override
+	public synchronized void start() {
+		if(isRunning) {
+			RudpLoggers.processorLogger.error(getProcessorName() + " has already started.");
+			return;
+		}
+		isRunning = true;
+	}
+	
+	@Override
+	public void stop() {
+		isRunning = false;
+	}
+	
+	@Override
+	public void tickSession(IRudpSession session) {
+		isTickRequested = true;
+		schedule();
+	}
+	
+	@Override
+	public void scheduleTick(IRudpSession session, long dueTime) {
+		if(session instanceof RudpSession == false) {
+			return;
+		}
+		//滴答时间只在处理任务中修改，其他线程请求立即滴答，滴答后会重新计算下一次的时间
+		if(isProcessorThread() == false) {
+			tickSession(session);
+			return;
+		}
+		tickDeadline = Math.min(tickDeadline, dueTime);
+	}
+	
+	@Override
+	public void put(IRudpMessage message) {
+		if(offer(message) == false) {
+			RudpLoggers.processorLogger.warn(getProcessorName() + " has been retired, cannot put message, message=" + message);
+		}
+	}
+	
+	/**
+	 * 投递消息。
+	 * 
+	 * @param message RUDP消息
+	 * @return true，投递成功或者处理器未运行；false，处理器已经被回收，需要重新获取处理器
+	 */
+	synchronized boolean offer(IRudpMessage message) {
+		if(isRetired) {
+			return false;
+		}
+		if(isRunning == false) {
+			RudpLoggers.processorLogger.warn("process is not running, cannot put message, message=" + message);
+			return true;
+		}
+		messages.add(message);
+		schedule();
+		return true;
+	}
+	
+	/**
+	 * 空闲并且远端没有会话时回收处理器，回收后不再接受消息。
+	 * 与{@link #offer(IRudpMessage)}互斥，保证回收后不会再有消息进入，同一个远端不会有两个处理器同时处理消息。
+	 * 
+	 * @return true，已经回收；false，不能回收
+	 */
+	synchronized boolean retireIfIdle() {
+		if(isRetired || isIdle() == false || getRudpConfig().getSessionManager().getRudpSession(remoteAddress) != null) {
+			return false;
+		}
+		isRetired = true;
+		return true;
+	}
+	
+	@Override
+	protected boolean isProcessorThread() {
+		return Thread.currentThread() == runningThread;
+	}
+	
+	@Override
+	protected void cancelTick(RudpSession session) {
+		tickDeadline = Long.MAX_VALUE;
+	}
+	
+	@Override
+	protected RudpFilterPipeline getFilterPipeline() {
+		return manager.getFilterPipeline();
+	}
+	
+	/**
+	 * 获取处理的远端地址。
+	 * 
+	 * @return
+	 */
+	public SocketAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+	
+	/**
+	 * 获取需要唤醒的时间，由管理器的唤醒线程调用。
+	 * 
+	 * @return 唤醒时间，毫秒，Long.MAX_VALUE表示不需要唤醒
+	 */
+	long getWakeTime() {
+		return wakeTime;
+	}
+	
+	/**
+	 * 获取唤醒时间轮中的节点，仅由管理器的唤醒线程访问。
+	 * 
+	 * @return
+	 */
+	TimingWheel.Node<SessionRudpProcessor> getWakeNode() {
+		return wakeNode;
+	}
+	
+	/**
+	 * 唤醒时间已到，滴答会话并发送合并消息，由管理器的唤醒线程调用。
+	 */
+	void wake() {
+		isTickRequested = true;
+		schedule();
+	}
+	
+	@Override
+	public void run() {
+		drain();
+	}
+	
+	//是否空闲：没有待处理的消息，没有正在执行的处理任务，也不需要唤醒
+	private boolean isIdle() {
+		return messages.isEmpty() && isScheduled.get() == false && isTickRequested == false && wakeTime == Long.MAX_VALUE;
+	}
+	
+	//提交处理任务，已经提交时忽略
+	private void schedule() {
+		if(isRunning == false || isScheduled.compareAndSet(false, true) == false) {
+			return;
+		}
+		try {
+			executor.execute(this);
+		}
+		catch(RejectedExecutionException e) {
+			isScheduled.set(false);
+			RudpLoggers.processorLogger.error(getProcessorName() + " submit drain task error", e);
+		}
+	}
+	
+	/*
+	 * 处理任务：处理一批消息，滴答到期或者被请求滴答的会话，发送合并消息，最后把新的唤醒时间告诉管理器。
+	 * 还有剩余的消息时重新提交，让出线程给其他会话；没有会话并且空闲时由管理器回收。
+	 */
+	private void drain() {
+		runningThread = Thread.currentThread();
+		boolean isTicked = false;
+		long startTime = System.nanoTime();
+		try {
+			int maxCount = Math.max(1, RudpConstants.PROCESSOR_DRAIN_MAX_COUNT);
+			IRudpMessage message;
+			for (int i = 0; i < maxCount && (message = messages.poll()) != null; i++) {
+				processSafely(message);
+			}
+			long currentTime = System.currentTimeMillis();
+			if(isTickRequested || currentTime >= tickDeadline) {
+				isTickRequested = false;
+				isTicked = true;
+				tickDeadline = Long.MAX_VALUE;
+				IRudpSession session = getRudpConfig().getSessionManager().getRudpSession(remoteAddress);
+				if(session instanceof RudpSession) {
+					tick((RudpSession) session, currentTime);
+				}
+			}
+			flushBundles();
+		}
+		catch(Exception e) {
+			RudpLoggers.processorLogger.error("process rudp message error", e);
+		}
+		finally {
+			addBusyTime(System.nanoTime() - startTime);
+			updateWakeTime(isTicked);
+			runningThread = null;
+			isScheduled.set(false);
+		}
+		//处理期间投递的消息或者滴答请求
+		if(messages.isEmpty() == false || isTickRequested) {
+			schedule();
+		}
+		else if(wakeTime == Long.MAX_VALUE) {
+			manager.retireIfIdle(this);
+		}
+	}
+	
+	/*
+	 * 计算新的唤醒时间，有变化或者本次滴答过（唤醒节点可能已经到期）时通知管理器，只在处理任务中调用。
+	 * 合并消息还在等待时，下一次唤醒时发送。
+	 */
+	private void updateWakeTime(boolean isTicked) {
+		long newWakeTime = hasPendingBundles() ? Math.min(tickDeadline, System.currentTimeMillis()) : tickDeadline;
+		if(newWakeTime == wakeTime && isTicked == false) {
+			return;
+		}
+		wakeTime = newWakeTime;
+		manager.requestWake(this);
+	}
+}
@@ -0,0 +1,293 @@
+package com.ddpie.rudp.processor;
+
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.Queue;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+
+import com.ddpie.rudp.config.IRudpConfig;
+import com.ddpie.rudp.constant.RudpConstants;
+import com.ddpie.rudp.filter.IRudpFilter;
+import com.ddpie.rudp.filter.IRudpFilterCallback;
+import com.ddpie.rudp.log.RudpLoggers;
+import com.ddpie.rudp.message.IRudpMessage;
+import com.ddpie.rudp.message.RudpMessagePool;
+import com.ddpie.rudp.message.RudpMessages;
+import com.ddpie.rudp.message.WritableMessageType;
+import com.ddpie.rudp.session.IRudpSession;
+import com.ddpie.rudp.util.MessageHelper;
+
+/**
+ * 每个远端一个消息处理器的管理器。<br>
+ * 为每个远端{@link SocketAddress}创建一个{@link SessionRudpProcessor}，所有的消息处理器共享一个按需创建线程的线程池，
+ * 同一个会话的消息仍然串行、按顺序处理，Filter或上层回调中的阻塞操作只会阻塞它所在的会话。<br>
+ * 只为已有会话的远端和发来握手的远端创建消息处理器，其他远端的消息直接丢弃；消息处理器空闲并且没有会话时自行回收。
+ * 消息池和Filter管道由所有的消息处理器共享，Filter管道每个线程一个。<br>
+ * 唤醒定时器维护一个时间轮，消息处理器的唤醒时间变化时登记到时间轮中，每次只处理到期的消息处理器，不扫描全部。
+ * 
+ * @author caobao
+ *
+ */
+public class SessionRudpProcessorManager implements IRudpProcessorManager {
+	private IRudpConfig rudpConfig;											//RUDP配置信息
+	private List<IRudpFilter> rudpFilters;									//RUDP Filter集合
+	private ConcurrentMap<SocketAddress, SessionRudpProcessor> processors;	//各个远端的消息处理器
+	private ExecutorService executor;										//执行处理任务的线程池
+	private RudpMessagePool messagePool;									//所有消息处理器共享的消息池
+	private ThreadLocal<RudpFilterPipeline> filterPipelines;				//每个处理线程编译好的Filter管道
+	private Queue<SessionRudpProcessor> wakeRequests;						//唤醒时间有变化的消息处理器
+	private TimingWheel<SessionRudpProcessor> wakeWheel;					//唤醒时间轮，仅由唤醒定时器线程访问
+	private TimingWheel.IExpiredHandler<SessionRudpProcessor> wakeHandler;	//唤醒时间到期的回调
+	private Timer wakeTimer;												//唤醒定时器
+	private volatile boolean isRunning;										//是否处于运行状态
+	
+	/**
+	 * 构造管理器。
+	 * 
+	 * @param rudpConfig RUDP配置信息
+	 */
+	public SessionRudpProcessorManager(IRudpConfig rudpConfig) {
+		this.rudpConfig = rudpConfig;
+		rudpFilters = new CopyOnWriteArrayList<IRudpFilter>();
+		processors = new ConcurrentHashMap<SocketAddress, SessionRudpProcessor>();
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private AtomicInteger threadCount = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r);
+				t.setName("RUDP Session Processor Thread " + threadCount.incrementAndGet());
+				return t;
+			}
+		});
+		messagePool = new RudpMessagePool(RudpConstants.PROCESSOR_MESSAGE_POOL_CAPACITY);
+		filterPipelines = new ThreadLocal<RudpFilterPipeline>();
+		wakeRequests = new ConcurrentLinkedQueue<SessionRudpProcessor>();
+		wakeHandler = new TimingWheel.IExpiredHandler<SessionRudpProcessor>() {
+			@Override
+			public void onExpired(SessionRudpProcessor processor, long currentTime) {
+				processor.wake();
+			}
+		};
+	}
+	
+	@Override
+	public void addRudpFilter(IRudpFilter rudpFilter) {
+		rudpFilters.add(rudpFilter);
+	}
+	
+	@Override
+	public synchronized void start() {
+		if(isRunning) {
+			RudpLoggers.processorLogger.error("session processor manager has already started.");
+			return;
+		}
+		isRunning = true;
+		wakeWheel = new TimingWheel<SessionRudpProcessor>(RudpConstants.TIMING_WHEEL_TICK_DURATION, System.currentTimeMillis());
+		wakeTimer = new Timer("RUDP Session Processor Wake Timer", true);
+		long period = Math.max(1, RudpConstants.TIMING_WHEEL_TICK_DURATION);
+		wakeTimer.scheduleAtFixedRate(new TimerTask() {
+			@Override
+			public void run() {
+				wakeProcessors();
+			}
+		}, period, period);
+	}
+	
+	@Override
+	public synchronized void stop() {
+		isRunning = false;
+		if(wakeTimer != null) {
+			wakeTimer.cancel();
+			wakeTimer = null;
+		}
+		for (SessionRudpProcessor processor : processors.values()) {
+			processor.stop();
+		}
+		processors.clear();
+		executor.shutdown();
+	}
+	
+	@Override
+	public void tickSession(IRudpSession session) {
+		IRudpProcessor processor = pickAProcessor(session.getRemoteAddress());
+		processor.tickSession(session);
+	}
+	
+	@Override
+	public void scheduleTick(IRudpSession session, long dueTime) {
+		IRudpProcessor processor = pickAProcessor(session.getRemoteAddress());
+		processor.scheduleTick(session, dueTime);
+	}
+	
+	@Override
+	public boolean bundle(IRudpSession session, ChannelBuffer message) {
+		IRudpProcessor processor = pickAProcessor(session.getRemoteAddress());
+		return processor.bundle(session, message);
+	}
+	
+	@Override
+	public void onMessageReceived(Channel channel, SocketAddress remoteAddress, Object message, IRudpFilterCallback callback) {
+		IRudpSession session = rudpConfig.getSessionManager().getRudpSession(remoteAddress);
+		if(isUnsolicited(remoteAddress, session, message)) {
+			if(RudpLoggers.processorLogger.isDebugEnabled()) {
+				RudpLoggers.processorLogger.debug("drop unsolicited message from " + remoteAddress);
+			}
+			return;
+		}
+		IRudpMessage rudpMessage = RudpMessages.newUpMessage(messagePool, session, channel, remoteAddress, message, callback);
+		put(remoteAddress, rudpMessage);
+	}
+	
+	@Override
+	public void onWriteRequested(Channel channel, SocketAddress remoteAddress, Object message) {
+		IRudpMessage rudpMessage = RudpMessages.newDownMessage(
+				rudpConfig.getSessionManager().getRudpSession(remoteAddress), channel, remoteAddress, message);
+		put(remoteAddress, rudpMessage);
+	}
+	
+	@Override
+	public void onWriteRequested(Channel channel, SocketAddress remoteAddress, Object message, WritableMessageType type, int streamId) {
+		IRudpMessage rudpMessage = RudpMessages.newDownMessage(messagePool,
+				rudpConfig.getSessionManager().getRudpSession(remoteAddress), channel, remoteAddress, message, type, streamId);
+		put(remoteAddress, rudpMessage);
+	}
+	
+	@Override
+	public void onSessionOpened(IRudpSession session, SocketAddress remoteAddress) {
+		//处理器在会话的第一条消息到达时已经创建
+	}
+	
+	@Override
+	public void onSessionClosed(IRudpSession session, SocketAddress remoteAddress) {
+		IRudpMessage rudpMessage = RudpMessages.newCloseMessage(session, remoteAddress);
+		put(remoteAddress, rudpMessage);
+	}
+	
+	@Override
+	public void onSessionSuspended(IRudpSession session, SocketAddress remoteAddress) {
+		IRudpMessage rudpMessage = RudpMessages.newSuspendMessage(session, remoteAddress);
+		put(remoteAddress, rudpMessage);
+	}
+	
+	@Override
+	public void onSessionResumed(IRudpSession session, SocketAddress remoteAddress) {
+		IRudpMessage rudpMessage = RudpMessages.newResumeMessage(session, remoteAddress);
+		put(remoteAddress, rudpMessage);
+	}
+	
+	/**
+	 * 获取当前的消息处理器数量。
+	 * 
+	 * @return
+	 */
+	public int getProcessorCount() {
+		return processors.size();
+	}
+	
+	/**
+	 * 获取当前线程编译好的Filter管道，Filter集合有变化时重新编译，由消息处理器在处理任务中调用。
+	 * 
+	 * @return
+	 */
+	RudpFilterPipeline getFilterPipeline() {
+		RudpFilterPipeline filterPipeline = filterPipelines.get();
+		if(filterPipeline == null || filterPipeline.isStale(rudpFilters)) {
+			filterPipeline = new RudpFilterPipeline(rudpFilters);
+			filterPipelines.set(filterPipeline);
+		}
+		return filterPipeline;
+	}
+	
+	/**
+	 * 消息处理器的唤醒时间有变化，由唤醒定时器线程登记到时间轮中。
+	 * 
+	 * @param processor 消息处理器
+	 */
+	void requestWake(SessionRudpProcessor processor) {
+		wakeRequests.add(processor);
+	}
+	
+	/**
+	 * 空闲并且没有会话时回收消息处理器。
+	 * 
+	 * @param processor 消息处理器
+	 */
+	void retireIfIdle(SessionRudpProcessor processor) {
+		if(processor.retireIfIdle()) {
+			processors.remove(processor.getRemoteAddress(), processor);
+		}
+	}
+	
+	//向远端地址的消息处理器投递消息，处理器恰好被回收时，重新获取
+	private void put(SocketAddress remoteAddress, IRudpMessage message) {
+		SessionRudpProcessor processor;
+		while((processor = pickAProcessor(remoteAddress)).offer(message) == false) {
+			processors.remove(remoteAddress, processor);
+		}
+	}
+	
+	/*
+	 * 是否是不需要处理的消息：远端既没有会话也没有消息处理器，并且不可能因为这条消息建立会话。
+	 * 服务器只有握手消息才会建立会话，客户端只接受服务器地址发来的消息。
+	 */
+	private boolean isUnsolicited(SocketAddress remoteAddress, IRudpSession session, Object message) {
+		if(session != null || processors.containsKey(remoteAddress)) {
+			return false;
+		}
+		if(rudpConfig.isServer()) {
+			return message instanceof ChannelBuffer == false || MessageHelper.isHandshake((ChannelBuffer) message) == false;
+		}
+		return rudpConfig.getServerAddress().equals(remoteAddress) == false;
+	}
+	
+	//获取远端地址的消息处理器，没有时创建
+	private SessionRudpProcessor pickAProcessor(SocketAddress remoteAddress) {
+		if(remoteAddress == null) {
+			throw new IllegalArgumentException("remoteAddress cannot be null");
+		}
+		SessionRudpProcessor processor = processors.get(remoteAddress);
+		if(processor != null) {
+			return processor;
+		}
+		processor = new SessionRudpProcessor(this, rudpConfig, rudpFilters, remoteAddress, executor, messagePool);
+		//先启动再放入，其他线程取到的处理器都已经启动
+		if(isRunning) {
+			processor.start();
+		}
+		SessionRudpProcessor existingProcessor = processors.putIfAbsent(remoteAddress, processor);
+		return existingProcessor != null ? existingProcessor : processor;
+	}
+	
+	//由唤醒定时器调用，把唤醒时间有变化的消息处理器登记到时间轮中，再唤醒到期的消息处理器
+	private void wakeProcessors() {
+		SessionRudpProcessor processor;
+		while((processor = wakeRequests.poll()) != null) {
+			long wakeTime = processor.getWakeTime();
+			if(wakeTime == Long.MAX_VALUE) {
+				wakeWheel.cancel(processor.getWakeNode());
+			}
+			else {
+				wakeWheel.schedule(processor.getWakeNode(), wakeTime);
+			}
+		}
+		try {
+			wakeWheel.advance(System.currentTimeMillis(), wakeHandler);
+		}
+		catch(Exception e) {
+			RudpLoggers.processorLogger.error("wake session processors error", e);
+		}
+	}
+}
@@ -0,0 +1,283 @@
+package com.ddpie.rudp.processor;
+
+/**
+ * 分层时间轮。<br>
+ * 共{@link #LEVEL_COUNT}层，每层{@link #SLOT_COUNT}个槽位，第0层每个槽位代表一个滴答，
+ * 第n层每个槽位代表第n-1层的一整圈。到期时间较远的节点放在高层，时间轮转到对应槽位时再逐层下放，
+ * 最终在第0层到期。<br>
+ * 注册、取消都是O(1)操作，推进时间轮只会访问到期的节点。<br>
+ * 该实现不是线程安全的，只能由一个线程（消息处理器线程）访问。
+ * 
+ * @author caobao
+ *
+ * @param <T> 节点携带的对象类型
+ */
+public class TimingWheel<T> {
+	/** 每层时间轮的槽位位数 */
+	private static final int SLOT_BITS = 8;
+	/** 每层时间轮的槽位数量 */
+	private static final int SLOT_COUNT = 1 << SLOT_BITS;
+	/** 槽位下标掩码 */
+	private static final int SLOT_MASK = SLOT_COUNT - 1;
+	/** 时间轮层数 */
+	private static final int LEVEL_COUNT = 4;
+	/** 时间轮所能表示的最大滴答数 */
+	private static final long MAX_TICKS = (1L << (SLOT_BITS * LEVEL_COUNT)) - 1;
+
+	private final long tickDuration;	//每个滴答的时长，毫秒
+	private final Node<T>[][] slots;	//各层槽位的链表头
+	private long currentTick;			//当前滴答，该滴答对应的槽位已经处理过
+	private int size;					//时间轮中的节点数量
+
+	/**
+	 * 构造时间轮。
+	 * 
+	 * @param tickDuration 每个滴答的时长，毫秒
+	 * @param startTime 起始时间，毫秒
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public TimingWheel(long tickDuration, long startTime) {
+		if(tickDuration <= 0) {
+			throw new IllegalArgumentException("tickDuration must more than zero, tickDuration=" + tickDuration);
+		}
+		this.tickDuration = tickDuration;
+		this.slots = new Node[LEVEL_COUNT][SLOT_COUNT];
+		this.currentTick = startTime / tickDuration;
+	}
+
+	/**
+	 * 获取时间轮中的节点数量。
+	 * 
+	 * @return 节点数量
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * 获取每个滴答的时长。
+	 * 
+	 * @return 滴答时长，毫秒
+	 */
+	public long getTickDuration() {
+		return tickDuration;
+	}
+
+	/**
+	 * 注册节点的到期时间。<br>
+	 * 若节点已经注册，则先取消原来的注册。已经过期的时间会在下一个滴答到期。
+	 * 
+	 * @param node 节点
+	 * @param deadline 到期时间，毫秒
+	 */
+	public void schedule(Node<T> node, long deadline) {
+		if(node.isScheduled()) {
+			cancel(node);
+		}
+		node.deadline = deadline;
+		//向上取整，保证不会提前到期
+		long ticks = deadline / tickDuration;
+		if(ticks * tickDuration < deadline) {
+			ticks++;
+		}
+		if(ticks <= currentTick) {
+			ticks = currentTick + 1;
+		}
+		add(node, ticks);
+		size++;
+	}
+
+	/**
+	 * 取消节点的注册。
+	 * 
+	 * @param node 节点
+	 */
+	public void cancel(Node<T> node) {
+		if(node.isScheduled() == false) {
+			return;
+		}
+		unlink(node);
+		size--;
+	}
+
+	/**
+	 * 将时间轮推进到指定时间，依次处理所有到期的节点。<br>
+	 * 节点在回调之前已经取消注册，回调中可以重新注册。
+	 * 
+	 * @param currentTime 当前时间，毫秒
+	 * @param handler 到期回调
+	 * @return 到期的节点数量
+	 */
+	public int advance(long currentTime, IExpiredHandler<T> handler) {
+		long targetTick = currentTime / tickDuration;
+		//时间轮为空，直接跳到目标滴答
+		if(size == 0) {
+			if(targetTick > currentTick) {
+				currentTick = targetTick;
+			}
+			return 0;
+		}
+		int expiredCount = 0;
+		while(currentTick < targetTick) {
+			currentTick++;
+			//低层转完一圈，从高层向低层依次下放节点
+			if((currentTick & SLOT_MASK) == 0) {
+				cascade();
+			}
+			//处理第0层到期的节点
+			int index = (int) (currentTick & SLOT_MASK);
+			Node<T> node;
+			while((node = slots[0][index]) != null) {
+				unlink(node);
+				size--;
+				expiredCount++;
+				handler.onExpired(node.payload, currentTime);
+			}
+			if(size == 0) {
+				currentTick = targetTick;
+				break;
+			}
+		}
+		return expiredCount;
+	}
+
+	//将当前滴答对应的高层槽位中的节点下放到低层
+	private void cascade() {
+		//先找出需要下放的最高层，再从高到低依次下放
+		int topLevel = 1;
+		while(topLevel < LEVEL_COUNT - 1 && ((currentTick >>> (SLOT_BITS * topLevel)) & SLOT_MASK) == 0) {
+			topLevel++;
+		}
+		for (int level = topLevel; level >= 1; level--) {
+			int index = (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+			Node<T> node = slots[level][index];
+			slots[level][index] = null;
+			while(node != null) {
+				Node<T> next = node.next;
+				node.prev = null;
+				node.next = null;
+				node.level = -1;
+				add(node, node.ticks);
+				node = next;
+			}
+		}
+	}
+
+	//根据到期滴答把节点放到对应的层和槽位
+	private void add(Node<T> node, long ticks) {
+		long delta = ticks - currentTick;
+		//超出时间轮的表示范围，先放到最高层的最远处，到时再重新计算
+		if(delta > MAX_TICKS) {
+			delta = MAX_TICKS;
+		}
+		node.ticks = ticks;
+		int level = 0;
+		while(level < LEVEL_COUNT - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+			level++;
+		}
+		long slotTicks = currentTick + delta;
+		int index = (int) ((slotTicks >>> (SLOT_BITS * level)) & SLOT_MASK);
+		Node<T> head = slots[level][index];
+		node.level = level;
+		node.slot = index;
+		node.prev = null;
+		node.next = head;
+		if(head != null) {
+			head.prev = node;
+		}
+		slots[level][index] = node;
+	}
+
+	//从槽位链表中摘除节点
+	private void unlink(Node<T> node) {
+		if(node.prev != null) {
+			node.prev.next = node.next;
+		}
+		else {
+			slots[node.level][node.slot] = node.next;
+		}
+		if(node.next != null) {
+			node.next.prev = node.prev;
+		}
+		node.prev = null;
+		node.next = null;
+		node.level = -1;
+	}
+
+	@Override
+	public String toString() {
+		return "TimingWheel [tickDuration=" + tickDuration + ", currentTick=" + currentTick + ", size=" + size + "]";
+	}
+
+	/**
+	 * 时间轮节点。<br>
+	 * 每个节点同一时刻只能注册到一个时间轮中，可以反复注册，注册时不会分配内存。
+	 * 
+	 * @author caobao
+	 *
+	 * @param <T> 节点携带的对象类型
+	 */
+	public static final class Node<T> {
+		private final T payload;	//节点携带的对象
+		private long deadline;		//到期时间，毫秒
+		private long ticks;			//到期滴答
+		private int level = -1;		//所在的层，-1表示未注册
+		private int slot;			//所在的槽位
+		private Node<T> prev;		//槽位链表中的前一个节点
+		private Node<T> next;		//槽位链表中的后一个节点
+
+		public Node(T payload) {
+			this.payload = payload;
+		}
+
+		/**
+		 * 获取节点携带的对象。
+		 * 
+		 * @return 节点携带的对象
+		 */
+		public T getPayload() {
+			return payload;
+		}
+
+		/**
+		 * 是否已经注册到时间轮中。
+		 * 
+		 * @return true，已注册；false，未注册
+		 */
+		public boolean isScheduled() {
+			return level >= 0;
+		}
+
+		/**
+		 * 获取注册的到期时间。
+		 * 
+		 * @return 到期时间，毫秒
+		 */
+		public long getDeadline() {
+			return deadline;
+		}
+
+		@Override
+		public String toString() {
+			return "Node [payload=" + payload + ", deadline=" + deadline + ", scheduled=" + isScheduled() + "]";
+		}
+	}
+
+	/**
+	 * 节点到期的回调。
+	 * 
+	 * @author caobao
+	 *
+	 * @param <T> 节点携带的对象类型
+	 */
+	public interface IExpiredHandler<T> {
+
+		/**
+		 * 节点到期了。
+		 * 
+		 * @param payload 节点携带的对象
+		 * @param currentTime 当前时间，毫秒
+		 */
+		void onExpired(T payload, long currentTime);
+	}
+}
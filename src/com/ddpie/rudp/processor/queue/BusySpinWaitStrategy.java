@@ -0,0 +1,30 @@
+package com.ddpie.rudp.processor.queue;
+
+/**
+ * 忙等待策略。<br>
+ * 队列为空时，消费者线程一直自旋，唤醒延迟最低，但会独占一个CPU核。
+ * 仅适用于消息处理器数量不超过CPU核数的部署。
+ * 
+ * @author caobao
+ *
+ */
+public class BusySpinWaitStrategy implements IWaitStrategy {
+
+	@Override
+	public void await(IRudpMessageQueue queue, long timeoutNanos) throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutNanos;
+		while(queue.isEmpty()) {
+			if(System.nanoTime() - deadline >= 0) {
+				return;
+			}
+			if(Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	@Override
+	public void signal() {
+
+	}
+}
@@ -0,0 +1,51 @@
+package com.ddpie.rudp.processor.queue;
+
+import java.util.concurrent.TimeUnit;
+
+import com.ddpie.rudp.message.IRudpMessage;
+import com.ddpie.rudp.processor.IRudpProcessor;
+
+/**
+ * {@link IRudpProcessor}的消息队列。<br>
+ * 允许多个线程同时投递消息，但只允许消息处理器线程一个消费者取出消息。
+ * 
+ * @author caobao
+ *
+ */
+public interface IRudpMessageQueue {
+
+	/**
+	 * 投递一条消息，不会阻塞。
+	 * 
+	 * @param message RUDP消息
+	 * @return true，投递成功；false，队列已满
+	 */
+	boolean offer(IRudpMessage message);
+
+	/**
+	 * 批量取出消息。<br>
+	 * 若队列为空，则按照等待策略等待，直到有新消息或者超时。
+	 * 仅由消费者线程调用。
+	 * 
+	 * @param batch 存放取出消息的数组，最多取出batch.length条
+	 * @param timeout 最长等待时间
+	 * @param unit 时间单位
+	 * @return 实际取出的消息数量
+	 * @throws InterruptedException
+	 */
+	int drainTo(IRudpMessage[] batch, long timeout, TimeUnit unit) throws InterruptedException;
+
+	/**
+	 * 队列是否为空。
+	 * 
+	 * @return true，为空；false，不为空
+	 */
+	boolean isEmpty();
+
+	/**
+	 * 获取队列中的消息数量（近似值）。
+	 * 
+	 * @return 消息数量
+	 */
+	int size();
+}
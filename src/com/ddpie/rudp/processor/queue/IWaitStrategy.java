@@ -0,0 +1,26 @@
+package com.ddpie.rudp.processor.queue;
+
+/**
+ * 消息队列为空时，消费者线程的等待策略。<br>
+ * 每个策略实例只能绑定一个消息队列。
+ * 
+ * @author caobao
+ *
+ */
+public interface IWaitStrategy {
+
+	/**
+	 * 等待，直到队列不为空或者超时。
+	 * 仅由消费者线程调用。
+	 * 
+	 * @param queue 要等待的消息队列
+	 * @param timeoutNanos 最长等待时间，纳秒
+	 * @throws InterruptedException
+	 */
+	void await(IRudpMessageQueue queue, long timeoutNanos) throws InterruptedException;
+
+	/**
+	 * 生产者投递消息后的通知，用来唤醒等待中的消费者。
+	 */
+	void signal();
+}
@@ -0,0 +1,52 @@
+package com.ddpie.rudp.processor.queue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.ddpie.rudp.message.IRudpMessage;
+
+/**
+ * 基于{@link LinkedBlockingQueue}的无界消息队列。<br>
+ * 每条消息都需要分配链表节点并加锁，适用于消息量不大的场景（如客户端）。
+ * 
+ * @author caobao
+ *
+ */
+public class LinkedRudpMessageQueue implements IRudpMessageQueue {
+	private final BlockingQueue<IRudpMessage> queue = new LinkedBlockingQueue<IRudpMessage>();
+
+	@Override
+	public boolean offer(IRudpMessage message) {
+		return queue.offer(message);
+	}
+
+	@Override
+	public int drainTo(IRudpMessage[] batch, long timeout, TimeUnit unit) throws InterruptedException {
+		IRudpMessage message = queue.poll(timeout, unit);
+		if(message == null) {
+			return 0;
+		}
+		int count = 0;
+		batch[count++] = message;
+		while(count < batch.length && (message = queue.poll()) != null) {
+			batch[count++] = message;
+		}
+		return count;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	@Override
+	public int size() {
+		return queue.size();
+	}
+
+	@Override
+	public String toString() {
+		return "LinkedRudpMessageQueue [size=" + queue.size() + "]";
+	}
+}
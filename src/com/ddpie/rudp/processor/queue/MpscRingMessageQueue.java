@@ -0,0 +1,137 @@
+package com.ddpie.rudp.processor.queue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.ddpie.rudp.message.IRudpMessage;
+
+/**
+ * 有界、无锁的多生产者单消费者环形消息队列。<br>
+ * 每个槽位有一个序号，生产者通过CAS抢占写入位置，写完后发布槽位序号；
+ * 消费者根据槽位序号判断消息是否可读，读完后把槽位序号推进一圈，交还给生产者。<br>
+ * 投递和取出消息都不会分配内存，也不需要加锁。
+ * 
+ * @author caobao
+ *
+ */
+public class MpscRingMessageQueue implements IRudpMessageQueue {
+	private final IRudpMessage[] buffer;		//消息槽位
+	private final AtomicLongArray sequences;	//槽位序号
+	private final int mask;						//下标掩码
+	private final AtomicLong tail;				//生产者的下一个写入位置
+	private long head;							//消费者的下一个读取位置，仅由消费者线程访问
+	private final IWaitStrategy waitStrategy;	//队列为空时的等待策略
+
+	/**
+	 * 构造环形消息队列。
+	 * 
+	 * @param capacity 队列容量，必须是2的幂
+	 * @param waitStrategy 队列为空时的等待策略
+	 */
+	public MpscRingMessageQueue(int capacity, IWaitStrategy waitStrategy) {
+		if(capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+			throw new IllegalArgumentException("capacity must be a power of 2, capacity=" + capacity);
+		}
+		if(waitStrategy == null) {
+			throw new IllegalArgumentException("waitStrategy cannot be null");
+		}
+		this.buffer = new IRudpMessage[capacity];
+		this.sequences = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			sequences.set(i, i);
+		}
+		this.mask = capacity - 1;
+		this.tail = new AtomicLong(0);
+		this.waitStrategy = waitStrategy;
+	}
+
+	@Override
+	public boolean offer(IRudpMessage message) {
+		if(message == null) {
+			throw new IllegalArgumentException("message cannot be null");
+		}
+		long position;
+		int index;
+		while(true) {
+			position = tail.get();
+			index = (int) position & mask;
+			long diff = sequences.get(index) - position;
+			//槽位空闲，尝试抢占
+			if(diff == 0) {
+				if(tail.compareAndSet(position, position + 1)) {
+					break;
+				}
+			}
+			//槽位仍未被消费，队列已满
+			else if(diff < 0) {
+				return false;
+			}
+			//其他生产者已经抢占了该位置，重新读取写入位置
+		}
+		buffer[index] = message;
+		//发布槽位，消费者可见
+		sequences.set(index, position + 1);
+		waitStrategy.signal();
+		return true;
+	}
+
+	@Override
+	public int drainTo(IRudpMessage[] batch, long timeout, TimeUnit unit) throws InterruptedException {
+		int count = drain(batch);
+		if(count > 0 || timeout <= 0) {
+			return count;
+		}
+		waitStrategy.await(this, unit.toNanos(timeout));
+		return drain(batch);
+	}
+
+	//取出已经发布的消息，最多取出batch.length条
+	private int drain(IRudpMessage[] batch) {
+		int count = 0;
+		long position = head;
+		while(count < batch.length) {
+			int index = (int) position & mask;
+			//槽位尚未发布
+			if(sequences.get(index) != position + 1) {
+				break;
+			}
+			batch[count++] = buffer[index];
+			buffer[index] = null;
+			//交还槽位给下一圈的生产者
+			sequences.lazySet(index, position + buffer.length);
+			position++;
+		}
+		head = position;
+		return count;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return sequences.get((int) head & mask) != head + 1;
+	}
+
+	@Override
+	public int size() {
+		long size = tail.get() - head;
+		if(size < 0) {
+			return 0;
+		}
+		return (int) Math.min(size, buffer.length);
+	}
+
+	/**
+	 * 获取队列容量
+	 * 
+	 * @return 队列容量
+	 */
+	public int capacity() {
+		return buffer.length;
+	}
+
+	@Override
+	public String toString() {
+		return "MpscRingMessageQueue [capacity=" + buffer.length + ", size=" + size()
+				+ ", waitStrategy=" + waitStrategy.getClass().getSimpleName() + "]";
+	}
+}
@@ -0,0 +1,54 @@
+package com.ddpie.rudp.processor.queue;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 挂起等待策略。<br>
+ * 队列为空时，消费者线程立即挂起，由生产者唤醒。CPU占用最低，但唤醒有一定延迟。
+ * 
+ * @author caobao
+ *
+ */
+public class ParkWaitStrategy implements IWaitStrategy {
+	private volatile Thread waiter;	//正在等待的消费者线程
+
+	@Override
+	public void await(IRudpMessageQueue queue, long timeoutNanos) throws InterruptedException {
+		park(queue, System.nanoTime() + timeoutNanos);
+	}
+
+	/**
+	 * 挂起当前线程，直到队列不为空或者到达截止时间。
+	 * 
+	 * @param queue 要等待的消息队列
+	 * @param deadline 截止时间，{@link System#nanoTime()}
+	 * @throws InterruptedException
+	 */
+	protected void park(IRudpMessageQueue queue, long deadline) throws InterruptedException {
+		//先登记等待线程，再检查队列，保证不会错过生产者的唤醒
+		waiter = Thread.currentThread();
+		try {
+			while(queue.isEmpty()) {
+				long remaining = deadline - System.nanoTime();
+				if(remaining <= 0) {
+					return;
+				}
+				LockSupport.parkNanos(this, remaining);
+				if(Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			}
+		}
+		finally {
+			waiter = null;
+		}
+	}
+
+	@Override
+	public void signal() {
+		Thread thread = waiter;
+		if(thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package com.ddpie.rudp.processor.queue;
+
+import com.ddpie.rudp.constant.RudpConstants;
+
+/**
+ * 消息队列生产工厂。
+ * 
+ * @author caobao
+ *
+ */
+public class RudpMessageQueues {
+
+	/**
+	 * 根据{@link RudpConstants}中的配置构造消息队列。<br>
+	 * 若{@link RudpConstants#PROCESSOR_QUEUE_CAPACITY}不大于0，则构造无界的链表队列；
+	 * 否则构造有界的环形队列。
+	 * 
+	 * @return 构造完成的消息队列
+	 */
+	public static IRudpMessageQueue newQueue() {
+		if(RudpConstants.PROCESSOR_QUEUE_CAPACITY <= 0) {
+			return newLinkedQueue();
+		}
+		return newRingQueue(RudpConstants.PROCESSOR_QUEUE_CAPACITY, RudpConstants.PROCESSOR_WAIT_STRATEGY);
+	}
+
+	/**
+	 * 构造无界的链表队列。
+	 * 
+	 * @return 构造完成的消息队列
+	 */
+	public static IRudpMessageQueue newLinkedQueue() {
+		return new LinkedRudpMessageQueue();
+	}
+
+	/**
+	 * 构造有界的环形队列。
+	 * 
+	 * @param capacity 队列容量，会向上取整为2的幂
+	 * @param waitStrategyType 等待策略类型
+	 * @return 构造完成的消息队列
+	 */
+	public static IRudpMessageQueue newRingQueue(int capacity, WaitStrategyType waitStrategyType) {
+		if(capacity <= 0) {
+			throw new IllegalArgumentException("capacity must more than zero, capacity=" + capacity);
+		}
+		int powerOfTwo = Integer.highestOneBit(capacity);
+		if(powerOfTwo < capacity) {
+			powerOfTwo = powerOfTwo << 1;
+		}
+		return new MpscRingMessageQueue(powerOfTwo, newWaitStrategy(waitStrategyType));
+	}
+
+	/**
+	 * 构造等待策略。
+	 * 
+	 * @param type 等待策略类型
+	 * @return 构造完成的等待策略
+	 */
+	public static IWaitStrategy newWaitStrategy(WaitStrategyType type) {
+		if(type == null) {
+			return new ParkWaitStrategy();
+		}
+		switch(type) {
+		case SPIN_THEN_PARK:
+			return new SpinThenParkWaitStrategy(
+					RudpConstants.PROCESSOR_WAIT_SPIN_COUNT, RudpConstants.PROCESSOR_WAIT_YIELD_COUNT);
+		case BUSY_SPIN:
+			return new BusySpinWaitStrategy();
+		case PARK:
+		default:
+			return new ParkWaitStrategy();
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package com.ddpie.rudp.processor.queue;
+
+/**
+ * 先自旋后挂起的等待策略。<br>
+ * 队列为空时，消费者线程先自旋一段时间，仍然没有消息再挂起。兼顾唤醒延迟和CPU占用。
+ * 
+ * @author caobao
+ *
+ */
+public class SpinThenParkWaitStrategy extends ParkWaitStrategy {
+	private final int spinCount;	//挂起前的自旋次数
+	private final int yieldCount;	//自旋结束后，挂起前让出CPU的次数
+
+	/**
+	 * 构造先自旋后挂起的等待策略。
+	 * 
+	 * @param spinCount 挂起前的自旋次数
+	 * @param yieldCount 自旋结束后，挂起前让出CPU的次数
+	 */
+	public SpinThenParkWaitStrategy(int spinCount, int yieldCount) {
+		if(spinCount < 0 || yieldCount < 0) {
+			throw new IllegalArgumentException(
+					"spinCount and yieldCount cannot be negative, spinCount=" + spinCount + ", yieldCount=" + yieldCount);
+		}
+		this.spinCount = spinCount;
+		this.yieldCount = yieldCount;
+	}
+
+	@Override
+	public void await(IRudpMessageQueue queue, long timeoutNanos) throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutNanos;
+		for (int i = 0; i < spinCount; i++) {
+			if(queue.isEmpty() == false) {
+				return;
+			}
+		}
+		for (int i = 0; i < yieldCount; i++) {
+			if(queue.isEmpty() == false) {
+				return;
+			}
+			Thread.yield();
+		}
+		park(queue, deadline);
+	}
+}
@@ -0,0 +1,18 @@
+package com.ddpie.rudp.processor.queue;
+
+/**
+ * 消息队列的等待策略类型。
+ * 
+ * @author caobao
+ *
+ */
+public enum WaitStrategyType {
+	/** 挂起等待，见{@link ParkWaitStrategy} */
+	PARK,
+
+	/** 先自旋后挂起，见{@link SpinThenParkWaitStrategy} */
+	SPIN_THEN_PARK,
+
+	/** 忙等待，见{@link BusySpinWaitStrategy} */
+	BUSY_SPIN,
+}
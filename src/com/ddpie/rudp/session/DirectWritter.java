@@ -1,5 +1,7 @@
 package com.ddpie.rudp.session;
 
+import org.jboss.netty.channel.ChannelFuture;
+
 import com.ddpie.rudp.log.RudpLoggers;
 
 /**
@@ -12,14 +14,20 @@ public class DirectWritter {
 	
 	/**
 	 * 直接向远端发送消息。
+	 * 
+	 * @return 发送的结果；消息已经复制到合并消息中，或者无法发送时，返回null
 	 */
-	public static void write(IRudpSession session, Object message) {
+	public static ChannelFuture write(IRudpSession session, Object message) {
 		if(session instanceof RudpSession == false) {
 			RudpLoggers.sessionLogger.error(
 					"session is not RudpSession, so cannot send direct message, session=" + session);
-			return;
+			return null;
 		}
 		RudpSession rudpSession = (RudpSession) session;
-		rudpSession.channel.write(message, session.getRemoteAddress());
+		//在消息处理器线程中发送的消息，合并到一个数据报中
+		if(rudpSession.bundle(message)) {
+			return null;
+		}
+		return rudpSession.channel.write(message, session.getRemoteAddress());
 	}
 }
@@ -1,6 +1,7 @@
 package com.ddpie.rudp.session;
 
 import java.net.SocketAddress;
+import java.util.List;
 
 import com.ddpie.rudp.attribute.IAttributeContainer;
 
@@ -39,6 +40,22 @@ public interface IRudpSession extends IAttributeContainer {
 	 */
 	SocketAddress getLocalAddress();
 	
+	/**
+	 * 获取与远端之间的平滑往返时间（RTT）。
+	 * 由可靠消息的确认测得，包含远端的反馈等待时间。
+	 * 
+	 * @return 往返时间，毫秒；尚未测量时返回-1
+	 */
+	long getRtt();
+	
+	/**
+	 * 获取与远端之间的路径MTU，即发给远端的消息包（UDP数据）的最大长度。
+	 * 两端都支持路径MTU探测时，由探测得出，否则为{@link com.ddpie.rudp.constant.RudpConstants#MESSAGE_MAX_LENGTH}。
+	 * 
+	 * @return 路径MTU，字节
+	 */
+	int getMtu();
+	
 	/**
 	 * 向会话远端发送可靠且有序的消息。
 	 * 
@@ -46,6 +63,17 @@ public interface IRudpSession extends IAttributeContainer {
 	 */
 	void writeOrdered(Object message);
 	
+	/**
+	 * 向会话远端的指定有序流发送可靠且有序的消息。<br>
+	 * 每个有序流内的消息按发送顺序交付，不同有序流之间相互独立，一个流中的消息丢失不会阻塞其他流。
+	 * 远端不支持多个有序流时，所有有序消息都在同一个流中发送。
+	 * {@link #writeOrdered(Object)}相当于使用流0。
+	 * 
+	 * @param streamId 有序流ID，0到{@link com.ddpie.rudp.constant.RudpConstants#ORDERED_STREAM_COUNT}-1
+	 * @param message 要发送的消息，不能是{@link com.ddpie.rudp.message.WritableMessageWrapper}，否则抛出{@link IllegalArgumentException}
+	 */
+	void writeOrdered(int streamId, Object message);
+	
 	/**
 	 * 向会话远端发送可靠但无序的消息。
 	 * 
@@ -60,6 +88,26 @@ public interface IRudpSession extends IAttributeContainer {
 	 */
 	void writeUnreliable(Object message);
 	
+	/**
+	 * 一次发送多条消息。<br>
+	 * 这些消息作为一个整体交给消息处理器，依次经过各个Filter后，尽可能合并到最少的数据报中发出。
+	 * 消息可以是{@link com.ddpie.rudp.message.WritableMessageWrapper}，以指定各自的发送类型，否则按可靠且有序的消息发送。
+	 * 
+	 * @param messages 要发送的消息
+	 */
+	void writeBatch(List<?> messages);
+	
+	/**
+	 * 暂停发送，之后写入的消息暂存在会话中，直到调用{@link #flush()}时再作为一批消息发送。<br>
+	 * 暂停期间所有线程写入的消息都会被暂存。
+	 */
+	void cork();
+	
+	/**
+	 * 把{@link #cork()}之后暂存的消息作为一批消息发送，并恢复立即发送。
+	 */
+	void flush();
+	
 	/**
 	 * 关闭会话
 	 */
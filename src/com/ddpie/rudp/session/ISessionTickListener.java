@@ -0,0 +1,20 @@
+package com.ddpie.rudp.session;
+
+/**
+ * RUDP会话的滴答监听器。<br>
+ * 会话只在有监听器到期时才会被滴答，监听器通过返回值登记自己下一次需要滴答的时间。
+ * 
+ * @author caobao
+ *
+ */
+public interface ISessionTickListener {
+
+	/**
+	 * 会话滴答。
+	 * 在消息处理器线程中调用。
+	 * 
+	 * @param currentTime 当前时间，毫秒
+	 * @return 下一次需要滴答的时间，毫秒；若暂时不需要滴答，则返回{@link Long#MAX_VALUE}
+	 */
+	long onTick(long currentTime);
+}
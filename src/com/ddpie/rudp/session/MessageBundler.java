@@ -0,0 +1,105 @@
+package com.ddpie.rudp.session;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import com.ddpie.rudp.constant.RudpConstants;
+import com.ddpie.rudp.util.MessageHelper;
+
+/**
+ * 消息合并器。<br>
+ * 把发给同一个远端的多条消息依次复制到一个合并消息中，长度不超过会话的路径MTU，由消息处理器在合适的时机一次发出。<br>
+ * 与RUDP会话一一对应，只在消息处理器线程中访问。
+ * 
+ * @author caobao
+ *
+ */
+public class MessageBundler {
+	private RudpSession session;		//关联的RUDP会话
+	private ChannelBuffer bundle;		//正在合并的消息，没有时为null
+	private int frameCount;				//已经合并的消息数量
+	private long bundledCount;			//合并发送的消息数量
+	private long datagramCount;			//合并后发出的数据报数量
+	
+	public MessageBundler(RudpSession session) {
+		this.session = session;
+	}
+	
+	/**
+	 * 是否没有待发送的消息。
+	 * 
+	 * @return
+	 */
+	public boolean isEmpty() {
+		return frameCount == 0;
+	}
+	
+	/**
+	 * 合并一条消息，合并后超过路径MTU时，先发送之前合并的消息。
+	 * 
+	 * @param message
+	 * @return true，已经合并；false，消息太长，不能合并，需要调用者直接发送
+	 */
+	public boolean add(ChannelBuffer message) {
+		int maxLength = session.getMtu();
+		int frameLength = MessageHelper.BUNDLE_FRAME_HEAD_LENGTH + message.readableBytes();
+		if(1 + frameLength > maxLength) {
+			flush();
+			return false;
+		}
+		//路径MTU可能在合并期间变化，合并消息不能超过当前的MTU，也不能超过创建时分配的容量
+		if(bundle != null && bundle.writerIndex() + frameLength > Math.min(maxLength, bundle.capacity())) {
+			flush();
+		}
+		if(bundle == null) {
+			bundle = ChannelBuffers.buffer(RudpConstants.BYTE_ORDER, maxLength);
+			bundle.writeByte(MessageHelper.BUNDLE_HEAD);
+		}
+		bundle.writeShort(message.readableBytes());
+		bundle.writeBytes(message, message.readerIndex(), message.readableBytes());
+		frameCount++;
+		return true;
+	}
+	
+	/**
+	 * 发送合并的消息，只有一条消息时按原样发送。
+	 */
+	public void flush() {
+		if(bundle == null) {
+			return;
+		}
+		ChannelBuffer datagram = bundle;
+		if(frameCount == 1) {
+			int headLength = 1 + MessageHelper.BUNDLE_FRAME_HEAD_LENGTH;
+			datagram = bundle.slice(headLength, bundle.writerIndex() - headLength);
+		}
+		bundledCount += frameCount;
+		datagramCount++;
+		bundle = null;
+		frameCount = 0;
+		session.channel.write(datagram, session.getRemoteAddress());
+	}
+	
+	/**
+	 * 获取合并发送的消息数量。
+	 * 
+	 * @return
+	 */
+	public long getBundledCount() {
+		return bundledCount;
+	}
+	
+	/**
+	 * 获取合并后发出的数据报数量。
+	 * 
+	 * @return
+	 */
+	public long getDatagramCount() {
+		return datagramCount;
+	}
+	
+	@Override
+	public String toString() {
+		return "MessageBundler [bundledCount=" + bundledCount + ", datagramCount=" + datagramCount + "]";
+	}
+}
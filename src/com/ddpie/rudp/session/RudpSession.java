@@ -1,16 +1,22 @@
 package com.ddpie.rudp.session;
 
 import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 
 import com.ddpie.rudp.attribute.DefaultAttributeContainer;
 import com.ddpie.rudp.attribute.IAttributeContainer;
 import com.ddpie.rudp.config.IRudpConfig;
 import com.ddpie.rudp.constant.RudpConstants;
+import com.ddpie.rudp.filter.reliability.SessionReliabilityManager;
+import com.ddpie.rudp.message.WritableMessageType;
 import com.ddpie.rudp.message.WritableMessageWrapper;
+import com.ddpie.rudp.processor.TimingWheel;
 import com.ddpie.rudp.util.MessageHelper;
 
 
@@ -30,7 +36,11 @@ public class RudpSession implements IRudpSession {
 	volatile long lastSendHeartbeatTime;		//上次给远端发送消息的时间，毫秒
 	volatile long suspendTime;					//上次挂起的时间
 	private IAttributeContainer attrContainer;	//属性容器
-	private List<Runnable> tickListeners;		//滴答监听器列表
+	private List<ISessionTickListener> tickListeners;	//滴答监听器列表
+	private final TimingWheel.Node<RudpSession> tickNode;	//在消息处理器时间轮中的节点
+	private final MessageBundler bundler;		//消息合并器
+	private volatile boolean bundleEnabled;		//是否合并发送，远端支持时才启用
+	private List<WritableMessageWrapper> corkedMessages;	//暂停发送期间暂存的消息，没有暂停时为null
 	
 	/**
 	 * 构造一个Netty会话。
@@ -47,7 +57,9 @@ public class RudpSession implements IRudpSession {
 		this.remoteAddress = remoteAddress;
 		
 		attrContainer = new DefaultAttributeContainer();
-		tickListeners = new CopyOnWriteArrayList<Runnable>();
+		tickListeners = new CopyOnWriteArrayList<ISessionTickListener>();
+		tickNode = new TimingWheel.Node<RudpSession>(this);
+		bundler = new MessageBundler(this);
 	}
 	
 	/**
@@ -70,6 +82,24 @@ public class RudpSession implements IRudpSession {
 		return channel.getLocalAddress();
 	}
 	
+	@Override
+	public long getRtt() {
+		SessionReliabilityManager mgr = (SessionReliabilityManager) getAttribute("reliability");
+		if(mgr == null) {
+			return -1;
+		}
+		return mgr.getRttEstimator().getRtt();
+	}
+	
+	@Override
+	public int getMtu() {
+		SessionReliabilityManager mgr = (SessionReliabilityManager) getAttribute("reliability");
+		if(mgr == null) {
+			return RudpConstants.MESSAGE_MAX_LENGTH;
+		}
+		return mgr.getPmtuDiscoverer().getMtu();
+	}
+	
 	@Override
 	public boolean isSuspended() {
 		return status == SessionStatusType.SUSPENDED;
@@ -83,41 +113,134 @@ public class RudpSession implements IRudpSession {
 	@Override
 	public void writeOrdered(Object message) {
 		if(status != SessionStatusType.CLOSED) {
-			if(message instanceof WritableMessageWrapper == false) {
-				message = WritableMessageWrapper.newReliableOrdered(message);
+			if(message instanceof WritableMessageWrapper) {
+				write((WritableMessageWrapper) message);
 			}
-			rudpConfig.getProcessorManager().onWriteRequested(channel, remoteAddress, message);
+			else {
+				write(message, WritableMessageType.RELIABLE_ORDERED, 0);
+			}
+		}
+	}
+	
+	@Override
+	public void writeOrdered(int streamId, Object message) {
+		if(streamId < 0 || streamId >= Math.min(RudpConstants.ORDERED_STREAM_COUNT, MessageHelper.ORDERED_STREAM_MAX_COUNT)) {
+			throw new IllegalArgumentException("invalid ordered stream id: " + streamId);
+		}
+		//包装对象中已经有自己的发送类型和有序流ID，不能再指定有序流
+		if(message instanceof WritableMessageWrapper) {
+			throw new IllegalArgumentException("message cannot be a WritableMessageWrapper when stream id is specified: " + message);
+		}
+		if(status != SessionStatusType.CLOSED) {
+			write(message, WritableMessageType.RELIABLE_ORDERED, streamId);
 		}
 	}
 	
 	@Override
 	public void writeDisordered(Object message) {
 		if(status != SessionStatusType.CLOSED) {
-			if(message instanceof WritableMessageWrapper == false) {
-				message = WritableMessageWrapper.newReliableDisordered(message);
+			if(message instanceof WritableMessageWrapper) {
+				write((WritableMessageWrapper) message);
+			}
+			else {
+				write(message, WritableMessageType.RELIABLE_DISORDERED, 0);
 			}
-			rudpConfig.getProcessorManager().onWriteRequested(channel, remoteAddress, message);
 		}
 	}
 	
 	@Override
 	public void writeUnreliable(Object message) {
 		if(status != SessionStatusType.CLOSED) {
+			if(message instanceof WritableMessageWrapper) {
+				write((WritableMessageWrapper) message);
+			}
+			else {
+				write(message, WritableMessageType.UNRELIABLE, 0);
+			}
+		}
+	}
+	
+	@Override
+	public void writeBatch(List<?> messages) {
+		if(messages == null) {
+			throw new IllegalArgumentException("messages cannot be null");
+		}
+		if(status == SessionStatusType.CLOSED || messages.isEmpty()) {
+			return;
+		}
+		WritableMessageWrapper[] batch = new WritableMessageWrapper[messages.size()];
+		for (int i = 0; i < batch.length; i++) {
+			Object message = messages.get(i);
 			if(message instanceof WritableMessageWrapper == false) {
-				message = WritableMessageWrapper.newUnreliable(message);
+				message = WritableMessageWrapper.newReliableOrdered(message);
+			}
+			batch[i] = (WritableMessageWrapper) message;
+		}
+		synchronized (this) {
+			if(corkedMessages != null) {
+				corkedMessages.addAll(Arrays.asList(batch));
+				return;
+			}
+		}
+		rudpConfig.getProcessorManager().onWriteRequested(channel, remoteAddress, batch);
+	}
+	
+	@Override
+	public void cork() {
+		synchronized (this) {
+			if(corkedMessages == null) {
+				corkedMessages = new ArrayList<WritableMessageWrapper>();
+			}
+		}
+	}
+	
+	@Override
+	public void flush() {
+		List<WritableMessageWrapper> messages;
+		synchronized (this) {
+			messages = corkedMessages;
+			corkedMessages = null;
+		}
+		if(messages != null && messages.isEmpty() == false && status != SessionStatusType.CLOSED) {
+			rudpConfig.getProcessorManager().onWriteRequested(
+					channel, remoteAddress, messages.toArray(new WritableMessageWrapper[messages.size()]));
+		}
+	}
+	
+	//发送一条消息，暂停发送期间暂存
+	private void write(WritableMessageWrapper message) {
+		synchronized (this) {
+			if(corkedMessages != null) {
+				corkedMessages.add(message);
+				return;
+			}
+		}
+		rudpConfig.getProcessorManager().onWriteRequested(channel, remoteAddress, message);
+	}
+	
+	//发送一条未包装的消息，由消息处理器管理器从消息池中取出封装对象；暂停发送期间包装后暂存
+	private void write(Object message, WritableMessageType type, int streamId) {
+		synchronized (this) {
+			if(corkedMessages != null) {
+				corkedMessages.add(WritableMessageWrapper.newInstance(message, type, streamId));
+				return;
 			}
-			rudpConfig.getProcessorManager().onWriteRequested(channel, remoteAddress, message);
 		}
+		rudpConfig.getProcessorManager().onWriteRequested(channel, remoteAddress, message, type, streamId);
 	}
 	
 	public void suspend() {
 		rudpConfig.getSessionManager().suspendSession(this);
 		suspendTime = System.currentTimeMillis();
+		//登记挂起超时时间
+		requestTick(suspendTime + RudpConstants.SUSPEND_TIMEOUT + 1);
 	}
 	
 	public void resume() {
 		rudpConfig.getSessionManager().resumeSession(this);
 		lastReceiveMessageTime = System.currentTimeMillis();
+		//挂起期间停止了重发等检测，需要立即滴答一次
+		requestTick(lastReceiveMessageTime);
 	}
 	
 	@Override
@@ -145,22 +268,83 @@ public class RudpSession implements IRudpSession {
 	
 	/**
 	 * 滴答
+	 * 
+	 * @param currentTime 当前时间，毫秒
+	 * @return 所有监听器中最早的下一次滴答时间，毫秒；若暂时不需要滴答，则返回{@link Long#MAX_VALUE}
 	 */
-	public void tick() {
-		for (Runnable listener : tickListeners) {
-			listener.run();
+	public long tick(long currentTime) {
+		long nextTickTime = Long.MAX_VALUE;
+		for (ISessionTickListener listener : tickListeners) {
+			long listenerTickTime = listener.onTick(currentTime);
+			if(listenerTickTime < nextTickTime) {
+				nextTickTime = listenerTickTime;
+			}
 		}
+		return nextTickTime;
 	}
 
 	/**
 	 * 增加一个滴答监听器。
 	 * 
-	 * @param listener 心跳监听器
+	 * @param listener 滴答监听器
 	 */
-	public void addTickListener(Runnable listener) {
+	public void addTickListener(ISessionTickListener listener) {
 		tickListeners.add(listener);
 	}
 	
+	/**
+	 * 登记一个滴答时间，会话最迟在该时间被滴答。
+	 * 若已经登记了更早的时间，则忽略。
+	 * 
+	 * @param dueTime 滴答时间，毫秒
+	 */
+	public void requestTick(long dueTime) {
+		rudpConfig.getProcessorManager().scheduleTick(this, dueTime);
+	}
+	
+	/**
+	 * 获取会话在消息处理器时间轮中的节点。
+	 * 仅由RUDP内部调用。
+	 * 
+	 * @return 时间轮节点
+	 */
+	public TimingWheel.Node<RudpSession> getTickNode() {
+		return tickNode;
+	}
+	
+	/**
+	 * 获取会话的消息合并器。
+	 * 仅由RUDP内部调用。
+	 * 
+	 * @return 消息合并器
+	 */
+	public MessageBundler getBundler() {
+		return bundler;
+	}
+	
+	/**
+	 * 设置是否合并发送，得知远端的能力后调用。
+	 * 仅由RUDP内部调用。
+	 * 
+	 * @param bundleEnabled 是否合并发送
+	 */
+	public void setBundleEnabled(boolean bundleEnabled) {
+		this.bundleEnabled = bundleEnabled;
+	}
+	
+	/**
+	 * 尝试把消息合并到待发送的数据报中，只有启用了合并发送、且在消息处理器线程中调用时才会合并。
+	 * 
+	 * @param message 消息
+	 * @return true，已经合并，稍后由消息处理器发送；false，需要直接发送
+	 */
+	boolean bundle(Object message) {
+		if(bundleEnabled == false || message instanceof ChannelBuffer == false) {
+			return false;
+		}
+		return rudpConfig.getProcessorManager().bundle(this, (ChannelBuffer) message);
+	}
+	
 	/**
 	 * 收到心跳消息后的回调。
 	 */
@@ -182,7 +366,9 @@ public class RudpSession implements IRudpSession {
 	public void onMessageReceived() {
 		lastReceiveMessageTime = System.currentTimeMillis();
 		if(lastReceiveUnFeedbackMsgTime == 0) {
-			lastReceiveUnFeedbackMsgTime = System.currentTimeMillis();
+			lastReceiveUnFeedbackMsgTime = lastReceiveMessageTime;
+			//登记反馈心跳的发送时间
+			requestTick(lastReceiveUnFeedbackMsgTime + RudpConstants.MESSAGE_ACK_MAX_WAIT_TIME + 1);
 		}
 	}
 
@@ -3,10 +3,7 @@ package com.ddpie.rudp.session;
 import java.net.SocketAddress;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.TimeUnit;
 
 import org.jboss.netty.channel.Channel;
 
@@ -22,41 +19,39 @@ import com.ddpie.rudp.util.MessageHelper;
  * @author caobao
  *
  */
-public class RudpSessionManager implements IRudpSessionManager, Runnable {
+public class RudpSessionManager implements IRudpSessionManager {
 	//RUDP配置信息
 	private IRudpConfig rudpConfig;
 	//处于连接状态的会话集合<远端地址, RUDP会话实例>。该集合是线程安全的。
 	private Map<SocketAddress, RudpSession> connectedSessions;
-	//定时服务
-	private ScheduledExecutorService scheduledExecutor;
 	//是否处于运行状态
 	private volatile boolean isRunning = false;
 	
 	/**
-	 * 构造RUDP会话管理器。
+	 * 构造RUDP会话管理器。<br>
+	 * 会话的滴答由各自消息处理器的时间轮驱动，不再需要单独的扫描线程。
 	 * 
 	 * @param rudpConfig RUDP配置信息
 	 */
-	public RudpSessionManager(IRudpConfig rudpConfig, ScheduledExecutorService scheduledSvc) {
+	public RudpSessionManager(IRudpConfig rudpConfig) {
 		this.rudpConfig = rudpConfig;
 		connectedSessions = new ConcurrentHashMap<SocketAddress, RudpSession>();
-		if(scheduledSvc == null) {
-			this.scheduledExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
-				@Override
-				public Thread newThread(Runnable r) {
-					Thread t = new Thread(r, "SessionScanner");
-					return t;
-				}
-			});
-		}
-		else {
-			this.scheduledExecutor = scheduledSvc;
-		}
-		this.scheduledExecutor.scheduleAtFixedRate(this, 0, RudpConstants.SESSION_TICK_INTERVAL, TimeUnit.MILLISECONDS);
 	}
 	
 	/**
-	 * 启动会话扫描线程
+	 * 构造RUDP会话管理器。
+	 * 
+	 * @param rudpConfig RUDP配置信息
+	 * @param scheduledSvc 不再使用，会话的滴答由各自消息处理器的时间轮驱动
+	 * @deprecated 使用{@link #RudpSessionManager(IRudpConfig)}
+	 */
+	@Deprecated
+	public RudpSessionManager(IRudpConfig rudpConfig, ScheduledExecutorService scheduledSvc) {
+		this(rudpConfig);
+	}
+	
+	/**
+	 * 启动会话管理器
 	 */
 	public void start() {
 		if(isRunning) {
@@ -67,28 +62,13 @@ public class RudpSessionManager implements IRudpSessionManager, Runnable {
 	}
 	
 	/**
-	 * 停止会话扫描线程
+	 * 停止会话管理器
 	 */
 	public void stop() {
 		isRunning = false;
 		closeAllSession();
 	}
 	
-	/**
-	 * 检查连接状态的后台线程。
-	 * 仅由系统调用。
-	 * 
-	 */
-	public void run() {
-		if(isRunning == false) {
-			return;
-		}
-		//遍历所有连接，向Processor中抛掷滴答操作
-		for(IRudpSession session : connectedSessions.values()) {
-			rudpConfig.getProcessorManager().tickSession(session);
-		}
-	}
-	
 	@Override
 	public void sendHandshake(Channel channel, SocketAddress remoteAddress) {
 		channel.write(MessageHelper.getHandshake(), remoteAddress);
@@ -109,11 +89,11 @@ public class RudpSessionManager implements IRudpSessionManager, Runnable {
 
 		session.setStatus(SessionStatusType.OPENED);
 		connectedSessions.put(remoteAddress, session);
+		rudpConfig.getProcessorManager().onSessionOpened(session, remoteAddress);
 
-		session.addTickListener(new Runnable() {
+		session.addTickListener(new ISessionTickListener() {
 			@Override
-			public void run() {
-				long currentTime = System.currentTimeMillis();
+			public long onTick(long currentTime) {
 				//挂起
 				if(session.isSuspended()) {
 					//挂起超时
@@ -122,31 +102,41 @@ public class RudpSessionManager implements IRudpSessionManager, Runnable {
 							RudpLoggers.rootLogger.debug("suspend timeout, so close the session, " + session);
 						}
 						session.close();
+						return Long.MAX_VALUE;
 					}
+					return session.suspendTime + RudpConstants.SUSPEND_TIMEOUT + 1;
 				}
 				//心跳超时
-				else if(currentTime - session.lastReceiveMessageTime > RudpConstants.HEARTBEAT_TIMEOUT) {
+				if(currentTime - session.lastReceiveMessageTime > RudpConstants.HEARTBEAT_TIMEOUT) {
 					if(RudpLoggers.rootLogger.isDebugEnabled()) {
 						RudpLoggers.rootLogger.debug("heartbeat timeout, so suspend the session, " + session);
 					}
 					((RudpSession) session).suspend();
+					return session.suspendTime + RudpConstants.SUSPEND_TIMEOUT + 1;
 				}
 				//发送心跳消息
 				//满足两个条件之一就要发送心跳消息：
 				//1、距离上次心跳达到最大心跳间隔；
 				//2、距离最老未反馈的消息到达时间超过指定阀值。
-				else {
-					boolean heartbeatIntervalReached = (currentTime - session.lastSendHeartbeatTime) > RudpConstants.HEARTBEAT_INTERVAL;
-					boolean ackTimeReached = session.lastReceiveUnFeedbackMsgTime != 0 && (currentTime - session.lastReceiveUnFeedbackMsgTime) > RudpConstants.MESSAGE_ACK_MAX_WAIT_TIME;
-					if(heartbeatIntervalReached || ackTimeReached) {
-						SessionReliabilityManager mgr = (SessionReliabilityManager) session.getAttribute("reliability");
-						if(mgr != null) {
-							mgr.sendHeartbeat();
-						}
+				boolean heartbeatIntervalReached = (currentTime - session.lastSendHeartbeatTime) > RudpConstants.HEARTBEAT_INTERVAL;
+				boolean ackTimeReached = session.lastReceiveUnFeedbackMsgTime != 0 && (currentTime - session.lastReceiveUnFeedbackMsgTime) > RudpConstants.MESSAGE_ACK_MAX_WAIT_TIME;
+				if(heartbeatIntervalReached || ackTimeReached) {
+					SessionReliabilityManager mgr = (SessionReliabilityManager) session.getAttribute("reliability");
+					if(mgr != null) {
+						mgr.sendHeartbeat();
 					}
 				}
+				
+				//下一次滴答时间：心跳超时、心跳间隔、反馈等待中最早的一个
+				long nextTickTime = session.lastReceiveMessageTime + RudpConstants.HEARTBEAT_TIMEOUT + 1;
+				nextTickTime = Math.min(nextTickTime, session.lastSendHeartbeatTime + RudpConstants.HEARTBEAT_INTERVAL + 1);
+				if(session.lastReceiveUnFeedbackMsgTime != 0) {
+					nextTickTime = Math.min(nextTickTime, session.lastReceiveUnFeedbackMsgTime + RudpConstants.MESSAGE_ACK_MAX_WAIT_TIME + 1);
+				}
+				return nextTickTime;
 			}
 		});
+		session.requestTick(System.currentTimeMillis());
 
 		//记录日志
 		if(RudpLoggers.sessionLogger.isInfoEnabled()) {
@@ -3,6 +3,7 @@ package com.ddpie.rudp.util;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 
+import com.ddpie.rudp.constant.RudpCapabilities;
 import com.ddpie.rudp.constant.RudpConstants;
 import com.ddpie.rudp.log.RudpLoggers;
 import com.ddpie.rudp.session.DirectWritter;
@@ -12,20 +13,51 @@ import com.ddpie.rudp.session.RudpSession;
 /**
  * 消息的一些辅助方法。<br>
  * <br>
- * 包消息头为1个字节，目前分为五种：<br>
+ * 包消息头为1个字节，目前分为十二种：<br>
  * 1、0x00 握手消息<br>
  * 2、0x01 心跳消息（携带反馈）<br>
- * 3、0x03 可靠且有序的消息<br>
- * 4、0x04 可靠但无序的消息<br>
- * 5、0x05 不可靠也无序的消息<br>
+ * 3、0x02 可靠且有序的消息<br>
+ * 4、0x03 可靠但无序的消息<br>
+ * 5、0x04 不可靠也无序的消息<br>
+ * 6、0x05 扩展确认消息（携带反馈，远端支持时才使用）<br>
+ * 7、0x06 纠错数据消息<br>
+ * 8、0x07 纠错校验消息<br>
+ * 9、0x08 纠错丢包报告<br>
+ * 10、0x09 路径MTU探测消息<br>
+ * 11、0x0A 路径MTU探测确认<br>
+ * 12、0x0B 合并消息<br>
+ * 关闭消息为8字节的固定内容，不使用消息头；数据消息的消息头可能带有{@link #PIGGYBACK_ACK_FLAG}标记，
+ * 可靠且有序消息的消息头中还带有有序流ID（见{@link #ORDERED_STREAM_MASK}）<br>
  * <br>
  * 各种消息的结构如下：<br>
  * 1、握手消息（8字节）：				【8字节】<br>
  * 2、关闭消息（8字节）：				【8字节】<br>
  * 3、心跳消息（13字节）：			【消息类型|1字节】【有序消息反馈序号|4字节】【有序消息反馈bitfield|2字节】【无序消息反馈序号|4字节】【无序消息反馈bitfield|2字节】<br>
- * 4、可靠且有序的消息头（7字节）：	【消息类型|1字节】【消息序号|4字节】【封包数量|1字节】【封包索引|1字节】<br>
+ *    携带能力的心跳消息（17字节）：	【13字节的心跳消息】【本端能力|4字节】<br>
+ *    扩展确认消息（至少19字节）：		【消息类型|1字节】【本端能力|4字节】【接收窗口|2字节】【确认延迟|2字节】【有序消息确认】【无序消息确认】【其他有序流的确认（可选）】，
+ * 其中每种消息的确认为【累计确认序号|4字节】【区段数量|1字节】【区段起始序号|4字节】【区段长度|2字节】...，
+ * 累计确认序号及之前的消息都已收到，区段按序号从低到高排列；接收窗口为本端还能缓存的有序消息数量，封包缓存紧张时更小，发送封包时所有在途消息都不超过它；
+ * 确认延迟为本端收到最近一条可靠消息到发出确认经过的时间，毫秒，远端测量往返时间时扣除；
+ * 使用多个有序流时，【有序消息确认】为流0的确认，其他有序流的确认为【有序流数量n|1字节】【流1的有序消息确认】...【流n-1的有序消息确认】<br>
+ * 4、可靠且有序的消息头（7字节）：	【消息类型|1字节】【消息序号|4字节】【封包数量|1字节】【封包索引|1字节】，
+ * 消息类型中{@link #ORDERED_STREAM_MASK}对应的位为有序流ID，每个有序流有独立的序号空间，流0与旧版本的格式相同<br>
  * 5、可靠但无序的消息头（7字节）：	【消息类型|1字节】【消息标识|4字节】【封包数量|1字节】【封包索引|1字节】<br>
- * 6、不可靠也无序的消息头（7字节）：	【消息类型|1字节】【填充字节|6字节】<br>
+ *    可靠消息的扩展封包头（19字节），封包数量为{@link #EXTENDED_FRAGMENT}时使用，只发给支持{@link RudpCapabilities#EXTENDED_FRAGMENT}的远端：
+ * 【7字节的消息头】【封包索引|4字节】【消息体总长度|4字节】【本封包的消息体在消息体中的偏移|4字节】<br>
+ * 6、不可靠也无序的消息头（7字节）：	【消息类型|1字节】【消息标识|4字节】【封包数量|1字节】【封包索引|1字节】，
+ * 未拆分的消息后6字节均为0，与旧版本的格式相同；拆分的消息只发给支持{@link RudpCapabilities#UNRELIABLE_FRAGMENT}的远端<br>
+ * 7、捎带确认：数据消息的消息类型带有{@link #PIGGYBACK_ACK_FLAG}标记时，消息末尾附加16字节的确认，
+ * 格式为心跳消息去掉消息类型后再加上接收窗口和确认延迟：【有序消息反馈序号|4字节】【有序消息反馈bitfield|2字节】【无序消息反馈序号|4字节】【无序消息反馈bitfield|2字节】【接收窗口|2字节】【确认延迟|2字节】<br>
+ * 8、前向纠错消息，只发给支持{@link RudpCapabilities#FEC}的远端：<br>
+ *    纠错数据消息：		【消息类型|1字节】【分组ID|2字节】【分组内索引|1字节】【原数据消息】<br>
+ *    纠错校验消息：		【消息类型|1字节】【分组ID|2字节】【分组消息数量|1字节】【消息长度异或|2字节】【消息内容异或】，
+ * 消息内容异或为分组内所有原数据消息按最长消息的长度补0后的逐字节异或<br>
+ *    纠错丢包报告（5字节）：	【消息类型|1字节】【统计消息数量|2字节】【丢失消息数量|2字节】<br>
+ * 9、路径MTU探测消息，只发给支持{@link RudpCapabilities#PMTU_DISCOVERY}的远端：<br>
+ *    探测消息：			【消息类型|1字节】【探测ID|2字节】【探测长度|2字节】【填充字节】，消息总长度为探测长度<br>
+ *    探测确认（5字节）：		【消息类型|1字节】【探测ID|2字节】【探测长度|2字节】，只有收到的探测消息长度完整时才回应<br>
+ * 10、合并消息，只发给支持{@link RudpCapabilities#BUNDLE}的远端：【消息类型|1字节】【消息长度|2字节】【消息】【消息长度|2字节】【消息】...，
+ * 其中每条消息都是完整的其他类型的消息，接收端拆开后逐条处理<br>
  * 
  * @author caobao
  *
@@ -43,8 +75,58 @@ public class MessageHelper {
 	public static final byte RELIABLE_DISORDERED_HEAD = 0x03;
 	/** 不可靠也无序消息头 */
 	public static final byte UNRELIABLE_HEAD = 0x04;
+	/** 扩展确认消息头，只发给支持{@link RudpCapabilities#EXTENDED_ACK}的远端 */
+	public static final byte ACK_HEAD = 0x05;
+	/** 纠错数据消息头，只发给支持{@link RudpCapabilities#FEC}的远端 */
+	public static final byte FEC_DATA_HEAD = 0x06;
+	/** 纠错校验消息头，只发给支持{@link RudpCapabilities#FEC}的远端 */
+	public static final byte FEC_PARITY_HEAD = 0x07;
+	/** 纠错丢包报告消息头，只发给支持{@link RudpCapabilities#FEC}的远端 */
+	public static final byte FEC_REPORT_HEAD = 0x08;
+	/** 路径MTU探测消息头，只发给支持{@link RudpCapabilities#PMTU_DISCOVERY}的远端 */
+	public static final byte PMTU_PROBE_HEAD = 0x09;
+	/** 路径MTU探测确认消息头 */
+	public static final byte PMTU_PROBE_ACK_HEAD = 0x0A;
+	/** 合并消息头，只发给支持{@link RudpCapabilities#BUNDLE}的远端 */
+	public static final byte BUNDLE_HEAD = 0x0B;
+	/** 心跳消息长度 */
+	public static final int HEARTBEAT_LENGTH = 13;
+	/** 携带能力的心跳消息长度 */
+	public static final int CAPABILITY_HEARTBEAT_LENGTH = 17;
+	/** 扩展确认消息的最小长度 */
+	public static final int ACK_MIN_LENGTH = 19;
+	/** 数据消息捎带确认的标记，与消息类型按位或 */
+	public static final byte PIGGYBACK_ACK_FLAG = (byte) 0x80;
+	/** 捎带确认的长度 */
+	public static final int PIGGYBACK_ACK_LENGTH = 16;
+	/** 扩展确认消息中每个选择确认区段的长度 */
+	public static final int ACK_RANGE_LENGTH = 6;
 	/** 消息头长度 */
 	public static final int MESSAGE_HEAD_LENGTH = 7;
+	/** 可靠且有序消息的消息类型中，有序流ID所在的位 */
+	public static final int ORDERED_STREAM_MASK = 0x70;
+	/** 有序流ID在消息类型中的偏移 */
+	public static final int ORDERED_STREAM_SHIFT = 4;
+	/** 消息格式支持的最大有序流数量 */
+	public static final int ORDERED_STREAM_MAX_COUNT = 8;
+	/** 纠错数据消息头长度 */
+	public static final int FEC_DATA_HEAD_LENGTH = 4;
+	/** 纠错校验消息头长度 */
+	public static final int FEC_PARITY_HEAD_LENGTH = 6;
+	/** 纠错丢包报告消息长度 */
+	public static final int FEC_REPORT_LENGTH = 5;
+	/** 消息格式支持的最大纠错分组大小 */
+	public static final int FEC_MAX_GROUP_SIZE = 32;
+	/** 路径MTU探测确认消息长度，也是探测消息的最小长度 */
+	public static final int PMTU_PROBE_ACK_LENGTH = 5;
+	/** 扩展封包的封包数量标记 */
+	public static final byte EXTENDED_FRAGMENT = (byte) 0xFF;
+	/** 扩展封包头长度 */
+	public static final int EXTENDED_FRAGMENT_HEAD_LENGTH = 19;
+	/** 普通封包头支持的最大封包数量，超过时使用扩展封包头 */
+	public static final int FRAGMENT_MAX_COUNT = Byte.MAX_VALUE;
+	/** 合并消息中每条消息的长度前缀的长度 */
+	public static final int BUNDLE_FRAME_HEAD_LENGTH = 2;
 	
 	/**
 	 * 判断消息是否是握手消息。
@@ -101,7 +183,7 @@ public class MessageHelper {
 	}
 	
 	/**
-	 * 判断{@link ChannelBuffer}消息是否为心跳消息。
+	 * 判断{@link ChannelBuffer}消息是否为心跳消息（包括携带能力的心跳消息和扩展确认消息）。
 	 * 
 	 * @param buf 要判断的消息
 	 * @return true，是心跳消息；false，不是心跳消息
@@ -112,13 +194,21 @@ public class MessageHelper {
 		 * 1、消息长度正确；
 		 * 2、消息头正确；
 		 */
-		if(buf.readableBytes() != 13) {
-			return false;
-		}
-		if(buf.getByte(0) != HEARTBEAT_HEAD) {
-			return false;
+		int length = buf.readableBytes();
+		if(length == HEARTBEAT_LENGTH || length == CAPABILITY_HEARTBEAT_LENGTH) {
+			return buf.getByte(buf.readerIndex()) == HEARTBEAT_HEAD;
 		}
-		return true;
+		return isAck(buf);
+	}
+	
+	/**
+	 * 判断{@link ChannelBuffer}消息是否为扩展确认消息。
+	 * 
+	 * @param buf 要判断的消息
+	 * @return true，是扩展确认消息；false，不是扩展确认消息
+	 */
+	public static boolean isAck(ChannelBuffer buf) {
+		return buf.readableBytes() >= ACK_MIN_LENGTH && buf.getByte(buf.readerIndex()) == ACK_HEAD;
 	}
 	
 	/**
@@ -127,15 +217,107 @@ public class MessageHelper {
 	 * @return
 	 */
 	public static ChannelBuffer getHeartbeat(int orderedSequence, short orderedBitfield, int disorderedSequence, short disorderedBitfield) {
-		ChannelBuffer buf = ChannelBuffers.buffer(RudpConstants.BYTE_ORDER, 13);
+		ChannelBuffer buf = ChannelBuffers.buffer(RudpConstants.BYTE_ORDER, HEARTBEAT_LENGTH);
+		buf.writeByte(HEARTBEAT_HEAD);
+		buf.writeInt(orderedSequence);
+		buf.writeShort(orderedBitfield);
+		buf.writeInt(disorderedSequence);
+		buf.writeShort(disorderedBitfield);
+		return buf;
+	}
+	
+	/**
+	 * 获取携带本端能力的心跳消息。<br>
+	 * 旧版本的远端会把它当做业务消息交给可靠性Filter，仍然能正确处理其中的反馈。
+	 * 
+	 * @return
+	 */
+	public static ChannelBuffer getHeartbeat(
+			int orderedSequence, short orderedBitfield, 
+			int disorderedSequence, short disorderedBitfield, 
+			int capabilities) {
+		ChannelBuffer buf = ChannelBuffers.buffer(RudpConstants.BYTE_ORDER, CAPABILITY_HEARTBEAT_LENGTH);
 		buf.writeByte(HEARTBEAT_HEAD);
 		buf.writeInt(orderedSequence);
 		buf.writeShort(orderedBitfield);
 		buf.writeInt(disorderedSequence);
 		buf.writeShort(disorderedBitfield);
+		buf.writeInt(capabilities);
 		return buf;
 	}
 	
+	/**
+	 * 获取心跳消息或扩展确认消息中携带的远端能力。
+	 * 
+	 * @param heartbeat 心跳消息或扩展确认消息
+	 * @return 远端能力；若消息未携带能力，则返回{@link RudpCapabilities#UNKNOWN}
+	 */
+	public static int getCapabilities(ChannelBuffer heartbeat) {
+		int readerIndex = heartbeat.readerIndex();
+		if(heartbeat.getByte(readerIndex) == ACK_HEAD) {
+			return heartbeat.getInt(readerIndex + 1);
+		}
+		if(heartbeat.readableBytes() == CAPABILITY_HEARTBEAT_LENGTH) {
+			return heartbeat.getInt(readerIndex + HEARTBEAT_LENGTH);
+		}
+		return RudpCapabilities.UNKNOWN;
+	}
+	
+	/**
+	 * 获取扩展确认消息。
+	 * 
+	 * @param capabilities 本端能力
+	 * @param receiveWindow 本端接收窗口，即还能缓存的有序消息和封包数量
+	 * @param ackDelay 确认延迟，即本端收到最近一条可靠消息到发出确认经过的时间，毫秒
+	 * @param orderedCumulativeIds 各个有序流的累计确认序号，下标为有序流ID
+	 * @param orderedRanges 各个有序流的选择确认区段，依次为每个区段的起始序号和结束序号，下标为有序流ID
+	 * @param orderedRangeCounts 各个有序流的选择确认区段数量，下标为有序流ID
+	 * @param orderedStreamCount 要确认的有序流数量，即流0到流orderedStreamCount-1；为1时与单个有序流的格式相同
+	 * @param disorderedCumulativeId 无序消息的累计确认序号
+	 * @param disorderedRanges 无序消息的选择确认区段，依次为每个区段的起始序号和结束序号
+	 * @param disorderedRangeCount 无序消息的选择确认区段数量
+	 * @return
+	 */
+	public static ChannelBuffer getAck(
+			int capabilities, int receiveWindow, int ackDelay, 
+			int[] orderedCumulativeIds, int[][] orderedRanges, int[] orderedRangeCounts, int orderedStreamCount, 
+			int disorderedCumulativeId, int[] disorderedRanges, int disorderedRangeCount) {
+		int length = ACK_MIN_LENGTH + disorderedRangeCount * ACK_RANGE_LENGTH;
+		for (int i = 0; i < orderedStreamCount; i++) {
+			length += orderedRangeCounts[i] * ACK_RANGE_LENGTH;
+		}
+		if(orderedStreamCount > 1) {
+			length += 1 + (orderedStreamCount - 1) * 5;
+		}
+		ChannelBuffer buf = ChannelBuffers.buffer(RudpConstants.BYTE_ORDER, length);
+		buf.writeByte(ACK_HEAD);
+		buf.writeInt(capabilities);
+		buf.writeShort(receiveWindow);
+		buf.writeShort(ackDelay);
+		writeAckRanges(buf, orderedCumulativeIds[0], orderedRanges[0], orderedRangeCounts[0]);
+		writeAckRanges(buf, disorderedCumulativeId, disorderedRanges, disorderedRangeCount);
+		//其他有序流
+		if(orderedStreamCount > 1) {
+			buf.writeByte(orderedStreamCount);
+			for (int i = 1; i < orderedStreamCount; i++) {
+				writeAckRanges(buf, orderedCumulativeIds[i], orderedRanges[i], orderedRangeCounts[i]);
+			}
+		}
+		return buf;
+	}
+	
+	//写入一种消息的累计确认序号和选择确认区段
+	private static void writeAckRanges(ChannelBuffer buf, int cumulativeId, int[] ranges, int rangeCount) {
+		buf.writeInt(cumulativeId);
+		buf.writeByte(rangeCount);
+		for (int i = 0; i < rangeCount; i++) {
+			int startId = ranges[i * 2];
+			int endId = ranges[i * 2 + 1];
+			buf.writeInt(startId);
+			buf.writeShort(endId - startId + 1);
+		}
+	}
+	
 	/**
 	 * 是否是可靠且有序的消息
 	 * 
@@ -143,7 +325,49 @@ public class MessageHelper {
 	 * @return
 	 */
 	public static boolean isReliableOrdered(ChannelBuffer message) {
-		return message.getByte(message.readerIndex()) == RELIABLE_ORDERED_HEAD;
+		return getMessageType(message) == RELIABLE_ORDERED_HEAD;
+	}
+	
+	/**
+	 * 获取消息类型，可靠且有序消息去掉其中的有序流ID。
+	 * 
+	 * @param message
+	 * @return
+	 */
+	public static byte getMessageType(ChannelBuffer message) {
+		return (byte) (message.getByte(message.readerIndex()) & ~ORDERED_STREAM_MASK);
+	}
+	
+	/**
+	 * 获取指定有序流的可靠且有序消息的消息类型。
+	 * 
+	 * @param streamId 有序流ID
+	 * @return
+	 */
+	public static byte getReliableOrderedHead(int streamId) {
+		return (byte) (RELIABLE_ORDERED_HEAD | (streamId << ORDERED_STREAM_SHIFT));
+	}
+	
+	/**
+	 * 获取可靠且有序消息的有序流ID。
+	 * 
+	 * @param message
+	 * @return
+	 */
+	public static int getOrderedStreamId(ChannelBuffer message) {
+		return (message.getByte(message.readerIndex()) & ORDERED_STREAM_MASK) >> ORDERED_STREAM_SHIFT;
+	}
+	
+	/**
+	 * 设置可靠且有序消息的有序流ID。
+	 * 
+	 * @param message
+	 * @param streamId
+	 */
+	public static void setOrderedStreamId(ChannelBuffer message, int streamId) {
+		int readerIndex = message.readerIndex();
+		int head = message.getByte(readerIndex) & ~ORDERED_STREAM_MASK;
+		message.setByte(readerIndex, head | (streamId << ORDERED_STREAM_SHIFT));
 	}
 	
 	/**
@@ -166,6 +390,55 @@ public class MessageHelper {
 		return message.getByte(message.readerIndex()) == UNRELIABLE_HEAD;
 	}
 	
+	/**
+	 * 判断数据消息是否捎带了确认。
+	 * 
+	 * @param message
+	 * @return
+	 */
+	public static boolean hasPiggybackAck(ChannelBuffer message) {
+		if(message.readableBytes() < MESSAGE_HEAD_LENGTH + PIGGYBACK_ACK_LENGTH) {
+			return false;
+		}
+		byte head = message.getByte(message.readerIndex());
+		if((head & PIGGYBACK_ACK_FLAG) == 0) {
+			return false;
+		}
+		head = (byte) (head & ~PIGGYBACK_ACK_FLAG & ~ORDERED_STREAM_MASK);
+		return head == RELIABLE_ORDERED_HEAD || head == RELIABLE_DISORDERED_HEAD || head == UNRELIABLE_HEAD;
+	}
+	
+	/**
+	 * 获取捎带了确认的数据消息。<br>
+	 * 原消息可能还在重发缓冲区中，所以不修改原消息，而是复制出一条新消息。
+	 * 
+	 * @param message 数据消息
+	 * @param orderedSequence 有序消息反馈序号
+	 * @param orderedBitfield 有序消息反馈bitfield
+	 * @param disorderedSequence 无序消息反馈序号
+	 * @param disorderedBitfield 无序消息反馈bitfield
+	 * @param receiveWindow 本端接收窗口，即还能缓存的有序消息和封包数量
+	 * @param ackDelay 确认延迟，即本端收到最近一条可靠消息到发出确认经过的时间，毫秒
+	 * @return
+	 */
+	public static ChannelBuffer getPiggybackAck(
+			ChannelBuffer message, 
+			int orderedSequence, short orderedBitfield, 
+			int disorderedSequence, short disorderedBitfield, 
+			int receiveWindow, int ackDelay) {
+		int length = message.readableBytes();
+		ChannelBuffer buf = ChannelBuffers.buffer(RudpConstants.BYTE_ORDER, length + PIGGYBACK_ACK_LENGTH);
+		buf.writeBytes(message, message.readerIndex(), length);
+		buf.setByte(0, buf.getByte(0) | PIGGYBACK_ACK_FLAG);
+		buf.writeInt(orderedSequence);
+		buf.writeShort(orderedBitfield);
+		buf.writeInt(disorderedSequence);
+		buf.writeShort(disorderedBitfield);
+		buf.writeShort(receiveWindow);
+		buf.writeShort(ackDelay);
+		return buf;
+	}
+	
 	/**
 	 * 获取消息序号。
 	 * 
@@ -226,6 +499,356 @@ public class MessageHelper {
 		return message.getByte(message.readerIndex() + 6);
 	}
 	
+	/**
+	 * 判断消息是否是纠错数据消息。
+	 * 
+	 * @param buf
+	 * @return
+	 */
+	public static boolean isFecData(ChannelBuffer buf) {
+		return buf.readableBytes() > FEC_DATA_HEAD_LENGTH && buf.getByte(buf.readerIndex()) == FEC_DATA_HEAD;
+	}
+	
+	/**
+	 * 判断消息是否是纠错校验消息。
+	 * 
+	 * @param buf
+	 * @return
+	 */
+	public static boolean isFecParity(ChannelBuffer buf) {
+		return buf.readableBytes() > FEC_PARITY_HEAD_LENGTH && buf.getByte(buf.readerIndex()) == FEC_PARITY_HEAD;
+	}
+	
+	/**
+	 * 判断消息是否是纠错丢包报告。
+	 * 
+	 * @param buf
+	 * @return
+	 */
+	public static boolean isFecReport(ChannelBuffer buf) {
+		return buf.readableBytes() == FEC_REPORT_LENGTH && buf.getByte(buf.readerIndex()) == FEC_REPORT_HEAD;
+	}
+	
+	/**
+	 * 获取纠错数据消息。<br>
+	 * 原消息可能还在重发缓冲区中，所以不修改原消息，而是在原消息前面拼接纠错消息头。
+	 * 
+	 * @param message 原数据消息
+	 * @param groupId 分组ID
+	 * @param index 分组内索引
+	 * @return
+	 */
+	public static ChannelBuffer getFecData(ChannelBuffer message, int groupId, int index) {
+		ChannelBuffer head = ChannelBuffers.buffer(RudpConstants.BYTE_ORDER, FEC_DATA_HEAD_LENGTH);
+		head.writeByte(FEC_DATA_HEAD);
+		head.writeShort(groupId);
+		head.writeByte(index);
+		return ChannelBuffers.wrappedBuffer(head, message);
+	}
+	
+	/**
+	 * 获取纠错数据消息中的原数据消息。
+	 * 
+	 * @param buf 纠错数据消息
+	 * @return
+	 */
+	public static ChannelBuffer getFecDataContent(ChannelBuffer buf) {
+		return buf.slice(buf.readerIndex() + FEC_DATA_HEAD_LENGTH, buf.readableBytes() - FEC_DATA_HEAD_LENGTH);
+	}
+	
+	/**
+	 * 获取纠错校验消息。
+	 * 
+	 * @param groupId 分组ID
+	 * @param count 分组消息数量
+	 * @param lengthXor 分组内所有原数据消息长度的异或
+	 * @param contentXor 分组内所有原数据消息内容的异或
+	 * @param contentLength 消息内容异或的长度，即分组内最长消息的长度
+	 * @return
+	 */
+	public static ChannelBuffer getFecParity(int groupId, int count, int lengthXor, byte[] contentXor, int contentLength) {
+		ChannelBuffer buf = ChannelBuffers.buffer(RudpConstants.BYTE_ORDER, FEC_PARITY_HEAD_LENGTH + contentLength);
+		buf.writeByte(FEC_PARITY_HEAD);
+		buf.writeShort(groupId);
+		buf.writeByte(count);
+		buf.writeShort(lengthXor);
+		buf.writeBytes(contentXor, 0, contentLength);
+		return buf;
+	}
+	
+	/**
+	 * 获取纠错数据消息或者纠错校验消息的分组ID。
+	 * 
+	 * @param buf
+	 * @return
+	 */
+	public static int getFecGroupId(ChannelBuffer buf) {
+		return buf.getUnsignedShort(buf.readerIndex() + 1);
+	}
+	
+	/**
+	 * 获取纠错数据消息的分组内索引。
+	 * 
+	 * @param buf
+	 * @return
+	 */
+	public static int getFecIndex(ChannelBuffer buf) {
+		return buf.getUnsignedByte(buf.readerIndex() + 3);
+	}
+	
+	/**
+	 * 获取纠错校验消息的分组消息数量。
+	 * 
+	 * @param buf
+	 * @return
+	 */
+	public static int getFecCount(ChannelBuffer buf) {
+		return buf.getUnsignedByte(buf.readerIndex() + 3);
+	}
+	
+	/**
+	 * 获取纠错校验消息中的消息长度异或。
+	 * 
+	 * @param buf
+	 * @return
+	 */
+	public static int getFecLengthXor(ChannelBuffer buf) {
+		return buf.getUnsignedShort(buf.readerIndex() + 4);
+	}
+	
+	/**
+	 * 获取纠错丢包报告。
+	 * 
+	 * @param expectedCount 统计的消息数量
+	 * @param lostCount 其中丢失的消息数量
+	 * @return
+	 */
+	public static ChannelBuffer getFecReport(int expectedCount, int lostCount) {
+		ChannelBuffer buf = ChannelBuffers.buffer(RudpConstants.BYTE_ORDER, FEC_REPORT_LENGTH);
+		buf.writeByte(FEC_REPORT_HEAD);
+		buf.writeShort(expectedCount);
+		buf.writeShort(lostCount);
+		return buf;
+	}
+	
+	/**
+	 * 获取纠错丢包报告中统计的消息数量。
+	 * 
+	 * @param buf
+	 * @return
+	 */
+	public static int getFecReportExpectedCount(ChannelBuffer buf) {
+		return buf.getUnsignedShort(buf.readerIndex() + 1);
+	}
+	
+	/**
+	 * 获取纠错丢包报告中丢失的消息数量。
+	 * 
+	 * @param buf
+	 * @return
+	 */
+	public static int getFecReportLostCount(ChannelBuffer buf) {
+		return buf.getUnsignedShort(buf.readerIndex() + 3);
+	}
+	
+	/**
+	 * 获取路径MTU探测消息。
+	 * 
+	 * @param probeId 探测ID
+	 * @param length 探测长度，即消息总长度
+	 * @return
+	 */
+	public static ChannelBuffer getPmtuProbe(int probeId, int length) {
+		ChannelBuffer buf = ChannelBuffers.buffer(RudpConstants.BYTE_ORDER, length);
+		buf.writeByte(PMTU_PROBE_HEAD);
+		buf.writeShort(probeId);
+		buf.writeShort(length);
+		buf.writeZero(length - PMTU_PROBE_ACK_LENGTH);
+		return buf;
+	}
+	
+	/**
+	 * 获取路径MTU探测确认消息。
+	 * 
+	 * @param probeId 探测ID
+	 * @param length 探测长度
+	 * @return
+	 */
+	public static ChannelBuffer getPmtuProbeAck(int probeId, int length) {
+		ChannelBuffer buf = ChannelBuffers.buffer(RudpConstants.BYTE_ORDER, PMTU_PROBE_ACK_LENGTH);
+		buf.writeByte(PMTU_PROBE_ACK_HEAD);
+		buf.writeShort(probeId);
+		buf.writeShort(length);
+		return buf;
+	}
+	
+	/**
+	 * 判断消息是否是完整的路径MTU探测消息，即收到的长度与探测长度一致。
+	 * 
+	 * @param buf
+	 * @return
+	 */
+	public static boolean isPmtuProbe(ChannelBuffer buf) {
+		return buf.readableBytes() >= PMTU_PROBE_ACK_LENGTH && buf.getByte(buf.readerIndex()) == PMTU_PROBE_HEAD && 
+				getPmtuProbeLength(buf) == buf.readableBytes();
+	}
+	
+	/**
+	 * 判断消息是否是路径MTU探测确认消息。
+	 * 
+	 * @param buf
+	 * @return
+	 */
+	public static boolean isPmtuProbeAck(ChannelBuffer buf) {
+		return buf.readableBytes() == PMTU_PROBE_ACK_LENGTH && buf.getByte(buf.readerIndex()) == PMTU_PROBE_ACK_HEAD;
+	}
+	
+	/**
+	 * 获取路径MTU探测消息或者探测确认消息的探测ID。
+	 * 
+	 * @param buf
+	 * @return
+	 */
+	public static int getPmtuProbeId(ChannelBuffer buf) {
+		return buf.getUnsignedShort(buf.readerIndex() + 1);
+	}
+	
+	/**
+	 * 获取路径MTU探测消息或者探测确认消息的探测长度。
+	 * 
+	 * @param buf
+	 * @return
+	 */
+	public static int getPmtuProbeLength(ChannelBuffer buf) {
+		return buf.getUnsignedShort(buf.readerIndex() + 3);
+	}
+	
+	/**
+	 * 判断消息是否是合并消息。
+	 * 
+	 * @param buf
+	 * @return
+	 */
+	public static boolean isBundle(ChannelBuffer buf) {
+		return buf.readableBytes() > BUNDLE_FRAME_HEAD_LENGTH && buf.getByte(buf.readerIndex()) == BUNDLE_HEAD;
+	}
+	
+	/**
+	 * 拆分合并消息。
+	 * 
+	 * @param buf
+	 * @return 合并的各条消息，格式错误时返回null
+	 */
+	public static ChannelBuffer[] getBundleFrames(ChannelBuffer buf) {
+		int count = 0;
+		int index = buf.readerIndex() + 1;
+		int endIndex = buf.writerIndex();
+		while(index < endIndex) {
+			if(index + BUNDLE_FRAME_HEAD_LENGTH > endIndex) {
+				return null;
+			}
+			int length = buf.getUnsignedShort(index);
+			index += BUNDLE_FRAME_HEAD_LENGTH + length;
+			if(length == 0 || index > endIndex) {
+				return null;
+			}
+			count++;
+		}
+		
+		ChannelBuffer[] frames = new ChannelBuffer[count];
+		index = buf.readerIndex() + 1;
+		for (int i = 0; i < count; i++) {
+			int length = buf.getUnsignedShort(index);
+			frames[i] = buf.slice(index + BUNDLE_FRAME_HEAD_LENGTH, length);
+			index += BUNDLE_FRAME_HEAD_LENGTH + length;
+		}
+		return frames;
+	}
+	
+	/**
+	 * 获取发给远端的数据消息的最大长度（含消息头），即会话的路径MTU减去下层Filter可能附加的长度。
+	 * 
+	 * @param session RUDP会话
+	 * @return
+	 */
+	public static int getMessageMaxLength(IRudpSession session) {
+		int length = session.getMtu();
+		//前向纠错的校验消息比分组内最长的消息多一个校验消息头
+		if(RudpConstants.FEC_ENABLED) {
+			length -= FEC_PARITY_HEAD_LENGTH;
+		}
+		return length;
+	}
+	
+	/**
+	 * 判断消息是否是扩展封包。
+	 * 
+	 * @param message
+	 * @return
+	 */
+	public static boolean isExtendedFragment(ChannelBuffer message) {
+		return message.readableBytes() >= EXTENDED_FRAGMENT_HEAD_LENGTH && getFragmentCount(message) == EXTENDED_FRAGMENT;
+	}
+	
+	/**
+	 * 判断消息是否是一组封包中第一个之后的封包。
+	 * 
+	 * @param message
+	 * @return
+	 */
+	public static boolean isFollowingFragment(ChannelBuffer message) {
+		if(isExtendedFragment(message)) {
+			return getExtendedFragmentIndex(message) != 0;
+		}
+		return getFragmentCount(message) > 0 && getFragmentIndex(message) != 0;
+	}
+	
+	/**
+	 * 设置扩展封包头。
+	 * 
+	 * @param message 封包，需要预留扩展封包头的长度
+	 * @param index 封包索引
+	 * @param totalLength 消息体总长度
+	 * @param offset 本封包的消息体在消息体中的偏移
+	 */
+	public static void setExtendedFragment(ChannelBuffer message, int index, int totalLength, int offset) {
+		message.setByte(5, EXTENDED_FRAGMENT);
+		message.setByte(6, 0);
+		message.setInt(7, index);
+		message.setInt(11, totalLength);
+		message.setInt(15, offset);
+	}
+	
+	/**
+	 * 获取扩展封包的封包索引。
+	 * 
+	 * @param message
+	 * @return
+	 */
+	public static int getExtendedFragmentIndex(ChannelBuffer message) {
+		return message.getInt(message.readerIndex() + 7);
+	}
+	
+	/**
+	 * 获取扩展封包所属消息的消息体总长度。
+	 * 
+	 * @param message
+	 * @return
+	 */
+	public static int getExtendedFragmentTotalLength(ChannelBuffer message) {
+		return message.getInt(message.readerIndex() + 11);
+	}
+	
+	/**
+	 * 获取扩展封包的消息体在消息体中的偏移。
+	 * 
+	 * @param message
+	 * @return
+	 */
+	public static int getExtendedFragmentOffset(ChannelBuffer message) {
+		return message.getInt(message.readerIndex() + 15);
+	}
+	
 	/**
 	 * 向远端发送心跳消息
 	 * 
@@ -242,6 +865,43 @@ public class MessageHelper {
 		ChannelBuffer hearbeat = MessageHelper.getHeartbeat(
 				orderedSequence, orderedBitfield, 
 				disorderedSequence, disorderedBitfield);
+		writeHeartbeat(session, hearbeat);
+	}
+	
+	/**
+	 * 向远端发送携带本端能力的心跳消息
+	 * 
+	 * @param session RUDP会话
+	 * @param orderedSequence 有序消息序号
+	 * @param orderedBitfield 有序消息bitfield
+	 * @param disorderedSequence 无序消息标识
+	 * @param disorderedBitfield 无序消息bitfield
+	 * @param capabilities 本端能力
+	 */
+	public static void sendHeartbeat(
+			IRudpSession session, 
+			int orderedSequence, short orderedBitfield, 
+			int disorderedSequence, short disorderedBitfield, 
+			int capabilities) {
+		ChannelBuffer hearbeat = MessageHelper.getHeartbeat(
+				orderedSequence, orderedBitfield, 
+				disorderedSequence, disorderedBitfield, 
+				capabilities);
+		writeHeartbeat(session, hearbeat);
+	}
+	
+	/**
+	 * 向远端发送扩展确认消息
+	 * 
+	 * @param session RUDP会话
+	 * @param ack 扩展确认消息，见{@link #getAck(int, int, int, int[], int[][], int[], int, int, int[], int)}
+	 */
+	public static void sendAck(IRudpSession session, ChannelBuffer ack) {
+		writeHeartbeat(session, ack);
+	}
+	
+	//发送心跳消息并记录
+	private static void writeHeartbeat(IRudpSession session, ChannelBuffer hearbeat) {
 		DirectWritter.write(session, hearbeat);
 		if(session instanceof RudpSession) {
 			((RudpSession) session).onHeartbeatSent();
@@ -0,0 +1,68 @@
+package com.ddpie.rudp.util;
+
+/**
+ * 消息序号的一些辅助方法。<br>
+ * 消息序号是32位的循环序号，超过{@link Integer#MAX_VALUE}后回绕到{@link Integer#MIN_VALUE}，0也是合法的序号。<br>
+ * 序号之间的比较采用RFC 1982的序号算术：两个序号之差（按int溢出）为正，则前者较新；为负，则前者较老。
+ * 只要同时在用的序号跨度小于2^31，比较结果就是正确的，长时间运行的会话不需要因为序号用尽而重连。<br>
+ * 因此不能直接用&lt;、&gt;比较序号，也不能用某个序号表示“无”。
+ * 
+ * @author caobao
+ *
+ */
+public final class SequenceHelper {
+	/**
+	 * 比较两个序号。
+	 * 
+	 * @param sequenceId1
+	 * @param sequenceId2
+	 * @return 小于0，sequenceId1较老；等于0，两者相同；大于0，sequenceId1较新
+	 */
+	public static int compare(int sequenceId1, int sequenceId2) {
+		return sequenceId1 - sequenceId2;
+	}
+	
+	/**
+	 * sequenceId1是否比sequenceId2老。
+	 * 
+	 * @param sequenceId1
+	 * @param sequenceId2
+	 * @return
+	 */
+	public static boolean isBefore(int sequenceId1, int sequenceId2) {
+		return sequenceId1 - sequenceId2 < 0;
+	}
+	
+	/**
+	 * sequenceId1是否比sequenceId2新。
+	 * 
+	 * @param sequenceId1
+	 * @param sequenceId2
+	 * @return
+	 */
+	public static boolean isAfter(int sequenceId1, int sequenceId2) {
+		return sequenceId1 - sequenceId2 > 0;
+	}
+	
+	/**
+	 * 获取两个序号中较新的一个。
+	 * 
+	 * @param sequenceId1
+	 * @param sequenceId2
+	 * @return
+	 */
+	public static int max(int sequenceId1, int sequenceId2) {
+		return sequenceId1 - sequenceId2 >= 0 ? sequenceId1 : sequenceId2;
+	}
+	
+	/**
+	 * 获取两个序号中较老的一个。
+	 * 
+	 * @param sequenceId1
+	 * @param sequenceId2
+	 * @return
+	 */
+	public static int min(int sequenceId1, int sequenceId2) {
+		return sequenceId1 - sequenceId2 <= 0 ? sequenceId1 : sequenceId2;
+	}
+}
@@ -0,0 +1,320 @@
+package com.ddpie.rudp.filter.fragment;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import com.ddpie.rudp.attribute.DefaultAttributeContainer;
+import com.ddpie.rudp.constant.RudpCapabilities;
+import com.ddpie.rudp.constant.RudpConstants;
+import com.ddpie.rudp.filter.reliability.SessionReliabilityManager;
+import com.ddpie.rudp.session.IRudpSession;
+import com.ddpie.rudp.util.MessageHelper;
+
+/**
+ * 扩展封包头和超大消息流式合并的测试。<br>
+ * 检查扩展封包头的格式，{@link RudpFragmentFilter}按远端能力选择普通封包头或扩展封包头，
+ * 以及{@link SessionFragmentManager}在封包乱序、重复到达时按偏移依次交付连续的{@link MessageChunk}，缓存超出上限时以中止片段结束。<br>
+ * 直接运行main方法，全部通过时输出OK，失败时抛出异常。
+ * 
+ * @author caobao
+ *
+ */
+public class ExtendedFragmentTest {
+	private static final int MTU = RudpConstants.MESSAGE_MAX_LENGTH;	//会话的路径MTU
+	private static final int LARGE_SEGMENT_COUNT = 300;					//超大消息的封包数量，超过普通封包头的上限
+	private static final int SMALL_SEGMENT_COUNT = 20;					//普通消息的封包数量
+	private static final int FIRST_SEQUENCE_ID = 5000;					//第一个封包的消息序号
+	private static final long RANDOM_SEED = 20120701L;					//打乱顺序用的随机种子，保证每次结果相同
+	
+	public static void main(String[] args) {
+		testExtendedHead();
+		testNormalFragments();
+		testUnsupportedPeer();
+		testStreamingInOrder();
+		testStreamingShuffled();
+		testStreamingAbort();
+		System.out.println("OK");
+	}
+	
+	//扩展封包头的各个字段，偏移和总长度超出普通封包头能表示的范围
+	private static void testExtendedHead() {
+		ChannelBuffer head = ChannelBuffers.buffer(RudpConstants.BYTE_ORDER, MessageHelper.EXTENDED_FRAGMENT_HEAD_LENGTH);
+		head.writeByte(MessageHelper.getReliableOrderedHead(3));
+		head.writeInt(FIRST_SEQUENCE_ID);
+		head.writeZero(MessageHelper.EXTENDED_FRAGMENT_HEAD_LENGTH - 5);
+		int totalLength = 20 * 1024 * 1024;
+		MessageHelper.setExtendedFragment(head, 40000, totalLength, totalLength - 100);
+		check(MessageHelper.isExtendedFragment(head), "should be extended fragment");
+		check(MessageHelper.getFragmentCount(head) == MessageHelper.EXTENDED_FRAGMENT, "fragment count " + MessageHelper.getFragmentCount(head));
+		check(MessageHelper.getExtendedFragmentIndex(head) == 40000, "index " + MessageHelper.getExtendedFragmentIndex(head));
+		check(MessageHelper.getExtendedFragmentTotalLength(head) == totalLength, "total length " + MessageHelper.getExtendedFragmentTotalLength(head));
+		check(MessageHelper.getExtendedFragmentOffset(head) == totalLength - 100, "offset " + MessageHelper.getExtendedFragmentOffset(head));
+		check(MessageHelper.isFollowingFragment(head), "index 40000 should be following fragment");
+		check(MessageHelper.getOrderedStreamId(head) == 3 && MessageHelper.getSequenceId(head) == FIRST_SEQUENCE_ID, "message head should be kept");
+		MessageHelper.setExtendedFragment(head, 0, totalLength, 0);
+		check(MessageHelper.isFollowingFragment(head) == false, "index 0 should not be following fragment");
+		
+		//长度不足扩展封包头的消息不是扩展封包
+		check(MessageHelper.isExtendedFragment(head.slice(0, MessageHelper.EXTENDED_FRAGMENT_HEAD_LENGTH - 1)) == false,
+				"short message should not be extended fragment");
+	}
+	
+	//封包数量不超过普通封包头的上限时使用普通封包头，合并后与原消息相同
+	private static void testNormalFragments() {
+		IRudpSession session = newSession(RudpCapabilities.EXTENDED_FRAGMENT);
+		int bodyLength = SMALL_SEGMENT_COUNT * (MessageHelper.getMessageMaxLength(session) - MessageHelper.MESSAGE_HEAD_LENGTH) - 10;
+		ChannelBuffer message = newMessage(MessageHelper.RELIABLE_DISORDERED_HEAD, bodyLength);
+		ChannelBuffer original = message.copy();
+		List<ChannelBuffer> fragments = split(session, message);
+		check(fragments.size() == SMALL_SEGMENT_COUNT, "normal fragment count " + fragments.size());
+		for (ChannelBuffer fragment : fragments) {
+			check(MessageHelper.isExtendedFragment(fragment) == false, "small message should use normal head");
+			check(fragment.readableBytes() <= MessageHelper.getMessageMaxLength(session), "fragment too long " + fragment.readableBytes());
+		}
+		
+		Collections.shuffle(fragments, new Random(RANDOM_SEED));
+		SessionFragmentManager mgr = new SessionFragmentManager(session);
+		Object merged = null;
+		for (ChannelBuffer fragment : fragments) {
+			check(merged == null, "message merged before all fragments received");
+			merged = mgr.onMessageReceived(fragment);
+		}
+		check(merged instanceof ChannelBuffer, "merged message " + merged);
+		ChannelBuffer mergedMessage = (ChannelBuffer) merged;
+		check(MessageHelper.getFragmentCount(mergedMessage) == 0 && MessageHelper.getFragmentIndex(mergedMessage) == 0, "merged head should be cleared");
+		check(sameBody(mergedMessage, MessageHelper.MESSAGE_HEAD_LENGTH, original, MessageHelper.MESSAGE_HEAD_LENGTH), "merged body differs");
+		check(mgr.getCachedBytes() == 0, "cache should be empty after merged: " + mgr);
+	}
+	
+	//远端不支持扩展封包头时，超过普通封包头上限的消息被丢弃
+	private static void testUnsupportedPeer() {
+		IRudpSession session = newSession(RudpCapabilities.EXTENDED_ACK);
+		ChannelBuffer message = newMessage(MessageHelper.RELIABLE_ORDERED_HEAD, largeBodyLength(session));
+		check(split(session, message).isEmpty(), "large message should be discarded for peer without extended fragment");
+	}
+	
+	//按顺序到达时每个封包都立即交付为一个片段，不缓存
+	private static void testStreamingInOrder() {
+		IRudpSession session = newSession(RudpCapabilities.EXTENDED_FRAGMENT);
+		ChannelBuffer message = newMessage(MessageHelper.RELIABLE_ORDERED_HEAD, largeBodyLength(session));
+		ChannelBuffer original = message.copy();
+		List<ChannelBuffer> fragments = split(session, message);
+		check(fragments.size() == LARGE_SEGMENT_COUNT, "extended fragment count " + fragments.size());
+		
+		SessionFragmentManager mgr = new SessionFragmentManager(session);
+		ChunkCollector collector = new ChunkCollector(original);
+		for (ChannelBuffer fragment : fragments) {
+			check(MessageHelper.isExtendedFragment(fragment), "large message should use extended head");
+			int deliveredCount = collector.chunkCount;
+			collector.collect(mgr.onMessageReceived(fragment));
+			check(collector.chunkCount == deliveredCount + 1, "in-order fragment should be delivered at once");
+			check(mgr.getCachedBytes() == 0, "in-order fragment should not be cached: " + mgr);
+		}
+		collector.checkCompleted();
+	}
+	
+	//乱序、重复到达时只缓存乱序的部分，交付的片段首尾相接，拼起来与原消息体相同
+	private static void testStreamingShuffled() {
+		IRudpSession session = newSession(RudpCapabilities.EXTENDED_FRAGMENT);
+		ChannelBuffer message = newMessage(MessageHelper.RELIABLE_DISORDERED_HEAD, largeBodyLength(session));
+		ChannelBuffer original = message.copy();
+		List<ChannelBuffer> fragments = split(session, message);
+		List<ChannelBuffer> arrivals = new ArrayList<ChannelBuffer>(fragments);
+		//部分封包重复到达
+		for (int i = 0; i < fragments.size(); i += 7) {
+			arrivals.add(fragments.get(i).duplicate());
+		}
+		Collections.shuffle(arrivals, new Random(RANDOM_SEED));
+		
+		SessionFragmentManager mgr = new SessionFragmentManager(session);
+		ChunkCollector collector = new ChunkCollector(original);
+		for (ChannelBuffer fragment : arrivals) {
+			collector.collect(mgr.onMessageReceived(fragment.duplicate()));
+		}
+		collector.checkCompleted();
+		check(mgr.getCachedBytes() == 0, "cache should be empty after all delivered: " + mgr);
+	}
+	
+	//已经交付过片段的消息，乱序的部分超出缓存上限时以中止片段结束，并关闭会话
+	private static void testStreamingAbort() {
+		int maxBytes = RudpConstants.MAX_STREAMING_FRAGMENT_CACHE_BYTES;
+		RudpConstants.MAX_STREAMING_FRAGMENT_CACHE_BYTES = 10 * MTU;
+		try {
+			IRudpSession session = newSession(RudpCapabilities.EXTENDED_FRAGMENT);
+			ChannelBuffer message = newMessage(MessageHelper.RELIABLE_ORDERED_HEAD, largeBodyLength(session));
+			List<ChannelBuffer> fragments = split(session, message);
+			SessionFragmentManager mgr = new SessionFragmentManager(session);
+			List<MessageChunk> chunks = new ArrayList<MessageChunk>();
+			addChunks(mgr.onMessageReceived(fragments.get(0)), chunks);
+			//第二个封包一直没有到达
+			for (int i = 2; i < fragments.size() && mgr.isOverflowed() == false; i++) {
+				addChunks(mgr.onMessageReceived(fragments.get(i)), chunks);
+			}
+			check(mgr.isOverflowed(), "streaming cache should overflow: " + mgr);
+			check(session.isClosed(), "session should be closed after overflow");
+			check(chunks.size() == 2, "chunk count after abort " + chunks.size());
+			MessageChunk abortChunk = chunks.get(1);
+			check(abortChunk.isAborted() && abortChunk.getContent().readable() == false, "last chunk should be abort chunk: " + abortChunk);
+			check(abortChunk.getOffset() == chunks.get(0).getContent().readableBytes(), "abort offset " + abortChunk.getOffset());
+			check(mgr.onMessageReceived(fragments.get(1)) == null, "nothing should be delivered after overflow");
+		}
+		finally {
+			RudpConstants.MAX_STREAMING_FRAGMENT_CACHE_BYTES = maxBytes;
+		}
+	}
+	
+	//超过普通封包头上限的消息体长度，最后一个封包不满
+	private static int largeBodyLength(IRudpSession session) {
+		int segmentBodyLength = MessageHelper.getMessageMaxLength(session) - MessageHelper.EXTENDED_FRAGMENT_HEAD_LENGTH;
+		return LARGE_SEGMENT_COUNT * segmentBodyLength - segmentBodyLength / 2;
+	}
+	
+	//用封包Filter拆分消息，并像可靠性Filter一样为封包依次分配消息序号
+	private static List<ChannelBuffer> split(IRudpSession session, ChannelBuffer message) {
+		Object result = new RudpFragmentFilter().writeRequested(session, message);
+		List<ChannelBuffer> fragments = new ArrayList<ChannelBuffer>();
+		if(result instanceof ChannelBuffer[]) {
+			fragments.addAll(Arrays.asList((ChannelBuffer[]) result));
+		}
+		else if(result != null) {
+			fragments.add((ChannelBuffer) result);
+		}
+		for (int i = 0; i < fragments.size(); i++) {
+			MessageHelper.setSequenceId(fragments.get(i), FIRST_SEQUENCE_ID + i);
+		}
+		return fragments;
+	}
+	
+	private static void addChunks(Object result, List<MessageChunk> chunks) {
+		if(result instanceof MessageChunk[]) {
+			chunks.addAll(Arrays.asList((MessageChunk[]) result));
+		}
+		else if(result != null) {
+			chunks.add((MessageChunk) result);
+		}
+	}
+	
+	//消息体的第i个字节为i的低8位
+	private static ChannelBuffer newMessage(byte head, int bodyLength) {
+		ChannelBuffer buf = ChannelBuffers.buffer(RudpConstants.BYTE_ORDER, MessageHelper.MESSAGE_HEAD_LENGTH + bodyLength);
+		buf.writeByte(head);
+		buf.writeZero(MessageHelper.MESSAGE_HEAD_LENGTH - 1);
+		for (int i = 0; i < bodyLength; i++) {
+			buf.writeByte(i);
+		}
+		return buf;
+	}
+	
+	//比较两个消息从指定位置开始的内容
+	private static boolean sameBody(ChannelBuffer a, int aIndex, ChannelBuffer b, int bIndex) {
+		int length = a.writerIndex() - aIndex;
+		if(length != b.writerIndex() - bIndex) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if(a.getByte(aIndex + i) != b.getByte(bIndex + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/*
+	 * 不连接网络的会话，发出的消息被丢弃。
+	 * 属性保存在会话自己的容器中，可靠性管理器已经从远端得知了指定的能力。
+	 */
+	private static IRudpSession newSession(int peerCapabilities) {
+		final SocketAddress remoteAddress = new InetSocketAddress("127.0.0.1", 9999);
+		final DefaultAttributeContainer attributes = new DefaultAttributeContainer();
+		final boolean[] closed = new boolean[1];
+		IRudpSession session = (IRudpSession) Proxy.newProxyInstance(ExtendedFragmentTest.class.getClassLoader(), new Class<?>[]{IRudpSession.class},
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+						String name = method.getName();
+						if(name.endsWith("Attribute")) {
+							return method.invoke(attributes, args);
+						}
+						if(name.equals("getRemoteAddress")) {
+							return remoteAddress;
+						}
+						if(name.equals("getMtu")) {
+							return MTU;
+						}
+						if(name.equals("close")) {
+							closed[0] = true;
+							return null;
+						}
+						if(name.equals("isClosed")) {
+							return closed[0];
+						}
+						if(name.equals("isSuspended")) {
+							return false;
+						}
+						return null;
+					}
+				});
+		SessionReliabilityManager reliabilityMgr = new SessionReliabilityManager(session);
+		reliabilityMgr.onAck(MessageHelper.getAck(peerCapabilities, 0xFFFF, 0, new int[]{RudpConstants.INITIAL_SEQUENCE_ID - 1},
+				new int[][]{new int[0]}, new int[]{0}, 1, RudpConstants.INITIAL_SEQUENCE_ID - 1, new int[0], 0));
+		session.setAttribute("reliability", reliabilityMgr);
+		return session;
+	}
+	
+	private static void check(boolean condition, String message) {
+		if(condition == false) {
+			throw new IllegalStateException(message);
+		}
+	}
+	
+	/**
+	 * 收集交付的片段，检查它们首尾相接且内容与原消息体相同。
+	 */
+	private static final class ChunkCollector {
+		private ChannelBuffer original;		//原消息，含消息头
+		private int nextOffset;				//下一个片段应有的偏移
+		private int chunkCount;				//交付的片段数量
+		private boolean completed;			//是否已经交付了最后一个片段
+		
+		ChunkCollector(ChannelBuffer original) {
+			this.original = original;
+		}
+		
+		void collect(Object result) {
+			List<MessageChunk> chunks = new ArrayList<MessageChunk>();
+			addChunks(result, chunks);
+			for (MessageChunk chunk : chunks) {
+				check(completed == false, "chunk after last: " + chunk);
+				check(chunk.isAborted() == false, "unexpected abort chunk: " + chunk);
+				check(chunk.getMessageId() == FIRST_SEQUENCE_ID, "chunk message id " + chunk.getMessageId());
+				check(chunk.getOffset() == nextOffset, "chunk offset " + chunk.getOffset() + ", expected " + nextOffset);
+				check(chunk.getTotalLength() == original.readableBytes() - MessageHelper.MESSAGE_HEAD_LENGTH, "chunk total length " + chunk.getTotalLength());
+				ChannelBuffer content = chunk.getContent();
+				for (int i = 0; i < content.readableBytes(); i++) {
+					if(content.getByte(content.readerIndex() + i) != original.getByte(MessageHelper.MESSAGE_HEAD_LENGTH + nextOffset + i)) {
+						throw new IllegalStateException("chunk content differs at " + (nextOffset + i));
+					}
+				}
+				nextOffset += content.readableBytes();
+				chunkCount++;
+				completed = chunk.isLast();
+			}
+		}
+		
+		void checkCompleted() {
+			check(completed && nextOffset == original.readableBytes() - MessageHelper.MESSAGE_HEAD_LENGTH,
+					"message should be completed, delivered " + nextOffset + " in " + chunkCount + " chunks");
+		}
+	}
+}
@@ -0,0 +1,278 @@
+package com.ddpie.rudp.filter.fragment;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import com.ddpie.rudp.attribute.DefaultAttributeContainer;
+import com.ddpie.rudp.constant.RudpCapabilities;
+import com.ddpie.rudp.constant.RudpConstants;
+import com.ddpie.rudp.filter.reliability.SessionReliabilityManager;
+import com.ddpie.rudp.session.IRudpSession;
+import com.ddpie.rudp.util.MessageHelper;
+
+/**
+ * 不可靠消息拆分和尽力合并的测试。<br>
+ * 检查{@link RudpFragmentFilter}按远端能力拆分或截断不可靠消息，
+ * 以及{@link SessionFragmentManager}只保留最新的一个未合并消息：更新的消息到达或超时后丢弃未收齐的消息，更早的消息的封包直接丢弃。<br>
+ * 直接运行main方法，全部通过时输出OK，失败时抛出异常。
+ * 
+ * @author caobao
+ *
+ */
+public class UnreliableFragmentTest {
+	private static final int MTU = RudpConstants.MESSAGE_MAX_LENGTH;	//会话的路径MTU
+	private static final int SEGMENT_COUNT = 10;						//每个消息的封包数量
+	private static final long RANDOM_SEED = 20120703L;					//打乱顺序用的随机种子，保证每次结果相同
+	
+	public static void main(String[] args) throws Exception {
+		testUnsplitMessage();
+		testSplitAndMerge();
+		testTruncate();
+		testNewerDropsOlder();
+		testSequenceWrap();
+		testExpireOnReceive();
+		testExpireOnTick();
+		System.out.println("OK");
+	}
+	
+	//没有拆分的不可靠消息原样交付
+	private static void testUnsplitMessage() {
+		IRudpSession session = newSession(RudpCapabilities.UNRELIABLE_FRAGMENT);
+		ChannelBuffer message = newMessage(100);
+		check(split(session, message).size() == 1, "small message should not be split");
+		check(new RudpFragmentFilter().messageReceived(session, message) == message, "unsplit message should be delivered as is");
+	}
+	
+	//同一个消息的封包使用相同的消息标识，乱序、重复到达也能合并，合并后消息标识清零
+	private static void testSplitAndMerge() {
+		IRudpSession session = newSession(RudpCapabilities.UNRELIABLE_FRAGMENT);
+		RudpFragmentFilter filter = new RudpFragmentFilter();
+		for (int round = 1; round <= 3; round++) {
+			ChannelBuffer message = newMessage(bodyLength(session));
+			ChannelBuffer original = message.copy();
+			List<ChannelBuffer> fragments = split(session, message);
+			check(fragments.size() == SEGMENT_COUNT, "fragment count " + fragments.size());
+			for (ChannelBuffer fragment : fragments) {
+				check(MessageHelper.isUnreliable(fragment), "fragment should be unreliable");
+				check(MessageHelper.getSequenceId(fragment) == round, "message id " + MessageHelper.getSequenceId(fragment) + " in round " + round);
+				check(fragment.readableBytes() <= MessageHelper.getMessageMaxLength(session), "fragment too long " + fragment.readableBytes());
+			}
+			
+			List<ChannelBuffer> arrivals = new ArrayList<ChannelBuffer>(fragments);
+			arrivals.add(fragments.get(round).duplicate());
+			Collections.shuffle(arrivals, new Random(RANDOM_SEED + round));
+			Object merged = null;
+			for (ChannelBuffer fragment : arrivals) {
+				check(merged == null, "message merged twice in round " + round);
+				merged = filter.messageReceived(session, fragment);
+			}
+			check(merged instanceof ChannelBuffer, "merged message " + merged);
+			ChannelBuffer mergedMessage = (ChannelBuffer) merged;
+			check(MessageHelper.getSequenceId(mergedMessage) == 0, "merged message id should be cleared");
+			check(MessageHelper.getFragmentCount(mergedMessage) == 0 && MessageHelper.getFragmentIndex(mergedMessage) == 0, "merged head should be cleared");
+			check(mergedMessage.equals(original.slice(0, original.writerIndex())), "merged message differs in round " + round);
+		}
+		check(getManager(session).getUnreliableDroppedCount() == 0, "nothing should be dropped: " + getManager(session));
+	}
+	
+	//远端不支持或者封包太多时，截断为一个封包发送
+	private static void testTruncate() {
+		IRudpSession session = newSession(RudpCapabilities.EXTENDED_ACK);
+		List<ChannelBuffer> fragments = split(session, newMessage(bodyLength(session)));
+		check(fragments.size() == 1, "message should be truncated for peer without unreliable fragment");
+		check(fragments.get(0).readableBytes() == MessageHelper.getMessageMaxLength(session), "truncated length " + fragments.get(0).readableBytes());
+		check(MessageHelper.getFragmentCount(fragments.get(0)) == 0, "truncated message should not be a fragment");
+		
+		session = newSession(RudpCapabilities.UNRELIABLE_FRAGMENT);
+		int segmentBodyLength = MessageHelper.getMessageMaxLength(session) - MessageHelper.MESSAGE_HEAD_LENGTH;
+		fragments = split(session, newMessage((MessageHelper.FRAGMENT_MAX_COUNT + 1) * segmentBodyLength));
+		check(fragments.size() == 1, "message with too many segments should be truncated");
+	}
+	
+	//更新的消息的封包到达时丢弃之前未收齐的消息，之后再到达的旧封包直接丢弃
+	private static void testNewerDropsOlder() {
+		IRudpSession session = newSession(RudpCapabilities.UNRELIABLE_FRAGMENT);
+		SessionFragmentManager mgr = getManager(session);
+		List<ChannelBuffer> older = split(session, newMessage(bodyLength(session)));
+		ChannelBuffer newerMessage = newMessage(bodyLength(session));
+		ChannelBuffer newerOriginal = newerMessage.copy();
+		List<ChannelBuffer> newer = split(session, newerMessage);
+		
+		check(mgr.onUnreliableFragmentReceived(older.get(0)) == null, "older message should not be merged yet");
+		check(mgr.onUnreliableFragmentReceived(newer.get(0)) == null, "newer message should not be merged yet");
+		check(mgr.getUnreliableDroppedCount() == 1, "older message should be dropped: " + mgr);
+		ChannelBuffer merged = null;
+		for (int i = 1; i < SEGMENT_COUNT; i++) {
+			check(mgr.onUnreliableFragmentReceived(older.get(i)) == null, "older fragment " + i + " should be discarded");
+			merged = mgr.onUnreliableFragmentReceived(newer.get(i));
+		}
+		check(merged != null && MessageHelper.getSequenceId(merged) == 0, "newer message should be merged");
+		check(sameBody(merged, newerOriginal), "newer message differs");
+		check(mgr.getUnreliableDroppedCount() == 1, "older fragments should not count as dropped messages: " + mgr);
+		
+		//合并后再到达的旧封包重新开始一个未合并消息，但永远收不齐
+		check(mgr.onUnreliableFragmentReceived(older.get(0)) == null, "late older fragment should not be merged");
+	}
+	
+	//消息标识回绕后仍按新旧判断
+	private static void testSequenceWrap() {
+		IRudpSession session = newSession(RudpCapabilities.UNRELIABLE_FRAGMENT);
+		SessionFragmentManager mgr = getManager(session);
+		List<ChannelBuffer> older = split(session, newMessage(bodyLength(session)));
+		List<ChannelBuffer> newer = split(session, newMessage(bodyLength(session)));
+		setMessageId(older, Integer.MAX_VALUE);
+		setMessageId(newer, Integer.MIN_VALUE);
+		
+		mgr.onUnreliableFragmentReceived(older.get(0));
+		mgr.onUnreliableFragmentReceived(newer.get(0));
+		check(mgr.getUnreliableDroppedCount() == 1, "message before wrap should be dropped: " + mgr);
+		ChannelBuffer merged = null;
+		for (int i = 1; i < SEGMENT_COUNT; i++) {
+			check(mgr.onUnreliableFragmentReceived(older.get(i)) == null, "fragment before wrap should be discarded");
+			merged = mgr.onUnreliableFragmentReceived(newer.get(i));
+		}
+		check(merged != null, "message after wrap should be merged");
+	}
+	
+	//未合并消息超时后，同一消息的封包再到达时丢弃已经收到的部分
+	private static void testExpireOnReceive() {
+		long timeout = RudpConstants.UNRELIABLE_FRAGMENT_TIMEOUT;
+		RudpConstants.UNRELIABLE_FRAGMENT_TIMEOUT = 0;
+		try {
+			IRudpSession session = newSession(RudpCapabilities.UNRELIABLE_FRAGMENT);
+			SessionFragmentManager mgr = getManager(session);
+			List<ChannelBuffer> fragments = split(session, newMessage(bodyLength(session)));
+			for (int i = 0; i < SEGMENT_COUNT; i++) {
+				check(mgr.onUnreliableFragmentReceived(fragments.get(i)) == null, "expired fragment " + i + " should not be merged");
+				check(mgr.getUnreliableDroppedCount() == i, "dropped count " + mgr.getUnreliableDroppedCount() + " after fragment " + i);
+			}
+		}
+		finally {
+			RudpConstants.UNRELIABLE_FRAGMENT_TIMEOUT = timeout;
+		}
+	}
+	
+	//会话定时检测时丢弃超时的未合并消息，没有超时时返回它的超时时间
+	private static void testExpireOnTick() throws Exception {
+		IRudpSession session = newSession(RudpCapabilities.UNRELIABLE_FRAGMENT);
+		SessionFragmentManager mgr = getManager(session);
+		Method checkTimeout = SessionFragmentManager.class.getDeclaredMethod("checkTimeout", long.class);
+		checkTimeout.setAccessible(true);
+		check((Long) checkTimeout.invoke(mgr, System.currentTimeMillis()) == Long.MAX_VALUE, "nothing to check");
+		
+		List<ChannelBuffer> fragments = split(session, newMessage(bodyLength(session)));
+		long receiveTime = System.currentTimeMillis();
+		mgr.onUnreliableFragmentReceived(fragments.get(0));
+		long nextTime = (Long) checkTimeout.invoke(mgr, receiveTime);
+		check(nextTime >= receiveTime + RudpConstants.UNRELIABLE_FRAGMENT_TIMEOUT, "next check time " + nextTime + " after " + receiveTime);
+		check(mgr.getUnreliableDroppedCount() == 0, "fragment should not expire yet: " + mgr);
+		
+		check((Long) checkTimeout.invoke(mgr, nextTime) == Long.MAX_VALUE, "nothing to check after expired");
+		check(mgr.getUnreliableDroppedCount() == 1, "fragment should expire: " + mgr);
+		for (int i = 1; i < SEGMENT_COUNT; i++) {
+			check(mgr.onUnreliableFragmentReceived(fragments.get(i)) == null, "fragment " + i + " after expired should not be merged");
+		}
+	}
+	
+	//SEGMENT_COUNT个封包的消息体长度，最后一个封包不满
+	private static int bodyLength(IRudpSession session) {
+		int segmentBodyLength = MessageHelper.getMessageMaxLength(session) - MessageHelper.MESSAGE_HEAD_LENGTH;
+		return SEGMENT_COUNT * segmentBodyLength - segmentBodyLength / 3;
+	}
+	
+	//用封包Filter拆分消息
+	private static List<ChannelBuffer> split(IRudpSession session, ChannelBuffer message) {
+		Object result = new RudpFragmentFilter().writeRequested(session, message);
+		List<ChannelBuffer> fragments = new ArrayList<ChannelBuffer>();
+		if(result instanceof ChannelBuffer[]) {
+			fragments.addAll(Arrays.asList((ChannelBuffer[]) result));
+		}
+		else if(result != null) {
+			fragments.add((ChannelBuffer) result);
+		}
+		return fragments;
+	}
+	
+	//拆分后的封包共享大消息的消息头，复制一份再修改消息标识
+	private static void setMessageId(List<ChannelBuffer> fragments, int messageId) {
+		for (int i = 0; i < fragments.size(); i++) {
+			ChannelBuffer fragment = fragments.get(i).copy();
+			MessageHelper.setSequenceId(fragment, messageId);
+			fragments.set(i, fragment);
+		}
+	}
+	
+	//消息体的第i个字节为i的低8位
+	private static ChannelBuffer newMessage(int bodyLength) {
+		ChannelBuffer buf = ChannelBuffers.buffer(RudpConstants.BYTE_ORDER, MessageHelper.MESSAGE_HEAD_LENGTH + bodyLength);
+		buf.writeByte(MessageHelper.UNRELIABLE_HEAD);
+		buf.writeZero(MessageHelper.MESSAGE_HEAD_LENGTH - 1);
+		for (int i = 0; i < bodyLength; i++) {
+			buf.writeByte(i);
+		}
+		return buf;
+	}
+	
+	//比较两个消息的消息体
+	private static boolean sameBody(ChannelBuffer a, ChannelBuffer b) {
+		int headLength = MessageHelper.MESSAGE_HEAD_LENGTH;
+		return a.slice(a.readerIndex() + headLength, a.readableBytes() - headLength).equals(
+				b.slice(b.readerIndex() + headLength, b.readableBytes() - headLength));
+	}
+	
+	private static SessionFragmentManager getManager(IRudpSession session) {
+		return (SessionFragmentManager) session.getAttribute("fragment");
+	}
+	
+	/*
+	 * 不连接网络的会话，发出的消息被丢弃。
+	 * 属性保存在会话自己的容器中，可靠性管理器已经从远端得知了指定的能力，封包Filter已经打开。
+	 */
+	private static IRudpSession newSession(int peerCapabilities) {
+		final SocketAddress remoteAddress = new InetSocketAddress("127.0.0.1", 9999);
+		final DefaultAttributeContainer attributes = new DefaultAttributeContainer();
+		IRudpSession session = (IRudpSession) Proxy.newProxyInstance(UnreliableFragmentTest.class.getClassLoader(), new Class<?>[]{IRudpSession.class},
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+						String name = method.getName();
+						if(name.endsWith("Attribute")) {
+							return method.invoke(attributes, args);
+						}
+						if(name.equals("getRemoteAddress")) {
+							return remoteAddress;
+						}
+						if(name.equals("getMtu")) {
+							return MTU;
+						}
+						if(name.equals("isClosed") || name.equals("isSuspended")) {
+							return false;
+						}
+						return null;
+					}
+				});
+		SessionReliabilityManager reliabilityMgr = new SessionReliabilityManager(session);
+		reliabilityMgr.onAck(MessageHelper.getAck(peerCapabilities, 0xFFFF, 0, new int[]{RudpConstants.INITIAL_SEQUENCE_ID - 1},
+				new int[][]{new int[0]}, new int[]{0}, 1, RudpConstants.INITIAL_SEQUENCE_ID - 1, new int[0], 0));
+		session.setAttribute("reliability", reliabilityMgr);
+		new RudpFragmentFilter().sessionOpened(session);
+		return session;
+	}
+	
+	private static void check(boolean condition, String message) {
+		if(condition == false) {
+			throw new IllegalStateException(message);
+		}
+	}
+}
@@ -0,0 +1,278 @@
+package com.ddpie.rudp.filter.reliability;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import com.ddpie.rudp.constant.RudpCapabilities;
+import com.ddpie.rudp.constant.RudpConstants;
+import com.ddpie.rudp.session.IRudpSession;
+import com.ddpie.rudp.util.MessageHelper;
+
+/**
+ * 扩展确认消息的测试。<br>
+ * 检查{@link MessageHelper#getAck(int, int, int, int[], int[][], int[], int, int, int[], int)}写出的格式与文档一致，
+ * 接收状态从空洞中划分出的选择确认区段，以及{@link SessionReliabilityManager#onAck(ChannelBuffer)}按累计确认序号和区段移除消息、
+ * 对区段之间的空洞快速重发。<br>
+ * 直接运行main方法，全部通过时输出OK，失败时抛出异常。
+ * 
+ * @author caobao
+ *
+ */
+public class AckRangesTest {
+	private static final int MESSAGE_COUNT = 50;		//发送的消息数量
+	private static final int[] HOLE_OFFSETS = {10, 11, 25, 40};	//没有收到的消息相对于起始序号的偏移，从低到高
+	private static final int WINDOW_SIZE = 1024;		//接收状态的窗口大小
+	private static final int MAX_RANGE_COUNT = 8;		//每种消息最多获取的区段数量
+	private static final int RECEIVE_WINDOW = 300;		//确认消息中通告的接收窗口
+	private static final int ACK_DELAY = 25;			//确认消息中的确认延迟
+	
+	public static void main(String[] args) {
+		testAckFormat();
+		testDisorderedRanges();
+		testOrderedRanges();
+		testOnAck();
+		testMalformedAck();
+		System.out.println("OK");
+	}
+	
+	//多个有序流的扩展确认消息，按文档中的偏移逐个字段读出
+	private static void testAckFormat() {
+		int[] cumulativeIds = {100, 200, 300};
+		int[][] orderedRanges = {{102, 104, 110, 110}, {}, {Integer.MAX_VALUE, Integer.MIN_VALUE + 1}};
+		int[] rangeCounts = {2, 0, 1};
+		int[] disorderedRanges = {52, 60};
+		ChannelBuffer ack = MessageHelper.getAck(RudpCapabilities.EXTENDED_ACK, RECEIVE_WINDOW, ACK_DELAY,
+				cumulativeIds, orderedRanges, rangeCounts, 3, 50, disorderedRanges, 1);
+		int expectedLength = MessageHelper.ACK_MIN_LENGTH + 4 * MessageHelper.ACK_RANGE_LENGTH + 1 + 2 * 5;
+		check(ack.readableBytes() == expectedLength, "ack length " + ack.readableBytes() + ", expected " + expectedLength);
+		check(MessageHelper.isAck(ack), "should be ack");
+		check(MessageHelper.isHeartbeat(ack), "ack should be treated as heartbeat");
+		check(MessageHelper.getCapabilities(ack) == RudpCapabilities.EXTENDED_ACK, "ack capabilities");
+		check(ack.getUnsignedShort(5) == RECEIVE_WINDOW, "ack receive window " + ack.getUnsignedShort(5));
+		check(ack.getUnsignedShort(7) == ACK_DELAY, "ack delay " + ack.getUnsignedShort(7));
+		
+		//流0
+		int index = 9;
+		index = checkRanges(ack, index, 100, new int[]{102, 3, 110, 1}, "stream 0");
+		//无序消息
+		index = checkRanges(ack, index, 50, new int[]{52, 9}, "disordered");
+		//其他有序流
+		check(ack.getUnsignedByte(index) == 3, "ordered stream count " + ack.getUnsignedByte(index));
+		index = checkRanges(ack, index + 1, 200, new int[0], "stream 1");
+		index = checkRanges(ack, index, 300, new int[]{Integer.MAX_VALUE, 3}, "stream 2");
+		check(index == ack.writerIndex(), "ack should end at " + index + ", writerIndex=" + ack.writerIndex());
+		
+		//只有一个有序流时与旧的格式相同，没有有序流数量
+		ack = MessageHelper.getAck(RudpCapabilities.EXTENDED_ACK, RECEIVE_WINDOW, ACK_DELAY,
+				cumulativeIds, orderedRanges, rangeCounts, 1, 50, disorderedRanges, 0);
+		check(ack.readableBytes() == MessageHelper.ACK_MIN_LENGTH + 2 * MessageHelper.ACK_RANGE_LENGTH, "single stream ack length " + ack.readableBytes());
+	}
+	
+	//无序消息的空洞把收到的消息分成多个区段，区段数量受最大值限制
+	private static void testDisorderedRanges() {
+		DisorderedUpStatus status = new DisorderedUpStatus(WINDOW_SIZE);
+		int start = RudpConstants.INITIAL_SEQUENCE_ID;
+		for (int i = 0; i < MESSAGE_COUNT; i++) {
+			if(isHole(i) == false) {
+				status.onMessageReceived(start + i);
+			}
+		}
+		check(status.getCumulativeSequenceId() == start + HOLE_OFFSETS[0] - 1, "disordered cumulative id: " + status);
+		int[] ranges = new int[MAX_RANGE_COUNT * 2];
+		int rangeCount = status.getAckRanges(ranges, MAX_RANGE_COUNT);
+		checkHoleRanges(ranges, rangeCount, start, "disordered");
+		
+		//区段数量受限时，只反馈低序号的区段
+		rangeCount = status.getAckRanges(ranges, 2);
+		check(rangeCount == 2, "limited disordered range count " + rangeCount);
+		check(ranges[0] == start + 12 && ranges[3] == start + 39, "limited disordered ranges " + ranges[0] + "-" + ranges[3]);
+	}
+	
+	//有序消息的空洞同样划分区段，空洞之后的消息在缓存中等待
+	private static void testOrderedRanges() {
+		OrderedUpStatus status = new OrderedUpStatus(WINDOW_SIZE);
+		int start = RudpConstants.INITIAL_SEQUENCE_ID;
+		IOrderedMessageSink sink = new IOrderedMessageSink() {
+			@Override
+			public void onOrderedMessage(ChannelBuffer message) {
+			}
+		};
+		for (int i = MESSAGE_COUNT - 1; i >= 0; i--) {
+			if(isHole(i) == false) {
+				status.onMessageReceived(start + i, newMessage(MessageHelper.RELIABLE_ORDERED_HEAD), sink);
+			}
+		}
+		check(status.getCumulativeSequenceId() == start + HOLE_OFFSETS[0] - 1, "ordered cumulative id: " + status);
+		check(status.getCacheSize() == MESSAGE_COUNT - HOLE_OFFSETS[0] - HOLE_OFFSETS.length, "ordered cache size: " + status);
+		int[] ranges = new int[MAX_RANGE_COUNT * 2];
+		int rangeCount = status.getAckRanges(ranges, MAX_RANGE_COUNT);
+		checkHoleRanges(ranges, rangeCount, start, "ordered");
+	}
+	
+	//发送端收到确认后移除累计确认和区段中的消息，区段之后已确认的消息达到阈值时，空洞中的消息快速重发
+	private static void testOnAck() {
+		SessionReliabilityManager manager = new SessionReliabilityManager(newSession());
+		RecordingCongestionController controller = new RecordingCongestionController();
+		manager.setCongestionController(controller);
+		for (int i = 0; i < MESSAGE_COUNT; i++) {
+			check(manager.onReliableWrite(newMessage(MessageHelper.RELIABLE_DISORDERED_HEAD)), "message " + i + " should be sent");
+		}
+		
+		//接收端收到了空洞以外的消息
+		DisorderedUpStatus status = new DisorderedUpStatus(WINDOW_SIZE);
+		int start = RudpConstants.INITIAL_SEQUENCE_ID;
+		for (int i = 0; i < MESSAGE_COUNT; i++) {
+			if(isHole(i) == false) {
+				status.onMessageReceived(start + i);
+			}
+		}
+		manager.onAck(newAck(status));
+		check(controller.ackedCount == MESSAGE_COUNT - HOLE_OFFSETS.length, "acked count " + controller.ackedCount);
+		check(controller.fastLossCount == 1, "fast loss count " + controller.fastLossCount);
+		check(manager.getPeerReceiveWindow() == RECEIVE_WINDOW, "peer receive window " + manager.getPeerReceiveWindow());
+		check(manager.getPeerCapabilities() == RudpCapabilities.EXTENDED_ACK, "peer capabilities " + manager.getPeerCapabilities());
+		
+		//重复的确认不会再确认任何消息
+		manager.onAck(newAck(status));
+		check(controller.ackedCount == MESSAGE_COUNT - HOLE_OFFSETS.length, "acked count after duplicated ack " + controller.ackedCount);
+		
+		//空洞补上后，累计确认移除剩下的消息
+		for (int offset : HOLE_OFFSETS) {
+			status.onMessageReceived(start + offset);
+		}
+		manager.onAck(newAck(status));
+		check(controller.ackedCount == MESSAGE_COUNT, "acked count after holes filled " + controller.ackedCount);
+		check(manager.onReliableWrite(newMessage(MessageHelper.RELIABLE_DISORDERED_HEAD)), "message after all acked should be sent");
+		manager.clear();
+	}
+	
+	//区段数量超出消息长度的确认消息被丢弃，不确认任何消息
+	private static void testMalformedAck() {
+		SessionReliabilityManager manager = new SessionReliabilityManager(newSession());
+		RecordingCongestionController controller = new RecordingCongestionController();
+		manager.setCongestionController(controller);
+		for (int i = 0; i < MESSAGE_COUNT; i++) {
+			manager.onReliableWrite(newMessage(MessageHelper.RELIABLE_DISORDERED_HEAD));
+		}
+		DisorderedUpStatus status = new DisorderedUpStatus(WINDOW_SIZE);
+		for (int i = 0; i < MESSAGE_COUNT; i++) {
+			status.onMessageReceived(RudpConstants.INITIAL_SEQUENCE_ID + i);
+		}
+		ChannelBuffer ack = newAck(status);
+		ack.setByte(9 + 4, 100);
+		manager.onAck(ack);
+		check(controller.ackedCount == 0 && controller.ackCallCount == 0, "malformed ack should be ignored, acked " + controller.ackedCount);
+		check(manager.getPeerReceiveWindow() == -1, "malformed ack should not update peer receive window");
+		manager.clear();
+	}
+	
+	//读出一种消息的确认并检查，expectedRanges依次为每个区段的起始序号和长度，返回结束位置
+	private static int checkRanges(ChannelBuffer ack, int index, int cumulativeId, int[] expectedRanges, String name) {
+		check(ack.getInt(index) == cumulativeId, name + " cumulative id " + ack.getInt(index));
+		int rangeCount = ack.getUnsignedByte(index + 4);
+		check(rangeCount == expectedRanges.length / 2, name + " range count " + rangeCount);
+		index += 5;
+		for (int i = 0; i < rangeCount; i++) {
+			check(ack.getInt(index) == expectedRanges[i * 2], name + " range start " + ack.getInt(index));
+			check(ack.getUnsignedShort(index + 4) == expectedRanges[i * 2 + 1], name + " range length " + ack.getUnsignedShort(index + 4));
+			index += MessageHelper.ACK_RANGE_LENGTH;
+		}
+		return index;
+	}
+	
+	//检查空洞之间的区段：12-24、26-39、41-49
+	private static void checkHoleRanges(int[] ranges, int rangeCount, int start, String name) {
+		check(rangeCount == 3, name + " range count " + rangeCount);
+		int[] expected = {12, 24, 26, 39, 41, MESSAGE_COUNT - 1};
+		for (int i = 0; i < expected.length; i++) {
+			check(ranges[i] == start + expected[i], name + " range bound " + i + ": " + ranges[i] + ", expected " + (start + expected[i]));
+		}
+	}
+	
+	private static boolean isHole(int offset) {
+		for (int holeOffset : HOLE_OFFSETS) {
+			if(offset == holeOffset) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	//用无序消息的接收状态构造扩展确认消息，流0没有收到过消息
+	private static ChannelBuffer newAck(DisorderedUpStatus status) {
+		int[] ranges = new int[MAX_RANGE_COUNT * 2];
+		int rangeCount = status.getAckRanges(ranges, MAX_RANGE_COUNT);
+		return MessageHelper.getAck(RudpCapabilities.EXTENDED_ACK, RECEIVE_WINDOW, ACK_DELAY,
+				new int[]{RudpConstants.INITIAL_SEQUENCE_ID - 1}, new int[][]{new int[0]}, new int[]{0}, 1,
+				status.getCumulativeSequenceId(), ranges, rangeCount);
+	}
+	
+	//未拆分的可靠消息，序号由管理器分配
+	private static ChannelBuffer newMessage(byte head) {
+		ChannelBuffer buf = ChannelBuffers.buffer(RudpConstants.BYTE_ORDER, MessageHelper.MESSAGE_HEAD_LENGTH + 4);
+		buf.writeByte(head);
+		buf.writeZero(MessageHelper.MESSAGE_HEAD_LENGTH - 1);
+		buf.writeInt(0);
+		return buf;
+	}
+	
+	//不连接网络的会话，只提供远端地址，发出的消息被丢弃
+	private static IRudpSession newSession() {
+		final SocketAddress remoteAddress = new InetSocketAddress("127.0.0.1", 9999);
+		return (IRudpSession) Proxy.newProxyInstance(AckRangesTest.class.getClassLoader(), new Class<?>[]{IRudpSession.class},
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if(method.getName().equals("getRemoteAddress")) {
+							return remoteAddress;
+						}
+						if(method.getName().equals("getMtu")) {
+							return RudpConstants.MESSAGE_MAX_LENGTH;
+						}
+						if(method.getName().equals("isClosed") || method.getName().equals("isSuspended")) {
+							return false;
+						}
+						return null;
+					}
+				});
+	}
+	
+	private static void check(boolean condition, String message) {
+		if(condition == false) {
+			throw new IllegalStateException(message);
+		}
+	}
+	
+	/**
+	 * 记录确认数量和丢包次数的拥塞控制器，窗口不限制发送。
+	 */
+	private static final class RecordingCongestionController implements ICongestionController {
+		private int ackedCount;			//确认的消息总数
+		private int ackCallCount;		//收到确认的次数
+		private int fastLossCount;		//快速重发发现丢包的次数
+		
+		@Override
+		public int getWindow() {
+			return Integer.MAX_VALUE;
+		}
+		
+		@Override
+		public void onAcked(int ackedCount, long rttSample) {
+			this.ackedCount += ackedCount;
+			ackCallCount++;
+		}
+		
+		@Override
+		public void onLoss(boolean timeout) {
+			if(timeout == false) {
+				fastLossCount++;
+			}
+		}
+	}
+}
@@ -0,0 +1,221 @@
+package com.ddpie.rudp.filter.reliability;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import com.ddpie.rudp.constant.RudpCapabilities;
+import com.ddpie.rudp.constant.RudpConstants;
+import com.ddpie.rudp.session.IRudpSession;
+import com.ddpie.rudp.util.MessageHelper;
+
+/**
+ * 多个有序流的测试。<br>
+ * 检查消息头中的有序流ID，接收端每个有序流独立排序、一个流的空洞不阻塞其他流，
+ * 以及发送端在协商前后的序号分配：远端支持多个有序流之前其他流的消息在流0中发送，这些消息都被确认后才使用各自的序号空间。<br>
+ * 直接运行main方法，全部通过时输出OK，失败时抛出异常。
+ * 
+ * @author caobao
+ *
+ */
+public class OrderedStreamsTest {
+	private static final int STREAM_COUNT = 3;			//使用的有序流数量
+	private static final int MESSAGE_COUNT = 20;		//每个有序流的消息数量
+	private static final int BLOCKED_STREAM_ID = 1;		//起始消息最后到达的有序流
+	private static final int PEER_CAPABILITIES = RudpCapabilities.EXTENDED_ACK | RudpCapabilities.ORDERED_STREAMS;	//远端能力
+	
+	public static void main(String[] args) {
+		testStreamHead();
+		testIndependentDelivery();
+		testWriteFallback();
+		System.out.println("OK");
+	}
+	
+	//有序流ID在消息类型的高位中，不影响消息类型和捎带确认标记
+	private static void testStreamHead() {
+		for (int streamId = 0; streamId < MessageHelper.ORDERED_STREAM_MAX_COUNT; streamId++) {
+			ChannelBuffer message = newMessage(streamId, 0);
+			check(MessageHelper.isReliableOrdered(message), "stream " + streamId + " should be reliable ordered");
+			check(MessageHelper.getOrderedStreamId(message) == streamId, "stream id " + MessageHelper.getOrderedStreamId(message));
+			ChannelBuffer piggyback = MessageHelper.getPiggybackAck(message, 0, (short) 0, 0, (short) 0, 0, 0);
+			check(MessageHelper.hasPiggybackAck(piggyback), "stream " + streamId + " piggyback flag");
+			check(MessageHelper.getOrderedStreamId(piggyback) == streamId, "piggyback stream id " + MessageHelper.getOrderedStreamId(piggyback));
+		}
+		ChannelBuffer message = newMessage(5, 0);
+		MessageHelper.setOrderedStreamId(message, 0);
+		check(message.getByte(0) == MessageHelper.RELIABLE_ORDERED_HEAD, "stream 0 head should be the old head");
+	}
+	
+	//一个有序流的起始消息最后到达，其他流照常按序交付，补上后该流的消息一起按序交付
+	private static void testIndependentDelivery() {
+		SessionReliabilityManager manager = new SessionReliabilityManager(newSession());
+		int start = RudpConstants.INITIAL_SEQUENCE_ID;
+		List<List<Integer>> delivered = new ArrayList<List<Integer>>();
+		for (int streamId = 0; streamId < STREAM_COUNT; streamId++) {
+			delivered.add(new ArrayList<Integer>());
+		}
+		//各个流的消息交替到达
+		for (int i = 0; i < MESSAGE_COUNT; i++) {
+			for (int streamId = 0; streamId < STREAM_COUNT; streamId++) {
+				if(streamId == BLOCKED_STREAM_ID && i == 0) {
+					continue;
+				}
+				ChannelBuffer message = newMessage(streamId, start + i);
+				collect(manager.onOrderedReceived(message), delivered);
+			}
+			for (int streamId = 0; streamId < STREAM_COUNT; streamId++) {
+				int expectedCount = streamId == BLOCKED_STREAM_ID ? 0 : i + 1;
+				check(delivered.get(streamId).size() == expectedCount,
+						"stream " + streamId + " delivered " + delivered.get(streamId).size() + " after round " + i + ", expected " + expectedCount);
+			}
+		}
+		
+		collect(manager.onOrderedReceived(newMessage(BLOCKED_STREAM_ID, start)), delivered);
+		for (int streamId = 0; streamId < STREAM_COUNT; streamId++) {
+			List<Integer> sequenceIds = delivered.get(streamId);
+			check(sequenceIds.size() == MESSAGE_COUNT, "stream " + streamId + " delivered " + sequenceIds.size());
+			for (int i = 0; i < MESSAGE_COUNT; i++) {
+				check(sequenceIds.get(i) == start + i, "stream " + streamId + " delivered " + sequenceIds.get(i) + " at " + i);
+			}
+		}
+		
+		//相同序号在不同的流中是不同的消息，已经交付的序号在其他流中不算重复
+		check(manager.onOrderedReceived(newMessage(STREAM_COUNT, start)) != null, "first message of a new stream should be delivered");
+		check(manager.onOrderedReceived(newMessage(0, start)) == null, "duplicate in stream 0 should not be delivered");
+		manager.clear();
+	}
+	
+	//协商前其他流的消息在流0中发送；协商后要等这些消息被确认，才在各自的流中从起始序号开始编号
+	private static void testWriteFallback() {
+		SessionReliabilityManager manager = new SessionReliabilityManager(newSession());
+		int start = RudpConstants.INITIAL_SEQUENCE_ID;
+		
+		ChannelBuffer message = write(manager, 1);
+		check(MessageHelper.getOrderedStreamId(message) == 0 && MessageHelper.getSequenceId(message) == start,
+				"stream 1 before negotiation should fall back to stream 0: " + describe(message));
+		
+		//远端支持多个有序流，但流0中的消息尚未确认
+		manager.onAck(newAck(new int[]{start - 1}, 1));
+		check(manager.isOrderedStreamsEnabled(), "ordered streams should be enabled");
+		message = write(manager, 1);
+		check(MessageHelper.getOrderedStreamId(message) == 0 && MessageHelper.getSequenceId(message) == start + 1,
+				"stream 1 should fall back until stream 0 acked: " + describe(message));
+		
+		//流0中的消息都被确认后，流1和流2使用各自的序号空间
+		manager.onAck(newAck(new int[]{start + 1}, 1));
+		message = write(manager, 1);
+		check(MessageHelper.getOrderedStreamId(message) == 1 && MessageHelper.getSequenceId(message) == start,
+				"stream 1 after fallback acked: " + describe(message));
+		message = write(manager, 2);
+		check(MessageHelper.getOrderedStreamId(message) == 2 && MessageHelper.getSequenceId(message) == start,
+				"stream 2 should start its own sequence: " + describe(message));
+		message = write(manager, 0);
+		check(MessageHelper.getOrderedStreamId(message) == 0 && MessageHelper.getSequenceId(message) == start + 2,
+				"stream 0 should continue its sequence: " + describe(message));
+		
+		//确认消息分别确认各个流，只确认流1时流2的消息仍在途
+		RecordingCongestionController controller = new RecordingCongestionController();
+		manager.setCongestionController(controller);
+		manager.onAck(newAck(new int[]{start + 1, start, start - 1}, STREAM_COUNT));
+		check(controller.ackedCount == 1, "stream 1 acked count " + controller.ackedCount);
+		manager.onAck(newAck(new int[]{start + 2, start, start}, STREAM_COUNT));
+		check(controller.ackedCount == 3, "all streams acked count " + controller.ackedCount);
+		manager.clear();
+	}
+	
+	//发送一条指定有序流的消息，返回分配了序号的消息
+	private static ChannelBuffer write(SessionReliabilityManager manager, int streamId) {
+		ChannelBuffer message = newMessage(streamId, 0);
+		check(manager.onReliableWrite(message), "stream " + streamId + " message should be sent");
+		return message;
+	}
+	
+	//把收到消息后交付的消息按有序流归类
+	private static void collect(Object result, List<List<Integer>> delivered) {
+		if(result == null) {
+			return;
+		}
+		Object[] messages = result instanceof Object[] ? (Object[]) result : new Object[]{result};
+		for (Object message : messages) {
+			ChannelBuffer buf = (ChannelBuffer) message;
+			delivered.get(MessageHelper.getOrderedStreamId(buf)).add(MessageHelper.getSequenceId(buf));
+		}
+	}
+	
+	//只有累计确认序号的扩展确认消息，下标为有序流ID
+	private static ChannelBuffer newAck(int[] cumulativeIds, int streamCount) {
+		int[][] ranges = new int[streamCount][0];
+		return MessageHelper.getAck(PEER_CAPABILITIES, 0xFFFF, 0, cumulativeIds, ranges, new int[streamCount], streamCount,
+				RudpConstants.INITIAL_SEQUENCE_ID - 1, new int[0], 0);
+	}
+	
+	//指定有序流和序号的可靠且有序消息
+	private static ChannelBuffer newMessage(int streamId, int sequenceId) {
+		ChannelBuffer buf = ChannelBuffers.buffer(RudpConstants.BYTE_ORDER, MessageHelper.MESSAGE_HEAD_LENGTH + 4);
+		buf.writeByte(MessageHelper.getReliableOrderedHead(streamId));
+		buf.writeInt(sequenceId);
+		buf.writeByte(0);
+		buf.writeByte(0);
+		buf.writeInt(streamId);
+		return buf;
+	}
+	
+	private static String describe(ChannelBuffer message) {
+		return "stream=" + MessageHelper.getOrderedStreamId(message) + ", sequenceId=" + MessageHelper.getSequenceId(message);
+	}
+	
+	//不连接网络的会话，只提供远端地址，发出的消息被丢弃
+	private static IRudpSession newSession() {
+		final SocketAddress remoteAddress = new InetSocketAddress("127.0.0.1", 9999);
+		return (IRudpSession) Proxy.newProxyInstance(OrderedStreamsTest.class.getClassLoader(), new Class<?>[]{IRudpSession.class},
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if(method.getName().equals("getRemoteAddress")) {
+							return remoteAddress;
+						}
+						if(method.getName().equals("getMtu")) {
+							return RudpConstants.MESSAGE_MAX_LENGTH;
+						}
+						if(method.getName().equals("isClosed") || method.getName().equals("isSuspended")) {
+							return false;
+						}
+						return null;
+					}
+				});
+	}
+	
+	private static void check(boolean condition, String message) {
+		if(condition == false) {
+			throw new IllegalStateException(message);
+		}
+	}
+	
+	/**
+	 * 记录确认数量的拥塞控制器，窗口不限制发送。
+	 */
+	private static final class RecordingCongestionController implements ICongestionController {
+		private int ackedCount;		//确认的消息总数
+		
+		@Override
+		public int getWindow() {
+			return Integer.MAX_VALUE;
+		}
+		
+		@Override
+		public void onAcked(int ackedCount, long rttSample) {
+			this.ackedCount += ackedCount;
+		}
+		
+		@Override
+		public void onLoss(boolean timeout) {
+		}
+	}
+}
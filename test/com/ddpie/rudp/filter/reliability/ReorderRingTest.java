@@ -0,0 +1,246 @@
+package com.ddpie.rudp.filter.reliability;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import com.ddpie.rudp.constant.RudpConstants;
+
+/**
+ * 接收端环形数组的测试。<br>
+ * 用很小的窗口检查{@link OrderedUpStatus}的重排序环形数组和{@link DisorderedUpStatus}的接收位图：
+ * 窗口边界上的接收和丢弃、槽位多轮复用后的交付顺序、重复消息的识别，以及反馈bitfield的位序。<br>
+ * 直接运行main方法，全部通过时输出OK，失败时抛出异常。
+ * 
+ * @author caobao
+ *
+ */
+public class ReorderRingTest {
+	private static final int WINDOW_SIZE = 64;			//接收状态的窗口大小，也是环形数组的容量
+	private static final int ROUND_COUNT = 20;			//复用环形数组的轮数
+	private static final long RANDOM_SEED = 20120620L;	//打乱顺序用的随机种子，保证每次结果相同
+	
+	public static void main(String[] args) {
+		testOrderedWindowEdge();
+		testOrderedRingReuse();
+		testOrderedDuplicates();
+		testOrderedFeedback();
+		testDisorderedWindowEdge();
+		testDisorderedRingReuse();
+		testDisorderedJump();
+		System.out.println("OK");
+	}
+	
+	//起始消息没到时，窗口内的消息都缓存，超出窗口的消息被丢弃，不占用槽位
+	private static void testOrderedWindowEdge() {
+		OrderedUpStatus status = new OrderedUpStatus(WINDOW_SIZE);
+		RecordingSink sink = new RecordingSink();
+		int start = RudpConstants.INITIAL_SEQUENCE_ID;
+		for (int i = 1; i < WINDOW_SIZE; i++) {
+			status.onMessageReceived(start + i, newMessage(start + i), sink);
+		}
+		check(status.getCacheSize() == WINDOW_SIZE - 1, "ordered cache size at window edge: " + status);
+		check(status.isInWindow(start + WINDOW_SIZE - 1), "last message in window should be in window");
+		
+		//与起始消息共用槽位的消息超出了窗口
+		check(status.onMessageReceived(start + WINDOW_SIZE, newMessage(start + WINDOW_SIZE), sink) == null,
+				"message beyond window should be dropped without feedback");
+		check(status.getCacheSize() == WINDOW_SIZE - 1, "message beyond window should not be cached: " + status);
+		check(sink.sequenceIds.isEmpty(), "nothing should be delivered before start arrives");
+		
+		status.onMessageReceived(start, newMessage(start), sink);
+		checkDelivered(sink.sequenceIds, start, WINDOW_SIZE);
+		check(status.getCacheSize() == 0, "ordered cache should be empty: " + status);
+		
+		//被丢弃的消息重发后正常交付
+		status.onMessageReceived(start + WINDOW_SIZE, newMessage(start + WINDOW_SIZE), sink);
+		checkDelivered(sink.sequenceIds, start, WINDOW_SIZE + 1);
+	}
+	
+	//每轮在窗口内打乱顺序到达，槽位复用多轮后仍然按序号交付同一个消息对象
+	private static void testOrderedRingReuse() {
+		OrderedUpStatus status = new OrderedUpStatus(WINDOW_SIZE);
+		RecordingSink sink = new RecordingSink();
+		int start = RudpConstants.INITIAL_SEQUENCE_ID;
+		Random random = new Random(RANDOM_SEED);
+		for (int round = 0; round < ROUND_COUNT; round++) {
+			int roundStart = start + round * WINDOW_SIZE;
+			List<Integer> sequenceIds = shuffledSequenceIds(roundStart, WINDOW_SIZE, random);
+			for (int sequenceId : sequenceIds) {
+				ChannelBuffer message = newMessage(sequenceId);
+				status.onMessageReceived(sequenceId, message, sink);
+				sink.checkLastIdentity(sequenceId, message);
+			}
+			check(status.getCacheSize() == 0, "ordered cache should be empty after round " + round + ": " + status);
+		}
+		checkDelivered(sink.sequenceIds, start, ROUND_COUNT * WINDOW_SIZE);
+		check(status.getCumulativeSequenceId() == start + ROUND_COUNT * WINDOW_SIZE - 1, "ordered cumulative id: " + status);
+	}
+	
+	//缓存中的消息和已经交付的消息重复到达时都需要反馈，但不会再缓存或交付
+	private static void testOrderedDuplicates() {
+		OrderedUpStatus status = new OrderedUpStatus(WINDOW_SIZE);
+		RecordingSink sink = new RecordingSink();
+		int start = RudpConstants.INITIAL_SEQUENCE_ID;
+		status.onMessageReceived(start, newMessage(start), sink);
+		status.onMessageReceived(start + 2, newMessage(start + 2), sink);
+		
+		OrderedFeedback feedback = status.onMessageReceived(start + 2, newMessage(start + 2), sink);
+		check(feedback != null, "cached duplicate should be fed back");
+		check(status.getCacheSize() == 1, "cached duplicate should not be cached twice: " + status);
+		feedback = status.onMessageReceived(start, newMessage(start), sink);
+		check(feedback != null, "delivered duplicate should be fed back");
+		checkDelivered(sink.sequenceIds, start, 1);
+		
+		status.onMessageReceived(start + 1, newMessage(start + 1), sink);
+		checkDelivered(sink.sequenceIds, start, 3);
+	}
+	
+	//够16条消息时反馈，反馈序号为最新的消息，bitfield的第i位对应序号减i的消息；已经反馈过的不再反馈
+	private static void testOrderedFeedback() {
+		OrderedUpStatus status = new OrderedUpStatus(WINDOW_SIZE);
+		RecordingSink sink = new RecordingSink();
+		int start = RudpConstants.INITIAL_SEQUENCE_ID;
+		OrderedFeedback feedback = null;
+		for (int i = 0; i < 16; i++) {
+			if(i != 3 && i != 9) {
+				feedback = status.onMessageReceived(start + i, newMessage(start + i), sink);
+			}
+		}
+		check(feedback != null && feedback.getSequenceId() == start + 15, "ordered feedback: " + feedback);
+		int expected = 0xFFFF & ~(1 << (15 - 3)) & ~(1 << (15 - 9));
+		check((feedback.getBitFields() & 0xFFFF) == expected,
+				"ordered feedback bits " + Integer.toHexString(feedback.getBitFields() & 0xFFFF) + ", expected " + Integer.toHexString(expected));
+		check(status.getFeedback().getBitFields() == 0, "fed back messages should not be fed back again");
+		
+		//空洞中的老消息到达时，反馈它前后的接收状态
+		feedback = status.onMessageReceived(start + 3, newMessage(start + 3), sink);
+		check(feedback != null && feedback.getSequenceId() == start + 11, "old message feedback: " + feedback);
+		checkDelivered(sink.sequenceIds, start, 9);
+		expected = 0xFFFF & ~(1 << (11 - 9));
+		check((feedback.getBitFields() & 0xFFFF) == expected,
+				"old message feedback bits " + Integer.toHexString(feedback.getBitFields() & 0xFFFF) + ", expected " + Integer.toHexString(expected));
+	}
+	
+	//空洞滑出接收位图后状态丢失，空洞中的消息到达时仍然推进累计确认序号
+	private static void testDisorderedWindowEdge() {
+		DisorderedUpStatus status = new DisorderedUpStatus(WINDOW_SIZE);
+		int start = RudpConstants.INITIAL_SEQUENCE_ID;
+		for (int i = 1; i <= WINDOW_SIZE; i++) {
+			DisorderedFeedback feedback = status.onMessageReceived(start + i);
+			check(feedback == null || feedback.isDuplicatedMsg() == false, "first arrival should not be duplicated: " + (start + i));
+		}
+		check(status.getCumulativeSequenceId() == start - 1, "disordered cumulative id before hole filled: " + status);
+		check(status.isInWindow(start) == false, "hole should have slid out of window");
+		check(status.isInWindow(start + 1), "oldest message in bitmap should be in window");
+		
+		DisorderedFeedback feedback = status.onMessageReceived(start);
+		check(feedback != null && feedback.isDuplicatedMsg() == false, "hole out of window should be accepted: " + feedback);
+		check(feedback.getSequenceId() == start && feedback.getBitFields() == 1, "hole feedback: " + feedback);
+		check(status.getCumulativeSequenceId() == start + WINDOW_SIZE, "disordered cumulative id after hole filled: " + status);
+		feedback = status.onMessageReceived(start);
+		check(feedback != null && feedback.isDuplicatedMsg(), "hole should be duplicated after cumulative ack");
+	}
+	
+	//每轮在窗口内打乱顺序到达，位图复用多轮后重复消息仍然能识别
+	private static void testDisorderedRingReuse() {
+		DisorderedUpStatus status = new DisorderedUpStatus(WINDOW_SIZE);
+		int start = RudpConstants.INITIAL_SEQUENCE_ID;
+		Random random = new Random(RANDOM_SEED);
+		for (int round = 0; round < ROUND_COUNT; round++) {
+			int roundStart = start + round * WINDOW_SIZE;
+			List<Integer> sequenceIds = shuffledSequenceIds(roundStart, WINDOW_SIZE, random);
+			for (int i = 0; i < sequenceIds.size(); i++) {
+				int sequenceId = sequenceIds.get(i);
+				DisorderedFeedback feedback = status.onMessageReceived(sequenceId);
+				check(feedback == null || feedback.isDuplicatedMsg() == false, "first arrival should not be duplicated: " + sequenceId);
+				//本轮已经到达的一条消息重复到达
+				feedback = status.onMessageReceived(sequenceIds.get(i / 2));
+				check(feedback != null && feedback.isDuplicatedMsg(), "duplicate should be detected: " + sequenceIds.get(i / 2));
+			}
+			check(status.getCumulativeSequenceId() == roundStart + WINDOW_SIZE - 1, "disordered cumulative id after round " + round + ": " + status);
+		}
+		//上一轮复用同一位置的消息不会被当成重复
+		DisorderedFeedback feedback = status.onMessageReceived(start + ROUND_COUNT * WINDOW_SIZE);
+		check(feedback == null || feedback.isDuplicatedMsg() == false, "next message should not be duplicated");
+	}
+	
+	//跳跃超过整个窗口时位图全部重置，跨过的消息不会被误认为收到过
+	private static void testDisorderedJump() {
+		DisorderedUpStatus status = new DisorderedUpStatus(WINDOW_SIZE);
+		int start = RudpConstants.INITIAL_SEQUENCE_ID;
+		for (int i = 0; i < WINDOW_SIZE / 2; i++) {
+			status.onMessageReceived(start + i);
+		}
+		int farSequenceId = start + WINDOW_SIZE * 3 + 5;
+		status.onMessageReceived(farSequenceId);
+		check(status.getCumulativeSequenceId() == start + WINDOW_SIZE / 2 - 1, "disordered cumulative id after jump: " + status);
+		for (int i = 1; i <= WINDOW_SIZE - 1; i++) {
+			DisorderedFeedback feedback = status.onMessageReceived(farSequenceId - i);
+			check(feedback == null || feedback.isDuplicatedMsg() == false, "skipped message should not be duplicated: " + (farSequenceId - i));
+		}
+		int[] ranges = new int[8];
+		int rangeCount = status.getAckRanges(ranges, 4);
+		check(rangeCount == 1 && ranges[0] == farSequenceId - WINDOW_SIZE + 1 && ranges[1] == farSequenceId,
+				"disordered range after jump: " + rangeCount + ", " + ranges[0] + "-" + ranges[1]);
+	}
+	
+	//从起始序号开始的一批序号，打乱顺序
+	private static List<Integer> shuffledSequenceIds(int start, int count, Random random) {
+		List<Integer> sequenceIds = new ArrayList<Integer>(count);
+		for (int i = 0; i < count; i++) {
+			sequenceIds.add(start + i);
+		}
+		Collections.shuffle(sequenceIds, random);
+		return sequenceIds;
+	}
+	
+	//检查交付的消息是从起始序号开始连续的count条
+	private static void checkDelivered(List<Integer> delivered, int start, int count) {
+		check(delivered.size() == count, "delivered count " + delivered.size() + ", expected " + count);
+		for (int i = 0; i < count; i++) {
+			check(delivered.get(i) == start + i, "delivered " + delivered.get(i) + " at " + i + ", expected " + (start + i));
+		}
+	}
+	
+	//消息内容就是它的序号
+	private static ChannelBuffer newMessage(int sequenceId) {
+		ChannelBuffer buf = ChannelBuffers.buffer(RudpConstants.BYTE_ORDER, 4);
+		buf.writeInt(sequenceId);
+		return buf;
+	}
+	
+	private static void check(boolean condition, String message) {
+		if(condition == false) {
+			throw new IllegalStateException(message);
+		}
+	}
+	
+	/**
+	 * 记录交付顺序和交付的消息对象的回调。
+	 */
+	private static final class RecordingSink implements IOrderedMessageSink {
+		private List<Integer> sequenceIds = new ArrayList<Integer>();
+		private List<ChannelBuffer> messages = new ArrayList<ChannelBuffer>();
+		
+		@Override
+		public void onOrderedMessage(ChannelBuffer message) {
+			sequenceIds.add(message.getInt(message.readerIndex()));
+			messages.add(message);
+		}
+		
+		//若刚收到的消息已经交付，则交付的是同一个对象
+		void checkLastIdentity(int sequenceId, ChannelBuffer message) {
+			for (int i = messages.size() - 1; i >= 0 && i >= messages.size() - WINDOW_SIZE; i--) {
+				if(sequenceIds.get(i) == sequenceId) {
+					check(messages.get(i) == message, "delivered message of " + sequenceId + " should be the received object");
+					return;
+				}
+			}
+		}
+	}
+}
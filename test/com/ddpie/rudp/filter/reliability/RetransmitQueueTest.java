@@ -0,0 +1,181 @@
+package com.ddpie.rudp.filter.reliability;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import com.ddpie.rudp.constant.RudpConstants;
+
+/**
+ * 重发队列的测试。<br>
+ * 检查{@link RetransmitQueue}的最小堆按超时时间出队、修改超时时间后重新排序，
+ * 以及环形数组在乱序加入、乱序确认和扩容后按序号查找的正确性。<br>
+ * 直接运行main方法，全部通过时输出OK，失败时抛出异常。
+ * 
+ * @author caobao
+ *
+ */
+public class RetransmitQueueTest {
+	private static final int MESSAGE_COUNT = 500;		//每项测试的消息数量，超过环形数组的初始容量
+	private static final int START_SEQUENCE_ID = 1000;	//起始序号
+	private static final long RANDOM_SEED = 20120615L;	//打乱顺序用的随机种子，保证每次结果相同
+	
+	public static void main(String[] args) {
+		testHeapOrder();
+		testUpdateExpireTime();
+		testRingGrowth();
+		testOutOfOrderRemove();
+		testReplace();
+		System.out.println("OK");
+	}
+	
+	//超时时间打乱后加入，堆顶始终是超时时间最早的消息
+	private static void testHeapOrder() {
+		RetransmitFramePool pool = new RetransmitFramePool(64, 0);
+		RetransmitQueue queue = new RetransmitQueue();
+		List<Integer> offsets = shuffledOffsets(MESSAGE_COUNT);
+		for (int i = 0; i < MESSAGE_COUNT; i++) {
+			int sequenceId = START_SEQUENCE_ID + i;
+			queue.add(sequenceId, pool.allocate(newMessage(sequenceId)), 0, expireTimeOf(offsets.get(i)));
+		}
+		long lastExpireTime = Long.MIN_VALUE;
+		for (int i = 0; i < MESSAGE_COUNT; i++) {
+			RetransmitQueue.MessageEntry earliest = queue.peekEarliest();
+			check(earliest.expireTime == queue.getEarliestExpireTime(), "earliest expire time: " + queue);
+			check(earliest.expireTime >= lastExpireTime, "expire time " + earliest.expireTime + " after " + lastExpireTime);
+			check(earliest.expireTime == expireTimeOf(i), "expire time " + earliest.expireTime + " at " + i);
+			lastExpireTime = earliest.expireTime;
+			check(queue.remove(earliest.sequenceId) == earliest, "remove earliest " + earliest);
+			earliest.frame.release();
+		}
+		check(queue.isEmpty() && queue.peekEarliest() == null, "queue should be empty: " + queue);
+		check(queue.getEarliestExpireTime() == Long.MAX_VALUE, "empty queue earliest expire time: " + queue.getEarliestExpireTime());
+	}
+	
+	//推迟堆顶消息的超时时间，或提前堆中其他消息的超时时间，堆顶随之变化
+	private static void testUpdateExpireTime() {
+		RetransmitFramePool pool = new RetransmitFramePool(64, 0);
+		RetransmitQueue queue = new RetransmitQueue();
+		for (int i = 0; i < MESSAGE_COUNT; i++) {
+			int sequenceId = START_SEQUENCE_ID + i;
+			queue.add(sequenceId, pool.allocate(newMessage(sequenceId)), 0, expireTimeOf(i));
+		}
+		//模拟超时重发：每次把堆顶推迟到最后
+		long deadline = expireTimeOf(MESSAGE_COUNT);
+		for (int i = 0; i < MESSAGE_COUNT; i++) {
+			RetransmitQueue.MessageEntry earliest = queue.peekEarliest();
+			check(earliest.sequenceId == START_SEQUENCE_ID + i, "earliest before retransmit: " + earliest);
+			queue.updateExpireTime(earliest, deadline + i);
+		}
+		check(queue.peekEarliest().sequenceId == START_SEQUENCE_ID, "earliest after all retransmitted: " + queue.peekEarliest());
+		
+		//中间的一条消息提前超时
+		int middleSequenceId = START_SEQUENCE_ID + MESSAGE_COUNT / 2;
+		queue.updateExpireTime(queue.get(middleSequenceId), 0);
+		check(queue.peekEarliest().sequenceId == middleSequenceId, "earliest after moved up: " + queue.peekEarliest());
+		queue.updateExpireTime(queue.get(middleSequenceId), Long.MAX_VALUE - 1);
+		check(queue.peekEarliest().sequenceId == START_SEQUENCE_ID, "earliest after moved down: " + queue.peekEarliest());
+		queue.clear();
+	}
+	
+	//序号乱序加入时环形数组向两端扩容，扩容后每个序号仍然能找到
+	private static void testRingGrowth() {
+		RetransmitFramePool pool = new RetransmitFramePool(64, 0);
+		RetransmitQueue queue = new RetransmitQueue();
+		List<Integer> offsets = shuffledOffsets(MESSAGE_COUNT);
+		for (int offset : offsets) {
+			int sequenceId = START_SEQUENCE_ID + offset;
+			queue.add(sequenceId, pool.allocate(newMessage(sequenceId)), 0, expireTimeOf(offset));
+		}
+		check(queue.size() == MESSAGE_COUNT, "queue size: " + queue);
+		check(queue.getLowSequenceId() == START_SEQUENCE_ID, "queue low id: " + queue);
+		check(queue.getHighSequenceId() == START_SEQUENCE_ID + MESSAGE_COUNT - 1, "queue high id: " + queue);
+		for (int i = 0; i < MESSAGE_COUNT; i++) {
+			RetransmitQueue.MessageEntry entry = queue.get(START_SEQUENCE_ID + i);
+			check(entry != null && entry.sequenceId == START_SEQUENCE_ID + i, "queue get " + (START_SEQUENCE_ID + i));
+			check(entry.frame.getBuffer().getInt(entry.frame.getBuffer().readerIndex()) == entry.sequenceId, "frame of " + entry);
+		}
+		check(queue.get(START_SEQUENCE_ID - 1) == null && queue.get(START_SEQUENCE_ID + MESSAGE_COUNT) == null,
+				"queue should not find ids out of range");
+		check(queue.peekEarliest().sequenceId == START_SEQUENCE_ID, "earliest after growth: " + queue.peekEarliest());
+		queue.clear();
+	}
+	
+	//选择确认乱序移除消息，下界只在最小序号被确认时前移，剩余消息的堆顺序不变
+	private static void testOutOfOrderRemove() {
+		RetransmitFramePool pool = new RetransmitFramePool(64, 0);
+		RetransmitQueue queue = new RetransmitQueue();
+		for (int i = 0; i < MESSAGE_COUNT; i++) {
+			int sequenceId = START_SEQUENCE_ID + i;
+			queue.add(sequenceId, pool.allocate(newMessage(sequenceId)), 0, expireTimeOf(i));
+		}
+		//确认所有奇数偏移的消息，留下偶数偏移的缺口
+		List<Integer> offsets = shuffledOffsets(MESSAGE_COUNT);
+		for (int offset : offsets) {
+			if(offset % 2 == 1) {
+				RetransmitQueue.MessageEntry entry = queue.remove(START_SEQUENCE_ID + offset);
+				check(entry != null && entry.sequenceId == START_SEQUENCE_ID + offset, "queue remove " + (START_SEQUENCE_ID + offset));
+				entry.frame.release();
+			}
+		}
+		check(queue.remove(START_SEQUENCE_ID + 1) == null, "acked message should not be removed twice");
+		check(queue.size() == MESSAGE_COUNT / 2, "queue size after sack: " + queue);
+		check(queue.getLowSequenceId() == START_SEQUENCE_ID, "queue low id after sack: " + queue);
+		
+		//确认最小序号后，下界跳过已被确认的槽位
+		queue.remove(START_SEQUENCE_ID).frame.release();
+		check(queue.getLowSequenceId() == START_SEQUENCE_ID + 2, "queue low id after low acked: " + queue);
+		for (int i = 2; i < MESSAGE_COUNT; i += 2) {
+			RetransmitQueue.MessageEntry earliest = queue.peekEarliest();
+			check(earliest.sequenceId == START_SEQUENCE_ID + i, "earliest after sack: " + earliest + ", expected " + (START_SEQUENCE_ID + i));
+			queue.remove(earliest.sequenceId).frame.release();
+		}
+		check(queue.isEmpty(), "queue should be empty: " + queue);
+	}
+	
+	//同一序号重复加入时替换原来的消息，数量不变
+	private static void testReplace() {
+		RetransmitFramePool pool = new RetransmitFramePool(64, 0);
+		RetransmitQueue queue = new RetransmitQueue();
+		queue.add(START_SEQUENCE_ID, pool.allocate(newMessage(START_SEQUENCE_ID)), 0, 100);
+		queue.add(START_SEQUENCE_ID + 1, pool.allocate(newMessage(START_SEQUENCE_ID + 1)), 0, 200);
+		RetransmitQueue.MessageEntry entry = queue.add(START_SEQUENCE_ID, pool.allocate(newMessage(START_SEQUENCE_ID)), 0, 300);
+		check(queue.size() == 2, "queue size after replace: " + queue);
+		check(queue.get(START_SEQUENCE_ID) == entry, "replaced entry: " + queue.get(START_SEQUENCE_ID));
+		check(queue.peekEarliest().sequenceId == START_SEQUENCE_ID + 1, "earliest after replace: " + queue.peekEarliest());
+		queue.clear();
+		check(queue.isEmpty() && queue.get(START_SEQUENCE_ID) == null, "queue should be empty after clear: " + queue);
+	}
+	
+	//第index个超时时间，间隔不同，避免相同的超时时间
+	private static long expireTimeOf(int index) {
+		return 10000L + index * 3L;
+	}
+	
+	//0到count - 1，按固定的随机种子打乱
+	private static List<Integer> shuffledOffsets(int count) {
+		List<Integer> offsets = new ArrayList<Integer>(count);
+		for (int i = 0; i < count; i++) {
+			offsets.add(i);
+		}
+		Collections.shuffle(offsets, new Random(RANDOM_SEED));
+		return offsets;
+	}
+	
+	//消息内容就是它的序号
+	private static ChannelBuffer newMessage(int sequenceId) {
+		ChannelBuffer buf = ChannelBuffers.buffer(RudpConstants.BYTE_ORDER, 4);
+		buf.writeInt(sequenceId);
+		return buf;
+	}
+	
+	private static void check(boolean condition, String message) {
+		if(condition == false) {
+			throw new IllegalStateException(message);
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package com.ddpie.rudp.filter.reliability;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import com.ddpie.rudp.constant.RudpConstants;
+import com.ddpie.rudp.util.SequenceHelper;
+
+/**
+ * 消息序号回绕的测试。<br>
+ * 通过{@link RudpConstants#INITIAL_SEQUENCE_ID}让序号从Integer.MAX_VALUE - k开始，
+ * 检查{@link SequenceHelper}、{@link OrderedUpStatus}、{@link DisorderedUpStatus}和{@link RetransmitQueue}在序号回绕前后的行为。<br>
+ * 直接运行main方法，全部通过时输出OK，失败时抛出异常。
+ * 
+ * @author caobao
+ *
+ */
+public class SequenceWrapTest {
+	private static final int WRAP_OFFSET = 100;		//起始序号距离Integer.MAX_VALUE的距离
+	private static final int MESSAGE_COUNT = 300;	//每项测试的消息数量，跨过回绕点
+	private static final int WINDOW_SIZE = 1024;	//接收状态的窗口大小
+	private static final long RANDOM_SEED = 20120601L;	//打乱顺序用的随机种子，保证每次结果相同
+	
+	public static void main(String[] args) {
+		int initialSequenceId = RudpConstants.INITIAL_SEQUENCE_ID;
+		RudpConstants.INITIAL_SEQUENCE_ID = Integer.MAX_VALUE - WRAP_OFFSET;
+		try {
+			testSequenceHelper();
+			testOrderedInOrder();
+			testOrderedOutOfOrder();
+			testDisordered();
+			testRetransmitQueue();
+		}
+		finally {
+			RudpConstants.INITIAL_SEQUENCE_ID = initialSequenceId;
+		}
+		System.out.println("OK");
+	}
+	
+	//序号算术在回绕点前后的比较
+	private static void testSequenceHelper() {
+		check(SequenceHelper.isAfter(Integer.MIN_VALUE, Integer.MAX_VALUE), "MIN_VALUE should be after MAX_VALUE");
+		check(SequenceHelper.isBefore(Integer.MAX_VALUE, Integer.MIN_VALUE), "MAX_VALUE should be before MIN_VALUE");
+		check(SequenceHelper.isAfter(0, -1), "0 should be after -1");
+		check(SequenceHelper.max(Integer.MAX_VALUE, Integer.MIN_VALUE + 5) == Integer.MIN_VALUE + 5, "max across wrap");
+		check(SequenceHelper.min(Integer.MAX_VALUE, Integer.MIN_VALUE + 5) == Integer.MAX_VALUE, "min across wrap");
+		int start = RudpConstants.INITIAL_SEQUENCE_ID;
+		for (int i = 0; i < MESSAGE_COUNT; i++) {
+			int sequenceId = start + i;
+			check(SequenceHelper.compare(sequenceId + 1, sequenceId) > 0, "next of " + sequenceId + " should be after it");
+			check(SequenceHelper.isBefore(start, sequenceId + 1), start + " should be before " + (sequenceId + 1));
+			check(SequenceHelper.compare(sequenceId, sequenceId) == 0, sequenceId + " should equal itself");
+		}
+	}
+	
+	//按顺序收到跨过回绕点的消息，全部按顺序交付
+	private static void testOrderedInOrder() {
+		OrderedUpStatus status = new OrderedUpStatus(WINDOW_SIZE);
+		RecordingSink sink = new RecordingSink();
+		int start = RudpConstants.INITIAL_SEQUENCE_ID;
+		for (int i = 0; i < MESSAGE_COUNT; i++) {
+			status.onMessageReceived(start + i, newMessage(start + i), sink);
+		}
+		checkDelivered(sink.sequenceIds, start, MESSAGE_COUNT);
+		check(status.getCumulativeSequenceId() == start + MESSAGE_COUNT - 1, "ordered cumulative id: " + status);
+		check(status.getCacheSize() == 0, "ordered cache should be empty: " + status);
+		
+		//已经交付的消息重复到达时，需要反馈，不再交付
+		check(status.onMessageReceived(start + 5, newMessage(start + 5), sink) != null, "duplicate ordered message should be fed back");
+		check(sink.sequenceIds.size() == MESSAGE_COUNT, "duplicate ordered message should not be delivered");
+		check(status.isInWindow(start + MESSAGE_COUNT - 1), "last ordered message should be in window");
+		check(status.isInWindow(start + MESSAGE_COUNT) == false, "next ordered message should not be in window");
+	}
+	
+	//乱序收到跨过回绕点的消息，仍然按序号交付，缺口之后的消息以选择确认区段反馈
+	private static void testOrderedOutOfOrder() {
+		OrderedUpStatus status = new OrderedUpStatus(WINDOW_SIZE);
+		RecordingSink sink = new RecordingSink();
+		int start = RudpConstants.INITIAL_SEQUENCE_ID;
+		List<Integer> sequenceIds = shuffledSequenceIds(start, MESSAGE_COUNT);
+		//回绕点之后的一条消息最后到达，之前的消息交付后，后面的消息在缓存中
+		int gapSequenceId = Integer.MIN_VALUE + 10;
+		sequenceIds.remove(Integer.valueOf(gapSequenceId));
+		for (int sequenceId : sequenceIds) {
+			status.onMessageReceived(sequenceId, newMessage(sequenceId), sink);
+		}
+		checkDelivered(sink.sequenceIds, start, gapSequenceId - start);
+		check(status.getCumulativeSequenceId() == gapSequenceId - 1, "ordered cumulative id before gap: " + status);
+		
+		int[] ranges = new int[8];
+		int rangeCount = status.getAckRanges(ranges, 4);
+		check(rangeCount == 1, "ordered ack range count: " + rangeCount);
+		check(ranges[0] == gapSequenceId + 1 && ranges[1] == start + MESSAGE_COUNT - 1,
+				"ordered ack range: " + ranges[0] + "-" + ranges[1]);
+		
+		status.onMessageReceived(gapSequenceId, newMessage(gapSequenceId), sink);
+		checkDelivered(sink.sequenceIds, start, MESSAGE_COUNT);
+		check(status.getCacheSize() == 0, "ordered cache should be empty after gap filled: " + status);
+	}
+	
+	//乱序收到跨过回绕点的不连续消息，累计确认序号越过回绕点，重复消息被识别
+	private static void testDisordered() {
+		DisorderedUpStatus status = new DisorderedUpStatus(WINDOW_SIZE);
+		int start = RudpConstants.INITIAL_SEQUENCE_ID;
+		check(status.getCumulativeSequenceId() == start - 1, "disordered initial cumulative id: " + status);
+		List<Integer> sequenceIds = shuffledSequenceIds(start, MESSAGE_COUNT);
+		int gapSequenceId = Integer.MIN_VALUE + 20;
+		sequenceIds.remove(Integer.valueOf(gapSequenceId));
+		for (int sequenceId : sequenceIds) {
+			DisorderedFeedback feedback = status.onMessageReceived(sequenceId);
+			check(feedback == null || feedback.isDuplicatedMsg() == false, "first arrival should not be duplicated: " + sequenceId);
+		}
+		check(status.getCumulativeSequenceId() == gapSequenceId - 1, "disordered cumulative id before gap: " + status);
+		check(status.isInWindow(gapSequenceId + 1), "message after gap should be in window");
+		
+		int[] ranges = new int[8];
+		int rangeCount = status.getAckRanges(ranges, 4);
+		check(rangeCount == 1, "disordered ack range count: " + rangeCount);
+		check(ranges[0] == gapSequenceId + 1 && ranges[1] == start + MESSAGE_COUNT - 1,
+				"disordered ack range: " + ranges[0] + "-" + ranges[1]);
+		
+		status.onMessageReceived(gapSequenceId);
+		check(status.getCumulativeSequenceId() == start + MESSAGE_COUNT - 1, "disordered cumulative id after gap filled: " + status);
+		
+		DisorderedFeedback feedback = status.onMessageReceived(Integer.MAX_VALUE);
+		check(feedback != null && feedback.isDuplicatedMsg(), "message before wrap should be duplicated");
+		feedback = status.onMessageReceived(Integer.MIN_VALUE);
+		check(feedback != null && feedback.isDuplicatedMsg(), "message after wrap should be duplicated");
+	}
+	
+	//重发队列的序号范围和查找跨过回绕点，环形数组扩容后仍然正确
+	private static void testRetransmitQueue() {
+		RetransmitFramePool pool = new RetransmitFramePool(64, 0);
+		RetransmitQueue queue = new RetransmitQueue();
+		int start = RudpConstants.INITIAL_SEQUENCE_ID;
+		for (int i = 0; i < MESSAGE_COUNT; i++) {
+			queue.add(start + i, pool.allocate(newMessage(start + i)), 0, 1000 + i);
+		}
+		check(queue.size() == MESSAGE_COUNT, "queue size: " + queue);
+		check(queue.getLowSequenceId() == start, "queue low id: " + queue);
+		check(queue.getHighSequenceId() == start + MESSAGE_COUNT - 1, "queue high id: " + queue);
+		check(queue.get(Integer.MAX_VALUE) != null && queue.get(Integer.MIN_VALUE) != null, "queue should find ids around wrap");
+		check(queue.get(start - 1) == null && queue.get(start + MESSAGE_COUNT) == null, "queue should not find ids out of range");
+		check(queue.peekEarliest().sequenceId == start, "earliest expired entry: " + queue.peekEarliest());
+		
+		//按序确认到回绕点之后，下界越过回绕点
+		int ackedCount = WRAP_OFFSET + 10;
+		for (int i = 0; i < ackedCount; i++) {
+			RetransmitQueue.MessageEntry entry = queue.remove(start + i);
+			check(entry != null && entry.sequenceId == start + i, "queue remove " + (start + i));
+			entry.frame.release();
+		}
+		check(queue.getLowSequenceId() == start + ackedCount, "queue low id after acks: " + queue);
+		check(SequenceHelper.isBefore(queue.getLowSequenceId(), 0), "queue low id should have wrapped: " + queue);
+		
+		//跳跃确认，下界跳过已确认的槽位
+		queue.remove(start + ackedCount + 1).frame.release();
+		queue.remove(start + ackedCount).frame.release();
+		check(queue.getLowSequenceId() == start + ackedCount + 2, "queue low id after skipped ack: " + queue);
+		
+		queue.clear();
+		check(queue.isEmpty(), "queue should be empty after clear: " + queue);
+	}
+	
+	//从起始序号开始的一批序号，按固定的随机种子打乱
+	private static List<Integer> shuffledSequenceIds(int start, int count) {
+		List<Integer> sequenceIds = new ArrayList<Integer>(count);
+		for (int i = 0; i < count; i++) {
+			sequenceIds.add(start + i);
+		}
+		Collections.shuffle(sequenceIds, new Random(RANDOM_SEED));
+		return sequenceIds;
+	}
+	
+	//检查交付的消息是从起始序号开始连续的count条
+	private static void checkDelivered(List<Integer> delivered, int start, int count) {
+		check(delivered.size() == count, "delivered count " + delivered.size() + ", expected " + count);
+		for (int i = 0; i < count; i++) {
+			check(delivered.get(i) == start + i, "delivered " + delivered.get(i) + " at " + i + ", expected " + (start + i));
+		}
+	}
+	
+	//消息内容就是它的序号
+	private static ChannelBuffer newMessage(int sequenceId) {
+		ChannelBuffer buf = ChannelBuffers.buffer(RudpConstants.BYTE_ORDER, 4);
+		buf.writeInt(sequenceId);
+		return buf;
+	}
+	
+	private static void check(boolean condition, String message) {
+		if(condition == false) {
+			throw new IllegalStateException(message);
+		}
+	}
+	
+	/**
+	 * 记录交付顺序的回调。
+	 */
+	private static final class RecordingSink implements IOrderedMessageSink {
+		private List<Integer> sequenceIds = new ArrayList<Integer>();
+		
+		@Override
+		public void onOrderedMessage(ChannelBuffer message) {
+			sequenceIds.add(message.getInt(message.readerIndex()));
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package com.ddpie.rudp.message;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import com.ddpie.rudp.constant.RudpConstants;
+import com.ddpie.rudp.filter.IRudpSharedFilterCallback;
+
+/**
+ * 消息池的内存分配测试。<br>
+ * 用ThreadMXBean统计当前线程分配的字节数，比较每个数据报的上行消息、下行消息和消息封装对象
+ * 从{@link RudpMessagePool}取出并归还，与每次新建时各自分配的内存。
+ * 上行消息使用所有消息共用的{@link IRudpSharedFilterCallback}，与Channel上的用法相同。<br>
+ * 直接运行main方法，可以用参数指定每轮的次数；预热之后使用消息池的路径每次分配超过{@link #MAX_POOLED_BYTES_PER_ITERATION}字节时抛出异常。
+ * 需要支持线程内存分配统计的JVM（com.sun.management.ThreadMXBean）。
+ * 
+ * @author caobao
+ *
+ */
+public class MessagePoolAllocationBenchmark {
+	private static final int DEFAULT_ITERATIONS = 1000000;			//每轮默认的次数
+	private static final int WARMUP_ROUNDS = 2;						//预热的轮数，不检查结果
+	private static final int MEASURE_ROUNDS = 3;					//统计的轮数
+	private static final double MAX_POOLED_BYTES_PER_ITERATION = 1.0;	//使用消息池时每次允许分配的字节数，只容许统计本身的误差
+	
+	private static SocketAddress remoteAddress = new InetSocketAddress("127.0.0.1", 9999);
+	private static Object content = new Object();
+	private static IRudpSharedFilterCallback callback = new IRudpSharedFilterCallback() {
+		@Override
+		public void callback(Object messageContent) {
+		}
+		
+		@Override
+		public void callback(SocketAddress remoteAddress, Object messageContent) {
+		}
+	};
+	private static int sink;		//使消息不会被优化掉
+	
+	public static void main(String[] args) {
+		if(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean == false) {
+			System.out.println("thread allocated bytes are not supported by this JVM");
+			return;
+		}
+		com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if(threadMXBean.isThreadAllocatedMemorySupported() == false) {
+			System.out.println("thread allocated bytes are not supported by this JVM");
+			return;
+		}
+		threadMXBean.setThreadAllocatedMemoryEnabled(true);
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+		RudpMessagePool pool = new RudpMessagePool(RudpConstants.PROCESSOR_MESSAGE_POOL_CAPACITY);
+		long threadId = Thread.currentThread().getId();
+		
+		for (int round = 0; round < WARMUP_ROUNDS + MEASURE_ROUNDS; round++) {
+			long startBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+			runPooled(pool, iterations);
+			long pooledBytes = threadMXBean.getThreadAllocatedBytes(threadId) - startBytes;
+			
+			startBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+			runUnpooled(iterations);
+			long unpooledBytes = threadMXBean.getThreadAllocatedBytes(threadId) - startBytes;
+			
+			double pooledPerIteration = pooledBytes / (double) iterations;
+			double unpooledPerIteration = unpooledBytes / (double) iterations;
+			boolean isWarmup = round < WARMUP_ROUNDS;
+			System.out.println((isWarmup ? "warmup " : "round ") + round + ": pooled " + format(pooledPerIteration)
+					+ " bytes/iteration, unpooled " + format(unpooledPerIteration) + " bytes/iteration");
+			if(isWarmup == false && pooledPerIteration > MAX_POOLED_BYTES_PER_ITERATION) {
+				throw new IllegalStateException("pooled path allocates " + format(pooledPerIteration) + " bytes/iteration");
+			}
+		}
+		System.out.println("OK, sink=" + sink);
+	}
+	
+	//每次取出一条上行消息、一条带封装对象的下行消息，处理完后归还
+	private static void runPooled(RudpMessagePool pool, int iterations) {
+		for (int i = 0; i < iterations; i++) {
+			IRudpMessage upMessage = RudpMessages.newUpMessage(pool, null, null, remoteAddress, content, callback);
+			IRudpMessage downMessage = RudpMessages.newDownMessage(pool, null, null, remoteAddress,
+					content, WritableMessageType.RELIABLE_ORDERED, 0);
+			sink += upMessage.hashCode() ^ downMessage.hashCode();
+			RudpMessages.release(upMessage);
+			RudpMessages.release(downMessage);
+		}
+	}
+	
+	//每次新建上行消息、下行消息和封装对象，上行消息按原来的方式为每个数据报创建回调
+	private static void runUnpooled(int iterations) {
+		for (int i = 0; i < iterations; i++) {
+			final int index = i;
+			IRudpMessage upMessage = RudpMessages.newUpMessage(null, null, remoteAddress, content, new IRudpSharedFilterCallback() {
+				@Override
+				public void callback(Object messageContent) {
+					sink += index;
+				}
+				
+				@Override
+				public void callback(SocketAddress remoteAddress, Object messageContent) {
+					sink += index;
+				}
+			});
+			IRudpMessage downMessage = RudpMessages.newDownMessage(null, null, remoteAddress,
+					WritableMessageWrapper.newReliableOrdered(content));
+			sink += upMessage.hashCode() ^ downMessage.hashCode();
+		}
+	}
+	
+	//保留三位小数
+	private static String format(double value) {
+		return String.valueOf(Math.round(value * 1000) / 1000.0);
+	}
+}
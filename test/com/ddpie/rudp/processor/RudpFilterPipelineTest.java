@@ -0,0 +1,311 @@
+package com.ddpie.rudp.processor;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.util.CharsetUtil;
+
+import com.ddpie.rudp.filter.IRudpFilter;
+import com.ddpie.rudp.filter.IRudpFilterCallback;
+import com.ddpie.rudp.filter.IRudpFilterContext;
+import com.ddpie.rudp.filter.IRudpPipelineFilter;
+import com.ddpie.rudp.filter.RudpFilterAdapter;
+import com.ddpie.rudp.session.IRudpSession;
+import com.ddpie.rudp.session.RudpSession;
+
+/**
+ * 编译好的Filter管道的测试。<br>
+ * 检查{@link RudpFilterPipeline}按深度优先的顺序传递消息，与逐层递归调用的顺序相同：
+ * 通过上下文传递多条消息的Filter和返回数组的旧Filter都按产生的顺序展开，返回null时停止传递；
+ * 回调或Filter中再次使用同一个管道时，嵌套的传递先完成，外层的传递随后继续；Filter出错时只丢弃本次传递中剩余的消息。<br>
+ * 直接运行main方法，全部通过时输出OK，失败时抛出异常。
+ * 
+ * @author caobao
+ *
+ */
+public class RudpFilterPipelineTest {
+	private static final int WIDE_FAN_OUT = 100;	//超过栈初始大小的分支数量
+	
+	public static void main(String[] args) {
+		testReceiveDepthFirst();
+		testWriteDepthFirst();
+		testStop();
+		testReentrant();
+		testError();
+		testStackGrowth();
+		testStale();
+		System.out.println("OK");
+	}
+	
+	//接收方向从第一个Filter开始，每条消息走完后面所有的Filter，才轮到它的下一条兄弟消息
+	private static void testReceiveDepthFirst() {
+		List<String> trace = new ArrayList<String>();
+		RudpFilterPipeline pipeline = newPipeline(new PipelineFilter("A", 2, trace), new LegacyFilter("B", 2, trace), new LegacyFilter("C", 1, trace));
+		RecordingCallback callback = new RecordingCallback(trace);
+		pipeline.fireMessageReceived(newSession(new ArrayList<Object>()), "m", callback);
+		checkList(trace, "A:m", "B:m.1", "C:m.1.1", "callback:m.1.1", "C:m.1.2", "callback:m.1.2",
+				"B:m.2", "C:m.2.1", "callback:m.2.1", "C:m.2.2", "callback:m.2.2");
+	}
+	
+	//发送方向从最后一个Filter开始，第一个Filter传递出的消息按深度优先的顺序发出
+	private static void testWriteDepthFirst() {
+		List<String> trace = new ArrayList<String>();
+		List<Object> written = new ArrayList<Object>();
+		RudpFilterPipeline pipeline = newPipeline(new EncodeFilter(), new LegacyFilter("A", 2, trace), new PipelineFilter("B", 3, trace));
+		pipeline.fireWriteRequested(newSession(written), "w");
+		checkList(trace, "B:w", "A:w.1", "A:w.2", "A:w.3");
+		checkList(written, "w.1.1", "w.1.2", "w.2.1", "w.2.2", "w.3.1", "w.3.2");
+	}
+	
+	//Filter返回null或者不传递消息时，这一支停止传递，其他分支照常
+	private static void testStop() {
+		List<String> trace = new ArrayList<String>();
+		LegacyFilter legacy = new LegacyFilter("B", 1, trace);
+		PipelineFilter pipelineFilter = new PipelineFilter("C", 1, trace);
+		RudpFilterPipeline pipeline = newPipeline(new PipelineFilter("A", 3, trace), legacy, pipelineFilter);
+		legacy.dropped = "m.1";
+		pipelineFilter.dropped = "m.2";
+		pipeline.fireMessageReceived(newSession(new ArrayList<Object>()), "m", new RecordingCallback(trace));
+		checkList(trace, "A:m", "B:m.1", "B:m.2", "C:m.2", "B:m.3", "C:m.3", "callback:m.3");
+	}
+	
+	//回调中再次接收和发送，嵌套的传递先完成，外层剩余的消息随后继续传递
+	private static void testReentrant() {
+		final List<String> trace = new ArrayList<String>();
+		final List<Object> written = new ArrayList<Object>();
+		final IRudpSession session = newSession(written);
+		final RudpFilterPipeline pipeline = newPipeline(new EncodeFilter(), new PipelineFilter("A", 2, trace), new LegacyFilter("B", 1, trace));
+		final RecordingCallback nestedCallback = new RecordingCallback(trace);
+		IRudpFilterCallback callback = new IRudpFilterCallback() {
+			@Override
+			public void callback(Object messageContent) {
+				trace.add("callback:" + messageContent);
+				if(messageContent.equals("m.1")) {
+					pipeline.fireWriteRequested(session, "reply");
+					pipeline.fireMessageReceived(session, "nested", nestedCallback);
+				}
+			}
+		};
+		pipeline.fireMessageReceived(session, "m", callback);
+		checkList(trace, "A:m", "B:m.1", "callback:m.1",
+				"B:reply", "A:reply",
+				"A:nested", "B:nested.1", "callback:nested.1", "B:nested.2", "callback:nested.2",
+				"B:m.2", "callback:m.2");
+		checkList(written, "reply.1", "reply.2");
+	}
+	
+	//Filter出错时异常抛给调用者，只丢弃本次传递中剩余的消息；嵌套的传递出错被外层捕获时，外层的传递照常继续
+	private static void testError() {
+		final List<String> trace = new ArrayList<String>();
+		LegacyFilter legacy = new LegacyFilter("B", 1, trace);
+		final RudpFilterPipeline pipeline = newPipeline(new PipelineFilter("A", 3, trace), legacy);
+		final IRudpSession session = newSession(new ArrayList<Object>());
+		legacy.failed = "m.2";
+		try {
+			pipeline.fireMessageReceived(session, "m", new RecordingCallback(trace));
+			throw new IllegalStateException("error should be thrown to the caller");
+		}
+		catch(UnsupportedOperationException e) {
+			//预期的异常
+		}
+		checkList(trace, "A:m", "B:m.1", "callback:m.1", "B:m.2");
+		
+		//出错后管道恢复干净，剩余的m.3不会在下一次传递中出现
+		trace.clear();
+		pipeline.fireMessageReceived(session, "n", new RecordingCallback(trace));
+		checkList(trace, "A:n", "B:n.1", "callback:n.1", "B:n.2", "callback:n.2", "B:n.3", "callback:n.3");
+		
+		trace.clear();
+		legacy.failed = "nested.1";
+		IRudpFilterCallback callback = new IRudpFilterCallback() {
+			@Override
+			public void callback(Object messageContent) {
+				trace.add("callback:" + messageContent);
+				if(messageContent.equals("k.1")) {
+					try {
+						pipeline.fireMessageReceived(session, "nested", new RecordingCallback(trace));
+					}
+					catch(UnsupportedOperationException e) {
+						trace.add("caught");
+					}
+				}
+			}
+		};
+		pipeline.fireMessageReceived(session, "k", callback);
+		checkList(trace, "A:k", "B:k.1", "callback:k.1", "A:nested", "B:nested.1", "caught",
+				"B:k.2", "callback:k.2", "B:k.3", "callback:k.3");
+	}
+	
+	//一个节点传递的消息超过栈的初始大小时，栈扩容后顺序不变
+	private static void testStackGrowth() {
+		List<String> trace = new ArrayList<String>();
+		List<Object> received = new ArrayList<Object>();
+		RudpFilterPipeline pipeline = newPipeline(new PipelineFilter("A", WIDE_FAN_OUT, trace), new LegacyFilter("B", 2, trace));
+		pipeline.fireMessageReceived(newSession(new ArrayList<Object>()), "m", new RecordingCallback(received));
+		check(received.size() == WIDE_FAN_OUT * 2, "received count " + received.size());
+		for (int i = 0; i < WIDE_FAN_OUT; i++) {
+			check(received.get(i * 2).equals("callback:m." + (i + 1) + ".1") && received.get(i * 2 + 1).equals("callback:m." + (i + 1) + ".2"),
+					"received " + received.get(i * 2) + " at " + (i * 2));
+		}
+	}
+	
+	//Filter集合增加后管道需要重新编译
+	private static void testStale() {
+		List<IRudpFilter> filters = new ArrayList<IRudpFilter>();
+		filters.add(new RudpFilterAdapter());
+		RudpFilterPipeline pipeline = new RudpFilterPipeline(filters);
+		check(pipeline.isStale(filters) == false, "pipeline should not be stale");
+		filters.add(new RudpFilterAdapter());
+		check(pipeline.isStale(filters), "pipeline should be stale after a filter added");
+	}
+	
+	private static RudpFilterPipeline newPipeline(IRudpFilter... filters) {
+		return new RudpFilterPipeline(Arrays.asList(filters));
+	}
+	
+	private static void checkList(List<?> actual, Object... expected) {
+		check(actual.equals(Arrays.asList(expected)), "expected " + Arrays.asList(expected) + ", actual " + actual);
+	}
+	
+	//不连接网络的会话，发出的消息解码后依次记录下来
+	private static IRudpSession newSession(final List<Object> written) {
+		Channel channel = (Channel) Proxy.newProxyInstance(RudpFilterPipelineTest.class.getClassLoader(), new Class<?>[]{Channel.class},
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if(method.getName().equals("write")) {
+							written.add(((ChannelBuffer) args[0]).toString(CharsetUtil.UTF_8));
+						}
+						return null;
+					}
+				});
+		return new RudpSession(null, channel, new InetSocketAddress("127.0.0.1", 9999));
+	}
+	
+	private static void check(boolean condition, String message) {
+		if(condition == false) {
+			throw new IllegalStateException(message);
+		}
+	}
+	
+	//一条消息产生的第i条消息，只产生一条时原样传递
+	private static String branch(Object messageContent, int index, int fanOut) {
+		return fanOut == 1 ? (String) messageContent : messageContent + "." + (index + 1);
+	}
+	
+	/**
+	 * 通过上下文传递消息的Filter，每条消息依次传递fanOut条。
+	 */
+	private static final class PipelineFilter extends RudpFilterAdapter implements IRudpPipelineFilter {
+		private String name;			//Filter名称
+		private int fanOut;				//每条消息传递的消息数量
+		private List<String> trace;		//处理记录
+		private String dropped;			//不传递的消息，没有时为null
+		
+		PipelineFilter(String name, int fanOut, List<String> trace) {
+			this.name = name;
+			this.fanOut = fanOut;
+			this.trace = trace;
+		}
+		
+		@Override
+		public void messageReceived(IRudpSession session, Object messageContent, IRudpFilterContext ctx) {
+			process(messageContent, ctx);
+		}
+		
+		@Override
+		public void writeRequested(IRudpSession session, Object messageContent, IRudpFilterContext ctx) {
+			process(messageContent, ctx);
+		}
+		
+		private void process(Object messageContent, IRudpFilterContext ctx) {
+			trace.add(name + ":" + messageContent);
+			if(messageContent.equals(dropped)) {
+				return;
+			}
+			for (int i = 0; i < fanOut; i++) {
+				ctx.fireMessage(branch(messageContent, i, fanOut));
+			}
+			ctx.fireMessage(null);
+		}
+	}
+	
+	/**
+	 * 发送时把字符串编码为ChannelBuffer的Filter，接收时原样传递，不记录。
+	 */
+	private static final class EncodeFilter extends RudpFilterAdapter {
+		@Override
+		public Object writeRequested(IRudpSession session, Object messageContent) {
+			return ChannelBuffers.copiedBuffer((String) messageContent, CharsetUtil.UTF_8);
+		}
+	}
+	
+	/**
+	 * 只实现旧接口的Filter，产生多条消息时返回数组。
+	 */
+	private static final class LegacyFilter extends RudpFilterAdapter {
+		private String name;			//Filter名称
+		private int fanOut;				//每条消息返回的消息数量
+		private List<String> trace;		//处理记录
+		private String dropped;			//返回null的消息，没有时为null
+		private String failed;			//抛出异常的消息，没有时为null
+		
+		LegacyFilter(String name, int fanOut, List<String> trace) {
+			this.name = name;
+			this.fanOut = fanOut;
+			this.trace = trace;
+		}
+		
+		@Override
+		public Object messageReceived(IRudpSession session, Object messageContent) {
+			return process(messageContent);
+		}
+		
+		@Override
+		public Object writeRequested(IRudpSession session, Object messageContent) {
+			return process(messageContent);
+		}
+		
+		private Object process(Object messageContent) {
+			trace.add(name + ":" + messageContent);
+			if(messageContent.equals(failed)) {
+				throw new UnsupportedOperationException("failed on " + messageContent);
+			}
+			if(messageContent.equals(dropped)) {
+				return null;
+			}
+			if(fanOut == 1) {
+				return messageContent;
+			}
+			Object[] results = new Object[fanOut];
+			for (int i = 0; i < fanOut; i++) {
+				results[i] = branch(messageContent, i, fanOut);
+			}
+			return results;
+		}
+	}
+	
+	/**
+	 * 记录最后交付的消息的回调。
+	 */
+	private static final class RecordingCallback implements IRudpFilterCallback {
+		private List<? super String> trace;		//处理记录
+		
+		RecordingCallback(List<? super String> trace) {
+			this.trace = trace;
+		}
+		
+		@Override
+		public void callback(Object messageContent) {
+			trace.add("callback:" + messageContent);
+		}
+	}
+}
@@ -0,0 +1,323 @@
+package com.ddpie.rudp.processor;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.channel.Channel;
+
+import com.ddpie.rudp.config.IRudpConfig;
+import com.ddpie.rudp.constant.RudpConstants;
+import com.ddpie.rudp.filter.RudpFilterAdapter;
+import com.ddpie.rudp.session.IRudpSession;
+import com.ddpie.rudp.session.IRudpSessionManager;
+import com.ddpie.rudp.session.RudpSession;
+
+/**
+ * 会话迁移的测试。<br>
+ * 多个业务线程持续向各自的会话投递消息，同时另一个线程不断把会话迁移到其他处理器，
+ * 检查每个会话的消息都按投递的顺序处理，迁移结束后由路由记录的处理器处理；
+ * 会话关闭后紧接着投递的消息排在关闭之后按序处理，全部处理完后路由被删除。<br>
+ * 直接运行main方法，全部通过时输出OK，失败时抛出异常。
+ * 
+ * @author caobao
+ *
+ */
+public class SessionMigrationTest {
+	private static final int PROCESSOR_COUNT = 3;			//消息处理器数量
+	private static final int SESSION_COUNT = 4;				//会话数量
+	private static final int MESSAGE_COUNT = 20000;			//迁移期间每个会话投递的消息数量
+	private static final int CLOSED_MESSAGE_COUNT = 1000;	//关闭后每个会话紧接着投递的消息数量
+	private static final int BATCH_SIZE = 200;				//业务线程每批投递的消息数量
+	private static final int CLOSED_MARK = -1;				//记录中表示会话关闭的标记
+	private static final long WAIT_TIMEOUT = 20000;			//等待处理完成的最长时间，毫秒
+	
+	public static void main(String[] args) throws Exception {
+		long rebalanceInterval = RudpConstants.PROCESSOR_REBALANCE_INTERVAL;
+		//不按负载自动迁移，只由测试线程迁移
+		RudpConstants.PROCESSOR_REBALANCE_INTERVAL = 0;
+		try {
+			testMigrationOrder();
+		}
+		finally {
+			RudpConstants.PROCESSOR_REBALANCE_INTERVAL = rebalanceInterval;
+		}
+		System.out.println("OK");
+	}
+	
+	//迁移期间和关闭前后，每个会话的消息都按投递顺序处理
+	private static void testMigrationOrder() throws Exception {
+		final Map<SocketAddress, IRudpSession> sessions = new ConcurrentHashMap<SocketAddress, IRudpSession>();
+		TestConfig config = new TestConfig(sessions);
+		final RudpProcessorManager manager = new RudpProcessorManager(config.getProxy(), PROCESSOR_COUNT);
+		config.processorManager = manager;
+		final RudpProcessor[] processors = getField(manager, "processors");
+		Map<SocketAddress, SessionRoute> routes = getField(manager, "routes");
+		RecordingFilter filter = new RecordingFilter(processors);
+		manager.addRudpFilter(filter);
+		manager.start();
+		try {
+			final RudpSession[] rudpSessions = new RudpSession[SESSION_COUNT];
+			for (int i = 0; i < SESSION_COUNT; i++) {
+				SocketAddress remoteAddress = new InetSocketAddress("127.0.0.1", 10000 + i);
+				rudpSessions[i] = new RudpSession(config.getProxy(), newChannel(), remoteAddress);
+				sessions.put(remoteAddress, rudpSessions[i]);
+				filter.addSession(rudpSessions[i]);
+				manager.onSessionOpened(rudpSessions[i], remoteAddress);
+			}
+			check(routes.size() == SESSION_COUNT, "route count " + routes.size());
+			
+			//业务线程投递消息的同时，不断把每个会话迁移到下一个处理器
+			Thread[] producers = new Thread[SESSION_COUNT];
+			for (int i = 0; i < SESSION_COUNT; i++) {
+				producers[i] = newProducer(manager, rudpSessions[i], 0, MESSAGE_COUNT);
+				producers[i].start();
+			}
+			final AtomicBoolean producing = new AtomicBoolean(true);
+			final AtomicInteger migrationCount = new AtomicInteger();
+			final List<SessionRoute> routeList = new ArrayList<SessionRoute>(routes.values());
+			Thread migrator = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					do {
+						for (SessionRoute route : routeList) {
+							int targetIndex = (route.getProcessorIndex() + 1) % PROCESSOR_COUNT;
+							if(route.migrate(processors[targetIndex], targetIndex)) {
+								migrationCount.incrementAndGet();
+							}
+						}
+						Thread.yield();
+					}
+					while(producing.get());
+				}
+			}, "migrator");
+			migrator.start();
+			for (Thread producer : producers) {
+				producer.join();
+			}
+			producing.set(false);
+			migrator.join();
+			check(migrationCount.get() > 0, "no session migrated");
+			for (RudpSession session : rudpSessions) {
+				filter.waitFor(session, MESSAGE_COUNT);
+			}
+			
+			for (RudpSession session : rudpSessions) {
+				SessionRoute route = routes.get(session.getRemoteAddress());
+				//最后一次迁移的迁入消息可能还没有处理，等待迁移完成
+				long deadline = System.currentTimeMillis() + WAIT_TIMEOUT;
+				while(route.isMigrating() && System.currentTimeMillis() < deadline) {
+					Thread.sleep(1);
+				}
+				check(route.isMigrating() == false, "migration should be completed: " + route);
+				//迁移完成后投递的消息由路由记录的处理器处理
+				post(manager, session, MESSAGE_COUNT, 1);
+				filter.waitFor(session, MESSAGE_COUNT + 1);
+				List<int[]> records = filter.getRecords(session);
+				checkOrder(records, 0, MESSAGE_COUNT + 1, 0);
+				int lastProcessorIndex = records.get(MESSAGE_COUNT)[1];
+				check(lastProcessorIndex == route.getProcessorIndex(),
+						"message after migration processed by processor " + lastProcessorIndex + ", route is on " + route.getProcessorIndex());
+			}
+			
+			//关闭后立即投递的消息暂存在路由中，排在关闭之后处理，处理完后删除路由
+			for (RudpSession session : rudpSessions) {
+				manager.onSessionClosed(session, session.getRemoteAddress());
+				post(manager, session, MESSAGE_COUNT + 1, CLOSED_MESSAGE_COUNT);
+				SessionRoute route = routes.get(session.getRemoteAddress());
+				if(route != null) {
+					int targetIndex = (route.getProcessorIndex() + 1) % PROCESSOR_COUNT;
+					check(route.migrate(processors[targetIndex], targetIndex) == false, "closing session should not migrate: " + route);
+				}
+			}
+			for (RudpSession session : rudpSessions) {
+				filter.waitFor(session, MESSAGE_COUNT + 2 + CLOSED_MESSAGE_COUNT);
+				List<int[]> records = filter.getRecords(session);
+				checkOrder(records, 0, MESSAGE_COUNT + 1, 0);
+				check(records.get(MESSAGE_COUNT + 1)[0] == CLOSED_MARK, "session should be closed after message " + MESSAGE_COUNT);
+				checkOrder(records, MESSAGE_COUNT + 2, CLOSED_MESSAGE_COUNT, MESSAGE_COUNT + 1);
+			}
+			long deadline = System.currentTimeMillis() + WAIT_TIMEOUT;
+			while(routes.isEmpty() == false && System.currentTimeMillis() < deadline) {
+				Thread.sleep(1);
+			}
+			check(routes.isEmpty(), "routes should be removed after closed: " + routes);
+		}
+		finally {
+			manager.stop();
+		}
+	}
+	
+	//从记录的第start条开始，count条消息的序号依次为firstId, firstId + 1...
+	private static void checkOrder(List<int[]> records, int start, int count, int firstId) {
+		for (int i = 0; i < count; i++) {
+			int id = records.get(start + i)[0];
+			if(id != firstId + i) {
+				throw new IllegalStateException("record " + (start + i) + " is message " + id + ", expected " + (firstId + i));
+			}
+		}
+	}
+	
+	//依次投递序号从firstId开始的count条消息的业务线程
+	private static Thread newProducer(final RudpProcessorManager manager, final RudpSession session, final int firstId, final int count) {
+		return new Thread(new Runnable() {
+			@Override
+			public void run() {
+				//分批投递，批次之间让处理器有机会处理完暂存的消息、完成迁移
+				for (int i = 0; i < count; i += BATCH_SIZE) {
+					post(manager, session, firstId + i, Math.min(BATCH_SIZE, count - i));
+					try {
+						Thread.sleep(1);
+					}
+					catch(InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "producer " + session.getRemoteAddress());
+	}
+	
+	//依次投递序号从firstId开始的count条消息
+	private static void post(RudpProcessorManager manager, RudpSession session, int firstId, int count) {
+		for (int i = 0; i < count; i++) {
+			manager.onWriteRequested(null, session.getRemoteAddress(), Integer.valueOf(firstId + i));
+		}
+	}
+	
+	//不连接网络的Channel，写入的消息被丢弃
+	private static Channel newChannel() {
+		return (Channel) Proxy.newProxyInstance(SessionMigrationTest.class.getClassLoader(), new Class<?>[]{Channel.class},
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						return null;
+					}
+				});
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> T getField(Object target, String name) throws Exception {
+		Field field = target.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		return (T) field.get(target);
+	}
+	
+	private static void check(boolean condition, String message) {
+		if(condition == false) {
+			throw new IllegalStateException(message);
+		}
+	}
+	
+	/**
+	 * 只提供会话管理器和处理器管理器的服务器配置。
+	 */
+	private static final class TestConfig implements InvocationHandler {
+		private Map<SocketAddress, IRudpSession> sessions;	//远端地址到会话的映射
+		private volatile RudpProcessorManager processorManager;	//消息处理器管理器
+		private IRudpConfig proxy;							//配置的代理
+		private IRudpSessionManager sessionManager;			//会话管理器的代理
+		
+		TestConfig(final Map<SocketAddress, IRudpSession> sessions) {
+			this.sessions = sessions;
+			ClassLoader classLoader = SessionMigrationTest.class.getClassLoader();
+			proxy = (IRudpConfig) Proxy.newProxyInstance(classLoader, new Class<?>[]{IRudpConfig.class}, this);
+			sessionManager = (IRudpSessionManager) Proxy.newProxyInstance(classLoader, new Class<?>[]{IRudpSessionManager.class},
+					new InvocationHandler() {
+						@Override
+						public Object invoke(Object proxy, Method method, Object[] args) {
+							if(method.getName().equals("getRudpSession")) {
+								return TestConfig.this.sessions.get(args[0]);
+							}
+							return null;
+						}
+					});
+		}
+		
+		IRudpConfig getProxy() {
+			return proxy;
+		}
+		
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if(name.equals("isServer")) {
+				return true;
+			}
+			if(name.equals("getSessionManager")) {
+				return sessionManager;
+			}
+			if(name.equals("getProcessorManager")) {
+				return processorManager;
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * 记录每个会话处理的消息序号和处理它的处理器下标，消息不再向下传递。
+	 */
+	private static final class RecordingFilter extends RudpFilterAdapter {
+		private RudpProcessor[] processors;						//所有的消息处理器
+		private Map<IRudpSession, List<int[]>> records;			//会话处理过的记录，【序号或关闭标记，处理器下标】
+		
+		RecordingFilter(RudpProcessor[] processors) {
+			this.processors = processors;
+			records = new ConcurrentHashMap<IRudpSession, List<int[]>>();
+		}
+		
+		void addSession(IRudpSession session) {
+			records.put(session, new ArrayList<int[]>());
+		}
+		
+		@Override
+		public Object writeRequested(IRudpSession session, Object messageContent) {
+			record(session, (Integer) messageContent);
+			return null;
+		}
+		
+		@Override
+		public void sessionClosed(IRudpSession session) {
+			record(session, CLOSED_MARK);
+		}
+		
+		private void record(IRudpSession session, int id) {
+			int processorIndex = -1;
+			for (int i = 0; i < processors.length; i++) {
+				if(processors[i].isProcessorThread()) {
+					processorIndex = i;
+				}
+			}
+			List<int[]> sessionRecords = records.get(session);
+			synchronized(sessionRecords) {
+				sessionRecords.add(new int[]{id, processorIndex});
+			}
+		}
+		
+		List<int[]> getRecords(IRudpSession session) {
+			List<int[]> sessionRecords = records.get(session);
+			synchronized(sessionRecords) {
+				return new ArrayList<int[]>(sessionRecords);
+			}
+		}
+		
+		//等待会话处理完指定数量的记录
+		void waitFor(IRudpSession session, int count) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + WAIT_TIMEOUT;
+			while(getRecords(session).size() < count) {
+				if(System.currentTimeMillis() > deadline) {
+					throw new IllegalStateException("session " + session.getRemoteAddress() + " processed " + getRecords(session).size() + ", expected " + count);
+				}
+				Thread.sleep(1);
+			}
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package com.ddpie.rudp.session;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+
+import com.ddpie.rudp.constant.RudpConstants;
+import com.ddpie.rudp.util.MessageHelper;
+
+/**
+ * 合并消息的测试。<br>
+ * 检查合并消息的格式，{@link MessageBundler}合并后的数据报不超过路径MTU、只有一条消息时按原样发送，
+ * 以及{@link MessageHelper#getBundleFrames(ChannelBuffer)}按原顺序拆出各条消息、格式错误时返回null。<br>
+ * 直接运行main方法，全部通过时输出OK，失败时抛出异常。
+ * 
+ * @author caobao
+ *
+ */
+public class MessageBundlerTest {
+	private static final int MTU = RudpConstants.MESSAGE_MAX_LENGTH;	//会话的路径MTU，没有可靠性管理器时的默认值
+	private static final int MESSAGE_COUNT = 200;						//合并的消息数量
+	
+	public static void main(String[] args) {
+		testFrameFormat();
+		testMalformedBundle();
+		testBundleRoundTrip();
+		testSingleFrame();
+		testTooLarge();
+		System.out.println("OK");
+	}
+	
+	//【消息类型|1字节】【消息长度|2字节】【消息】...，拆出的消息引用原数据报
+	private static void testFrameFormat() {
+		ChannelBuffer first = newMessage(1, 10);
+		ChannelBuffer second = newMessage(2, 300);
+		ChannelBuffer bundle = ChannelBuffers.buffer(RudpConstants.BYTE_ORDER, 100 + MTU);
+		bundle.writeZero(100);
+		bundle.readerIndex(100);
+		bundle.writeByte(MessageHelper.BUNDLE_HEAD);
+		writeFrame(bundle, first);
+		writeFrame(bundle, second);
+		check(bundle.readableBytes() == 1 + 2 * MessageHelper.BUNDLE_FRAME_HEAD_LENGTH + 310, "bundle length " + bundle.readableBytes());
+		check(bundle.getUnsignedShort(101) == 10 && bundle.getUnsignedShort(101 + 2 + 10) == 300, "frame lengths");
+		check(MessageHelper.isBundle(bundle), "should be bundle");
+		check(MessageHelper.isBundle(first) == false, "data message should not be bundle");
+		
+		ChannelBuffer[] frames = MessageHelper.getBundleFrames(bundle);
+		check(frames != null && frames.length == 2, "frame count " + (frames == null ? -1 : frames.length));
+		check(frames[0].equals(first) && frames[1].equals(second), "frames differ");
+		bundle.setByte(100 + 1 + MessageHelper.BUNDLE_FRAME_HEAD_LENGTH + 5, 99);
+		check(frames[0].getByte(5) == 99, "frame should be a slice of the bundle");
+	}
+	
+	//长度字段不完整、长度为0或者超出数据报时格式错误
+	private static void testMalformedBundle() {
+		ChannelBuffer valid = newBundle(5, 7);
+		check(MessageHelper.getBundleFrames(valid) != null, "valid bundle");
+		
+		ChannelBuffer truncatedLength = valid.copy();
+		truncatedLength.writeByte(0);
+		check(MessageHelper.getBundleFrames(truncatedLength) == null, "trailing partial frame head should be invalid");
+		
+		ChannelBuffer zeroLength = valid.copy();
+		zeroLength.writeShort(0);
+		check(MessageHelper.getBundleFrames(zeroLength) == null, "zero length frame should be invalid");
+		
+		ChannelBuffer tooLong = valid.copy();
+		tooLong.writeShort(10);
+		tooLong.writeZero(9);
+		check(MessageHelper.getBundleFrames(tooLong) == null, "frame beyond the datagram should be invalid");
+		
+		ChannelBuffer headOnly = ChannelBuffers.buffer(RudpConstants.BYTE_ORDER, 3);
+		headOnly.writeByte(MessageHelper.BUNDLE_HEAD);
+		headOnly.writeShort(0);
+		check(MessageHelper.isBundle(headOnly), "three bytes with bundle head should be bundle");
+		check(MessageHelper.getBundleFrames(headOnly) == null, "empty bundle should be invalid");
+		check(MessageHelper.isBundle(headOnly.slice(0, 2)) == false, "two bytes should not be bundle");
+	}
+	
+	//依次合并长短不一的消息，每个数据报不超过路径MTU，拆开后按原顺序还原全部消息
+	private static void testBundleRoundTrip() {
+		List<ChannelBuffer> datagrams = new ArrayList<ChannelBuffer>();
+		RudpSession session = newSession(datagrams);
+		MessageBundler bundler = new MessageBundler(session);
+		check(bundler.isEmpty(), "new bundler should be empty");
+		List<ChannelBuffer> messages = new ArrayList<ChannelBuffer>();
+		for (int i = 0; i < MESSAGE_COUNT; i++) {
+			ChannelBuffer message = newMessage(i, 20 + i * 37 % 250);
+			messages.add(message);
+			int datagramCount = datagrams.size();
+			check(bundler.add(message.duplicate()), "message " + i + " should be bundled");
+			check(bundler.isEmpty() == false, "bundler should not be empty after add");
+			//装不下这条消息时才发出之前合并的消息
+			if(datagrams.size() > datagramCount) {
+				ChannelBuffer datagram = datagrams.get(datagramCount);
+				check(datagram.readableBytes() + MessageHelper.BUNDLE_FRAME_HEAD_LENGTH + message.readableBytes() > MTU,
+						"datagram " + datagramCount + " flushed too early, length " + datagram.readableBytes());
+			}
+		}
+		bundler.flush();
+		check(bundler.isEmpty(), "bundler should be empty after flush");
+		check(bundler.getBundledCount() == MESSAGE_COUNT, "bundled count " + bundler.getBundledCount());
+		check(bundler.getDatagramCount() == datagrams.size(), "datagram count " + bundler.getDatagramCount());
+		
+		List<ChannelBuffer> received = new ArrayList<ChannelBuffer>();
+		for (ChannelBuffer datagram : datagrams) {
+			check(datagram.readableBytes() <= MTU, "datagram length " + datagram.readableBytes());
+			if(MessageHelper.isBundle(datagram) == false) {
+				received.add(datagram);
+				continue;
+			}
+			ChannelBuffer[] frames = MessageHelper.getBundleFrames(datagram);
+			check(frames != null, "bundle should be valid");
+			for (ChannelBuffer frame : frames) {
+				received.add(frame);
+			}
+		}
+		check(received.size() == MESSAGE_COUNT, "received count " + received.size());
+		for (int i = 0; i < MESSAGE_COUNT; i++) {
+			check(received.get(i).equals(messages.get(i)), "message " + i + " differs");
+		}
+	}
+	
+	//只合并了一条消息时去掉合并消息头，按原样发送
+	private static void testSingleFrame() {
+		List<ChannelBuffer> datagrams = new ArrayList<ChannelBuffer>();
+		MessageBundler bundler = new MessageBundler(newSession(datagrams));
+		bundler.flush();
+		check(datagrams.isEmpty(), "empty bundler should not send");
+		ChannelBuffer message = newMessage(1, 100);
+		bundler.add(message.duplicate());
+		bundler.flush();
+		check(datagrams.size() == 1 && datagrams.get(0).equals(message), "single message should be sent as is");
+		check(MessageHelper.isBundle(datagrams.get(0)) == false, "single message should not be bundle");
+	}
+	
+	//合并后超过路径MTU的消息不合并，先发出之前合并的消息，由调用者直接发送
+	private static void testTooLarge() {
+		List<ChannelBuffer> datagrams = new ArrayList<ChannelBuffer>();
+		MessageBundler bundler = new MessageBundler(newSession(datagrams));
+		bundler.add(newMessage(1, 50));
+		bundler.add(newMessage(2, 60));
+		ChannelBuffer large = newMessage(3, MTU - 1 - MessageHelper.BUNDLE_FRAME_HEAD_LENGTH + 1);
+		check(bundler.add(large) == false, "large message should not be bundled");
+		check(bundler.isEmpty(), "pending messages should be flushed before large message");
+		check(datagrams.size() == 1 && MessageHelper.getBundleFrames(datagrams.get(0)).length == 2, "pending messages should be sent in one bundle");
+		
+		ChannelBuffer fit = newMessage(4, MTU - 1 - MessageHelper.BUNDLE_FRAME_HEAD_LENGTH);
+		check(bundler.add(fit), "message filling the mtu should be bundled");
+		bundler.flush();
+		check(datagrams.size() == 2 && datagrams.get(1).equals(fit), "message filling the mtu should be sent as is");
+	}
+	
+	private static void writeFrame(ChannelBuffer bundle, ChannelBuffer message) {
+		bundle.writeShort(message.readableBytes());
+		bundle.writeBytes(message, message.readerIndex(), message.readableBytes());
+	}
+	
+	//指定数量的消息合并成的数据报，每条消息长度为length
+	private static ChannelBuffer newBundle(int count, int length) {
+		ChannelBuffer bundle = ChannelBuffers.dynamicBuffer(RudpConstants.BYTE_ORDER, MTU);
+		bundle.writeByte(MessageHelper.BUNDLE_HEAD);
+		for (int i = 0; i < count; i++) {
+			writeFrame(bundle, newMessage(i, length));
+		}
+		return bundle;
+	}
+	
+	//不可靠消息，消息体的每个字节都是id的低8位
+	private static ChannelBuffer newMessage(int id, int length) {
+		ChannelBuffer buf = ChannelBuffers.buffer(RudpConstants.BYTE_ORDER, length);
+		buf.writeByte(MessageHelper.UNRELIABLE_HEAD);
+		while(buf.writable()) {
+			buf.writeByte(id);
+		}
+		return buf;
+	}
+	
+	//不连接网络的会话，发出的数据报依次记录下来
+	private static RudpSession newSession(final List<ChannelBuffer> datagrams) {
+		Channel channel = (Channel) Proxy.newProxyInstance(MessageBundlerTest.class.getClassLoader(), new Class<?>[]{Channel.class},
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if(method.getName().equals("write")) {
+							datagrams.add((ChannelBuffer) args[0]);
+						}
+						return null;
+					}
+				});
+		return new RudpSession(null, channel, new InetSocketAddress("127.0.0.1", 9999));
+	}
+	
+	private static void check(boolean condition, String message) {
+		if(condition == false) {
+			throw new IllegalStateException(message);
+		}
+	}
+}